@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures contention between request threads completing transactions at the same time (each
+// completed transaction is handed off to the single aggregate processing thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ConcurrentTransactionBenchmark {
+
+    private TransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        transactionWorthy = new TransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void execute1() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void execute8() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void execute32() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void execute64() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LazyHistogramBenchmark {
+
+    @Param({"100", "1000", "10000", "100000", "1000000", "10000000"})
+    private int valueCount;
+
+    private LazyHistogram histogram;
+    private Aggregate.Histogram encodedHistogram;
+    private LazyHistogram mergeTarget;
+    private ScratchBuffer scratchBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        histogram = new LazyHistogram();
+        for (int i = 0; i < valueCount; i++) {
+            // durations between 1 millisecond and 10 seconds (in nanoseconds)
+            histogram.add(1000000 + (long) (random.nextDouble() * 10000000000L));
+        }
+        scratchBuffer = new ScratchBuffer();
+        encodedHistogram = histogram.toProto(scratchBuffer);
+        mergeTarget = new LazyHistogram();
+        mergeTarget.merge(encodedHistogram);
+    }
+
+    @Benchmark
+    public LazyHistogram mergeIntoEmpty() {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        lazyHistogram.merge(encodedHistogram);
+        return lazyHistogram;
+    }
+
+    @Benchmark
+    public LazyHistogram mergeIntoExisting() {
+        mergeTarget.merge(encodedHistogram);
+        return mergeTarget;
+    }
+
+    @Benchmark
+    public long percentile() {
+        return histogram.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public Aggregate.Histogram encode() {
+        return histogram.toProto(scratchBuffer);
+    }
+}
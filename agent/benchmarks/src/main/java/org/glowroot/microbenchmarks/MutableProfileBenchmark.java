@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// stack traces are generated to resemble deep framework stacks (e.g. spring + hibernate), with a
+// common prefix and then wide fan-out at several depths
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class MutableProfileBenchmark {
+
+    private static final int STACK_DEPTH = 200;
+    private static final int DISTINCT_STACKS = 2000;
+    private static final int FAN_OUT = 50;
+
+    @Param({"10000", "100000", "1000000"})
+    private int sampleCount;
+
+    private List<StackTraceElement>[] stackTraces;
+    private Thread.State[] threadStates;
+    private Profile profile;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        Random random = new Random(0);
+        stackTraces = new List[DISTINCT_STACKS];
+        threadStates = new Thread.State[DISTINCT_STACKS];
+        for (int i = 0; i < DISTINCT_STACKS; i++) {
+            StackTraceElement[] stackTrace = new StackTraceElement[STACK_DEPTH];
+            for (int j = 0; j < STACK_DEPTH; j++) {
+                // stack trace elements are ordered from leaf to root
+                int depth = STACK_DEPTH - j;
+                int variant = depth % 20 == 0 ? random.nextInt(FAN_OUT) : 0;
+                stackTrace[j] = new StackTraceElement("org.example.framework" + depth % 7
+                        + ".Class" + depth + "$" + variant, "method" + variant,
+                        "Class" + depth + ".java", 100 + variant);
+            }
+            stackTraces[i] = Arrays.asList(stackTrace);
+            threadStates[i] = random.nextBoolean() ? Thread.State.RUNNABLE : Thread.State.WAITING;
+        }
+        MutableProfile mutableProfile = new MutableProfile();
+        mergeSamples(mutableProfile);
+        profile = mutableProfile.toProto();
+    }
+
+    @Benchmark
+    public MutableProfile mergeStackTraces() {
+        MutableProfile mutableProfile = new MutableProfile();
+        mergeSamples(mutableProfile);
+        return mutableProfile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProfile() {
+        MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(profile);
+        mutableProfile.merge(profile);
+        return mutableProfile;
+    }
+
+    private void mergeSamples(MutableProfile mutableProfile) {
+        for (int i = 0; i < sampleCount; i++) {
+            int index = i % DISTINCT_STACKS;
+            mutableProfile.merge(stackTraces[index], threadStates[index]);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// each thread loads the same set of classes into its own class loader, which is the pattern seen
+// when application servers deploy several applications (or groovy creates many class loaders) in
+// parallel, and which stresses the per class loader bookkeeping in AnalyzedWorld
+//
+// must be run with -javaagent so that the classes are woven
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ParallelClassLoadingBenchmark {
+
+    @Param({"1", "4", "16"})
+    private int threadCount;
+
+    private Set<String> classNames;
+    private URL[] urls;
+
+    private ExecutorService executor;
+    private List<URLClassLoader> loaders;
+
+    @Setup
+    public void setup() throws IOException {
+        classNames = WeavingBenchmark.getClassNames();
+        List<URL> urls = Lists.newArrayList();
+        for (String path : WeavingBenchmark.getClassPath()) {
+            if (path.endsWith(".jar")) {
+                urls.add(new File(path).toURI().toURL());
+            }
+        }
+        this.urls = urls.toArray(new URL[urls.size()]);
+        executor = Executors.newFixedThreadPool(threadCount);
+    }
+
+    // new class loaders for every iteration, otherwise the classes are already loaded
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        loaders = Lists.newArrayList();
+        for (int i = 0; i < threadCount; i++) {
+            // null parent so that the classes are not found (and already loaded) in the system
+            // class loader
+            loaders.add(new URLClassLoader(urls, null));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws InterruptedException {
+        // not calling URLClassLoader.close() since it is not available in java 6, the loaders (and
+        // their entries in AnalyzedWorld) are released on gc
+        loaders.clear();
+        MILLISECONDS.sleep(100);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (final URLClassLoader loader : loaders) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (String className : classNames) {
+                        try {
+                            Class.forName(className, false, loader);
+                        } catch (ClassNotFoundException e) {
+                            // optional dependencies are not transitively included
+                        } catch (NoClassDefFoundError e) {
+                            // optional dependencies are not transitively included
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.SymbolTable;
+import org.glowroot.common.config.AdvancedConfig;
+
+// simulates a single aggregate interval, where each query is merged into both the overall and the
+// transaction aggregate, and where the query text instances differ between transactions (as they
+// do when the sql is built dynamically, e.g. by an orm)
+//
+// the symbol table is sized the same as in AggregateIntervalCollector (5000 with the default max
+// query aggregates), so 500 and 2000 distinct queries are the typical case, and 50000 distinct
+// queries (e.g. non-parameterized sql) measures the path where the symbol table is full
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class QueryCollectorBenchmark {
+
+    private static final int MAX_QUERY_AGGREGATES = 500;
+
+    @Param({"500", "2000", "50000"})
+    private int distinctQueries;
+
+    @Param({"false", "true"})
+    private boolean symbolTable;
+
+    // two copies of each query text, so that the second half of the interval uses different
+    // instances than the ones first seen
+    private String[][] queryTexts;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        queryTexts = new String[2][distinctQueries];
+        for (int i = 0; i < distinctQueries; i++) {
+            StringBuilder sb = new StringBuilder("select ");
+            int columnCount = 20 + random.nextInt(60);
+            for (int j = 0; j < columnCount; j++) {
+                sb.append("t.column_");
+                sb.append(j);
+                sb.append(", ");
+            }
+            sb.append("t.id from some_table t where t.id = ");
+            sb.append(i);
+            String queryText = sb.toString();
+            queryTexts[0][i] = queryText;
+            queryTexts[1][i] = new String(queryText);
+        }
+    }
+
+    @Benchmark
+    public org.glowroot.common.model.QueryCollector mergeInterval() {
+        SymbolTable table = symbolTable ? new SymbolTable(MAX_QUERY_AGGREGATES
+                * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER) : null;
+        QueryCollector overallQueries = new QueryCollector(MAX_QUERY_AGGREGATES,
+                AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER, table);
+        QueryCollector transactionQueries = new QueryCollector(MAX_QUERY_AGGREGATES,
+                AdvancedConfig.TRANSACTION_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER, table);
+        for (int i = 0; i < 2 * distinctQueries; i++) {
+            // a few hot queries are executed much more often than the rest
+            int index = i % 10 == 0 ? i % 100 : i % distinctQueries;
+            String queryText = queryTexts[i / distinctQueries][index];
+            overallQueries.mergeQuery("SQL", queryText, 1000000, 1, true, 10, false);
+            transactionQueries.mergeQuery("SQL", queryText, 1000000, 1, true, 10, false);
+        }
+        // this is what the embedded collector's UI does when displaying live queries
+        org.glowroot.common.model.QueryCollector collector =
+                new org.glowroot.common.model.QueryCollector(MAX_QUERY_AGGREGATES);
+        overallQueries.mergeQueriesInto(collector);
+        transactionQueries.mergeQueriesInto(collector);
+        return collector;
+    }
+}
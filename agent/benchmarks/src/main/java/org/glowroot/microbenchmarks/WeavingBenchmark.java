@@ -15,6 +15,7 @@
  */
 package org.glowroot.microbenchmarks;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -26,6 +27,8 @@ import java.util.jar.JarFile;
 
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Measurement;
@@ -36,7 +39,12 @@ import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 @BenchmarkMode(Mode.SingleShotTime)
@@ -46,11 +54,56 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 @State(Scope.Thread)
 public class WeavingBenchmark {
 
+    private static final int[] ADVISOR_COUNTS = {50, 500, 5000};
+
     private Set<String> classNames;
 
+    // runs the benchmark once for each of ADVISOR_COUNTS (must be run with -javaagent, which is
+    // passed through to the forked jvms), each time with that many custom instrumentation configs
+    // in addition to the bundled plugins, and reports the number of classes loaded per second
+    public static void main(String[] args) throws Exception {
+        int classCount = getClassNames().size();
+        File baseDir = Files.createTempDir();
+        StringBuilder summary = new StringBuilder();
+        for (int advisorCount : ADVISOR_COUNTS) {
+            File confDir = new File(baseDir, "conf-" + advisorCount);
+            writeConfig(confDir, advisorCount);
+            Options options = new OptionsBuilder()
+                    .include(WeavingBenchmark.class.getName() + ".execute$")
+                    .jvmArgsAppend("-Dglowroot.conf.dir=" + confDir.getAbsolutePath())
+                    .build();
+            RunResult result = Iterables.getOnlyElement(new Runner(options).run());
+            double millis = result.getPrimaryResult().getScore();
+            summary.append(String.format("%5d advisors: %,10.0f classes/sec%n", advisorCount,
+                    classCount / (millis / 1000)));
+        }
+        System.out.println();
+        System.out.print(summary);
+    }
+
     @Setup
     public void setup() throws IOException {
-        classNames = new HashSet<String>();
+        classNames = getClassNames();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        MILLISECONDS.sleep(100);
+    }
+
+    @Benchmark
+    public void execute() throws ClassNotFoundException {
+        for (String className : classNames) {
+            try {
+                Class.forName(className, false, WeavingBenchmark.class.getClassLoader());
+            } catch (NoClassDefFoundError e) {
+                // optional dependencies are not transitively included
+            }
+        }
+    }
+
+    static Set<String> getClassNames() throws IOException {
+        Set<String> classNames = new HashSet<String>();
         for (String path : getClassPath()) {
             if (!path.endsWith(".jar")) {
                 continue;
@@ -71,25 +124,35 @@ public class WeavingBenchmark {
                 jarFile.close();
             }
         }
+        return classNames;
     }
 
-    @TearDown
-    public void tearDown() throws InterruptedException {
-        MILLISECONDS.sleep(100);
-    }
-
-    @Benchmark
-    public void execute() throws ClassNotFoundException {
-        for (String className : classNames) {
-            try {
-                Class.forName(className, false, WeavingBenchmark.class.getClassLoader());
-            } catch (NoClassDefFoundError e) {
-                // optional dependencies are not transitively included
+    // none of these match the loaded classes, so they only add to the cost of matching (which is
+    // what is being measured), and they mix exact class names with "*" class name patterns
+    private static void writeConfig(File confDir, int advisorCount) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"instrumentation\": [\n");
+        for (int i = 0; i < advisorCount; i++) {
+            String className;
+            if (i % 3 == 0) {
+                className = "com.example.app" + i + ".*Service";
+            } else {
+                className = "com.example.app.SomeClass" + i;
             }
+            sb.append("    {\n");
+            sb.append("      \"className\": \"" + className + "\",\n");
+            sb.append("      \"methodName\": \"execute\",\n");
+            sb.append("      \"methodParameterTypes\": [ \"..\" ],\n");
+            sb.append("      \"captureKind\": \"timer\",\n");
+            sb.append("      \"timerName\": \"timer " + i + "\"\n");
+            sb.append(i == advisorCount - 1 ? "    }\n" : "    },\n");
         }
+        sb.append("  ]\n}\n");
+        confDir.mkdirs();
+        Files.write(sb, new File(confDir, "config.json"), UTF_8);
     }
 
-    private static List<String> getClassPath() {
+    static List<String> getClassPath() {
         String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
     }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.MessageLite;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchStreamMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// collects gauge values and traces into batches that are sent over a single collectBatchStream
+// call, on its own thread so that the caller is not blocked waiting for the batch to fill
+abstract class Batcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Batcher.class);
+
+    private final int maxBytes;
+    private final long maxLatencyNanos;
+
+    @GuardedBy("this")
+    private final Deque<BatchItem> pending = new ArrayDeque<BatchItem>();
+
+    @GuardedBy("this")
+    private long pendingBytes;
+
+    // when the oldest pending item was added
+    @GuardedBy("this")
+    private long oldestNanos;
+
+    @GuardedBy("this")
+    private boolean closed;
+
+    Batcher(int maxBytes, long maxLatencyMillis) {
+        this.maxBytes = maxBytes;
+        this.maxLatencyNanos = MILLISECONDS.toNanos(maxLatencyMillis);
+    }
+
+    // sends the batch, spooling its items if it cannot be sent
+    abstract void send(List<BatchItem> batch) throws InterruptedException;
+
+    abstract void spool(BatchItem item);
+
+    synchronized void add(BatchItem item) throws InterruptedException {
+        // apply back pressure to the caller (same as when sending directly) when the central
+        // collector is not keeping up, instead of buffering without limit
+        while (pendingBytes >= 4L * maxBytes && !closed) {
+            wait();
+        }
+        if (closed) {
+            spool(item);
+            return;
+        }
+        if (pending.isEmpty()) {
+            oldestNanos = System.nanoTime();
+        }
+        pending.add(item);
+        pendingBytes += item.bytes;
+        notifyAll();
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<BatchItem> batch;
+            while ((batch = takeBatch()) != null) {
+                sendOrSpool(batch);
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendOrSpool(List<BatchItem> batch) throws InterruptedException {
+        try {
+            send(batch);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Throwable t) {
+            // log and continue with the next batch, otherwise callers would eventually block
+            // forever on back pressure
+            logger.error(t.getMessage(), t);
+            for (BatchItem item : batch) {
+                spool(item);
+            }
+        }
+    }
+
+    // returns null once closed and all pending items have been taken
+    private synchronized @Nullable List<BatchItem> takeBatch() throws InterruptedException {
+        while (true) {
+            if (pending.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                wait();
+                continue;
+            }
+            long remainingNanos = oldestNanos + maxLatencyNanos - System.nanoTime();
+            if (pendingBytes >= maxBytes || remainingNanos <= 0 || closed) {
+                break;
+            }
+            NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        List<BatchItem> batch = Lists.newArrayList();
+        long batchBytes = 0;
+        BatchItem item;
+        // always take at least one item, even if it is larger than the max batch size
+        while ((item = pending.peekFirst()) != null
+                && (batch.isEmpty() || batchBytes + item.bytes <= maxBytes)) {
+            batch.add(pending.removeFirst());
+            batchBytes += item.bytes;
+        }
+        pendingBytes -= batchBytes;
+        // the remaining items were added after the ones taken, so this only delays them
+        // slightly beyond the max latency
+        oldestNanos = System.nanoTime();
+        notifyAll();
+        return batch;
+    }
+
+    static class BatchItem {
+
+        final byte spoolType;
+        final List<? extends MessageLite> spoolMessages;
+        final List<BatchStreamMessage> batchMessages;
+        final List<String> fullTextSha1s;
+        final long bytes;
+
+        BatchItem(byte spoolType, List<? extends MessageLite> spoolMessages,
+                List<BatchStreamMessage> batchMessages, List<String> fullTextSha1s) {
+            this.spoolType = spoolType;
+            this.spoolMessages = spoolMessages;
+            this.batchMessages = batchMessages;
+            this.fullTextSha1s = fullTextSha1s;
+            long bytes = 0;
+            for (MessageLite message : spoolMessages) {
+                bytes += message.getSerializedSize();
+            }
+            this.bytes = bytes;
+        }
+    }
+}
@@ -22,27 +22,39 @@ import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closer;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.central.Batcher.BatchItem;
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.PropertiesFiles;
+import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common.util.Version;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -53,6 +65,8 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMes
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.AggregateStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.OverallAggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.TransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchStreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
@@ -73,6 +87,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CentralCollector implements Collector {
 
@@ -89,6 +104,39 @@ public class CentralCollector implements Collector {
         SKIP_DELAY = Integer.getInteger("glowroot.internal.rollup.0.intervalMillis", 60000) < 10000;
     }
 
+    // aggregates, gauge values and traces that could not be sent to the central collector (even
+    // after retrying) are spooled to disk, up to this size (0 disables the spool)
+    private static final long SPOOL_MAX_SIZE_MB =
+            Long.getLong("glowroot.internal.central.spool.maxSizeMb", 50);
+
+    private static final int SPOOL_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    // spooled records are replayed at this rate once the central collector is reachable again, so
+    // that agents do not overwhelm the central collector after it comes back up
+    private static final double SPOOL_REPLAY_PER_SECOND =
+            Integer.getInteger("glowroot.internal.central.spool.replayPerSecond", 10);
+
+    // a spooled record that keeps failing is eventually dropped so that it doesn't block replay of
+    // the records behind it
+    private static final int SPOOL_MAX_REPLAY_ATTEMPTS = 10;
+
+    // when this is set, gauge values and (non-partial) traces are sent to the central collector in
+    // batches of up to this size over a single stream instead of one call each, which reduces the
+    // per-call overhead for agents that capture many small traces (0 disables batching)
+    //
+    // this requires a central collector version that supports collectBatchStream
+    private static final int BATCH_MAX_BYTES =
+            Integer.getInteger("glowroot.internal.central.batch.maxBytes", 0);
+
+    // a batch is sent once it reaches the max size, or once its oldest item has waited this long
+    private static final long BATCH_MAX_LATENCY_MILLIS =
+            Long.getLong("glowroot.internal.central.batch.maxLatencyMillis", 1000);
+
+    // compression of the batch stream ("identity" disables compression), all other calls are always
+    // gzip compressed, so this only has an effect when batching is enabled
+    private static final String BATCH_COMPRESSION =
+            System.getProperty("glowroot.internal.central.batch.compression", "gzip");
+
     private final String agentId;
     private final String collectorAddress;
     private final ConfigService configService;
@@ -102,14 +150,20 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    private final @Nullable CentralSpool spool;
+    private final @Nullable ScheduledExecutorService spoolReplayExecutor;
+
+    private final @Nullable Batcher batcher;
+    private final @Nullable ExecutorService batcherExecutor;
+
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
-            @Nullable String collectorAuthority, List<File> confDirs, boolean configReadOnly,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
-            ConfigService configService) throws Exception {
+            @Nullable String collectorAuthority, List<File> confDirs, File tmpDir,
+            boolean configReadOnly, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater, ConfigService configService) throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
         if (agentId == null) {
@@ -139,6 +193,31 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, configReadOnly, liveJvmService, liveWeavingService,
                 liveTraceRepository, agentId, inConnectionFailure, sharedQueryTextLimiter);
+        spool = createSpool(tmpDir);
+        if (spool == null) {
+            spoolReplayExecutor = null;
+        } else {
+            spoolReplayExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadFactories.create("Glowroot-Central-Spool"));
+            new SpoolReplayRunnable(spool).scheduleWithFixedDelay(spoolReplayExecutor, 5, 5,
+                    SECONDS);
+        }
+        if (BATCH_MAX_BYTES <= 0) {
+            batcher = null;
+            batcherExecutor = null;
+        } else {
+            batcher = new CentralBatcher(collectorServiceStub.withCompression(BATCH_COMPRESSION),
+                    BATCH_MAX_BYTES, BATCH_MAX_LATENCY_MILLIS);
+            batcherExecutor = Executors.newSingleThreadExecutor(
+                    ThreadFactories.create("Glowroot-Central-Batcher"));
+            batcherExecutor.execute(batcher);
+        }
+    }
+
+    public void registerMBeans(LazyPlatformMBeanServer lazyPlatformMBeanServer) {
+        if (spool != null) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(spool, "org.glowroot:type=CentralSpool");
+        }
     }
 
     @Override
@@ -202,8 +281,10 @@ public class CentralCollector implements Collector {
         if (!SKIP_DELAY) {
             MILLISECONDS.sleep(nextAggregateDelayMillis);
         }
-        centralConnection
-                .blockingCallWithAFewRetries(new CollectAggregatesGrpcCall(aggregateReader));
+        CollectAggregatesGrpcCall grpcCall = new CollectAggregatesGrpcCall(aggregateReader);
+        if (!centralConnection.blockingCallWithAFewRetries(grpcCall) && spool != null) {
+            spool(CentralSpool.AGGREGATES, grpcCall.buildMessagesForSpool());
+        }
     }
 
     @Override
@@ -213,29 +294,30 @@ public class CentralCollector implements Collector {
                 .addAllGaugeValue(gaugeValues)
                 .setPostV09(true)
                 .build();
-        centralConnection.blockingCallWithAFewRetries(new GrpcCall<GaugeValueResponseMessage>() {
+        if (batcher != null) {
+            batcher.add(new BatchItem(CentralSpool.GAUGE_VALUES,
+                    ImmutableList.of(gaugeValueMessage),
+                    ImmutableList.of(BatchStreamMessage.newBuilder()
+                            .setGaugeValueMessage(gaugeValueMessage)
+                            .build()),
+                    ImmutableList.<String>of()));
+            return;
+        }
+        GrpcCall<GaugeValueResponseMessage> grpcCall = new GrpcCall<GaugeValueResponseMessage>() {
             @Override
             public void call(StreamObserver<GaugeValueResponseMessage> responseObserver) {
                 collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
             }
             @Override
             public void doWithResponse(GaugeValueResponseMessage response) {
-                if (response.getResendInit() && environment != null) {
-                    final InitMessage initMessage = InitMessage.newBuilder()
-                            .setAgentId(agentId)
-                            .setEnvironment(environment)
-                            .setAgentConfig(configService.getAgentConfig())
-                            .build();
-                    // only once, since resendInit will continue to be sent back until it succeeds
-                    centralConnection.asyncCallOnce(new GrpcCall<InitResponse>() {
-                        @Override
-                        void call(StreamObserver<InitResponse> responseObserver) {
-                            collectorServiceStub.collectInit(initMessage, responseObserver);
-                        }
-                    });
+                if (response.getResendInit()) {
+                    resendInit();
                 }
             }
-        });
+        };
+        if (!centralConnection.blockingCallWithAFewRetries(grpcCall)) {
+            spool(CentralSpool.GAUGE_VALUES, ImmutableList.of(gaugeValueMessage));
+        }
     }
 
     @Override
@@ -244,8 +326,36 @@ public class CentralCollector implements Collector {
             // do not retry partial transactions since they are live and reading from the trace
             // reader will not be idempotent, so could lead to confusing results
             centralConnection.blockingCallOnce(new CollectTraceGrpcCall(traceReader));
+        } else if (batcher != null) {
+            CollectTraceGrpcCall grpcCall = new CollectTraceGrpcCall(traceReader);
+            List<TraceStreamMessage> spoolMessages = grpcCall.buildMessagesForSpool();
+            if (spoolMessages.isEmpty()) {
+                // error building the messages has already been logged
+                return;
+            }
+            // the spooled messages carry full query texts, the batched messages only send the
+            // truncated text and sha1 where the full text was sent recently
+            List<String> fullTextSha1s = Lists.newArrayList();
+            List<BatchStreamMessage> batchMessages = Lists.newArrayList();
+            for (TraceStreamMessage message : spoolMessages) {
+                TraceStreamMessage batchMessage = message;
+                if (message.hasSharedQueryText()) {
+                    batchMessage = TraceStreamMessage.newBuilder()
+                            .setSharedQueryText(sharedQueryTextLimiter.buildTraceSharedQueryText(
+                                    message.getSharedQueryText().getFullText(), fullTextSha1s))
+                            .build();
+                }
+                batchMessages.add(BatchStreamMessage.newBuilder()
+                        .setTraceStreamMessage(batchMessage)
+                        .build());
+            }
+            batcher.add(new BatchItem(CentralSpool.TRACE, spoolMessages, batchMessages,
+                    fullTextSha1s));
         } else {
-            centralConnection.blockingCallWithAFewRetries(new CollectTraceGrpcCall(traceReader));
+            CollectTraceGrpcCall grpcCall = new CollectTraceGrpcCall(traceReader);
+            if (!centralConnection.blockingCallWithAFewRetries(grpcCall) && spool != null) {
+                spool(CentralSpool.TRACE, grpcCall.buildMessagesForSpool());
+            }
         }
     }
 
@@ -272,14 +382,78 @@ public class CentralCollector implements Collector {
     }
 
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
+        if (batcher != null) {
+            batcher.close();
+        }
+        if (batcherExecutor != null) {
+            batcherExecutor.shutdown();
+        }
         downstreamServiceObserver.close();
         centralConnection.close();
+        if (spoolReplayExecutor != null) {
+            spoolReplayExecutor.shutdown();
+        }
     }
 
     @OnlyUsedByTests
-    public void awaitClose() throws InterruptedException {
+    public void awaitClose() throws Exception {
+        if (batcherExecutor != null && !batcherExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         centralConnection.awaitClose();
+        if (spoolReplayExecutor != null
+                && !spoolReplayExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    private void resendInit() {
+        Environment environment = this.environment;
+        if (environment == null) {
+            return;
+        }
+        final InitMessage initMessage = InitMessage.newBuilder()
+                .setAgentId(agentId)
+                .setEnvironment(environment)
+                .setAgentConfig(configService.getAgentConfig())
+                .build();
+        // only once, since resendInit will continue to be sent back until it succeeds
+        centralConnection.asyncCallOnce(new GrpcCall<InitResponse>() {
+            @Override
+            void call(StreamObserver<InitResponse> responseObserver) {
+                collectorServiceStub.collectInit(initMessage, responseObserver);
+            }
+        });
+    }
+
+    private void spool(byte type, List<? extends MessageLite> messages) {
+        if (spool == null || messages.isEmpty()) {
+            return;
+        }
+        try {
+            spool.append(type, messages);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private static @Nullable CentralSpool createSpool(File tmpDir) {
+        if (SPOOL_MAX_SIZE_MB <= 0) {
+            return null;
+        }
+        File dir = new File(tmpDir, "central-spool");
+        try {
+            return new CentralSpool(dir, SPOOL_MAX_SIZE_MB * 1024 * 1024,
+                    (int) Math.min(SPOOL_SEGMENT_BYTES, SPOOL_MAX_SIZE_MB * 1024 * 1024));
+        } catch (IOException e) {
+            startupLogger.warn("could not create spool directory '{}': {}", dir.getAbsolutePath(),
+                    e.getMessage(), e);
+            return null;
+        }
     }
 
     @VisibleForTesting
@@ -393,6 +567,33 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
             final StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
+            try {
+                writeMessages(requestObserver, false);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return;
+            }
+            requestObserver.onCompleted();
+        }
+
+        // builds the same messages that are streamed to the central collector, except always with
+        // full query texts, since by the time a spooled record is replayed the full text that a
+        // sha1 refers to may have expired in the central collector
+        private List<AggregateStreamMessage> buildMessagesForSpool() {
+            MessageCollector<AggregateStreamMessage> messageCollector =
+                    new MessageCollector<AggregateStreamMessage>();
+            try {
+                writeMessages(messageCollector, true);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                return ImmutableList.of();
+            }
+            return messageCollector.messages;
+        }
+
+        private void writeMessages(StreamObserver<AggregateStreamMessage> requestObserver,
+                boolean fullTexts) throws Exception {
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
                     .setStreamHeader(AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -401,14 +602,7 @@ public class CentralCollector implements Collector {
                     .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
-            try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
-            } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                requestObserver.onError(t);
-                return;
-            }
-            requestObserver.onCompleted();
+            aggregateReader.accept(new AggregateVisitorImpl(requestObserver, fullTexts));
         }
 
         @Override
@@ -423,19 +617,20 @@ public class CentralCollector implements Collector {
         private class AggregateVisitorImpl implements AggregateVisitor {
 
             private final StreamObserver<AggregateStreamMessage> requestObserver;
+            private final boolean fullTexts;
 
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
+            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver,
+                    boolean fullTexts) {
                 this.requestObserver = requestObserver;
+                this.fullTexts = fullTexts;
             }
 
             @Override
             public void visitOverallAggregate(String transactionType,
                     List<String> sharedQueryTexts, Aggregate overallAggregate) {
                 for (String sharedQueryText : sharedQueryTexts) {
-                    Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
-                            .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s);
                     requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(aggregateSharedQueryText)
+                            .setSharedQueryText(buildSharedQueryText(sharedQueryText))
                             .build());
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
@@ -451,8 +646,7 @@ public class CentralCollector implements Collector {
                     Aggregate transactionAggregate) {
                 for (String sharedQueryText : sharedQueryTexts) {
                     requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(sharedQueryTextLimiter
-                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
+                            .setSharedQueryText(buildSharedQueryText(sharedQueryText))
                             .build());
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
@@ -462,6 +656,16 @@ public class CentralCollector implements Collector {
                                 .setAggregate(transactionAggregate))
                         .build());
             }
+
+            private Aggregate.SharedQueryText buildSharedQueryText(String sharedQueryText) {
+                if (fullTexts) {
+                    return Aggregate.SharedQueryText.newBuilder()
+                            .setFullText(sharedQueryText)
+                            .build();
+                }
+                return sharedQueryTextLimiter.buildAggregateSharedQueryText(sharedQueryText,
+                        fullTextSha1s);
+            }
         }
     }
 
@@ -479,6 +683,32 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<EmptyMessage> responseObserver) {
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
+            try {
+                writeMessages(requestObserver, false);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return;
+            }
+            requestObserver.onCompleted();
+        }
+
+        // builds the same messages that are streamed to the central collector, except always with
+        // full query texts (see CollectAggregatesGrpcCall.buildMessagesForSpool())
+        private List<TraceStreamMessage> buildMessagesForSpool() {
+            MessageCollector<TraceStreamMessage> messageCollector =
+                    new MessageCollector<TraceStreamMessage>();
+            try {
+                writeMessages(messageCollector, true);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                return ImmutableList.of();
+            }
+            return messageCollector.messages;
+        }
+
+        private void writeMessages(StreamObserver<TraceStreamMessage> requestObserver,
+                boolean fullTexts) throws Exception {
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamHeader(TraceStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -488,20 +718,14 @@ public class CentralCollector implements Collector {
                     .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
-            TraceVisitorImpl traceVisitor = new TraceVisitorImpl(requestObserver, fullTextSha1s);
-            try {
-                traceReader.accept(traceVisitor);
-            } catch (Throwable t) {
-                logger.error(t.getMessage(), t);
-                requestObserver.onError(t);
-                return;
-            }
+            TraceVisitorImpl traceVisitor =
+                    new TraceVisitorImpl(requestObserver, fullTextSha1s, fullTexts);
+            traceReader.accept(traceVisitor);
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamCounts(TraceStreamCounts.newBuilder()
                             .setEntryCount(traceVisitor.entryCount)
                             .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
                     .build());
-            requestObserver.onCompleted();
         }
 
         @Override
@@ -516,14 +740,16 @@ public class CentralCollector implements Collector {
 
         private final StreamObserver<TraceStreamMessage> requestObserver;
         private final List<String> fullTextSha1s;
+        private final boolean fullTexts;
 
         private int entryCount;
         private int sharedQueryTextCount;
 
         private TraceVisitorImpl(StreamObserver<TraceStreamMessage> requestObserver,
-                List<String> fullTextSha1s) {
+                List<String> fullTextSha1s, boolean fullTexts) {
             this.requestObserver = requestObserver;
             this.fullTextSha1s = fullTextSha1s;
+            this.fullTexts = fullTexts;
         }
 
         @Override
@@ -545,8 +771,15 @@ public class CentralCollector implements Collector {
         @Override
         public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
             for (String sharedQueryText : sharedQueryTexts) {
-                Trace.SharedQueryText traceSharedQueryText = sharedQueryTextLimiter
-                        .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s);
+                Trace.SharedQueryText traceSharedQueryText;
+                if (fullTexts) {
+                    traceSharedQueryText = Trace.SharedQueryText.newBuilder()
+                            .setFullText(sharedQueryText)
+                            .build();
+                } else {
+                    traceSharedQueryText = sharedQueryTextLimiter
+                            .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s);
+                }
                 requestObserver.onNext(TraceStreamMessage.newBuilder()
                         .setSharedQueryText(traceSharedQueryText)
                         .build());
@@ -575,4 +808,177 @@ public class CentralCollector implements Collector {
                     .build());
         }
     }
+
+    private class SpoolReplayRunnable extends ScheduledRunnable {
+
+        private final CentralSpool spool;
+        private final RateLimiter rateLimiter = RateLimiter.create(SPOOL_REPLAY_PER_SECOND);
+
+        private int failedAttempts;
+
+        private SpoolReplayRunnable(CentralSpool spool) {
+            this.spool = spool;
+        }
+
+        @Override
+        protected void runInternal() throws Exception {
+            // environment is only set once the init call has succeeded, and the central collector
+            // needs the init call before accepting data from this agent
+            while (environment != null && !centralConnection.isInConnectionFailure()) {
+                SpooledRecord record = spool.peek();
+                if (record == null) {
+                    return;
+                }
+                rateLimiter.acquire();
+                boolean success;
+                try {
+                    success = replay(record);
+                } catch (InvalidProtocolBufferException e) {
+                    logger.error(e.getMessage(), e);
+                    spool.remove(record);
+                    continue;
+                }
+                if (success) {
+                    failedAttempts = 0;
+                } else if (++failedAttempts < SPOOL_MAX_REPLAY_ATTEMPTS) {
+                    // try again on next run
+                    return;
+                } else {
+                    logger.debug("dropping spooled record after {} failed attempts",
+                            failedAttempts);
+                    failedAttempts = 0;
+                }
+                spool.remove(record);
+            }
+        }
+
+        private boolean replay(SpooledRecord record) throws Exception {
+            switch (record.getType()) {
+                case CentralSpool.GAUGE_VALUES:
+                    List<GaugeValueMessage> messages =
+                            record.getMessages(GaugeValueMessage.parser());
+                    if (messages.size() != 1) {
+                        throw new InvalidProtocolBufferException(
+                                "Unexpected spooled gauge value message count: " + messages.size());
+                    }
+                    return replayGaugeValues(messages.get(0));
+                case CentralSpool.AGGREGATES:
+                    return replayAggregates(record.getMessages(AggregateStreamMessage.parser()));
+                case CentralSpool.TRACE:
+                    return replayTrace(record.getMessages(TraceStreamMessage.parser()));
+                default:
+                    throw new InvalidProtocolBufferException(
+                            "Unexpected spooled record type: " + record.getType());
+            }
+        }
+
+        private boolean replayGaugeValues(final GaugeValueMessage message)
+                throws InterruptedException {
+            return centralConnection
+                    .blockingCallWithAFewRetries(new GrpcCall<GaugeValueResponseMessage>() {
+                        @Override
+                        void call(StreamObserver<GaugeValueResponseMessage> responseObserver) {
+                            collectorServiceStub.collectGaugeValues(message, responseObserver);
+                        }
+                    });
+        }
+
+        private boolean replayAggregates(final List<AggregateStreamMessage> messages)
+                throws InterruptedException {
+            return centralConnection
+                    .blockingCallWithAFewRetries(new GrpcCall<AggregateResponseMessage>() {
+                        @Override
+                        void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+                            StreamObserver<AggregateStreamMessage> requestObserver =
+                                    collectorServiceStub.collectAggregateStream(responseObserver);
+                            for (AggregateStreamMessage message : messages) {
+                                requestObserver.onNext(message);
+                            }
+                            requestObserver.onCompleted();
+                        }
+                    });
+        }
+
+        private boolean replayTrace(final List<TraceStreamMessage> messages)
+                throws InterruptedException {
+            return centralConnection.blockingCallWithAFewRetries(new GrpcCall<EmptyMessage>() {
+                @Override
+                void call(StreamObserver<EmptyMessage> responseObserver) {
+                    StreamObserver<TraceStreamMessage> requestObserver =
+                            collectorServiceStub.collectTraceStream(responseObserver);
+                    for (TraceStreamMessage message : messages) {
+                        requestObserver.onNext(message);
+                    }
+                    requestObserver.onCompleted();
+                }
+            });
+        }
+    }
+
+    private class CentralBatcher extends Batcher {
+
+        private final CollectorServiceStub batchCollectorServiceStub;
+
+        private CentralBatcher(CollectorServiceStub batchCollectorServiceStub, int maxBytes,
+                long maxLatencyMillis) {
+            super(maxBytes, maxLatencyMillis);
+            this.batchCollectorServiceStub = batchCollectorServiceStub;
+        }
+
+        @Override
+        void send(final List<BatchItem> batch) throws InterruptedException {
+            GrpcCall<BatchResponseMessage> grpcCall = new GrpcCall<BatchResponseMessage>() {
+                @Override
+                void call(StreamObserver<BatchResponseMessage> responseObserver) {
+                    StreamObserver<BatchStreamMessage> requestObserver =
+                            batchCollectorServiceStub.collectBatchStream(responseObserver);
+                    for (BatchItem item : batch) {
+                        for (BatchStreamMessage message : item.batchMessages) {
+                            requestObserver.onNext(message);
+                        }
+                    }
+                    requestObserver.onCompleted();
+                }
+                @Override
+                void doWithResponse(BatchResponseMessage response) {
+                    for (BatchItem item : batch) {
+                        for (String fullTextSha1 : item.fullTextSha1s) {
+                            sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(
+                                    fullTextSha1);
+                        }
+                    }
+                    if (response.getResendInit()) {
+                        resendInit();
+                    }
+                }
+            };
+            if (!centralConnection.blockingCallWithAFewRetries(grpcCall)) {
+                // spooled individually so that they are replayed the same as without batching
+                for (BatchItem item : batch) {
+                    spool(item);
+                }
+            }
+        }
+
+        @Override
+        void spool(BatchItem item) {
+            CentralCollector.this.spool(item.spoolType, item.spoolMessages);
+        }
+    }
+
+    private static class MessageCollector<T> implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
 }
@@ -148,30 +148,38 @@ class CentralConnection {
         return channel;
     }
 
-    <T extends /*@NonNull*/ Object> void blockingCallOnce(GrpcCall<T> call)
+    // returns false if the call did not succeed
+    <T extends /*@NonNull*/ Object> boolean blockingCallOnce(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(-1, call);
+        return blockingCallWithAFewRetries(-1, call);
     }
 
     // important that these calls are idempotent
-    <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(GrpcCall<T> call)
+    //
+    // returns false if the call did not succeed (including when it was not attempted because of
+    // connection failure)
+    <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(30000, call);
+        return blockingCallWithAFewRetries(30000, call);
+    }
+
+    boolean isInConnectionFailure() {
+        return inConnectionFailure.get();
     }
 
     // important that these calls are idempotent
-    private <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(int maxTotalMillis,
-            GrpcCall<T> call) throws InterruptedException {
+    private <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(
+            int maxTotalMillis, GrpcCall<T> call) throws InterruptedException {
         if (closed) {
-            return;
+            return false;
         }
         if (inConnectionFailure.get()) {
-            return;
+            return false;
         }
         RetryingStreamObserver<T> responseObserver =
                 new RetryingStreamObserver<T>(call, maxTotalMillis, maxTotalMillis, false);
         call.call(responseObserver);
-        responseObserver.waitForFinish();
+        return responseObserver.waitForFinish();
     }
 
     <T extends /*@NonNull*/ Object> void asyncCallOnce(GrpcCall<T> call) {
@@ -315,6 +323,8 @@ class CentralConnection {
 
         private final CountDownLatch latch = new CountDownLatch(1);
 
+        private volatile boolean completed;
+
         private RetryingStreamObserver(GrpcCall<T> grpcCall, int maxSingleDelayMillis,
                 int maxTotalMillis, boolean init) {
             this.grpcCall = grpcCall;
@@ -342,6 +352,7 @@ class CentralConnection {
                 inMaybeInitFailure = false;
                 initCallSucceeded = true;
             }
+            completed = true;
             latch.countDown();
         }
 
@@ -358,8 +369,9 @@ class CentralConnection {
             }
         }
 
-        private void waitForFinish() throws InterruptedException {
+        private boolean waitForFinish() throws InterruptedException {
             latch.await();
+            return completed;
         }
 
         private void onErrorInternal(final Throwable t) throws InterruptedException {
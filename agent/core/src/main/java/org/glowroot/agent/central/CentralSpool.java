@@ -0,0 +1,352 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+
+// bounded, append-only spool of messages that could not be sent to the central collector
+//
+// messages are appended to segment files, and similar to CappedDatabase, when the total size goes
+// over the limit the oldest data is dropped (here by deleting the oldest segment)
+//
+// each record is [int payload length][int payload crc32][byte record type][payload], where the
+// payload is a series of length delimited protobuf messages
+//
+// the replay position is only tracked in memory, so after a jvm restart the oldest remaining
+// segment is replayed from the beginning, which is ok since the central collector overwrites
+// aggregates, gauge values and traces that it has already stored
+class CentralSpool implements CentralSpoolMXBean {
+
+    static final byte GAUGE_VALUES = 1;
+    static final byte AGGREGATES = 2;
+    static final byte TRACE = 3;
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentBytes;
+
+    @GuardedBy("this")
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+    // offset into the oldest segment of the next record to replay
+    @GuardedBy("this")
+    private long readOffset;
+
+    @GuardedBy("this")
+    private @Nullable DataOutputStream out;
+
+    @GuardedBy("this")
+    private long nextSegmentId;
+
+    @GuardedBy("this")
+    private long droppedRecordCount;
+
+    CentralSpool(File directory, long maxBytes, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory.getAbsolutePath());
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list directory: " + directory.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.debug(e.getMessage(), e);
+                continue;
+            }
+            Segment segment = new Segment(id, file);
+            segment.length = file.length();
+            segment.recordCount = countRecords(file);
+            if (segment.recordCount == 0) {
+                deleteFile(file);
+                continue;
+            }
+            segments.add(segment);
+            nextSegmentId = id + 1;
+        }
+    }
+
+    // returns false if the record was not spooled, e.g. because it is larger than a segment
+    synchronized boolean append(byte type, List<? extends MessageLite> messages)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (MessageLite message : messages) {
+            message.writeDelimitedTo(payload);
+        }
+        byte[] bytes = payload.toByteArray();
+        int recordSize = RECORD_HEADER_SIZE + bytes.length;
+        if (recordSize > segmentBytes) {
+            logger.debug("record too large to spool: {} bytes", bytes.length);
+            droppedRecordCount++;
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (out == null || segment == null || segment.length + recordSize > segmentBytes) {
+            segment = newSegment();
+        }
+        DataOutputStream out = this.out;
+        if (out == null) {
+            throw new IllegalStateException("Segment output stream not open");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.writeByte(type);
+        out.write(bytes);
+        out.flush();
+        segment.length += recordSize;
+        segment.recordCount++;
+        while (getBytesInternal() > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            droppedRecordCount += oldest.recordCount;
+            deleteFile(oldest.file);
+            readOffset = 0;
+        }
+        return true;
+    }
+
+    // returns the oldest record that has not been replayed yet, or null if there are none
+    synchronized @Nullable SpooledRecord peek() throws IOException {
+        while (true) {
+            Segment oldest = segments.peekFirst();
+            if (oldest == null) {
+                return null;
+            }
+            if (readOffset < oldest.length && oldest.recordCount > 0) {
+                SpooledRecord record = readRecord(oldest);
+                if (record != null) {
+                    return record;
+                }
+                // torn or corrupt record (e.g. jvm crash in the middle of a write), skip the rest
+                // of the segment
+                droppedRecordCount += oldest.recordCount;
+                oldest.recordCount = 0;
+                readOffset = oldest.length;
+            }
+            if (oldest == segments.peekLast() && out != null) {
+                // still being written to
+                return null;
+            }
+            segments.removeFirst();
+            deleteFile(oldest.file);
+            readOffset = 0;
+        }
+    }
+
+    // called after the record returned by peek() has been replayed (or is being given up on)
+    synchronized void remove(SpooledRecord record) {
+        Segment oldest = segments.peekFirst();
+        if (oldest == null || oldest.id != record.segmentId || readOffset != record.offset) {
+            // the segment was dropped in the meantime because the spool went over its limit
+            return;
+        }
+        readOffset += RECORD_HEADER_SIZE + record.payload.length;
+        oldest.recordCount--;
+        if (oldest.recordCount == 0 && oldest != segments.peekLast()) {
+            segments.removeFirst();
+            deleteFile(oldest.file);
+            readOffset = 0;
+        }
+    }
+
+    @Override
+    public synchronized int getRecordCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.recordCount;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return getBytesInternal();
+    }
+
+    @Override
+    public synchronized long getDroppedRecordCount() {
+        return droppedRecordCount;
+    }
+
+    @OnlyUsedByTests
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private long getBytesInternal() {
+        long bytes = -readOffset;
+        for (Segment segment : segments) {
+            bytes += segment.length;
+        }
+        return bytes;
+    }
+
+    @GuardedBy("this")
+    private Segment newSegment() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        long id = nextSegmentId++;
+        File file = new File(directory, String.format("%019d", id) + SEGMENT_SUFFIX);
+        out = new DataOutputStream(new FileOutputStream(file, true));
+        Segment segment = new Segment(id, file);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    @GuardedBy("this")
+    private @Nullable SpooledRecord readRecord(Segment segment) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(segment.file, "r");
+        try {
+            if (readOffset + RECORD_HEADER_SIZE > in.length()) {
+                return null;
+            }
+            in.seek(readOffset);
+            int length = in.readInt();
+            int checksum = in.readInt();
+            byte type = in.readByte();
+            if (length < 0 || readOffset + RECORD_HEADER_SIZE + length > in.length()) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return new SpooledRecord(segment.id, readOffset, type, payload);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int countRecords(File file) throws IOException {
+        int count = 0;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            long offset = 0;
+            while (offset + RECORD_HEADER_SIZE <= length) {
+                in.seek(offset);
+                int payloadLength = in.readInt();
+                if (payloadLength < 0 || offset + RECORD_HEADER_SIZE + payloadLength > length) {
+                    break;
+                }
+                offset += RECORD_HEADER_SIZE + payloadLength;
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("could not delete spool file: {}", file.getAbsolutePath());
+        }
+    }
+
+    static class SpooledRecord {
+
+        private final long segmentId;
+        private final long offset;
+        private final byte type;
+        private final byte[] payload;
+
+        private SpooledRecord(long segmentId, long offset, byte type, byte[] payload) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        byte getType() {
+            return type;
+        }
+
+        <T extends /*@NonNull*/ MessageLite> List<T> getMessages(Parser<T> parser)
+                throws IOException {
+            List<T> messages = Lists.newArrayList();
+            InputStream in = new ByteArrayInputStream(payload);
+            T message;
+            while ((message = parser.parseDelimitedFrom(in)) != null) {
+                messages.add(message);
+            }
+            return messages;
+        }
+    }
+
+    private static class Segment {
+
+        private final long id;
+        private final File file;
+
+        private long length;
+        private int recordCount;
+
+        private Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,6 +17,7 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -27,6 +28,7 @@ import org.glowroot.agent.model.MutableAggregateTimer;
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.ServiceCallCollector;
 import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.agent.model.SymbolTable;
 import org.glowroot.agent.model.ThreadProfile;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.TransactionTimer;
@@ -55,48 +57,254 @@ import static com.google.common.base.Preconditions.checkNotNull;
 class AggregateCollector {
 
     private final @Nullable String transactionName;
-    // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
-    private double totalDurationNanos;
-    private long transactionCount;
-    private long errorCount;
-    private boolean asyncTransactions;
-    private final RootTimerCollectorImpl mainThreadRootTimers = new RootTimerCollectorImpl();
-    private final ThreadStatsCollectorImpl mainThreadStats = new ThreadStatsCollectorImpl();
-    // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
-    // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
-    private final QueryCollector queries;
-    private final ServiceCallCollector serviceCalls;
-    // lazy instantiated to reduce memory footprint
-    private @MonotonicNonNull MutableAggregateTimer auxThreadRootTimer;
-    private @MonotonicNonNull ThreadStatsCollectorImpl auxThreadStats;
-    private @MonotonicNonNull RootTimerCollectorImpl asyncTimers;
-    private @MonotonicNonNull MutableProfile mainThreadProfile;
-    private @MonotonicNonNull MutableProfile auxThreadProfile;
-
-    // lock is primarily for visibility (there is almost no contention since written via a single
-    // thread and flushed afterwards via a different thread, with potential concurrent access by the
-    // UI for "live" data when running the embedded collector)
-    private final Object lock = new Object();
+    private final int maxQueryAggregates;
+    private final int maxServiceCallAggregates;
+    private final SymbolTable symbolTable;
+
+    // when there is more than one stripe, transactions are merged into the stripe for the current
+    // thread so that multiple processing threads do not contend on the same lock, and the stripes
+    // are only combined when reading (e.g. when the interval is flushed)
+    private final Stripe[] stripes;
 
     AggregateCollector(@Nullable String transactionName, int maxQueryAggregates,
-            int maxServiceCallAggregates) {
+            int maxServiceCallAggregates, int stripeCount, SymbolTable symbolTable) {
         this.transactionName = transactionName;
+        this.maxQueryAggregates = maxQueryAggregates;
+        this.maxServiceCallAggregates = maxServiceCallAggregates;
+        this.symbolTable = symbolTable;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
 
-        int queriesHardLimitMultiplierWhileBuilding = transactionName == null
-                ? AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER
-                : AdvancedConfig.TRANSACTION_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
-        queries = new QueryCollector(maxQueryAggregates, queriesHardLimitMultiplierWhileBuilding);
+    void mergeDataFrom(Transaction transaction) {
+        Stripe stripe;
+        if (stripes.length == 1) {
+            stripe = stripes[0];
+        } else {
+            stripe = stripes[getStripeIndex(Thread.currentThread().getId(), stripes.length)];
+        }
+        synchronized (stripe.lock) {
+            stripe.mergeDataFrom(transaction);
+        }
+    }
 
-        int serviceCallsHardLimitMultiplierWhileBuilding = transactionName == null
-                ? AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER
-                : AdvancedConfig.TRANSACTION_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER;
-        serviceCalls = new ServiceCallCollector(maxServiceCallAggregates,
-                serviceCallsHardLimitMultiplierWhileBuilding);
+    Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
+            ScratchBuffer scratchBuffer) {
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                return stripe.build(sharedQueryTextCollection, scratchBuffer);
+            }
+        }
+        return combineStripes().build(sharedQueryTextCollection, scratchBuffer);
     }
 
-    void mergeDataFrom(Transaction transaction) {
-        synchronized (lock) {
+    void mergeOverallSummaryInto(OverallSummaryCollector collector) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                collector.mergeSummary(stripe.totalDurationNanos, stripe.transactionCount, 0);
+            }
+        }
+    }
+
+    void mergeTransactionNameSummariesInto(TransactionNameSummaryCollector collector) {
+        checkNotNull(transactionName);
+        double totalDurationNanos = 0;
+        long transactionCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                totalDurationNanos += stripe.totalDurationNanos;
+                transactionCount += stripe.transactionCount;
+            }
+        }
+        collector.collect(transactionName, totalDurationNanos, transactionCount, 0);
+    }
+
+    void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                collector.mergeErrorSummary(stripe.errorCount, stripe.transactionCount, 0);
+            }
+        }
+    }
+
+    void mergeTransactionNameErrorSummariesInto(TransactionNameErrorSummaryCollector collector) {
+        checkNotNull(transactionName);
+        // the error rate needs the transaction count across all stripes, including stripes that
+        // have no errors
+        long errorCount = 0;
+        long transactionCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                errorCount += stripe.errorCount;
+                transactionCount += stripe.transactionCount;
+            }
+        }
+        if (errorCount != 0) {
+            collector.collect(transactionName, errorCount, transactionCount, 0);
+        }
+    }
+
+    OverviewAggregate getOverviewAggregate(long captureTime) {
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                return stripe.getOverviewAggregate(captureTime);
+            }
+        }
+        return combineStripes().getOverviewAggregate(captureTime);
+    }
+
+    PercentileAggregate getPercentileAggregate(long captureTime) {
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                return stripe.getPercentileAggregate(captureTime);
+            }
+        }
+        return combineStripes().getPercentileAggregate(captureTime);
+    }
+
+    ThroughputAggregate getThroughputAggregate(long captureTime) {
+        long transactionCount = 0;
+        long errorCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                transactionCount += stripe.transactionCount;
+                errorCount += stripe.errorCount;
+            }
+        }
+        return ImmutableThroughputAggregate.builder()
+                .captureTime(captureTime)
+                .transactionCount(transactionCount)
+                .errorCount(errorCount)
+                .build();
+    }
+
+    @Nullable
+    String getFullQueryText(String fullQueryTextSha1) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                String fullQueryText = stripe.queries.getFullQueryText(fullQueryTextSha1);
+                if (fullQueryText != null) {
+                    return fullQueryText;
+                }
+            }
+        }
+        return null;
+    }
+
+    void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                stripe.queries.mergeQueriesInto(collector);
+            }
+            return;
+        }
+        // combine first so that the query limit is applied across all stripes
+        combineStripes().queries.mergeQueriesInto(collector);
+    }
+
+    void mergeServiceCallsInto(org.glowroot.common.model.ServiceCallCollector collector) {
+        if (stripes.length == 1) {
+            Stripe stripe = stripes[0];
+            synchronized (stripe.lock) {
+                stripe.serviceCalls.mergeServiceCallsInto(collector);
+            }
+            return;
+        }
+        // combine first so that the service call limit is applied across all stripes
+        combineStripes().serviceCalls.mergeServiceCallsInto(collector);
+    }
+
+    void mergeMainThreadProfilesInto(ProfileCollector collector) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                if (stripe.mainThreadProfile != null) {
+                    collector.mergeProfile(stripe.mainThreadProfile.toProto());
+                }
+            }
+        }
+    }
+
+    void mergeAuxThreadProfilesInto(ProfileCollector collector) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                if (stripe.auxThreadProfile != null) {
+                    collector.mergeProfile(stripe.auxThreadProfile.toProto());
+                }
+            }
+        }
+    }
+
+    // thread ids are not necessarily consecutive (e.g. the merging threads are created at startup
+    // interleaved with other threads), so the id is hashed to spread them across the stripes
+    //
+    // colliding threads only share a lock (and contend on it), so collisions do not affect
+    // correctness, and with the small number of merging threads (see TransactionProcessor) they are
+    // also not expected to matter much in practice
+    @VisibleForTesting
+    static int getStripeIndex(long threadId, int stripeCount) {
+        // fibonacci hashing, using the high bits of the product which are the best mixed
+        long hash = threadId * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % stripeCount);
+    }
+
+    private Stripe combineStripes() {
+        Stripe combined = new Stripe();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                stripe.mergeInto(combined);
+            }
+        }
+        return combined;
+    }
+
+    private class Stripe {
+
+        // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
+        private double totalDurationNanos;
+        private long transactionCount;
+        private long errorCount;
+        private boolean asyncTransactions;
+        private final RootTimerCollectorImpl mainThreadRootTimers = new RootTimerCollectorImpl();
+        private final ThreadStatsCollectorImpl mainThreadStats = new ThreadStatsCollectorImpl();
+        // histogram values are in nanoseconds, but with microsecond precision to reduce the number
+        // of buckets (and memory) required
+        private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+        private final QueryCollector queries;
+        private final ServiceCallCollector serviceCalls;
+        // lazy instantiated to reduce memory footprint
+        private @MonotonicNonNull MutableAggregateTimer auxThreadRootTimer;
+        private @MonotonicNonNull ThreadStatsCollectorImpl auxThreadStats;
+        private @MonotonicNonNull RootTimerCollectorImpl asyncTimers;
+        private @MonotonicNonNull MutableProfile mainThreadProfile;
+        private @MonotonicNonNull MutableProfile auxThreadProfile;
+
+        // lock is primarily for visibility (there is almost no contention since each stripe is
+        // written via a single thread and flushed afterwards via a different thread, with
+        // potential concurrent access by the UI for "live" data when running the embedded
+        // collector)
+        private final Object lock = new Object();
+
+        private Stripe() {
+            int queriesHardLimitMultiplierWhileBuilding = transactionName == null
+                    ? AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER
+                    : AdvancedConfig.TRANSACTION_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
+            queries = new QueryCollector(maxQueryAggregates,
+                    queriesHardLimitMultiplierWhileBuilding, symbolTable);
+
+            int serviceCallsHardLimitMultiplierWhileBuilding = transactionName == null
+                    ? AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER
+                    : AdvancedConfig.TRANSACTION_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER;
+            serviceCalls = new ServiceCallCollector(maxServiceCallAggregates,
+                    serviceCallsHardLimitMultiplierWhileBuilding);
+        }
+
+        private void mergeDataFrom(Transaction transaction) {
             long totalDurationNanos = transaction.getDurationNanos();
             this.totalDurationNanos += totalDurationNanos;
             transactionCount++;
@@ -142,11 +350,51 @@ class AggregateCollector {
                 toBeMergedAuxThreadProfile.mergeInto(auxThreadProfile);
             }
         }
-    }
 
-    Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
-            ScratchBuffer scratchBuffer) {
-        synchronized (lock) {
+        private void mergeInto(Stripe combined) {
+            combined.totalDurationNanos += totalDurationNanos;
+            combined.transactionCount += transactionCount;
+            combined.errorCount += errorCount;
+            combined.asyncTransactions |= asyncTransactions;
+            combined.mainThreadRootTimers.merge(mainThreadRootTimers);
+            combined.mainThreadStats.merge(mainThreadStats);
+            combined.durationNanosHistogram.merge(durationNanosHistogram);
+            queries.mergeQueriesInto(combined.queries);
+            serviceCalls.mergeServiceCallsInto(combined.serviceCalls);
+            if (auxThreadRootTimer != null) {
+                if (combined.auxThreadRootTimer == null) {
+                    combined.auxThreadRootTimer = MutableAggregateTimer.createAuxThreadRootTimer();
+                }
+                combined.auxThreadRootTimer.merge(auxThreadRootTimer);
+            }
+            if (auxThreadStats != null) {
+                if (combined.auxThreadStats == null) {
+                    combined.auxThreadStats = new ThreadStatsCollectorImpl();
+                }
+                combined.auxThreadStats.merge(auxThreadStats);
+            }
+            if (asyncTimers != null) {
+                if (combined.asyncTimers == null) {
+                    combined.asyncTimers = new RootTimerCollectorImpl();
+                }
+                combined.asyncTimers.merge(asyncTimers);
+            }
+            if (mainThreadProfile != null) {
+                if (combined.mainThreadProfile == null) {
+                    combined.mainThreadProfile = new MutableProfile();
+                }
+                combined.mainThreadProfile.merge(mainThreadProfile);
+            }
+            if (auxThreadProfile != null) {
+                if (combined.auxThreadProfile == null) {
+                    combined.auxThreadProfile = new MutableProfile();
+                }
+                combined.auxThreadProfile.merge(auxThreadProfile);
+            }
+        }
+
+        private Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
+                ScratchBuffer scratchBuffer) {
             Aggregate.Builder builder = Aggregate.newBuilder()
                     .setTotalDurationNanos(totalDurationNanos)
                     .setTransactionCount(transactionCount)
@@ -163,12 +411,8 @@ class AggregateCollector {
             if (asyncTimers != null) {
                 builder.addAllAsyncTimer(asyncTimers.toProto());
             }
-            if (queries != null) {
-                builder.addAllQuery(queries.toAggregateProto(sharedQueryTextCollection, false));
-            }
-            if (serviceCalls != null) {
-                builder.addAllServiceCall(serviceCalls.toAggregateProto());
-            }
+            builder.addAllQuery(queries.toAggregateProto(sharedQueryTextCollection, false));
+            builder.addAllServiceCall(serviceCalls.toAggregateProto());
             if (mainThreadProfile != null) {
                 builder.setMainThreadProfile(mainThreadProfile.toProto());
             }
@@ -177,38 +421,8 @@ class AggregateCollector {
             }
             return builder.build();
         }
-    }
-
-    void mergeOverallSummaryInto(OverallSummaryCollector collector) {
-        synchronized (lock) {
-            collector.mergeSummary(totalDurationNanos, transactionCount, 0);
-        }
-    }
-
-    void mergeTransactionNameSummariesInto(TransactionNameSummaryCollector collector) {
-        checkNotNull(transactionName);
-        synchronized (lock) {
-            collector.collect(transactionName, totalDurationNanos, transactionCount, 0);
-        }
-    }
-
-    void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector) {
-        synchronized (lock) {
-            collector.mergeErrorSummary(errorCount, transactionCount, 0);
-        }
-    }
 
-    void mergeTransactionNameErrorSummariesInto(TransactionNameErrorSummaryCollector collector) {
-        checkNotNull(transactionName);
-        synchronized (lock) {
-            if (errorCount != 0) {
-                collector.collect(transactionName, errorCount, transactionCount, 0);
-            }
-        }
-    }
-
-    OverviewAggregate getOverviewAggregate(long captureTime) {
-        synchronized (lock) {
+        private OverviewAggregate getOverviewAggregate(long captureTime) {
             ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
                     .captureTime(captureTime)
                     .totalDurationNanos(totalDurationNanos)
@@ -226,10 +440,8 @@ class AggregateCollector {
             }
             return builder.build();
         }
-    }
 
-    PercentileAggregate getPercentileAggregate(long captureTime) {
-        synchronized (lock) {
+        private PercentileAggregate getPercentileAggregate(long captureTime) {
             return ImmutablePercentileAggregate.builder()
                     .captureTime(captureTime)
                     .totalDurationNanos(totalDurationNanos)
@@ -239,58 +451,6 @@ class AggregateCollector {
         }
     }
 
-    ThroughputAggregate getThroughputAggregate(long captureTime) {
-        synchronized (lock) {
-            return ImmutableThroughputAggregate.builder()
-                    .captureTime(captureTime)
-                    .transactionCount(transactionCount)
-                    .errorCount(errorCount)
-                    .build();
-        }
-    }
-
-    @Nullable
-    String getFullQueryText(String fullQueryTextSha1) {
-        if (queries == null) {
-            return null;
-        }
-        synchronized (lock) {
-            return queries.getFullQueryText(fullQueryTextSha1);
-        }
-    }
-
-    void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
-        if (queries != null) {
-            synchronized (lock) {
-                queries.mergeQueriesInto(collector);
-            }
-        }
-    }
-
-    void mergeServiceCallsInto(org.glowroot.common.model.ServiceCallCollector collector) {
-        if (serviceCalls != null) {
-            synchronized (lock) {
-                serviceCalls.mergeServiceCallsInto(collector);
-            }
-        }
-    }
-
-    void mergeMainThreadProfilesInto(ProfileCollector collector) {
-        synchronized (lock) {
-            if (mainThreadProfile != null) {
-                collector.mergeProfile(mainThreadProfile.toProto());
-            }
-        }
-    }
-
-    void mergeAuxThreadProfilesInto(ProfileCollector collector) {
-        synchronized (lock) {
-            if (auxThreadProfile != null) {
-                collector.mergeProfile(auxThreadProfile.toProto());
-            }
-        }
-    }
-
     private static class RootTimerCollectorImpl implements RootTimerCollector {
 
         List<MutableAggregateTimer> rootMutableTimers = Lists.newArrayList();
@@ -310,6 +470,26 @@ class AggregateCollector {
             rootMutableTimers.add(rootTimer);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                @Nullable
+                MutableAggregateTimer rootTimer = null;
+                for (MutableAggregateTimer mutableTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(mutableTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == mutableTimer.isExtended()) {
+                        rootTimer = mutableTimer;
+                        break;
+                    }
+                }
+                if (rootTimer == null) {
+                    rootTimer = new MutableAggregateTimer(toBeMergedRootTimer.getName(),
+                            toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(rootTimer);
+                }
+                rootTimer.merge(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -338,6 +518,16 @@ class AggregateCollector {
                     threadStats.getAllocatedBytes());
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
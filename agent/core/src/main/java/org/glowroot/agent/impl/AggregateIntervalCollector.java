@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -28,6 +30,8 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
 import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.agent.model.SymbolTable;
+import org.glowroot.common.config.AdvancedConfig;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
@@ -51,19 +55,31 @@ public class AggregateIntervalCollector {
     private final int maxTransactionAggregates;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
+    private final int stripeCount;
     private final Clock clock;
 
     private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
             Maps.newConcurrentMap();
 
+    // canonical query texts for this interval, shared by all of the aggregate collectors below
+    private final SymbolTable symbolTable;
+
+    // number of transactions handed off via addAsync() that have not been merged yet
+    private final AtomicInteger pendingAddCount = new AtomicInteger();
+
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
-            Clock clock) {
+            int stripeCount, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
+        this.stripeCount = stripeCount;
         this.clock = clock;
+        // sized to the number of distinct query texts that the overall aggregates can hold while
+        // building, since every query is also merged into the overall aggregate
+        symbolTable = new SymbolTable(
+                maxQueryAggregates * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER);
     }
 
     public long getCaptureTime() {
@@ -73,14 +89,35 @@ public class AggregateIntervalCollector {
     public void add(Transaction transaction) {
         IntervalTypeCollector typeCollector = typeCollectors.get(transaction.getTransactionType());
         if (typeCollector == null) {
-            // don't need to worry about race condition here because add() is only called from a
-            // single thread (TransactionProcessorLoop)
+            // add() can be called concurrently when there are multiple aggregate processing threads
             typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transaction.getTransactionType(), typeCollector);
+            IntervalTypeCollector existing =
+                    typeCollectors.putIfAbsent(transaction.getTransactionType(), typeCollector);
+            if (existing != null) {
+                typeCollector = existing;
+            }
         }
         typeCollector.add(transaction);
     }
 
+    void addAsync(final Transaction transaction, Executor executor) {
+        pendingAddCount.getAndIncrement();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    add(transaction);
+                } finally {
+                    if (pendingAddCount.decrementAndGet() == 0) {
+                        synchronized (pendingAddCount) {
+                            pendingAddCount.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
         IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
@@ -212,6 +249,11 @@ public class AggregateIntervalCollector {
     }
 
     void flush(Collector collector) throws Exception {
+        synchronized (pendingAddCount) {
+            while (pendingAddCount.get() != 0) {
+                pendingAddCount.wait();
+            }
+        }
         collector.collectAggregates(new AggregateReaderImpl(captureTime));
     }
 
@@ -236,12 +278,12 @@ public class AggregateIntervalCollector {
     private class IntervalTypeCollector {
 
         private final AggregateCollector overallAggregateCollector;
-        private final Map<String, AggregateCollector> transactionAggregateCollectors =
+        private final ConcurrentMap<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
 
         private IntervalTypeCollector() {
-            overallAggregateCollector =
-                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+            overallAggregateCollector = new AggregateCollector(null, maxQueryAggregates,
+                    maxServiceCallAggregates, stripeCount, symbolTable);
         }
 
         private void add(Transaction transaction) {
@@ -249,28 +291,33 @@ public class AggregateIntervalCollector {
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
-                // don't need to worry about race condition here because add() is only called from a
-                // single thread (TransactionProcessorLoop)
+                // add() can be called concurrently when there are multiple aggregate processing
+                // threads, in which case the max transaction aggregates limit may be (slightly)
+                // exceeded, which is ok
                 if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
                     transactionAggregateCollector =
-                            createTransactionAggregateCollector(transaction.getTransactionName());
+                            getOrCreateTransactionAggregateCollector(
+                                    transaction.getTransactionName());
                 } else {
                     transactionAggregateCollector =
-                            transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
-                    if (transactionAggregateCollector == null) {
-                        transactionAggregateCollector =
-                                createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
-                    }
+                            getOrCreateTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
                 }
             }
             merge(transaction, transactionAggregateCollector);
         }
 
-        private AggregateCollector createTransactionAggregateCollector(String transactionName) {
-            AggregateCollector transactionAggregateCollector = new AggregateCollector(
-                    transactionName, maxQueryAggregates, maxServiceCallAggregates);
-            transactionAggregateCollectors.put(transactionName, transactionAggregateCollector);
-            return transactionAggregateCollector;
+        private AggregateCollector getOrCreateTransactionAggregateCollector(
+                String transactionName) {
+            AggregateCollector transactionAggregateCollector =
+                    transactionAggregateCollectors.get(transactionName);
+            if (transactionAggregateCollector != null) {
+                return transactionAggregateCollector;
+            }
+            transactionAggregateCollector = new AggregateCollector(transactionName,
+                    maxQueryAggregates, maxServiceCallAggregates, stripeCount, symbolTable);
+            AggregateCollector existing = transactionAggregateCollectors
+                    .putIfAbsent(transactionName, transactionAggregateCollector);
+            return existing == null ? transactionAggregateCollector : existing;
         }
 
         private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
@@ -19,6 +19,7 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -28,6 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -37,6 +39,20 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // stack traces truncated by this limit are missing their root frames (ThreadMXBean keeps the
+    // leaf frames), so they are merged into the profile tree under a synthetic root frame (see
+    // ThreadProfile)
+    private static final int MAX_STACK_DEPTH =
+            Integer.getInteger("glowroot.profiling.maxStackDepth", Integer.MAX_VALUE);
+
+    // when greater than zero, the profiling interval is backed off (doubled, up to
+    // MAX_BACK_OFF_MULTIPLIER times) whenever the measured time to capture the stack traces
+    // exceeds this percentage of the profiling interval, and restored once it is back under budget
+    private static final double OVERHEAD_BUDGET_PERCENT =
+            Double.parseDouble(System.getProperty("glowroot.profiling.overheadBudgetPercent", "0"));
+
+    private static final int MAX_BACK_OFF_MULTIPLIER = 16;
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -71,6 +87,27 @@ public class StackTraceCollector {
         });
     }
 
+    public void registerMBeans(LazyPlatformMBeanServer lazyPlatformMBeanServer) {
+        lazyPlatformMBeanServer.lazyRegisterMBean(new StackTraceCollectorStats(this),
+                "org.glowroot:type=StackTraceCollector");
+    }
+
+    long getSampleCount() {
+        return runnable.sampleCount.get();
+    }
+
+    long getTotalSamplingNanos() {
+        return runnable.totalSamplingNanos.get();
+    }
+
+    long getLastSamplingNanos() {
+        return runnable.lastSamplingNanos;
+    }
+
+    int getBackOffMultiplier() {
+        return runnable.backOffMultiplier;
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         runnable.closed = true;
@@ -88,14 +125,15 @@ public class StackTraceCollector {
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
+        // capture all threads in a single call (single safepoint)
         @Nullable
         ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, MAX_STACK_DEPTH);
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
             if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo);
+                threadContext.captureStackTrace(threadInfo, MAX_STACK_DEPTH);
             }
         }
     }
@@ -105,6 +143,14 @@ public class StackTraceCollector {
         private volatile int currIntervalMillis;
         private volatile boolean closed;
 
+        // the fields below are only written by the processing thread (which is the thread that
+        // captures the stack traces, see run()), and are volatile/atomic so that they can be read
+        // by StackTraceCollectorStats
+        private final AtomicLong sampleCount = new AtomicLong();
+        private final AtomicLong totalSamplingNanos = new AtomicLong();
+        private volatile long lastSamplingNanos;
+        private volatile int backOffMultiplier = 1;
+
         @Override
         public void run() {
             // delay for first
@@ -122,8 +168,9 @@ public class StackTraceCollector {
                         continue;
                     }
                 }
+                long effectiveIntervalMillis = (long) currIntervalMillis * backOffMultiplier;
                 long randomDelayMillisFromIntervalStart =
-                        (long) (random.nextFloat() * currIntervalMillis);
+                        (long) (random.nextFloat() * effectiveIntervalMillis);
                 try {
                     MILLISECONDS
                             .sleep(remainingMillisInInterval + randomDelayMillisFromIntervalStart);
@@ -134,12 +181,15 @@ public class StackTraceCollector {
                     remainingMillisInInterval = 0;
                     continue;
                 }
-                remainingMillisInInterval = currIntervalMillis - randomDelayMillisFromIntervalStart;
+                remainingMillisInInterval =
+                        effectiveIntervalMillis - randomDelayMillisFromIntervalStart;
+                long startTick = System.nanoTime();
                 try {
                     runInternal();
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 }
+                recordSamplingNanos(System.nanoTime() - startTick);
             }
         }
 
@@ -161,5 +211,26 @@ public class StackTraceCollector {
             }
             captureStackTraces(activeThreadContexts);
         }
+
+        private void recordSamplingNanos(long samplingNanos) {
+            sampleCount.getAndIncrement();
+            totalSamplingNanos.getAndAdd(samplingNanos);
+            lastSamplingNanos = samplingNanos;
+            if (OVERHEAD_BUDGET_PERCENT <= 0) {
+                return;
+            }
+            double budgetNanos =
+                    MILLISECONDS.toNanos(currIntervalMillis) * OVERHEAD_BUDGET_PERCENT / 100;
+            int multiplier = backOffMultiplier;
+            if (samplingNanos > budgetNanos) {
+                if (multiplier < MAX_BACK_OFF_MULTIPLIER) {
+                    backOffMultiplier = multiplier * 2;
+                    logger.debug("backing off profiling interval to {} milliseconds",
+                            currIntervalMillis * multiplier * 2);
+                }
+            } else if (samplingNanos < budgetNanos / 2 && multiplier > 1) {
+                backOffMultiplier = multiplier / 2;
+            }
+        }
     }
 }
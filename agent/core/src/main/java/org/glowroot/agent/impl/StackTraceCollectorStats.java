@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+class StackTraceCollectorStats implements StackTraceCollectorStatsMXBean {
+
+    private final StackTraceCollector stackTraceCollector;
+
+    StackTraceCollectorStats(StackTraceCollector stackTraceCollector) {
+        this.stackTraceCollector = stackTraceCollector;
+    }
+
+    @Override
+    public long getSampleCount() {
+        return stackTraceCollector.getSampleCount();
+    }
+
+    @Override
+    public long getTotalSamplingNanos() {
+        return stackTraceCollector.getTotalSamplingNanos();
+    }
+
+    @Override
+    public long getLastSamplingNanos() {
+        return stackTraceCollector.getLastSamplingNanos();
+    }
+
+    @Override
+    public double getAverageSamplingNanos() {
+        long sampleCount = stackTraceCollector.getSampleCount();
+        if (sampleCount == 0) {
+            return 0;
+        }
+        return stackTraceCollector.getTotalSamplingNanos() / (double) sampleCount;
+    }
+
+    @Override
+    public int getBackOffMultiplier() {
+        return stackTraceCollector.getBackOffMultiplier();
+    }
+}
@@ -422,8 +422,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo);
+    void captureStackTrace(ThreadInfo threadInfo, int maxStackDepth) {
+        transaction.captureStackTrace(isAuxiliary(), threadInfo, maxStackDepth);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
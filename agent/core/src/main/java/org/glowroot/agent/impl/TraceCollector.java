@@ -23,8 +23,11 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -38,6 +41,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.config.TransactionConfig;
@@ -52,19 +56,19 @@ public class TraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(TraceCollector.class);
 
-    // back pressure on writing captured data to disk/network
+    // back pressure on writing captured data to disk/network (applied per shard)
     private static final int PENDING_LIMIT = 50;
 
+    // traces are routed to a shard by trace id so that partial and completed traces for the same
+    // transaction are always collected in order by the same thread
+    private static final int SHARD_COUNT =
+            Math.max(1, Integer.getInteger("glowroot.trace.collector.threads", 1));
+
     private final ExecutorService dedicatedExecutor;
     private final Collector collector;
     private final Clock clock;
     private final Ticker ticker;
-    // covers normal complete, partial complete and partial incomplete separately
-    private final BlockingQueue<PendingTrace> pendingTraces =
-            Queues.newLinkedBlockingQueue(PENDING_LIMIT * 3);
-    private final AtomicInteger normalCompletePendingCount = new AtomicInteger();
-    private final AtomicInteger partialCompletePendingCount = new AtomicInteger();
-    private final AtomicInteger partialIncompletePendingCount = new AtomicInteger();
+    private final ImmutableList<Shard> shards;
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TraceCollector.class);
@@ -76,14 +80,31 @@ public class TraceCollector {
 
     private volatile boolean closed;
 
-    public TraceCollector(final ConfigService configService, Collector collector, Clock clock,
+    public TraceCollector(ConfigService configService, Collector collector, Clock clock,
             Ticker ticker) {
+        this(configService, collector, clock, ticker, SHARD_COUNT);
+    }
+
+    @VisibleForTesting
+    TraceCollector(final ConfigService configService, Collector collector, Clock clock,
+            Ticker ticker, int shardCount) {
         this.collector = collector;
         this.clock = clock;
         this.ticker = ticker;
-        dedicatedExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
-        dedicatedExecutor.execute(new TraceCollectorLoop());
+        if (shardCount == 1) {
+            dedicatedExecutor = Executors
+                    .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
+        } else {
+            dedicatedExecutor = Executors.newFixedThreadPool(shardCount,
+                    ThreadFactories.create("Glowroot-Trace-Collector-%d"));
+        }
+        List<Shard> shards = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            Shard shard = new Shard();
+            dedicatedExecutor.execute(shard);
+            shards.add(shard);
+        }
+        this.shards = ImmutableList.copyOf(shards);
         configService.addConfigListener(new UpdateLocalConfig(configService));
     }
 
@@ -142,8 +163,10 @@ public class TraceCollector {
 
     public Collection<Transaction> getPendingTransactions() {
         List<Transaction> pendingTransactions = Lists.newArrayList();
-        for (PendingTrace pendingTrace : pendingTraces) {
-            pendingTransactions.add(pendingTrace.transaction());
+        for (Shard shard : shards) {
+            for (PendingTrace pendingTrace : shard.pendingTraces) {
+                pendingTransactions.add(pendingTrace.transaction());
+            }
         }
         return pendingTransactions;
     }
@@ -158,20 +181,30 @@ public class TraceCollector {
         }
     }
 
+    public void registerMBeans(LazyPlatformMBeanServer lazyPlatformMBeanServer) {
+        for (int i = 0; i < shards.size(); i++) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(new TraceCollectorShardStats(shards.get(i)),
+                    "org.glowroot:type=TraceCollector,shard=" + i);
+        }
+    }
+
     void collectTrace(Transaction transaction) {
         boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
             return;
         }
+        Shard shard = getShard(transaction);
         // don't need to worry about race condition since only ever called from a single thread
         if (transaction.isPartiallyStored()
-                && partialCompletePendingCount.get() >= PENDING_LIMIT) {
+                && shard.partialCompletePendingCount.get() >= PENDING_LIMIT) {
+            shard.droppedCount.incrementAndGet();
             backPressureLogger.warn("not storing a completed (and once partial) trace because of an"
                     + " excessive backlog of {} completed (and once partial) traces already waiting"
                     + " to be stored", PENDING_LIMIT);
             return;
         } else if (!transaction.isPartiallyStored()
-                && normalCompletePendingCount.get() >= PENDING_LIMIT) {
+                && shard.normalCompletePendingCount.get() >= PENDING_LIMIT) {
+            shard.droppedCount.incrementAndGet();
             backPressureLogger.warn("not storing a completed trace because of an excessive backlog"
                     + " of {} completed traces already waiting to be stored", PENDING_LIMIT);
             return;
@@ -180,17 +213,16 @@ public class TraceCollector {
                 .transaction(transaction)
                 .slow(slow)
                 .partial(false)
+                .partiallyStored(transaction.isPartiallyStored())
                 .build();
-        if (!pendingTraces.offer(pendingTransaction)) {
-            // this should never happen
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT * 3);
-        }
+        shard.offer(pendingTransaction);
     }
 
     public void storePartialTrace(Transaction transaction) {
+        Shard shard = getShard(transaction);
         // don't need to worry about race condition since only ever called from a single thread
-        if (partialIncompletePendingCount.get() >= PENDING_LIMIT) {
+        if (shard.partialIncompletePendingCount.get() >= PENDING_LIMIT) {
+            shard.droppedCount.incrementAndGet();
             backPressureLogger.warn("not storing a partial trace because of an excessive backlog of"
                     + " {} partial traces already waiting to be stored", PENDING_LIMIT);
             return;
@@ -199,12 +231,19 @@ public class TraceCollector {
                 .transaction(transaction)
                 .slow(false)
                 .partial(true)
+                .partiallyStored(false)
                 .build();
-        if (!pendingTraces.offer(pendingTransaction)) {
-            // this should never happen
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT * 3);
+        shard.offer(pendingTransaction);
+    }
+
+    private Shard getShard(Transaction transaction) {
+        if (shards.size() == 1) {
+            return shards.get(0);
         }
+        int hash = transaction.getTraceId().hashCode();
+        // spread bits since trace ids share a common (time based) prefix
+        hash ^= hash >>> 16;
+        return shards.get((hash & Integer.MAX_VALUE) % shards.size());
     }
 
     private static @Nullable Long getSlowThreshold(
@@ -283,13 +322,31 @@ public class TraceCollector {
         }
     }
 
-    private class TraceCollectorLoop implements Runnable {
+    class Shard implements Runnable {
+
+        // covers normal complete, partial complete and partial incomplete separately
+        private final BlockingQueue<PendingTrace> pendingTraces =
+                Queues.newLinkedBlockingQueue(PENDING_LIMIT * 3);
+        private final AtomicInteger normalCompletePendingCount = new AtomicInteger();
+        private final AtomicInteger partialCompletePendingCount = new AtomicInteger();
+        private final AtomicInteger partialIncompletePendingCount = new AtomicInteger();
+
+        private final AtomicLong droppedCount = new AtomicLong();
+
+        int getPendingCount() {
+            return pendingTraces.size();
+        }
+
+        long getDroppedCount() {
+            return droppedCount.get();
+        }
 
         @Override
         public void run() {
             while (!closed) {
                 try {
                     PendingTrace pendingTrace = pendingTraces.take();
+                    getPendingCounter(pendingTrace).decrementAndGet();
                     if (pendingTrace.partial()) {
                         collectPartial(pendingTrace.transaction());
                     } else {
@@ -305,6 +362,28 @@ public class TraceCollector {
             }
         }
 
+        private void offer(PendingTrace pendingTrace) {
+            AtomicInteger pendingCount = getPendingCounter(pendingTrace);
+            pendingCount.incrementAndGet();
+            if (!pendingTraces.offer(pendingTrace)) {
+                // this should never happen
+                pendingCount.decrementAndGet();
+                droppedCount.incrementAndGet();
+                backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
+                        + " traces already waiting to be stored", PENDING_LIMIT * 3);
+            }
+        }
+
+        private AtomicInteger getPendingCounter(PendingTrace pendingTrace) {
+            if (pendingTrace.partial()) {
+                return partialIncompletePendingCount;
+            } else if (pendingTrace.partiallyStored()) {
+                return partialCompletePendingCount;
+            } else {
+                return normalCompletePendingCount;
+            }
+        }
+
         private void collectPartial(Transaction transaction) throws Exception {
             TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
                     clock.currentTimeMillis(), ticker.read());
@@ -327,6 +406,8 @@ public class TraceCollector {
         Transaction transaction();
         boolean slow();
         boolean partial();
+        // captured when queued so that the matching pending count is decremented after it is taken
+        boolean partiallyStored();
     }
 
     @Value.Immutable
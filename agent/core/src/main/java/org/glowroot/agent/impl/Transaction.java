@@ -782,7 +782,7 @@ public class Transaction {
         return queryCount > maxQueryAggregates;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo) {
+    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int maxStackDepth) {
         if (completed) {
             return;
         }
@@ -801,7 +801,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new ThreadProfile(maxProfileSamples);
-            profile.addStackTrace(threadInfo);
+            profile.addStackTrace(threadInfo, maxStackDepth);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -809,7 +809,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo);
+        profile.addStackTrace(threadInfo, maxStackDepth);
     }
 
     void trackResourceAcquired(Object resource, boolean withLocationStackTrace) {
@@ -16,12 +16,13 @@
 package org.glowroot.agent.impl;
 
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -38,7 +39,6 @@ import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -51,6 +51,19 @@ public class TransactionProcessor {
     // back pressure on writing captured data to disk/network
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // number of threads merging completed transactions into the active aggregates, when greater
+    // than one the aggregate collectors are striped so that these threads do not contend on the
+    // same (per transaction name) lock
+    //
+    // each stripe holds its own copy of the aggregate state (including queries, service calls and
+    // profiles), so aggregate memory grows with the number of stripes, and there is little benefit
+    // beyond a few threads since merging is cheap relative to the rest of transaction processing,
+    // so the number of merging threads is capped
+    private static final int MAX_MERGING_THREADS = 4;
+
+    private static final int MERGING_THREADS = Math.min(MAX_MERGING_THREADS,
+            Math.max(1, Integer.getInteger("glowroot.aggregate.merging.threads", 1)));
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
 
     // need to guarantee these are processed in order (at least when running embedded collector
@@ -60,6 +73,7 @@ public class TransactionProcessor {
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    private final @Nullable ExecutorService mergingExecutor;
     private final Collector collector;
     private final TraceCollector traceCollector;
     private final ConfigService configService;
@@ -67,14 +81,10 @@ public class TransactionProcessor {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    @GuardedBy("queueLock")
-    private PendingTransaction tail = head;
-    @GuardedBy("queueLock")
-    private int queueLength;
-    private final Object queueLock = new Object();
+    // lock free multi-producer (request threads) single-consumer (processing thread) queue
+    private final Queue<PendingTransaction> pendingTransactions =
+            new ConcurrentLinkedQueue<PendingTransaction>();
+    private final AtomicInteger pendingTransactionCount = new AtomicInteger();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionProcessor.class);
@@ -92,11 +102,18 @@ public class TransactionProcessor {
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
+        if (MERGING_THREADS == 1) {
+            mergingExecutor = null;
+        } else {
+            mergingExecutor = Executors.newFixedThreadPool(MERGING_THREADS,
+                    ThreadFactories.create("Glowroot-Aggregate-Merging-%d"));
+        }
         activeIntervalCollector =
                 new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
                         configService.getAdvancedConfig().maxTransactionAggregates(),
                         configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+                        configService.getAdvancedConfig().maxServiceCallAggregates(),
+                        MERGING_THREADS, clock);
         processingExecutor.execute(new TransactionProcessorLoop());
         flushingExecutor.execute(new AggregateFlushingLoop());
     }
@@ -131,27 +148,18 @@ public class TransactionProcessor {
     }
 
     void processOnCompletion(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        boolean exceededLimit = false;
-        synchronized (queueLock) {
-            if (queueLength < TRANSACTION_PENDING_LIMIT) {
-                newTail.captureTime = clock.currentTimeMillis();
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            } else {
-                exceededLimit = true;
-            }
-        }
-        if (exceededLimit) {
+        if (pendingTransactionCount.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+            pendingTransactionCount.decrementAndGet();
             backPressureLogger.warn("not capturing a transaction because of an excessive backlog of"
                     + " {} transactions already waiting to be captured", TRANSACTION_PENDING_LIMIT);
             transaction.setCaptureTime(clock.currentTimeMillis());
             transaction.removeFromActiveTransactions();
+            return;
         }
+        // capture times can end up (very slightly) out of order in the queue since the clock is
+        // read before adding to the queue without a lock, this is corrected by the queue reader
+        // (see TransactionProcessorLoop.processOne())
+        pendingTransactions.add(new PendingTransaction(transaction, clock.currentTimeMillis()));
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
@@ -177,6 +185,12 @@ public class TransactionProcessor {
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (mergingExecutor != null) {
+            mergingExecutor.shutdown();
+            if (!mergingExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -186,6 +200,12 @@ public class TransactionProcessor {
 
     private class TransactionProcessorLoop implements Runnable {
 
+        // capture times are assigned by request threads without a lock, so this is used to ensure
+        // no transaction is ever captured with an older capture time than has already been seen
+        // (and in particular, never with a capture time prior to an interval that has already
+        // been flushed)
+        private long lastCaptureTime;
+
         @Override
         public void run() {
             while (!closed) {
@@ -199,21 +219,28 @@ public class TransactionProcessor {
         }
 
         private void processOne() throws InterruptedException {
-            PendingTransaction pendingTransaction = head.next;
+            PendingTransaction pendingTransaction = pendingTransactions.poll();
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+                long currentTime = clock.currentTimeMillis();
+                if (currentTime > activeIntervalCollector.getCaptureTime()) {
+                    // safe to flush, any pending transaction that enters the queue from here on
+                    // with an earlier capture time will be moved forward to currentTime
+                    lastCaptureTime = Math.max(lastCaptureTime, currentTime);
+                    flushAndResetActiveIntervalCollector(currentTime);
                 } else {
                     // TODO benchmark other alternatives to sleep (e.g. wait/notify)
                     MILLISECONDS.sleep(1);
                 }
                 return;
             }
+            pendingTransactionCount.decrementAndGet();
+            long captureTime = Math.max(pendingTransaction.captureTime, lastCaptureTime);
+            lastCaptureTime = captureTime;
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
-            transaction.setCaptureTime(pendingTransaction.captureTime);
+            Transaction transaction = pendingTransaction.transaction;
+            transaction.setCaptureTime(captureTime);
 
             // send to the trace collector before removing from transaction registry so that the
             // trace collector can cover the gap (via TraceCollector.getPendingTransactions())
@@ -222,38 +249,14 @@ public class TransactionProcessor {
 
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
+                flushAndResetActiveIntervalCollector(captureTime);
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
-            }
-            activeIntervalCollector.add(transaction);
-        }
-
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushAndResetActiveIntervalCollector(currentTime);
+            if (mergingExecutor == null) {
+                activeIntervalCollector.add(transaction);
+            } else {
+                // the flushing thread waits for these to complete before flushing the interval
+                activeIntervalCollector.addAsync(transaction, mergingExecutor);
             }
         }
 
@@ -263,7 +266,8 @@ public class TransactionProcessor {
                     new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
                             configService.getAdvancedConfig().maxTransactionAggregates(),
                             configService.getAdvancedConfig().maxQueryAggregates(),
-                            configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+                            configService.getAdvancedConfig().maxServiceCallAggregates(),
+                            MERGING_THREADS, clock);
         }
 
         private void flushActiveIntervalCollector() {
@@ -309,12 +313,12 @@ public class TransactionProcessor {
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
-        private volatile @Nullable PendingTransaction next;
+        private final Transaction transaction;
+        private final long captureTime;
 
-        private PendingTransaction(@Nullable Transaction transaction) {
+        private PendingTransaction(Transaction transaction, long captureTime) {
             this.transaction = transaction;
+            this.captureTime = captureTime;
         }
     }
 }
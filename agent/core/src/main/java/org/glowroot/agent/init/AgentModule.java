@@ -68,6 +68,7 @@ import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
+import org.glowroot.agent.weaving.NoWeavingNeededClasses;
 import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
@@ -75,6 +76,7 @@ import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.ScheduledRunnable;
+import org.glowroot.common.util.Version;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -92,6 +94,14 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    private static final boolean NO_WEAVING_NEEDED_CLASSES_DISABLED =
+            Boolean.getBoolean("glowroot.internal.noWeavingNeededClasses.disabled");
+
+    // analyzed classes of class loaders that have not woven any classes for this long are evicted
+    // (0 disables eviction)
+    private static final long ANALYZED_WORLD_IDLE_EVICTION_MINUTES =
+            Long.getLong("glowroot.internal.analyzedWorld.idleEvictionMinutes", 60);
+
     private final Clock clock;
     private final Ticker ticker;
 
@@ -100,6 +110,7 @@ public class AgentModule {
     private final AdviceCache adviceCache;
     private final PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable NoWeavingNeededClasses noWeavingNeededClasses;
     private final Weaver weaver;
     private final Random random;
 
@@ -107,6 +118,7 @@ public class AgentModule {
     private final BytecodeServiceImpl bytecodeService;
 
     private volatile @MonotonicNonNull DeadlockedActiveWeavingRunnable deadlockedActiveWeavingRunnable;
+    private volatile @MonotonicNonNull IdleLoaderEvictionRunnable idleLoaderEvictionRunnable;
     private volatile @MonotonicNonNull TraceCollector traceCollector;
     private volatile @MonotonicNonNull TransactionProcessor transactionProcessor;
 
@@ -153,11 +165,18 @@ public class AgentModule {
         analyzedWorld =
                 new AnalyzedWorld(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                         adviceCache.getMixinTypes(), preloadSomeSuperTypesCache);
+        if (instrumentation == null || NO_WEAVING_NEEDED_CLASSES_DISABLED) {
+            noWeavingNeededClasses = null;
+        } else {
+            noWeavingNeededClasses = new NoWeavingNeededClasses(
+                    new File(tmpDir, "no-weaving-needed-classes"), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes(), Version.getVersion(AgentModule.class));
+        }
         TimerNameCache timerNameCache = new TimerNameCache();
 
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
-                adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                adviceCache.getMixinTypes(), analyzedWorld, noWeavingNeededClasses,
+                transactionRegistry, ticker, timerNameCache, configService);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -246,6 +265,12 @@ public class AgentModule {
 
         deadlockedActiveWeavingRunnable = new DeadlockedActiveWeavingRunnable(weaver);
         deadlockedActiveWeavingRunnable.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        if (ANALYZED_WORLD_IDLE_EVICTION_MINUTES > 0) {
+            idleLoaderEvictionRunnable = new IdleLoaderEvictionRunnable(analyzedWorld,
+                    MINUTES.toMillis(ANALYZED_WORLD_IDLE_EVICTION_MINUTES));
+            idleLoaderEvictionRunnable.scheduleWithFixedDelay(backgroundExecutor, 1, 1,
+                    MINUTES);
+        }
 
         // complete initialization of glowroot-agent-api, glowroot-agent-plugin-api and
         // glowroot-weaving-api services
@@ -265,6 +290,8 @@ public class AgentModule {
                 lazyPlatformMBeanServer.setPlatformMBeanServerAvailable();
             }
         });
+        traceCollector.registerMBeans(lazyPlatformMBeanServer);
+        analyzedWorld.registerMBeans(lazyPlatformMBeanServer);
         File[] roots = File.listRoots();
         if (roots != null) {
             for (File root : roots) {
@@ -283,6 +310,7 @@ public class AgentModule {
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector.registerMBeans(lazyPlatformMBeanServer);
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, traceCollector, configService, ticker);
@@ -300,6 +328,9 @@ public class AgentModule {
                 glowrootJarFile, clock);
 
         preloadSomeSuperTypesCache.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        if (noWeavingNeededClasses != null) {
+            noWeavingNeededClasses.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        }
     }
 
     public ConfigService getConfigService() {
@@ -460,6 +491,9 @@ public class AgentModule {
         if (deadlockedActiveWeavingRunnable != null) {
             deadlockedActiveWeavingRunnable.cancel();
         }
+        if (idleLoaderEvictionRunnable != null) {
+            idleLoaderEvictionRunnable.cancel();
+        }
     }
 
     private static class DeadlockedActiveWeavingRunnable extends ScheduledRunnable {
@@ -475,4 +509,20 @@ public class AgentModule {
             weaver.checkForDeadlockedActiveWeaving();
         }
     }
+
+    private static class IdleLoaderEvictionRunnable extends ScheduledRunnable {
+
+        private final AnalyzedWorld analyzedWorld;
+        private final long idleMillis;
+
+        private IdleLoaderEvictionRunnable(AnalyzedWorld analyzedWorld, long idleMillis) {
+            this.analyzedWorld = analyzedWorld;
+            this.idleMillis = idleMillis;
+        }
+
+        @Override
+        public void runInternal() {
+            analyzedWorld.evictIdleLoaders(idleMillis);
+        }
+    }
 }
@@ -76,7 +76,8 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
     }
 
     @Override
-    public void init(@Nullable File pluginsDir, final List<File> confDirs, File logDir, File tmpDir,
+    public void init(@Nullable File pluginsDir, final List<File> confDirs, File logDir,
+            final File tmpDir,
             final @Nullable File glowrootJarFile, final Map<String, String> properties,
             final @Nullable Instrumentation instrumentation,
             @Nullable PreCheckClassFileTransformer preCheckClassFileTransformer,
@@ -130,11 +131,12 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
                     collector = customCollectorClass.newInstance();
                 } else {
                     centralCollector = new CentralCollector(properties,
-                            checkNotNull(collectorAddress), collectorAuthority, confDirs,
+                            checkNotNull(collectorAddress), collectorAuthority, confDirs, tmpDir,
                             configReadOnly, agentModule.getLiveJvmService(),
                             agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater,
                             configService);
+                    centralCollector.registerMBeans(agentModule.getLazyPlatformMBeanServer());
                     if (collectorProxyConstructor == null) {
                         collector = centralCollector;
                     } else {
@@ -18,6 +18,7 @@ package org.glowroot.agent.model;
 import java.util.List;
 
 import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -70,6 +71,28 @@ public class MutableAggregateTimer implements AggregatedTimer {
         timer.mergeChildTimersInto(this);
     }
 
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        for (MutableAggregateTimer toBeMergedChildTimer : timer.childTimers) {
+            @Nullable
+            MutableAggregateTimer matchingChildTimer = null;
+            for (MutableAggregateTimer childTimer : childTimers) {
+                if (toBeMergedChildTimer.name.equals(childTimer.name)
+                        && toBeMergedChildTimer.extended == childTimer.extended) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                matchingChildTimer = new MutableAggregateTimer(toBeMergedChildTimer.name,
+                        toBeMergedChildTimer.extended);
+                childTimers.add(matchingChildTimer);
+            }
+            matchingChildTimer.merge(toBeMergedChildTimer);
+        }
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -22,15 +22,12 @@ import java.util.Map;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.Constants;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
-import static com.google.common.base.Charsets.UTF_8;
-
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -40,12 +37,20 @@ public class QueryCollector {
     private final Map<String, MutableQuery> limitExceededBuckets = Maps.newHashMap();
     private final int limit;
     private final int hardLimitMultiplierWhileBuilding;
+    // only used for aggregates (not for individual transactions)
+    private final @Nullable SymbolTable symbolTable;
 
     private int queryCount;
 
     public QueryCollector(int limit, int hardLimitMultiplierWhileBuilding) {
+        this(limit, hardLimitMultiplierWhileBuilding, null);
+    }
+
+    public QueryCollector(int limit, int hardLimitMultiplierWhileBuilding,
+            @Nullable SymbolTable symbolTable) {
         this.limit = limit;
         this.hardLimitMultiplierWhileBuilding = hardLimitMultiplierWhileBuilding;
+        this.symbolTable = symbolTable;
     }
 
     public List<Aggregate.Query> toAggregateProto(
@@ -98,6 +103,9 @@ public class QueryCollector {
             queriesForType = Maps.newHashMap();
             queries.put(queryType, queriesForType);
         }
+        if (symbolTable != null) {
+            queryText = symbolTable.intern(queryText);
+        }
         MutableQuery aggregateQuery = queriesForType.get(queryText);
         if (aggregateQuery == null) {
             if (queryCount < limit * hardLimitMultiplierWhileBuilding) {
@@ -139,7 +147,7 @@ public class QueryCollector {
                 if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                    fullQueryTextSha1 = getFullTextSha1(fullQueryText);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
@@ -165,8 +173,7 @@ public class QueryCollector {
                 if (fullQueryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
-                if (fullQueryTextSha1.equals(sha1)) {
+                if (fullQueryTextSha1.equals(getFullTextSha1(fullQueryText))) {
                     return fullQueryText;
                 }
             }
@@ -174,6 +181,16 @@ public class QueryCollector {
         return null;
     }
 
+    private String getFullTextSha1(String fullQueryText) {
+        if (symbolTable == null) {
+            return SymbolTable.sha1(fullQueryText);
+        }
+        // sha1 is memoized by the symbol table, which matters for the UI which calls this
+        // repeatedly on the same (live) aggregates
+        String fullQueryTextSha1 = symbolTable.getFullTextSha1(fullQueryText);
+        return fullQueryTextSha1 == null ? SymbolTable.sha1(fullQueryText) : fullQueryTextSha1;
+    }
+
     private void mergeLimitExceededBucket(String queryType, MutableQuery limitExceededBucket) {
         MutableQuery query = getOrCreateLimitExceededBucket(queryType);
         query.add(limitExceededBucket);
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.Constants;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// interval-scoped table of canonical query text instances
+//
+// the same query text is used as a map key many times during aggregation (overall and transaction
+// aggregates, each stripe, and again when combining stripes and building protos), and keying all
+// of those maps by the same canonical instance means that those lookups short circuit on identity
+// in String.equals() instead of comparing (often multi-KB) query texts char by char, and that only
+// a single copy of each query text is retained per interval
+//
+// this class is thread safe
+public class SymbolTable {
+
+    // small direct-mapped identity cache in front of the main map, so that interning the same
+    // string instance again (e.g. when a transaction is merged into both the overall and the
+    // transaction aggregate) does not need to compare it char by char again
+    private static final int IDENTITY_CACHE_SIZE = 256; // must be power of 2
+
+    // beyond this, strings are no longer interned (which is still correct, just slower), so that
+    // applications with unbounded numbers of distinct queries (e.g. non-parameterized sql) do not
+    // retain more query texts than the query aggregate limits would retain anyway
+    private final int maxSize;
+
+    private final ConcurrentMap<String, Symbol> symbols = Maps.newConcurrentMap();
+
+    // ConcurrentHashMap.size() sums over all of its segments (or counter cells), which is too
+    // expensive to call on every miss once the table is full (which is the steady state for
+    // applications with unbounded numbers of distinct queries), so the size is tracked separately
+    // and the table remembers once it is full (concurrent inserts can overshoot maxSize by at most
+    // the number of concurrently inserting threads, which is fine)
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile boolean full;
+
+    // racy reads/writes are ok since Symbol and IdentityCacheEntry are immutable (other than the
+    // lazily computed sha1), worst case is a cache miss
+    private final @Nullable IdentityCacheEntry[] identityCache =
+            new IdentityCacheEntry[IDENTITY_CACHE_SIZE];
+
+    public SymbolTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public String intern(String text) {
+        Symbol symbol = getSymbol(text);
+        return symbol == null ? text : symbol.text;
+    }
+
+    // returns null if the text is short enough to not need a sha1
+    public @Nullable String getFullTextSha1(String fullText) {
+        if (fullText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+            return null;
+        }
+        Symbol symbol = getSymbol(fullText);
+        if (symbol == null) {
+            return sha1(fullText);
+        }
+        String fullTextSha1 = symbol.fullTextSha1;
+        if (fullTextSha1 == null) {
+            fullTextSha1 = sha1(fullText);
+            symbol.fullTextSha1 = fullTextSha1;
+        }
+        return fullTextSha1;
+    }
+
+    private @Nullable Symbol getSymbol(String text) {
+        int index = System.identityHashCode(text) & (IDENTITY_CACHE_SIZE - 1);
+        IdentityCacheEntry entry = identityCache[index];
+        if (entry != null && entry.text == text) {
+            return entry.symbol;
+        }
+        Symbol symbol = symbols.get(text);
+        if (symbol == null) {
+            if (full) {
+                return null;
+            }
+            symbol = new Symbol(text);
+            Symbol existing = symbols.putIfAbsent(text, symbol);
+            if (existing == null) {
+                if (size.incrementAndGet() >= maxSize) {
+                    full = true;
+                }
+            } else {
+                symbol = existing;
+            }
+        }
+        identityCache[index] = new IdentityCacheEntry(text, symbol);
+        return symbol;
+    }
+
+    static String sha1(String text) {
+        return Hashing.sha1().hashString(text, UTF_8).toString();
+    }
+
+    private static class Symbol {
+
+        private final String text;
+        // lazy computed, racy writes are ok since the value is always the same
+        private volatile @Nullable String fullTextSha1;
+
+        private Symbol(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class IdentityCacheEntry {
+
+        private final String text;
+        private final Symbol symbol;
+
+        private IdentityCacheEntry(String text, Symbol symbol) {
+            this.text = text;
+            this.symbol = symbol;
+        }
+    }
+}
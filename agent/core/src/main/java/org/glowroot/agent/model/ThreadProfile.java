@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,6 +29,13 @@ import org.glowroot.common.model.MutableProfile;
 
 public class ThreadProfile {
 
+    // stack traces that were truncated by the max stack depth are missing their root frames, so
+    // this synthetic root frame is added to group them under a single root in the profile tree,
+    // instead of the deepest captured frame of each truncated stack trace showing up as a root
+    @VisibleForTesting
+    static final StackTraceElement TRUNCATED_ROOT_FRAME =
+            new StackTraceElement("Glowroot", "truncatedStackTrace", null, -1);
+
     private final int maxSamples;
     private final Object lock = new Object();
     @GuardedBy("lock")
@@ -83,12 +90,13 @@ public class ThreadProfile {
 
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
-    public void addStackTrace(ThreadInfo threadInfo) {
+    public void addStackTrace(ThreadInfo threadInfo, int maxStackDepth) {
         synchronized (lock) {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
+            List<StackTraceElement> stackTrace =
+                    getStackTrace(threadInfo.getStackTrace(), maxStackDepth);
             Thread.State threadState = threadInfo.getThreadState();
             if (profile == null) {
                 unmergedStackTraces.add(stackTrace);
@@ -106,6 +114,20 @@ public class ThreadProfile {
         }
     }
 
+    @VisibleForTesting
+    static List<StackTraceElement> getStackTrace(StackTraceElement[] stackTraceElements,
+            int maxStackDepth) {
+        if (stackTraceElements.length < maxStackDepth) {
+            return Arrays.asList(stackTraceElements);
+        }
+        // truncated (or exactly max stack depth, which cannot be distinguished)
+        List<StackTraceElement> stackTrace =
+                Lists.newArrayListWithCapacity(stackTraceElements.length + 1);
+        stackTrace.addAll(Arrays.asList(stackTraceElements));
+        stackTrace.add(TRUNCATED_ROOT_FRAME);
+        return stackTrace;
+    }
+
     @GuardedBy("lock")
     private void mergeTheUnmergedInto(MutableProfile profile) {
         for (int i = 0; i < unmergedStackTraces.size(); i++) {
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+// narrows down the advisors that can possibly match a given class, so that the (regex) class name,
+// class annotation and super type checks in AdviceMatcher only run against those advisors
+//
+// each advisor is indexed by the first of its class name, class annotation and super type
+// restriction that is non-empty and is not a full regex, using the literal text (or literal text
+// before the first "*") of each "|" separated part, e.g. "org.example.*Dao|org.example.Other"
+class AdviceIndex {
+
+    // the advisor list rarely changes (AdviceCache creates a new list whenever the advisors change,
+    // and AnalyzedWorld.mergeInstrumentationAnnotations() creates a new list for the rare class
+    // with @Instrumentation annotations), so only the most recently used index is retained
+    //
+    // not using guava MapMaker/CacheBuilder since it uses many additional classes that must then be
+    // pre-initialized since this is called from inside ClassFileTransformer.transform() (see
+    // PreInitializeWeavingClasses)
+    private static volatile @Nullable CachedIndex cachedIndex;
+
+    private final int advisorCount;
+
+    private final Bucket classNames = new Bucket();
+    private final Bucket classAnnotations = new Bucket();
+    private final Bucket superTypes = new Bucket();
+
+    // advisors that could not be indexed (e.g. full regex class name and no other restrictions)
+    private final int[] unindexed;
+
+    static AdviceIndex get(List<Advice> advisors) {
+        CachedIndex cachedIndex = AdviceIndex.cachedIndex;
+        if (cachedIndex != null && cachedIndex.advisors.get() == advisors) {
+            return cachedIndex.index;
+        }
+        // race condition here is ok, the worst case is building the same index twice
+        AdviceIndex index = new AdviceIndex(advisors);
+        AdviceIndex.cachedIndex = new CachedIndex(advisors, index);
+        return index;
+    }
+
+    AdviceIndex(List<Advice> advisors) {
+        advisorCount = advisors.size();
+        List<Integer> unindexed = Lists.newArrayList();
+        for (int i = 0; i < advisorCount; i++) {
+            Pointcut pointcut = advisors.get(i).pointcut();
+            if (!classNames.add(pointcut.className(), i)
+                    && !classAnnotations.add(pointcut.classAnnotation(), i)
+                    && !superTypes.add(pointcut.superTypeRestriction(), i)) {
+                unindexed.add(i);
+            }
+        }
+        this.unindexed = Ints.toArray(unindexed);
+    }
+
+    // returned indexes are iterated in ascending order by the caller, which preserves the order of
+    // the advisor list
+    BitSet getCandidates(String className, List<String> classAnnotationDescriptors,
+            Collection<String> superClassNames) {
+        BitSet candidates = new BitSet(advisorCount);
+        for (int index : unindexed) {
+            candidates.set(index);
+        }
+        classNames.collect(className, candidates);
+        if (!classAnnotations.isEmpty()) {
+            for (String descriptor : classAnnotationDescriptors) {
+                // same conversion as AdviceMatcher.isAnnotationMatch()
+                classAnnotations.collect(
+                        descriptor.replace('/', '.').substring(1, descriptor.length() - 1),
+                        candidates);
+            }
+        }
+        if (!superTypes.isEmpty()) {
+            for (String superClassName : superClassNames) {
+                superTypes.collect(superClassName, candidates);
+            }
+        }
+        return candidates;
+    }
+
+    private static class CachedIndex {
+
+        // weak reference so that a replaced advisor list is not retained
+        private final WeakReference<List<Advice>> advisors;
+        private final AdviceIndex index;
+
+        private CachedIndex(List<Advice> advisors, AdviceIndex index) {
+            this.advisors = new WeakReference<List<Advice>>(advisors);
+            this.index = index;
+        }
+    }
+
+    private static class Bucket {
+
+        private final Map<String, List<Integer>> exactMatches = Maps.newHashMap();
+        private final PrefixNode prefixRoot = new PrefixNode();
+        private boolean empty = true;
+
+        private boolean add(String maybePattern, int index) {
+            if (maybePattern.isEmpty() || maybePattern.startsWith("/")) {
+                // nothing to index, or full regex (see MaybePatterns.buildPattern())
+                return false;
+            }
+            String[] parts = maybePattern.split("\\|");
+            for (String part : parts) {
+                if (part.startsWith("*")) {
+                    // no literal prefix to index on
+                    return false;
+                }
+            }
+            for (String part : parts) {
+                int starIndex = part.indexOf('*');
+                if (starIndex == -1) {
+                    List<Integer> indexes = exactMatches.get(part);
+                    if (indexes == null) {
+                        indexes = Lists.newArrayList();
+                        exactMatches.put(part, indexes);
+                    }
+                    indexes.add(index);
+                } else {
+                    prefixRoot.add(part, 0, starIndex, index);
+                }
+            }
+            empty = false;
+            return true;
+        }
+
+        private boolean isEmpty() {
+            return empty;
+        }
+
+        private void collect(String name, BitSet candidates) {
+            List<Integer> indexes = exactMatches.get(name);
+            if (indexes != null) {
+                for (int index : indexes) {
+                    candidates.set(index);
+                }
+            }
+            PrefixNode node = prefixRoot;
+            int i = 0;
+            while (true) {
+                node.collect(candidates);
+                if (i == name.length()) {
+                    break;
+                }
+                node = node.getChild(name.charAt(i++));
+                if (node == null) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // trie node keyed by character, holding the advisors whose literal prefix ends at this node
+    private static class PrefixNode {
+
+        private @Nullable Map<Character, PrefixNode> children;
+        private @Nullable List<Integer> indexes;
+
+        private void add(String prefix, int offset, int length, int index) {
+            if (offset == length) {
+                if (indexes == null) {
+                    indexes = Lists.newArrayList();
+                }
+                indexes.add(index);
+                return;
+            }
+            if (children == null) {
+                children = Maps.newHashMap();
+            }
+            Character c = prefix.charAt(offset);
+            PrefixNode child = children.get(c);
+            if (child == null) {
+                child = new PrefixNode();
+                children.put(c, child);
+            }
+            child.add(prefix, offset + 1, length, index);
+        }
+
+        private @Nullable PrefixNode getChild(char c) {
+            return children == null ? null : children.get(c);
+        }
+
+        private void collect(BitSet candidates) {
+            if (indexes != null) {
+                for (int index : indexes) {
+                    candidates.set(index);
+                }
+            }
+        }
+    }
+}
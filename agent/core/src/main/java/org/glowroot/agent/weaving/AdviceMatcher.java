@@ -16,6 +16,7 @@
 package org.glowroot.agent.weaving;
 
 import java.lang.reflect.Modifier;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -41,7 +42,10 @@ abstract class AdviceMatcher {
             List<String> classAnnotations, Collection<String> superClassNames,
             List<Advice> advisors) {
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        BitSet candidates = AdviceIndex.get(advisors).getCandidates(className, classAnnotations,
+                superClassNames);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            Advice advice = advisors.get(i);
             if (isClassMatch(className, classAnnotations, superClassNames, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
@@ -21,12 +21,10 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
@@ -43,6 +41,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.impl.PreloadSomeSuperTypesCache;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.common.config.InstrumentationConfig;
 import org.glowroot.common.util.Styles;
@@ -66,25 +65,28 @@ public class AnalyzedWorld {
         }
     }
 
+    // must be power of 2
+    private static final int STRIPE_COUNT = 32;
+
     // weak keys to prevent retention of class loaders
     // it's important that the weak keys point directly to the class loaders themselves (as opposed
     // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
     // while their associated class loaders are still being used
     //
+    // striped by class loader identity hash code so that parallel class loading in different class
+    // loaders does not contend on a single lock (WeakHashMap.get() expunges stale entries, so even
+    // reads need to be under the stripe lock)
+    //
     // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
     // additional classes that must then be pre-initialized since this is called from inside
-    // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
-
-    // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
-    // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
-    // the weakness on the Optional instance which is not strongly referenced from anywhere and
-    // therefore the keys will most likely be cleared while their class loaders are still being used
-    //
-    // intentionally avoiding Maps.newConcurrentMap() for the same reason as above
-    private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
-            new ConcurrentHashMap<String, AnalyzedClass>();
+    // ClassFileTransformer.transform() (see PreInitializeWeavingClasses)
+    private final Stripe[] stripes;
+
+    // the analyzed classes for the bootstrap class loader (null) are stored separately since there
+    // is no class loader instance to (weakly) key on, and since they are never idle-evicted
+    private final LoaderWorld bootstrapLoaderWorld = new LoaderWorld(System.currentTimeMillis());
+
+    private final AtomicLong evictedClassCount = new AtomicLong();
 
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
@@ -100,6 +102,15 @@ public class AnalyzedWorld {
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.preloadSomeSuperTypesCache = preloadSomeSuperTypesCache;
+        stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public void registerMBeans(LazyPlatformMBeanServer lazyPlatformMBeanServer) {
+        lazyPlatformMBeanServer.lazyRegisterMBean(new AnalyzedWorldStats(this),
+                "org.glowroot:type=AnalyzedWorld");
     }
 
     public List<Class<?>> getClassesWithReweavableAdvice(boolean remove) {
@@ -112,9 +123,9 @@ public class AnalyzedWorld {
     }
 
     public void removeClasses(Iterable<Class<?>> classes) {
-        for (Map<String, AnalyzedClass> map : getWorldValues()) {
+        for (LoaderWorld loaderWorld : getLoaderWorlds()) {
             for (Class<?> clazz : classes) {
-                map.remove(clazz.getName());
+                loaderWorld.remove(clazz.getName());
             }
         }
         for (Class<?> clazz : classes) {
@@ -123,14 +134,65 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
+        ImmutableList.Builder<ClassLoader> loaders = ImmutableList.builder();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                loaders.addAll(stripe.loaderWorlds.keySet());
+            }
+        }
+        return loaders.build();
+    }
+
+    // evicts analyzed classes (other than those with reweavable advice) of class loaders that have
+    // not had any classes woven (or analyzed) for the given period, e.g. loaders of applications
+    // that have finished starting up, since these are (lazily) re-created if ever needed again
+    public int evictIdleLoaders(long idleMillis) {
+        long cutoffMillis = System.currentTimeMillis() - idleMillis;
+        int count = 0;
+        for (LoaderWorld loaderWorld : getLoaderWorlds()) {
+            if (loaderWorld.getLastAccessMillis() < cutoffMillis) {
+                count += loaderWorld.evict();
+            }
+        }
+        if (count > 0) {
+            evictedClassCount.addAndGet(count);
+            logger.debug("evicted {} analyzed classes from idle class loaders", count);
+        }
+        return count;
+    }
+
+    int getClassLoaderCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.loaderWorlds.size();
+            }
         }
+        return count;
+    }
+
+    int getAnalyzedClassCount() {
+        int count = bootstrapLoaderWorld.size();
+        for (LoaderWorld loaderWorld : getLoaderWorlds()) {
+            count += loaderWorld.size();
+        }
+        return count;
+    }
+
+    long getEstimatedBytes() {
+        long bytes = bootstrapLoaderWorld.getEstimatedBytes();
+        for (LoaderWorld loaderWorld : getLoaderWorlds()) {
+            bytes += loaderWorld.getEstimatedBytes();
+        }
+        return bytes;
+    }
+
+    long getEvictedClassCount() {
+        return evictedClassCount.get();
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
-        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
-        loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
+        getLoaderWorld(loader).put(analyzedClass);
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -221,15 +283,14 @@ public class AnalyzedWorld {
     private AnalyzedClassAndLoader getOrCreateAnalyzedClass(String className,
             @Nullable ClassLoader loader, String subClassName)
             throws ClassNotFoundException, IOException {
-        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses =
-                getAnalyzedClasses(loader);
-        AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(className);
+        LoaderWorld loaderWorld = getLoaderWorld(loader);
+        AnalyzedClass analyzedClass = loaderWorld.get(className);
         if (analyzedClass != null) {
             return ImmutableAnalyzedClassAndLoader.of(analyzedClass, loader);
         }
         ClassLoader analyzedClassLoader = getAnalyzedLoader(className, loader, subClassName);
-        loaderAnalyzedClasses = getAnalyzedClasses(analyzedClassLoader);
-        analyzedClass = loaderAnalyzedClasses.get(className);
+        loaderWorld = getLoaderWorld(analyzedClassLoader);
+        analyzedClass = loaderWorld.get(className);
         if (analyzedClass == null) {
             if (analyzedClassLoader != null) {
                 // if it was loaded into bootstrap, probably was loaded prior to weaving started
@@ -238,7 +299,7 @@ public class AnalyzedWorld {
                         analyzedClassLoader.hashCode());
             }
             analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            analyzedClass = loaderWorld.putIfAbsent(analyzedClass);
         }
         return ImmutableAnalyzedClassAndLoader.of(analyzedClass, analyzedClassLoader);
     }
@@ -246,8 +307,8 @@ public class AnalyzedWorld {
     private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
             boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
-        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
-        for (Map.Entry<String, AnalyzedClass> innerEntry : loaderAnalyzedClasses.entrySet()) {
+        LoaderWorld loaderWorld = getLoaderWorld(loader);
+        for (Map.Entry<String, AnalyzedClass> innerEntry : loaderWorld.entries()) {
             if (innerEntry.getValue().hasReweavableAdvice()) {
                 try {
                     classes.add(Class.forName(innerEntry.getKey(), false, loader));
@@ -258,7 +319,7 @@ public class AnalyzedWorld {
         }
         if (remove) {
             for (Class<?> clazz : classes) {
-                loaderAnalyzedClasses.remove(clazz.getName());
+                loaderWorld.remove(clazz.getName());
             }
         }
         return classes;
@@ -318,7 +379,7 @@ public class AnalyzedWorld {
                 // this saves time here, and reduces memory footprint of AnalyzedWorld
                 // which can be very noticeable when lots of ClassLoaders, e.g. groovy
                 AnalyzedClass parentLoaderAnalyzedClass =
-                        getAnalyzedClasses(parentLoader).get(className);
+                        getLoaderWorld(parentLoader).get(className);
                 if (parentLoaderAnalyzedClass != null) {
                     return parentLoaderAnalyzedClass;
                 }
@@ -334,7 +395,7 @@ public class AnalyzedWorld {
     private AnalyzedClass createAnalyzedClassPlanB(String className, @Nullable ClassLoader loader)
             throws ClassNotFoundException {
         Class<?> clazz = Class.forName(className, false, loader);
-        AnalyzedClass analyzedClass = getAnalyzedClasses(clazz.getClassLoader()).get(className);
+        AnalyzedClass analyzedClass = getLoaderWorld(clazz.getClassLoader()).get(className);
         if (analyzedClass != null) {
             return analyzedClass;
         }
@@ -359,38 +420,35 @@ public class AnalyzedWorld {
         return analyzedClass;
     }
 
-    private ConcurrentMap<String, AnalyzedClass> getAnalyzedClasses(@Nullable ClassLoader loader) {
+    private LoaderWorld getLoaderWorld(@Nullable ClassLoader loader) {
         if (loader == null) {
             return bootstrapLoaderWorld;
-        } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
-                }
-                return map;
-            }
         }
-    }
-
-    private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+        long nowMillis = System.currentTimeMillis();
+        Stripe stripe = stripes[System.identityHashCode(loader) & (STRIPE_COUNT - 1)];
+        LoaderWorld loaderWorld;
+        // this synchronization is for atomicity of get/put
+        synchronized (stripe) {
+            loaderWorld = stripe.loaderWorlds.get(loader);
+            if (loaderWorld == null) {
+                loaderWorld = new LoaderWorld(nowMillis);
+                stripe.loaderWorlds.put(loader, loaderWorld);
+                return loaderWorld;
+            }
         }
+        loaderWorld.touch(nowMillis);
+        return loaderWorld;
     }
 
-    private static AnalyzedClass putAnalyzedClass(
-            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses,
-            AnalyzedClass analyzedClass) {
-        AnalyzedClass existingAnalyzedClass =
-                loaderAnalyzedClasses.putIfAbsent(analyzedClass.name(), analyzedClass);
-        if (existingAnalyzedClass != null) {
-            // (rare) concurrent AnalyzedClass creation, use the one that made it into the map
-            return existingAnalyzedClass;
+    // does not include the bootstrap loader world
+    private List<LoaderWorld> getLoaderWorlds() {
+        List<LoaderWorld> loaderWorlds = Lists.newArrayList();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                loaderWorlds.addAll(stripe.loaderWorlds.values());
+            }
         }
-        return analyzedClass;
+        return loaderWorlds;
     }
 
     private @Nullable ClassLoader getAnalyzedLoader(String className, @Nullable ClassLoader loader,
@@ -575,6 +633,11 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    private static class Stripe {
+        private final Map<ClassLoader, LoaderWorld> loaderWorlds =
+                new WeakHashMap<ClassLoader, LoaderWorld>();
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
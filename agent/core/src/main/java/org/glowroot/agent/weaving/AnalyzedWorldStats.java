@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+class AnalyzedWorldStats implements AnalyzedWorldStatsMXBean {
+
+    private final AnalyzedWorld analyzedWorld;
+
+    AnalyzedWorldStats(AnalyzedWorld analyzedWorld) {
+        this.analyzedWorld = analyzedWorld;
+    }
+
+    @Override
+    public int getClassLoaderCount() {
+        return analyzedWorld.getClassLoaderCount();
+    }
+
+    @Override
+    public int getAnalyzedClassCount() {
+        return analyzedWorld.getAnalyzedClassCount();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return analyzedWorld.getEstimatedBytes();
+    }
+
+    @Override
+    public long getEvictedClassCount() {
+        return analyzedWorld.getEvictedClassCount();
+    }
+}
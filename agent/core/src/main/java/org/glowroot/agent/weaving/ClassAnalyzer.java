@@ -277,6 +277,10 @@ class ClassAnalyzer {
         return isClassLoader;
     }
 
+    Set<String> getSuperClassNames() {
+        return superClassNames;
+    }
+
     List<AnalyzedMethod> getMethodsThatOnlyNowFulfillAdvice() {
         return checkNotNull(methodsThatOnlyNowFulfillAdvice);
     }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// the analyzed classes of a single class loader, along with a (rough) estimate of the memory they
+// retain and when they were last used
+class LoaderWorld {
+
+    // only record access time when it has moved by more than this, so that the many threads
+    // weaving classes in the same loader are not constantly writing to the same field
+    private static final long ACCESS_GRANULARITY_MILLIS = 1000;
+
+    // intentionally avoiding Maps.newConcurrentMap() since this is called from inside
+    // ClassFileTransformer.transform() (see PreInitializeWeavingClasses)
+    private final ConcurrentMap<String, AnalyzedClass> analyzedClasses =
+            new ConcurrentHashMap<String, AnalyzedClass>();
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    private volatile long lastAccessMillis;
+
+    LoaderWorld(long nowMillis) {
+        lastAccessMillis = nowMillis;
+    }
+
+    @Nullable AnalyzedClass get(String className) {
+        return analyzedClasses.get(className);
+    }
+
+    void put(AnalyzedClass analyzedClass) {
+        AnalyzedClass existingAnalyzedClass =
+                analyzedClasses.put(analyzedClass.name(), analyzedClass);
+        estimatedBytes.addAndGet(estimateBytes(analyzedClass));
+        if (existingAnalyzedClass != null) {
+            estimatedBytes.addAndGet(-estimateBytes(existingAnalyzedClass));
+        }
+    }
+
+    AnalyzedClass putIfAbsent(AnalyzedClass analyzedClass) {
+        AnalyzedClass existingAnalyzedClass =
+                analyzedClasses.putIfAbsent(analyzedClass.name(), analyzedClass);
+        if (existingAnalyzedClass != null) {
+            // (rare) concurrent AnalyzedClass creation, use the one that made it into the map
+            return existingAnalyzedClass;
+        }
+        estimatedBytes.addAndGet(estimateBytes(analyzedClass));
+        return analyzedClass;
+    }
+
+    void remove(String className) {
+        AnalyzedClass analyzedClass = analyzedClasses.remove(className);
+        if (analyzedClass != null) {
+            estimatedBytes.addAndGet(-estimateBytes(analyzedClass));
+        }
+    }
+
+    Iterable<Map.Entry<String, AnalyzedClass>> entries() {
+        return analyzedClasses.entrySet();
+    }
+
+    int size() {
+        return analyzedClasses.size();
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+
+    void touch(long nowMillis) {
+        if (nowMillis - lastAccessMillis > ACCESS_GRANULARITY_MILLIS) {
+            lastAccessMillis = nowMillis;
+        }
+    }
+
+    // analyzed classes with reweavable advice are retained since they are needed to find the
+    // classes to re-transform when the instrumentation config changes, all others are just
+    // re-created (lazily) from the class loader's resources if they are ever needed again
+    int evict() {
+        int count = 0;
+        for (Map.Entry<String, AnalyzedClass> entry : analyzedClasses.entrySet()) {
+            AnalyzedClass analyzedClass = entry.getValue();
+            // conditional remove in case it was concurrently replaced
+            if (!analyzedClass.hasReweavableAdvice()
+                    && analyzedClasses.remove(entry.getKey(), analyzedClass)) {
+                estimatedBytes.addAndGet(-estimateBytes(analyzedClass));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // this is only a rough estimate (strings are counted as 2 bytes per char plus object overhead)
+    // but is enough to see which class loaders are responsible for the retained memory
+    static long estimateBytes(AnalyzedClass analyzedClass) {
+        long bytes = 96 + estimateBytes(analyzedClass.name())
+                + estimateBytes(analyzedClass.interfaceNames());
+        String superName = analyzedClass.superName();
+        if (superName != null) {
+            bytes += estimateBytes(superName);
+        }
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            bytes += 64 + estimateBytes(analyzedMethod.name())
+                    + estimateBytes(analyzedMethod.parameterTypes())
+                    + estimateBytes(analyzedMethod.returnType())
+                    + estimateBytes(analyzedMethod.exceptions())
+                    + 8 * (analyzedMethod.advisors().size()
+                            + analyzedMethod.subTypeRestrictedAdvisors().size());
+            String signature = analyzedMethod.signature();
+            if (signature != null) {
+                bytes += estimateBytes(signature);
+            }
+        }
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            bytes += 32 + estimateBytes(publicFinalMethod.name())
+                    + estimateBytes(publicFinalMethod.parameterTypes());
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(String str) {
+        return 40 + 2L * str.length();
+    }
+
+    private static long estimateBytes(List<String> strs) {
+        long bytes = 16 + 8L * strs.size();
+        for (String str : strs) {
+            bytes += estimateBytes(str);
+        }
+        return bytes;
+    }
+}
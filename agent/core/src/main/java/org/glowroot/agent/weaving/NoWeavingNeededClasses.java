@@ -0,0 +1,469 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.common.util.ScheduledRunnable;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// remembers (across jvm restarts) the classes that did not need weaving, so that the class
+// analysis can be skipped the next time they are loaded, which is the case for the vast majority of
+// classes
+//
+// only classes loaded from jar files are remembered, and only if all of their (non-jdk) super types
+// were also loaded from jar files, since the super types affect the analysis
+//
+// all of them are discarded when any of those jar files (of the remembered classes or of their
+// super types) has changed, or when the advisors (plugins and instrumentation config), shim types
+// or mixin types have changed
+//
+// woven bytecode is not persisted since weaving has side effects beyond the returned bytes (e.g.
+// defining meta holder and advice classes in the class loader)
+public class NoWeavingNeededClasses extends ScheduledRunnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NoWeavingNeededClasses.class);
+
+    private static final int FILE_FORMAT_VERSION = 2;
+
+    private static final int MAX_SIZE = 1000000;
+
+    // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
+    // additional classes that must then be pre-initialized since this is called from inside
+    // ClassFileTransformer.transform() (see PreInitializeWeavingClasses)
+    private static final Map<ClassLoader, Long> loaderKeys =
+            Collections.synchronizedMap(new WeakHashMap<ClassLoader, Long>());
+
+    private final File file;
+    private final String baseFingerprint;
+
+    // this is only used before the first lookup, at which point the fingerprint of the advisors is
+    // known and the loaded keys are either used or discarded
+    private volatile @Nullable LoadedFile loadedFile;
+
+    private volatile @Nullable Generation generation;
+
+    // jar file paths of the remembered classes
+    private final Set<String> jarPaths =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public NoWeavingNeededClasses(File file, List<ShimType> shimTypes, List<MixinType> mixinTypes,
+            String agentVersion) {
+        this.file = file;
+        StringBuilder sb = new StringBuilder();
+        sb.append(agentVersion);
+        sb.append('\n');
+        sb.append(System.getProperty("java.version"));
+        sb.append('\n');
+        for (ShimType shimType : shimTypes) {
+            sb.append(shimType.iface().getDescriptor());
+            sb.append(shimType.targets());
+            sb.append('\n');
+        }
+        for (MixinType mixinType : mixinTypes) {
+            for (Type iface : mixinType.interfaces()) {
+                sb.append(iface.getDescriptor());
+            }
+            sb.append(mixinType.targets());
+            sb.append('\n');
+        }
+        baseFingerprint = sb.toString();
+        loadedFile = loadFromFile(file);
+    }
+
+    // returns null if the class is not eligible for caching
+    static @Nullable String getJarPath(@Nullable CodeSource codeSource) {
+        if (codeSource == null) {
+            return null;
+        }
+        URL location = codeSource.getLocation();
+        if (location == null) {
+            return null;
+        }
+        return getJarFilePath(location);
+    }
+
+    private static @Nullable String getJarFilePath(URL location) {
+        if (!location.getProtocol().equals("file")) {
+            return null;
+        }
+        if (!location.getPath().endsWith(".jar")) {
+            // class directories are not eligible since there is no cheap way to check if they
+            // have changed
+            return null;
+        }
+        try {
+            return new File(location.toURI()).getPath();
+        } catch (URISyntaxException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            // e.g. URI has an authority component
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    static long getKey(byte[] classBytes, String jarPath, @Nullable ClassLoader loader,
+            boolean noLongerNeedToWeaveMainMethods) {
+        long key = hash(classBytes, jarPath.hashCode());
+        if (loader != null) {
+            key = key * 31 + getLoaderKey(loader);
+        }
+        return noLongerNeedToWeaveMainMethods ? key : ~key;
+    }
+
+    // returns null if any of the super types is not eligible for caching, in which case the class
+    // cannot be remembered either
+    static @Nullable List<String> getSuperTypeJarPaths(Set<String> superClassNames,
+            String className, @Nullable ClassLoader loader) {
+        if (loader == null) {
+            return null;
+        }
+        List<String> jarPaths = new ArrayList<String>();
+        for (String superClassName : superClassNames) {
+            if (superClassName.equals(className)) {
+                continue;
+            }
+            URL url = loader.getResource(superClassName.replace('.', '/') + ".class");
+            if (url == null) {
+                // e.g. generated class
+                return null;
+            }
+            if (url.getProtocol().equals("jrt")) {
+                // jdk classes are covered by the java version in the fingerprint
+                continue;
+            }
+            String jarPath = getJarPath(url);
+            if (jarPath == null) {
+                return null;
+            }
+            jarPaths.add(jarPath);
+        }
+        return jarPaths;
+    }
+
+    boolean contains(List<Advice> advisors, long key) {
+        Generation generation = getGeneration(advisors);
+        return Arrays.binarySearch(generation.persistedKeys, key) >= 0
+                || generation.addedKeys.contains(key);
+    }
+
+    void add(List<Advice> advisors, long key, String jarPath, List<String> superTypeJarPaths) {
+        Generation generation = getGeneration(advisors);
+        if (generation.persistedKeys.length + generation.addedKeys.size() >= MAX_SIZE) {
+            return;
+        }
+        jarPaths.add(jarPath);
+        jarPaths.addAll(superTypeJarPaths);
+        generation.addedKeys.add(key);
+    }
+
+    // returns the jar path of a class file resource url, e.g. jar:file:/path/to/some.jar!/a/B.class
+    private static @Nullable String getJarPath(URL url) {
+        if (!url.getProtocol().equals("jar")) {
+            return null;
+        }
+        String path = url.getPath();
+        int index = path.indexOf("!/");
+        if (index == -1) {
+            return null;
+        }
+        try {
+            return getJarFilePath(new URL(path.substring(0, index)));
+        } catch (MalformedURLException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // keyed on the code source of the class loader (its class and, for url class loaders, its
+    // urls) up the parent chain, which is stable across jvm restarts while still distinguishing
+    // e.g. two web applications using the same class loader class (but different WEB-INF/lib)
+    private static long getLoaderKey(ClassLoader loader) {
+        Long loaderKey = loaderKeys.get(loader);
+        if (loaderKey != null) {
+            return loaderKey;
+        }
+        StringBuilder sb = new StringBuilder();
+        ClassLoader current = loader;
+        while (current != null) {
+            sb.append(current.getClass().getName());
+            sb.append('\n');
+            if (current instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) current).getURLs()) {
+                    sb.append(url);
+                    sb.append('\n');
+                }
+            }
+            current = current.getParent();
+        }
+        long key = hash(sb.toString().getBytes(UTF_8), 0);
+        loaderKeys.put(loader, key);
+        return key;
+    }
+
+    @Override
+    protected void runInternal() throws Exception {
+        Generation generation = this.generation;
+        if (generation != null && !generation.addedKeys.isEmpty()) {
+            writeToFile(generation);
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        Generation generation = this.generation;
+        return generation == null ? 0
+                : generation.persistedKeys.length + generation.addedKeys.size();
+    }
+
+    private Generation getGeneration(List<Advice> advisors) {
+        Generation generation = this.generation;
+        if (generation != null && generation.advisors == advisors) {
+            return generation;
+        }
+        synchronized (this) {
+            generation = this.generation;
+            if (generation != null && generation.advisors == advisors) {
+                return generation;
+            }
+            long fingerprint = getFingerprint(advisors);
+            Generation priorGeneration = generation;
+            LoadedFile loadedFile = this.loadedFile;
+            if (loadedFile != null && loadedFile.fingerprint == fingerprint) {
+                generation = new Generation(advisors, fingerprint, loadedFile.keys);
+                jarPaths.addAll(loadedFile.jarPaths);
+            } else if (priorGeneration != null && priorGeneration.fingerprint == fingerprint) {
+                // e.g. instrumentation config was updated, but none of the changes affect class
+                // matching
+                generation = new Generation(advisors, fingerprint, priorGeneration.persistedKeys);
+                generation.addedKeys.addAll(priorGeneration.addedKeys);
+            } else {
+                generation = new Generation(advisors, fingerprint, new long[0]);
+            }
+            this.loadedFile = null;
+            this.generation = generation;
+            return generation;
+        }
+    }
+
+    private long getFingerprint(List<Advice> advisors) {
+        StringBuilder sb = new StringBuilder(baseFingerprint);
+        for (Advice advice : advisors) {
+            Pointcut pointcut = advice.pointcut();
+            sb.append(pointcut.className());
+            sb.append(';');
+            sb.append(pointcut.classAnnotation());
+            sb.append(';');
+            sb.append(pointcut.subTypeRestriction());
+            sb.append(';');
+            sb.append(pointcut.superTypeRestriction());
+            sb.append(';');
+            sb.append(pointcut.methodName());
+            sb.append(';');
+            sb.append(pointcut.methodAnnotation());
+            sb.append(';');
+            sb.append(Arrays.toString(pointcut.methodParameterTypes()));
+            sb.append(';');
+            sb.append(pointcut.methodReturnType());
+            sb.append(';');
+            sb.append(Arrays.toString(pointcut.methodModifiers()));
+            sb.append('\n');
+        }
+        return hash(sb.toString().getBytes(UTF_8), 0);
+    }
+
+    private void writeToFile(Generation generation) throws IOException {
+        // copy, since keys can be added concurrently
+        long[] addedKeys = new long[generation.addedKeys.size()];
+        int count = 0;
+        Iterator<Long> i = generation.addedKeys.iterator();
+        while (i.hasNext() && count < addedKeys.length) {
+            addedKeys[count++] = i.next();
+        }
+        long[] persistedKeys = generation.persistedKeys;
+        long[] keys = Arrays.copyOf(persistedKeys, persistedKeys.length + count);
+        System.arraycopy(addedKeys, 0, keys, persistedKeys.length, count);
+        Arrays.sort(keys);
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeLong(generation.fingerprint);
+            out.writeInt(jarPaths.size());
+            for (String jarPath : jarPaths) {
+                File jarFile = new File(jarPath);
+                out.writeUTF(jarPath);
+                out.writeLong(jarFile.length());
+                out.writeLong(jarFile.lastModified());
+            }
+            out.writeInt(keys.length);
+            for (long key : keys) {
+                out.writeLong(key);
+            }
+        } finally {
+            out.close();
+        }
+        // replace the prior file as a whole, so that a partially written file is never read
+        if (!tmpFile.renameTo(file) && (!file.delete() || !tmpFile.renameTo(file))) {
+            logger.warn("could not rename {} to {}", tmpFile.getAbsolutePath(),
+                    file.getAbsolutePath());
+            return;
+        }
+        generation.persistedKeys = keys;
+        for (int j = 0; j < count; j++) {
+            generation.addedKeys.remove(addedKeys[j]);
+        }
+    }
+
+    private static @Nullable LoadedFile loadFromFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_FORMAT_VERSION) {
+                    return null;
+                }
+                long fingerprint = in.readLong();
+                int jarCount = in.readInt();
+                Set<String> jarPaths = new HashSet<String>();
+                for (int i = 0; i < jarCount; i++) {
+                    String jarPath = in.readUTF();
+                    long length = in.readLong();
+                    long lastModified = in.readLong();
+                    File jarFile = new File(jarPath);
+                    if (jarFile.length() != length || jarFile.lastModified() != lastModified) {
+                        logger.debug("discarding no weaving needed classes since jar file has"
+                                + " changed: {}", jarPath);
+                        return null;
+                    }
+                    jarPaths.add(jarPath);
+                }
+                int keyCount = in.readInt();
+                long[] keys = new long[keyCount];
+                for (int i = 0; i < keyCount; i++) {
+                    keys[i] = in.readLong();
+                }
+                return new LoadedFile(fingerprint, jarPaths, keys);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.error("error reading {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // MurmurHash64A
+    @VisibleForTesting
+    static long hash(byte[] bytes, int seed) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = (seed & 0xffffffffL) ^ (bytes.length * m);
+        int end = bytes.length & ~7;
+        for (int i = 0; i < end; i += 8) {
+            long k = (bytes[i] & 0xffL)
+                    | (bytes[i + 1] & 0xffL) << 8
+                    | (bytes[i + 2] & 0xffL) << 16
+                    | (bytes[i + 3] & 0xffL) << 24
+                    | (bytes[i + 4] & 0xffL) << 32
+                    | (bytes[i + 5] & 0xffL) << 40
+                    | (bytes[i + 6] & 0xffL) << 48
+                    | (bytes[i + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        int remaining = bytes.length & 7;
+        if (remaining > 0) {
+            for (int i = remaining - 1; i >= 0; i--) {
+                h ^= (bytes[end + i] & 0xffL) << (i * 8);
+            }
+            h *= m;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    private static class Generation {
+
+        private final List<Advice> advisors;
+        private final long fingerprint;
+        // sorted
+        private volatile long[] persistedKeys;
+        private final Set<Long> addedKeys =
+                Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+        private Generation(List<Advice> advisors, long fingerprint, long[] persistedKeys) {
+            this.advisors = advisors;
+            this.fingerprint = fingerprint;
+            this.persistedKeys = persistedKeys;
+        }
+    }
+
+    private static class LoadedFile {
+
+        private final long fingerprint;
+        private final Set<String> jarPaths;
+        private final long[] keys;
+
+        private LoadedFile(long fingerprint, Set<String> jarPaths, long[] keys) {
+            this.fingerprint = fingerprint;
+            this.jarPaths = jarPaths;
+            this.keys = keys;
+        }
+    }
+}
@@ -312,12 +312,17 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AdviceAdapter");
         types.add("org.glowroot.agent.weaving.AdviceBuilder");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
+        types.add("org.glowroot.agent.weaving.AdviceIndex");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$Bucket");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$CachedIndex");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$PrefixNode");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$AnalyzedClassAndLoader");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$Stripe");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$MethodMetaHolder");
@@ -333,6 +338,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ClassLoaders$LazyDefinedClass");
         types.add("org.glowroot.agent.weaving.ClassNames");
         types.add("org.glowroot.agent.weaving.FrameDeduppingMethodVisitor");
+        types.add("org.glowroot.agent.weaving.LoaderWorld");
         types.add("org.glowroot.agent.weaving.MethodInfoImpl");
         types.add("org.glowroot.agent.weaving.Weaver$ActiveWeaving");
         types.add("org.glowroot.agent.weaving.Weaver$ClassLoaderHackClassVisitor");
@@ -383,6 +389,9 @@ public class PreInitializeWeavingClasses {
                 + "$TransactionAnnotationVisitor");
         types.add("org.glowroot.agent.weaving.JSRInlinerClassVisitor");
         types.add("org.glowroot.agent.weaving.MixinType");
+        types.add("org.glowroot.agent.weaving.NoWeavingNeededClasses");
+        types.add("org.glowroot.agent.weaving.NoWeavingNeededClasses$Generation");
+        types.add("org.glowroot.agent.weaving.NoWeavingNeededClasses$LoadedFile");
         types.add("org.glowroot.agent.weaving.PluginClassRenamer");
         types.add("org.glowroot.agent.weaving.PluginClassRenamer$PluginClassRemapper");
         types.add("org.glowroot.agent.weaving.PluginDetail$PointcutClass");
@@ -84,6 +84,7 @@ public class Weaver {
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable NoWeavingNeededClasses noWeavingNeededClasses;
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
@@ -99,12 +100,14 @@ public class Weaver {
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
+            @Nullable NoWeavingNeededClasses noWeavingNeededClasses,
             TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
             final ConfigService configService) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
+        this.noWeavingNeededClasses = noWeavingNeededClasses;
         this.transactionRegistry = transactionRegistry;
         this.ticker = ticker;
         configService.addConfigListener(new ConfigListener() {
@@ -178,7 +181,20 @@ public class Weaver {
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> allAdvisors = this.advisors.get();
+        String noWeavingNeededJarPath = null;
+        long noWeavingNeededKey = 0;
+        if (noWeavingNeededClasses != null && classBeingRedefined == null) {
+            noWeavingNeededJarPath = NoWeavingNeededClasses.getJarPath(codeSource);
+            if (noWeavingNeededJarPath != null) {
+                noWeavingNeededKey = NoWeavingNeededClasses.getKey(classBytes,
+                        noWeavingNeededJarPath, loader, noLongerNeedToWeaveMainMethods);
+                if (noWeavingNeededClasses.contains(allAdvisors, noWeavingNeededKey)) {
+                    return null;
+                }
+            }
+        }
+        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(allAdvisors,
                 classBytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
@@ -224,6 +240,16 @@ public class Weaver {
         }
         if (!classAnalyzer.isWeavingRequired()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (noWeavingNeededClasses != null && noWeavingNeededJarPath != null
+                    && maybeProcessedBytes == null) {
+                List<String> superTypeJarPaths = NoWeavingNeededClasses.getSuperTypeJarPaths(
+                        classAnalyzer.getSuperClassNames(), ClassNames.fromInternalName(className),
+                        loader);
+                if (superTypeJarPaths != null) {
+                    noWeavingNeededClasses.add(allAdvisors, noWeavingNeededKey,
+                            noWeavingNeededJarPath, superTypeJarPaths);
+                }
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import org.junit.Test;
+
+import org.glowroot.agent.central.Batcher.BatchItem;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatcherTest {
+
+    private static final long ONE_HOUR_MILLIS = 3600000;
+
+    @Test
+    public void shouldSplitIntoBatchesOfMaxBytes() throws Exception {
+        // given
+        RecordingBatcher batcher = new RecordingBatcher(400, ONE_HOUR_MILLIS);
+        for (int i = 0; i < 7; i++) {
+            batcher.add(item("a" + i, 100));
+        }
+        // larger than the max batch size
+        batcher.add(item("large", 500));
+        batcher.add(item("a7", 100));
+        batcher.close();
+        // when
+        batcher.run();
+        // then
+        assertThat(batcher.sentBatches).containsExactly(
+                ImmutableList.of("a0", "a1", "a2", "a3"),
+                ImmutableList.of("a4", "a5", "a6"),
+                ImmutableList.of("large"),
+                ImmutableList.of("a7"));
+        assertThat(batcher.spooled).isEmpty();
+    }
+
+    @Test
+    public void shouldSendOnceMaxLatencyHasElapsed() throws Exception {
+        // given
+        RecordingBatcher batcher = new RecordingBatcher(100000, 50);
+        Thread thread = new Thread(batcher);
+        thread.start();
+        // when
+        batcher.add(item("a0", 100));
+        // then
+        assertThat(batcher.sentBatches.poll(10, SECONDS)).containsExactly("a0");
+        batcher.close();
+        thread.join();
+        assertThat(batcher.sentBatches).isEmpty();
+    }
+
+    @Test
+    public void shouldApplyBackPressureAtFourTimesMaxBytes() throws Exception {
+        // given
+        final RecordingBatcher batcher = new RecordingBatcher(200, ONE_HOUR_MILLIS);
+        for (int i = 0; i < 8; i++) {
+            batcher.add(item("a" + i, 100));
+        }
+        // when
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    batcher.add(item("a8", 100));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        // then
+        producer.join(200);
+        assertThat(producer.isAlive()).isTrue();
+        // when
+        Thread thread = new Thread(batcher);
+        thread.start();
+        // then
+        producer.join(SECONDS.toMillis(10));
+        assertThat(producer.isAlive()).isFalse();
+        batcher.close();
+        thread.join();
+        List<String> sent = Lists.newArrayList();
+        for (List<String> batch : batcher.sentBatches) {
+            assertThat(batch.size()).isLessThanOrEqualTo(2);
+            sent.addAll(batch);
+        }
+        assertThat(sent).containsExactly("a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7", "a8");
+        assertThat(batcher.spooled).isEmpty();
+    }
+
+    @Test
+    public void shouldSpoolBatchWithFailingItemAndContinue() throws Exception {
+        // given
+        RecordingBatcher batcher = new RecordingBatcher(300, ONE_HOUR_MILLIS);
+        batcher.add(item("a0", 100));
+        batcher.add(item("a1", 100));
+        batcher.add(item("a2", 100));
+        batcher.add(item("fail", 100));
+        batcher.add(item("a4", 100));
+        batcher.add(item("a5", 100));
+        batcher.add(item("a6", 100));
+        batcher.close();
+        // when
+        batcher.run();
+        // then
+        assertThat(batcher.sentBatches).containsExactly(
+                ImmutableList.of("a0", "a1", "a2"),
+                ImmutableList.of("a6"));
+        assertThat(batcher.spooled).containsExactly("fail", "a4", "a5");
+    }
+
+    @Test
+    public void shouldSpoolWhenClosed() throws Exception {
+        // given
+        RecordingBatcher batcher = new RecordingBatcher(300, ONE_HOUR_MILLIS);
+        batcher.close();
+        // when
+        batcher.add(item("a0", 100));
+        batcher.run();
+        // then
+        assertThat(batcher.sentBatches).isEmpty();
+        assertThat(batcher.spooled).containsExactly("a0");
+    }
+
+    // the agent id is padded so that the serialized message is exactly the given number of bytes
+    // (tag byte plus one or two length bytes)
+    private static BatchItem item(String name, int bytes) {
+        int lengthBytes = bytes - 2 < 128 ? 1 : 2;
+        GaugeValueMessage message = GaugeValueMessage.newBuilder()
+                .setAgentId(Strings.padEnd(name, bytes - 1 - lengthBytes, ' '))
+                .build();
+        BatchItem item = new BatchItem(CentralSpool.GAUGE_VALUES, ImmutableList.of(message),
+                ImmutableList.of(BatchStreamMessage.newBuilder()
+                        .setGaugeValueMessage(message)
+                        .build()),
+                ImmutableList.<String>of());
+        assertThat(item.bytes).isEqualTo(bytes);
+        return item;
+    }
+
+    private static String getName(BatchItem item) {
+        return ((GaugeValueMessage) item.spoolMessages.get(0)).getAgentId().trim();
+    }
+
+    private static class RecordingBatcher extends Batcher {
+
+        private final BlockingQueue<List<String>> sentBatches = Queues.newLinkedBlockingQueue();
+        private final List<String> spooled = Lists.newCopyOnWriteArrayList();
+
+        private RecordingBatcher(int maxBytes, long maxLatencyMillis) {
+            super(maxBytes, maxLatencyMillis);
+        }
+
+        @Override
+        void send(List<BatchItem> batch) {
+            List<String> names = Lists.newArrayList();
+            for (BatchItem item : batch) {
+                String name = getName(item);
+                if (name.equals("fail")) {
+                    throw new IllegalStateException("failing item in batch");
+                }
+                names.add(name);
+            }
+            sentBatches.add(names);
+        }
+
+        @Override
+        void spool(BatchItem item) {
+            spooled.add(getName(item));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralSpoolTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEach() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEach() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, 100);
+        for (int i = 0; i < 10; i++) {
+            spool.append(CentralSpool.GAUGE_VALUES, ImmutableList.of(message("agent" + i)));
+        }
+        // then
+        assertThat(spool.getRecordCount()).isEqualTo(10);
+        for (int i = 0; i < 10; i++) {
+            SpooledRecord record = spool.peek();
+            assertThat(record.getType()).isEqualTo(CentralSpool.GAUGE_VALUES);
+            assertThat(record.getMessages(GaugeValueMessage.parser()).get(0).getAgentId())
+                    .isEqualTo("agent" + i);
+            spool.remove(record);
+        }
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.getRecordCount()).isEqualTo(0);
+        assertThat(spool.getBytes()).isEqualTo(0);
+        spool.close();
+    }
+
+    @Test
+    public void shouldDropOldestSegmentWhenOverLimit() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 100, 50);
+        // when
+        for (int i = 0; i < 10; i++) {
+            spool.append(CentralSpool.GAUGE_VALUES, ImmutableList.of(message("agent" + i)));
+        }
+        // then
+        assertThat(spool.getBytes()).isLessThanOrEqualTo(100);
+        assertThat(spool.getDroppedRecordCount()).isGreaterThan(0);
+        assertThat(spool.getRecordCount() + spool.getDroppedRecordCount()).isEqualTo(10);
+        assertThat(spool.peek().getMessages(GaugeValueMessage.parser()).get(0).getAgentId())
+                .isEqualTo("agent" + spool.getDroppedRecordCount());
+        spool.close();
+    }
+
+    @Test
+    public void shouldReloadAfterRestart() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, 100);
+        for (int i = 0; i < 5; i++) {
+            spool.append(CentralSpool.GAUGE_VALUES, ImmutableList.of(message("agent" + i)));
+        }
+        spool.close();
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024, 100);
+        spool.append(CentralSpool.GAUGE_VALUES, ImmutableList.of(message("agent5")));
+        // then
+        assertThat(spool.getRecordCount()).isEqualTo(6);
+        for (int i = 0; i < 6; i++) {
+            SpooledRecord record = spool.peek();
+            assertThat(record.getMessages(GaugeValueMessage.parser()).get(0).getAgentId())
+                    .isEqualTo("agent" + i);
+            spool.remove(record);
+        }
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    @Test
+    public void shouldSkipTornRecord() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, 1024);
+        spool.append(CentralSpool.GAUGE_VALUES, ImmutableList.of(message("agent0")));
+        spool.append(CentralSpool.GAUGE_VALUES, ImmutableList.of(message("agent1")));
+        spool.close();
+        File file = dir.listFiles()[0];
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(file.length() - 1);
+        out.close();
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024, 1024);
+        // then
+        assertThat(spool.getRecordCount()).isEqualTo(1);
+        SpooledRecord record = spool.peek();
+        assertThat(record.getMessages(GaugeValueMessage.parser()).get(0).getAgentId())
+                .isEqualTo("agent0");
+        spool.remove(record);
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    @Test
+    public void shouldNotSpoolRecordLargerThanSegment() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024, 20);
+        // when
+        boolean spooled = spool.append(CentralSpool.GAUGE_VALUES,
+                ImmutableList.of(message("a very long agent id that does not fit")));
+        // then
+        assertThat(spooled).isFalse();
+        assertThat(spool.getRecordCount()).isEqualTo(0);
+        assertThat(spool.getDroppedRecordCount()).isEqualTo(1);
+        spool.close();
+    }
+
+    private static GaugeValueMessage message(String agentId) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId(agentId)
+                .build();
+    }
+}
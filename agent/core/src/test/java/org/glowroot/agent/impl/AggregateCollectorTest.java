@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableErrorMessage;
+import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.agent.model.SymbolTable;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.OverallErrorSummaryCollector;
+import org.glowroot.common.model.OverallErrorSummaryCollector.OverallErrorSummary;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.model.TransactionNameErrorSummaryCollector;
+import org.glowroot.common.model.TransactionNameErrorSummaryCollector.ErrorSummarySortOrder;
+import org.glowroot.common.model.TransactionNameErrorSummaryCollector.TransactionNameErrorSummary;
+import org.glowroot.common.model.TransactionNameSummaryCollector;
+import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateCollectorTest {
+
+    @Test
+    public void shouldSpreadThreadIdsAcrossStripes() {
+        for (int stripeCount = 1; stripeCount <= 4; stripeCount++) {
+            int[] counts = new int[stripeCount];
+            for (long threadId = 1; threadId <= 1000; threadId++) {
+                int stripeIndex = AggregateCollector.getStripeIndex(threadId, stripeCount);
+                assertThat(stripeIndex).isBetween(0, stripeCount - 1);
+                counts[stripeIndex]++;
+            }
+            for (int count : counts) {
+                // within 10% of an even spread
+                assertThat(count).isBetween(900 / stripeCount, 1100 / stripeCount);
+            }
+        }
+    }
+
+    @Test
+    public void shouldCombineErrorRateAcrossStripes() throws Exception {
+        // given
+        AggregateCollector collector =
+                new AggregateCollector("tn", 100, 100, 2, new SymbolTable(1000));
+        // errors on one stripe, successes on the other
+        merge(collector, 0, 2, createTransaction(1000, true), 1);
+        merge(collector, 1, 2, createTransaction(3000, false), 3);
+
+        // when
+        TransactionNameErrorSummaryCollector errorSummaryCollector =
+                new TransactionNameErrorSummaryCollector();
+        collector.mergeTransactionNameErrorSummariesInto(errorSummaryCollector);
+        TransactionNameSummaryCollector summaryCollector = new TransactionNameSummaryCollector();
+        collector.mergeTransactionNameSummariesInto(summaryCollector);
+        OverallErrorSummaryCollector overallErrorSummaryCollector =
+                new OverallErrorSummaryCollector();
+        collector.mergeOverallErrorSummaryInto(overallErrorSummaryCollector);
+
+        // then
+        Result<TransactionNameErrorSummary> errorSummaries =
+                errorSummaryCollector.getResult(ErrorSummarySortOrder.ERROR_RATE, 10);
+        assertThat(errorSummaries.records()).hasSize(1);
+        assertThat(errorSummaries.records().get(0).transactionName()).isEqualTo("tn");
+        assertThat(errorSummaries.records().get(0).errorCount()).isEqualTo(1);
+        assertThat(errorSummaries.records().get(0).transactionCount()).isEqualTo(4);
+
+        Result<TransactionNameSummary> summaries =
+                summaryCollector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+        assertThat(summaries.records()).hasSize(1);
+        assertThat(summaries.records().get(0).totalDurationNanos()).isEqualTo(10000);
+        assertThat(summaries.records().get(0).transactionCount()).isEqualTo(4);
+
+        OverallErrorSummary overallErrorSummary =
+                overallErrorSummaryCollector.getOverallErrorSummary();
+        assertThat(overallErrorSummary.errorCount()).isEqualTo(1);
+        assertThat(overallErrorSummary.transactionCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldNotCollectTransactionNameWithoutErrors() throws Exception {
+        // given
+        AggregateCollector collector =
+                new AggregateCollector("tn", 100, 100, 2, new SymbolTable(1000));
+        merge(collector, 0, 2, createTransaction(1000, false), 1);
+        merge(collector, 1, 2, createTransaction(3000, false), 1);
+
+        // when
+        TransactionNameErrorSummaryCollector errorSummaryCollector =
+                new TransactionNameErrorSummaryCollector();
+        collector.mergeTransactionNameErrorSummariesInto(errorSummaryCollector);
+
+        // then
+        assertThat(errorSummaryCollector.getResult(ErrorSummarySortOrder.ERROR_COUNT, 10)
+                .records()).isEmpty();
+    }
+
+    @Test
+    public void shouldBuildAggregateAcrossStripes() throws Exception {
+        // given
+        AggregateCollector collector =
+                new AggregateCollector(null, 100, 100, 2, new SymbolTable(1000));
+        merge(collector, 0, 2, createTransaction(1000, true), 2);
+        merge(collector, 1, 2, createTransaction(3000, false), 3);
+
+        // when
+        Aggregate aggregate =
+                collector.build(new SharedQueryTextCollectionImpl(), new ScratchBuffer());
+
+        // then
+        assertThat(aggregate.getTransactionCount()).isEqualTo(5);
+        assertThat(aggregate.getErrorCount()).isEqualTo(2);
+        assertThat(aggregate.getTotalDurationNanos()).isEqualTo(11000);
+        assertThat(aggregate.getMainThreadRootTimerList()).hasSize(1);
+        assertThat(aggregate.getMainThreadRootTimer(0).getCount()).isEqualTo(5);
+        assertThat(aggregate.getDurationNanosHistogram().getOrderedRawValueList())
+                .containsExactly(1000L, 1000L, 3000L, 3000L, 3000L);
+    }
+
+    // merges from a thread whose id maps to the given stripe
+    private static void merge(final AggregateCollector collector, int stripeIndex,
+            int stripeCount, final Transaction transaction, final int times)
+            throws InterruptedException {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < times; i++) {
+                    collector.mergeDataFrom(transaction);
+                }
+            }
+        };
+        Thread thread = new Thread(runnable);
+        while (AggregateCollector.getStripeIndex(thread.getId(), stripeCount) != stripeIndex) {
+            thread = new Thread(runnable);
+        }
+        thread.start();
+        thread.join();
+    }
+
+    private static Transaction createTransaction(long durationNanos, boolean error) {
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("mock timer");
+        when(rootTimer.getCount()).thenReturn(1L);
+        when(rootTimer.getTotalNanos()).thenReturn(durationNanos);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        if (error) {
+            when(transaction.getErrorMessage()).thenReturn(ImmutableErrorMessage.of("boom", null));
+        }
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        when(transaction.getMainThreadRootTimer()).thenReturn(rootTimer);
+        return transaction;
+    }
+
+    private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
+
+        private final List<String> sharedQueryTexts = Lists.newArrayList();
+
+        @Override
+        public int getSharedQueryTextIndex(String queryText) {
+            sharedQueryTexts.add(queryText);
+            return sharedQueryTexts.size() - 1;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TraceCollectorTest {
+
+    private static final int PRODUCER_COUNT = 8;
+    private static final int TRACES_PER_PRODUCER = 200;
+
+    @Test
+    public void shouldNotLoseOrDuplicateTracesAcrossShards() throws Exception {
+        shouldNotLoseOrDuplicateTraces(4);
+    }
+
+    @Test
+    public void shouldNotLoseOrDuplicateTracesWithSingleShard() throws Exception {
+        shouldNotLoseOrDuplicateTraces(1);
+    }
+
+    private static void shouldNotLoseOrDuplicateTraces(int shardCount) throws Exception {
+        // given
+        final ConcurrentLinkedQueue<String> collectedTraceIds =
+                new ConcurrentLinkedQueue<String>();
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                TraceReader traceReader = invocation.getArgument(0);
+                collectedTraceIds.add(traceReader.traceId());
+                return null;
+            }
+        }).when(collector).collectTrace(any(TraceReader.class));
+        final TraceCollector traceCollector = new TraceCollector(mock(ConfigService.class),
+                collector, Clock.systemClock(), Ticker.systemTicker(), shardCount);
+        List<TraceCollectorShardStats> shardStats = getShardStats(traceCollector, shardCount);
+
+        // when
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCER_COUNT);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < PRODUCER_COUNT; i++) {
+            final int producer = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int j = 0; j < TRACES_PER_PRODUCER; j++) {
+                        traceCollector.collectTrace(createTransaction(producer + "-" + j));
+                    }
+                }
+            }));
+        }
+        startLatch.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        // flush, there is no explicit flush, so wait for the shards to drain
+        int totalCount = PRODUCER_COUNT * TRACES_PER_PRODUCER;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (collectedTraceIds.size() + getDroppedCount(shardStats) < totalCount
+                && stopwatch.elapsed(SECONDS) < 10) {
+            MILLISECONDS.sleep(10);
+        }
+        traceCollector.close();
+
+        // then
+        Set<String> uniqueTraceIds = Sets.newHashSet(collectedTraceIds);
+        assertThat(uniqueTraceIds).hasSameSizeAs(collectedTraceIds);
+        for (String traceId : uniqueTraceIds) {
+            assertThat(traceId).matches("[0-9]+-[0-9]+");
+        }
+        // traces are only ever dropped by (counted) back pressure
+        assertThat(collectedTraceIds.size() + getDroppedCount(shardStats)).isEqualTo(totalCount);
+        for (TraceCollectorShardStats stats : shardStats) {
+            assertThat(stats.getPendingCount()).isZero();
+        }
+    }
+
+    private static List<TraceCollectorShardStats> getShardStats(TraceCollector traceCollector,
+            int shardCount) {
+        LazyPlatformMBeanServer lazyPlatformMBeanServer = mock(LazyPlatformMBeanServer.class);
+        traceCollector.registerMBeans(lazyPlatformMBeanServer);
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(lazyPlatformMBeanServer, times(shardCount)).lazyRegisterMBean(captor.capture(),
+                anyString());
+        List<TraceCollectorShardStats> shardStats = Lists.newArrayList();
+        for (Object stats : captor.getAllValues()) {
+            shardStats.add((TraceCollectorShardStats) stats);
+        }
+        return shardStats;
+    }
+
+    private static long getDroppedCount(List<TraceCollectorShardStats> shardStats) {
+        long droppedCount = 0;
+        for (TraceCollectorShardStats stats : shardStats) {
+            droppedCount += stats.getDroppedCount();
+        }
+        return droppedCount;
+    }
+
+    private static Transaction createTransaction(String traceId) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTraceId()).thenReturn(traceId);
+        // zero duration with a zero slow threshold override, so the trace is always stored
+        when(transaction.getSlowThresholdMillisOverride()).thenReturn(0);
+        return transaction;
+    }
+}
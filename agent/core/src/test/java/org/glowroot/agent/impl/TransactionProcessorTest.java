@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.config.ImmutableAdvancedConfig;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransactionProcessorTest {
+
+    private static final int PRODUCER_COUNT = 8;
+    // total stays under the transaction pending limit, so that none are dropped by back pressure
+    private static final int TRANSACTIONS_PER_PRODUCER = 100;
+
+    private static final long AGGREGATE_INTERVAL_MILLIS = 60000;
+
+    @Test
+    public void shouldNotLoseOrDuplicateTransactions() throws Exception {
+        // given
+        final AtomicLong currentTimeMillis = new AtomicLong(1);
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return currentTimeMillis.get();
+            }
+        });
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        final List<Aggregate> overallAggregates = Lists.newCopyOnWriteArrayList();
+        final CountDownLatch flushLatch = new CountDownLatch(1);
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                AggregateReader aggregateReader = invocation.getArgument(0);
+                aggregateReader.accept(new AggregateVisitor() {
+                    @Override
+                    public void visitOverallAggregate(String transactionType,
+                            List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                        overallAggregates.add(overallAggregate);
+                    }
+                    @Override
+                    public void visitTransactionAggregate(String transactionType,
+                            String transactionName, List<String> sharedQueryTexts,
+                            Aggregate transactionAggregate) {}
+                });
+                flushLatch.countDown();
+                return null;
+            }
+        }).when(collector).collectAggregates(any(AggregateReader.class));
+        TraceCollector traceCollector = mock(TraceCollector.class);
+        final TransactionProcessor transactionProcessor = new TransactionProcessor(collector,
+                traceCollector, configService, AGGREGATE_INTERVAL_MILLIS, clock);
+        final List<Transaction> transactions = Lists.newCopyOnWriteArrayList();
+
+        // when
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCER_COUNT);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < PRODUCER_COUNT; i++) {
+            final int producer = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int j = 0; j < TRANSACTIONS_PER_PRODUCER; j++) {
+                        // distinct durations so that the total duration catches duplicates
+                        Transaction transaction =
+                                createTransaction(producer * TRANSACTIONS_PER_PRODUCER + j + 1);
+                        transactions.add(transaction);
+                        transactionProcessor.processOnCompletion(transaction);
+                    }
+                }
+            }));
+        }
+        startLatch.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        // moving the clock past the end of the interval flushes it once the queue is drained
+        currentTimeMillis.set(AGGREGATE_INTERVAL_MILLIS + 1);
+        boolean flushed = flushLatch.await(10, SECONDS);
+        transactionProcessor.close();
+
+        // then
+        assertThat(flushed).isTrue();
+        int totalCount = PRODUCER_COUNT * TRANSACTIONS_PER_PRODUCER;
+        assertThat(overallAggregates).hasSize(1);
+        Aggregate overallAggregate = overallAggregates.get(0);
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(totalCount);
+        assertThat(overallAggregate.getTotalDurationNanos())
+                .isEqualTo((long) totalCount * (totalCount + 1) / 2);
+        assertThat(transactions).hasSize(totalCount);
+        for (Transaction transaction : transactions) {
+            verify(traceCollector, times(1)).collectTrace(transaction);
+            verify(transaction, times(1)).removeFromActiveTransactions();
+        }
+    }
+
+    private static Transaction createTransaction(long durationNanos) {
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("mock timer");
+        when(rootTimer.getCount()).thenReturn(1L);
+        when(rootTimer.getTotalNanos()).thenReturn(durationNanos);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("tt");
+        when(transaction.getTransactionName()).thenReturn("tn");
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        when(transaction.getMainThreadRootTimer()).thenReturn(rootTimer);
+        return transaction;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SymbolTableTest {
+
+    @Test
+    public void shouldReturnCanonicalInstance() {
+        // given
+        SymbolTable symbolTable = new SymbolTable(100);
+        String text = "select x from y";
+        // when
+        String interned = symbolTable.intern(text);
+        // then
+        assertThat(symbolTable.intern(new String(text))).isSameAs(interned);
+        assertThat(symbolTable.intern(text)).isSameAs(interned);
+    }
+
+    @Test
+    public void shouldMemoizeFullTextSha1() {
+        // given
+        SymbolTable symbolTable = new SymbolTable(100);
+        String shortText = "select x from y";
+        String longText = "select " + Strings.repeat("x, ", 1000) + "y from z";
+        // when
+        String sha1 = symbolTable.getFullTextSha1(longText);
+        // then
+        assertThat(symbolTable.getFullTextSha1(shortText)).isNull();
+        assertThat(sha1).isEqualTo(SymbolTable.sha1(longText));
+        assertThat(symbolTable.getFullTextSha1(new String(longText))).isSameAs(sha1);
+    }
+
+    @Test
+    public void shouldNotInternBeyondMaxSize() {
+        // given
+        SymbolTable symbolTable = new SymbolTable(1);
+        String text = "select x from y";
+        String otherText = "select y from z";
+        // when
+        String interned = symbolTable.intern(text);
+        // then
+        assertThat(symbolTable.intern(new String(text))).isSameAs(interned);
+        String otherCopy = new String(otherText);
+        assertThat(symbolTable.intern(otherText)).isSameAs(otherText);
+        assertThat(symbolTable.intern(otherCopy)).isSameAs(otherCopy);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadProfileTest {
+
+    private static final StackTraceElement LEAF =
+            new StackTraceElement("com.example.Leaf", "leaf", "Leaf.java", 10);
+    private static final StackTraceElement ROOT =
+            new StackTraceElement("com.example.Root", "root", "Root.java", 20);
+
+    @Test
+    public void shouldNotAddTruncatedRootFrame() {
+        // when
+        List<StackTraceElement> stackTrace =
+                ThreadProfile.getStackTrace(new StackTraceElement[] {LEAF, ROOT}, 3);
+        // then
+        assertThat(stackTrace).containsExactly(LEAF, ROOT);
+    }
+
+    @Test
+    public void shouldAddTruncatedRootFrame() {
+        // when
+        List<StackTraceElement> stackTrace =
+                ThreadProfile.getStackTrace(new StackTraceElement[] {LEAF, ROOT}, 2);
+        // then
+        assertThat(stackTrace).containsExactly(LEAF, ROOT, ThreadProfile.TRUNCATED_ROOT_FRAME);
+    }
+}
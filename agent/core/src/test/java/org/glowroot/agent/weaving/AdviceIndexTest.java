@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.BitSet;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private final List<Advice> advisors = ImmutableList.of(
+            advice(ExactClassName.class),
+            advice(ClassNamePrefix.class),
+            advice(ClassNameAlternatives.class),
+            advice(ClassNameRegex.class),
+            advice(ClassNameLeadingStar.class),
+            advice(ClassAnnotation.class),
+            advice(SuperType.class),
+            advice(NoClassRestriction.class));
+
+    private final AdviceIndex adviceIndex = new AdviceIndex(advisors);
+
+    @Test
+    public void shouldNarrowByClassName() {
+        // when
+        BitSet candidates = adviceIndex.getCandidates("org.example.Dummy",
+                ImmutableList.<String>of(), ImmutableList.<String>of());
+        // then
+        assertThat(toList(candidates)).containsExactly(0, 3, 4, 7);
+    }
+
+    @Test
+    public void shouldNarrowByClassNamePrefix() {
+        // when
+        BitSet candidates = adviceIndex.getCandidates("org.example.dao.UserDao",
+                ImmutableList.<String>of(), ImmutableList.<String>of());
+        // then
+        assertThat(toList(candidates)).containsExactly(1, 2, 3, 4, 7);
+    }
+
+    @Test
+    public void shouldNarrowByClassNameAlternative() {
+        // when
+        BitSet candidates = adviceIndex.getCandidates("org.example.Other",
+                ImmutableList.<String>of(), ImmutableList.<String>of());
+        // then
+        assertThat(toList(candidates)).containsExactly(2, 3, 4, 7);
+    }
+
+    @Test
+    public void shouldNarrowByClassAnnotation() {
+        // when
+        BitSet candidates = adviceIndex.getCandidates("com.example.Unrelated",
+                ImmutableList.of("Lorg/example/Service;"), ImmutableList.<String>of());
+        // then
+        assertThat(toList(candidates)).containsExactly(3, 4, 5, 7);
+    }
+
+    @Test
+    public void shouldNarrowBySuperType() {
+        // when
+        BitSet candidates = adviceIndex.getCandidates("com.example.Unrelated",
+                ImmutableList.<String>of(), ImmutableList.of("org.example.Base"));
+        // then
+        assertThat(toList(candidates)).containsExactly(3, 4, 6, 7);
+    }
+
+    @Test
+    public void shouldOnlyReturnUnindexed() {
+        // when
+        BitSet candidates = adviceIndex.getCandidates("com.example.Unrelated",
+                ImmutableList.of("Lcom/example/Unrelated;"),
+                ImmutableList.of("com.example.Unrelated"));
+        // then
+        assertThat(toList(candidates)).containsExactly(3, 4, 7);
+    }
+
+    @Test
+    public void shouldCacheByIdentity() {
+        assertThat(AdviceIndex.get(advisors)).isSameAs(AdviceIndex.get(advisors));
+        assertThat(AdviceIndex.get(advisors))
+                .isNotSameAs(AdviceIndex.get(ImmutableList.copyOf(advisors.subList(0, 2))));
+    }
+
+    private static List<Integer> toList(BitSet bitSet) {
+        List<Integer> list = Lists.newArrayList();
+        for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    private static Advice advice(Class<?> clazz) {
+        return ImmutableAdvice.builder()
+                .pointcut(clazz.getAnnotation(Pointcut.class))
+                .adviceType(Type.getType(clazz))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+
+    @Pointcut(className = "org.example.Dummy", methodName = "dummy", methodParameterTypes = {})
+    private static class ExactClassName {}
+
+    @Pointcut(className = "org.example.dao.*Dao", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class ClassNamePrefix {}
+
+    @Pointcut(className = "org.example.dao.User*|org.example.Other", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class ClassNameAlternatives {}
+
+    @Pointcut(className = "/org\\.example\\..*/", methodName = "dummy", methodParameterTypes = {})
+    private static class ClassNameRegex {}
+
+    @Pointcut(className = "*Dao|org.example.dao.UserDao", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class ClassNameLeadingStar {}
+
+    @Pointcut(classAnnotation = "org.example.Service", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class ClassAnnotation {}
+
+    @Pointcut(superTypeRestriction = "org.example.Base", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class SuperType {}
+
+    @Pointcut(methodName = "dummy", methodParameterTypes = {})
+    private static class NoClassRestriction {}
+}
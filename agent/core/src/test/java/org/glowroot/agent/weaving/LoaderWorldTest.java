@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoaderWorldTest {
+
+    @Test
+    public void shouldTrackEstimatedBytes() {
+        // given
+        LoaderWorld loaderWorld = new LoaderWorld(0);
+        AnalyzedClass one = analyzedClass("org.example.One", false);
+        AnalyzedClass two = analyzedClass("org.example.Two", false);
+        // when
+        loaderWorld.put(one);
+        loaderWorld.putIfAbsent(two);
+        loaderWorld.putIfAbsent(analyzedClass("org.example.Two", false));
+        loaderWorld.put(analyzedClass("org.example.One", false));
+        // then
+        assertThat(loaderWorld.size()).isEqualTo(2);
+        assertThat(loaderWorld.getEstimatedBytes())
+                .isEqualTo(LoaderWorld.estimateBytes(one) + LoaderWorld.estimateBytes(two));
+        // when
+        loaderWorld.remove("org.example.One");
+        loaderWorld.remove("org.example.Missing");
+        // then
+        assertThat(loaderWorld.getEstimatedBytes()).isEqualTo(LoaderWorld.estimateBytes(two));
+    }
+
+    @Test
+    public void shouldNotEvictReweavable() {
+        // given
+        LoaderWorld loaderWorld = new LoaderWorld(0);
+        AnalyzedClass reweavable = analyzedClass("org.example.Reweavable", true);
+        loaderWorld.put(analyzedClass("org.example.One", false));
+        loaderWorld.put(reweavable);
+        // when
+        int count = loaderWorld.evict();
+        // then
+        assertThat(count).isEqualTo(1);
+        assertThat(loaderWorld.get("org.example.One")).isNull();
+        assertThat(loaderWorld.get("org.example.Reweavable")).isSameAs(reweavable);
+        assertThat(loaderWorld.getEstimatedBytes())
+                .isEqualTo(LoaderWorld.estimateBytes(reweavable));
+    }
+
+    @Test
+    public void shouldOnlyTouchAfterGranularity() {
+        // given
+        LoaderWorld loaderWorld = new LoaderWorld(10000);
+        // when
+        loaderWorld.touch(10500);
+        // then
+        assertThat(loaderWorld.getLastAccessMillis()).isEqualTo(10000);
+        // when
+        loaderWorld.touch(12000);
+        // then
+        assertThat(loaderWorld.getLastAccessMillis()).isEqualTo(12000);
+    }
+
+    private static AnalyzedClass analyzedClass(String name, boolean reweavable) {
+        Advice advice = ImmutableAdvice.builder()
+                .pointcut(SomePointcut.class.getAnnotation(Pointcut.class))
+                .adviceType(Type.getType(SomePointcut.class))
+                .reweavable(reweavable)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+        AnalyzedMethod analyzedMethod = ImmutableAnalyzedMethod.builder()
+                .name("dummy")
+                .returnType("void")
+                .modifiers(0)
+                .addAdvisors(advice)
+                .build();
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(0)
+                .name(name)
+                .superName("java.lang.Object")
+                .addAnalyzedMethods(analyzedMethod)
+                .ejbRemote(false)
+                .build();
+    }
+
+    @Pointcut(className = "org.example.*", methodName = "dummy", methodParameterTypes = {})
+    private static class SomePointcut {}
+}
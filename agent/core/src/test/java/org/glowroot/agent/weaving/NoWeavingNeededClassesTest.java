@@ -0,0 +1,211 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NoWeavingNeededClassesTest {
+
+    private File tmpDir;
+    private File file;
+    private File jarFile;
+    private String jarPath;
+    private File superTypeJarFile;
+
+    @Before
+    public void beforeEach() throws Exception {
+        tmpDir = Files.createTempDir();
+        file = new File(tmpDir, "no-weaving-needed-classes");
+        jarFile = new File(tmpDir, "some.jar");
+        Files.write(new byte[] {1, 2, 3}, jarFile);
+        jarPath = NoWeavingNeededClasses.getJarPath(
+                new CodeSource(jarFile.toURI().toURL(), (Certificate[]) null));
+        superTypeJarFile = new File(tmpDir, "super.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(superTypeJarFile));
+        out.putNextEntry(new JarEntry("org/example/Super.class"));
+        out.write(new byte[] {1, 2, 3});
+        out.closeEntry();
+        out.close();
+    }
+
+    @After
+    public void afterEach() {
+        file.delete();
+        jarFile.delete();
+        superTypeJarFile.delete();
+        tmpDir.delete();
+    }
+
+    @Test
+    public void shouldNotBeEligibleIfNotJar() throws Exception {
+        assertThat(NoWeavingNeededClasses.getJarPath(null)).isNull();
+        assertThat(NoWeavingNeededClasses
+                .getJarPath(new CodeSource(tmpDir.toURI().toURL(), (Certificate[]) null)))
+                        .isNull();
+        assertThat(jarPath).isEqualTo(jarFile.getPath());
+    }
+
+    @Test
+    public void shouldReadFromFile() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(advice(SomePointcut.class));
+        NoWeavingNeededClasses classes = newClasses();
+        long key = NoWeavingNeededClasses.getKey(new byte[] {1, 2, 3}, jarPath, null, true);
+        classes.add(advisors, key, jarPath, ImmutableList.<String>of());
+        classes.runInternal();
+        // when
+        classes = newClasses();
+        // then
+        assertThat(classes.contains(ImmutableList.of(advice(SomePointcut.class)), key)).isTrue();
+        assertThat(classes.contains(advisors, key + 1)).isFalse();
+        assertThat(classes.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDiscardWhenAdvisorsChange() throws Exception {
+        // given
+        NoWeavingNeededClasses classes = newClasses();
+        long key = NoWeavingNeededClasses.getKey(new byte[] {1, 2, 3}, jarPath, null, true);
+        classes.add(ImmutableList.of(advice(SomePointcut.class)), key, jarPath,
+                ImmutableList.<String>of());
+        classes.runInternal();
+        // when
+        classes = newClasses();
+        // then
+        assertThat(classes.contains(ImmutableList.of(advice(SomeOtherPointcut.class)), key))
+                .isFalse();
+    }
+
+    @Test
+    public void shouldDiscardWhenJarChanges() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(advice(SomePointcut.class));
+        NoWeavingNeededClasses classes = newClasses();
+        long key = NoWeavingNeededClasses.getKey(new byte[] {1, 2, 3}, jarPath, null, true);
+        classes.add(advisors, key, jarPath, ImmutableList.<String>of());
+        classes.runInternal();
+        // when
+        Files.write(new byte[] {1, 2, 3, 4}, jarFile);
+        classes = newClasses();
+        // then
+        assertThat(classes.contains(advisors, key)).isFalse();
+    }
+
+    @Test
+    public void shouldNotMatchDuringMainMethodWeaving() throws Exception {
+        byte[] classBytes = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        assertThat(NoWeavingNeededClasses.getKey(classBytes, jarPath, null, true))
+                .isNotEqualTo(NoWeavingNeededClasses.getKey(classBytes, jarPath, null, false));
+    }
+
+    @Test
+    public void shouldDiscardWhenSuperTypeJarChanges() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(advice(SomePointcut.class));
+        URLClassLoader loader =
+                new URLClassLoader(new URL[] {superTypeJarFile.toURI().toURL()}, null);
+        List<String> superTypeJarPaths = NoWeavingNeededClasses.getSuperTypeJarPaths(
+                ImmutableSet.of("org.example.Sub", "org.example.Super"), "org.example.Sub",
+                loader);
+        assertThat(superTypeJarPaths).containsExactly(superTypeJarFile.getPath());
+        NoWeavingNeededClasses classes = newClasses();
+        long key = NoWeavingNeededClasses.getKey(new byte[] {1, 2, 3}, jarPath, loader, true);
+        classes.add(advisors, key, jarPath, superTypeJarPaths);
+        classes.runInternal();
+        loader.close();
+        // when
+        Files.write(new byte[] {1, 2, 3, 4}, superTypeJarFile);
+        classes = newClasses();
+        // then
+        assertThat(classes.contains(advisors, key)).isFalse();
+    }
+
+    @Test
+    public void shouldNotBeEligibleIfSuperTypeNotInJar() throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[] {tmpDir.toURI().toURL()}, null);
+        try {
+            assertThat(NoWeavingNeededClasses.getSuperTypeJarPaths(
+                    ImmutableSet.of("org.example.Sub", "org.example.Missing"), "org.example.Sub",
+                    loader)).isNull();
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void shouldKeyOnClassLoaderCodeSource() throws Exception {
+        byte[] classBytes = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        URL[] urls = new URL[] {jarFile.toURI().toURL()};
+        URLClassLoader loader1 = new URLClassLoader(urls, null);
+        URLClassLoader loader2 = new URLClassLoader(urls, null);
+        URLClassLoader loader3 =
+                new URLClassLoader(new URL[] {superTypeJarFile.toURI().toURL()}, null);
+        try {
+            // same class loader class and same urls, e.g. after jvm restart
+            assertThat(NoWeavingNeededClasses.getKey(classBytes, jarPath, loader1, true))
+                    .isEqualTo(NoWeavingNeededClasses.getKey(classBytes, jarPath, loader2, true));
+            // same class loader class, but different urls
+            assertThat(NoWeavingNeededClasses.getKey(classBytes, jarPath, loader1, true))
+                    .isNotEqualTo(
+                            NoWeavingNeededClasses.getKey(classBytes, jarPath, loader3, true));
+        } finally {
+            loader1.close();
+            loader2.close();
+            loader3.close();
+        }
+    }
+
+    private NoWeavingNeededClasses newClasses() {
+        return new NoWeavingNeededClasses(file, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), "0.0.1");
+    }
+
+    private static Advice advice(Class<?> clazz) {
+        return ImmutableAdvice.builder()
+                .pointcut(clazz.getAnnotation(Pointcut.class))
+                .adviceType(Type.getType(clazz))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+
+    @Pointcut(className = "org.example.Dummy", methodName = "dummy", methodParameterTypes = {})
+    private static class SomePointcut {}
+
+    @Pointcut(className = "org.example.Other", methodName = "dummy", methodParameterTypes = {})
+    private static class SomeOtherPointcut {}
+}
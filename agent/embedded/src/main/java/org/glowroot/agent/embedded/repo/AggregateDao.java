@@ -20,8 +20,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -33,6 +37,7 @@ import org.immutables.value.Value;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.repo.PendingRollupAggregates.Interval;
 import org.glowroot.agent.embedded.repo.proto.Stored;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
@@ -156,6 +161,9 @@ public class AggregateDao implements AggregateRepository {
 
     private final Object rollupLock = new Object();
 
+    @GuardedBy("rollupLock")
+    private final PendingRollupAggregates pendingRollupAggregates;
+
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao) throws Exception {
@@ -187,6 +195,14 @@ public class AggregateDao implements AggregateRepository {
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        List<Long> intervalMillis = Lists.newArrayList();
+        for (RollupConfig rollupConfig : rollupConfigs) {
+            intervalMillis.add(rollupConfig.intervalMillis());
+        }
+        long lastStoredCaptureTime = dataSource
+                .queryForLong("select ifnull(max(capture_time), 0) from aggregate_tt_rollup_0");
+        pendingRollupAggregates = new PendingRollupAggregates(intervalMillis, lastStoredCaptureTime);
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -196,6 +212,8 @@ public class AggregateDao implements AggregateRepository {
         // large batch
         final CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
         final List<TruncatedQueryText> truncatedQueryTexts = Lists.newArrayList();
+        final int maxQueryAggregates = getMaxQueryAggregates();
+        final int maxServiceCallAggregates = getMaxServiceCallAggregates();
         aggregateReader.accept(new AggregateVisitor() {
             @Override
             public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
@@ -203,6 +221,7 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
                         overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                addToPendingRollupAggregates(transactionType, null, overallAggregate);
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
             @Override
@@ -212,6 +231,16 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
                         transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                addToPendingRollupAggregates(transactionType, transactionName,
+                        transactionAggregate);
+            }
+            private void addToPendingRollupAggregates(String transactionType,
+                    @Nullable String transactionName, Aggregate aggregate) {
+                synchronized (rollupLock) {
+                    pendingRollupAggregates.add(captureTime, transactionType, transactionName,
+                            aggregate, truncatedQueryTexts, maxQueryAggregates,
+                            maxServiceCallAggregates);
+                }
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -240,7 +269,7 @@ public class AggregateDao implements AggregateRepository {
                         rollupConfig.intervalMillis());
                 long lastRollupTime = lastRollupTimes.get(i);
                 if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
+                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i);
                     lastRollupTimes.set(i, safeRollupTime);
                 }
             }
@@ -420,20 +449,74 @@ public class AggregateDao implements AggregateRepository {
         return dataSource.query(new ShouldHaveSomethingQuery(query, "service_calls_capped_id"));
     }
 
+    void reinitAfterDeletingDatabase() {
+        synchronized (rollupLock) {
+            pendingRollupAggregates.clear();
+        }
+    }
+
     void deleteBefore(long captureTime, int rollupLevel) throws SQLException {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
     }
 
-    private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
-            int toRollupLevel, int fromRollupLevel) throws Exception {
-        List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
+    @GuardedBy("rollupLock")
+    private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
+            int rollupLevel) throws Exception {
+        long incrementalFromCaptureTime =
+                pendingRollupAggregates.getIncrementalFromCaptureTime(rollupLevel);
+        if (lastRollupTime < incrementalFromCaptureTime) {
+            // e.g. intervals that were already in progress at startup
+            rollupFromDatabase(lastRollupTime, Math.min(safeRollupTime, incrementalFromCaptureTime),
+                    fixedIntervalMillis, rollupLevel);
+        }
+        NavigableMap<Long, Interval> intervals =
+                pendingRollupAggregates.removeThrough(rollupLevel, safeRollupTime);
+        for (Map.Entry<Long, Interval> entry : intervals.entrySet()) {
+            long rollupCaptureTime = entry.getKey();
+            Interval interval = entry.getValue();
+            if (interval.isOverflowed()) {
+                rollupFromDatabase(rollupCaptureTime, fixedIntervalMillis, rollupLevel);
+            } else {
+                storePendingRollupAggregates(rollupCaptureTime, interval, rollupLevel);
+            }
+        }
+    }
+
+    private void rollupFromDatabase(long lastRollupTime, long curentRollupTime,
+            long fixedIntervalMillis, int toRollupLevel) throws Exception {
+        List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(toRollupLevel - 1,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
-            dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
-            dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+            rollupFromDatabase(rollupTime, fixedIntervalMillis, toRollupLevel);
+        }
+    }
+
+    private void rollupFromDatabase(long rollupTime, long fixedIntervalMillis, int toRollupLevel)
+            throws Exception {
+        dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
+                toRollupLevel - 1, toRollupLevel));
+        dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
+                toRollupLevel - 1, toRollupLevel));
+    }
+
+    private void storePendingRollupAggregates(long rollupCaptureTime, Interval interval,
+            int rollupLevel) throws Exception {
+        CappedDatabase cappedDatabase = rollupCappedDatabases.get(rollupLevel);
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (Map.Entry<String, MutableAggregate> entry : interval.getOverallAggregates()
+                .entrySet()) {
+            dataSource.update(new AggregateInsert(entry.getKey(), null, rollupCaptureTime,
+                    entry.getValue(), rollupLevel, cappedDatabase, scratchBuffer));
+        }
+        for (Map.Entry<String, Map<String, MutableAggregate>> outerEntry : interval
+                .getTransactionAggregates().entrySet()) {
+            String transactionType = outerEntry.getKey();
+            for (Map.Entry<String, MutableAggregate> entry : outerEntry.getValue().entrySet()) {
+                dataSource.update(new AggregateInsert(transactionType, entry.getKey(),
+                        rollupCaptureTime, entry.getValue(), rollupLevel, cappedDatabase,
+                        scratchBuffer));
+            }
         }
     }
 
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Arrays;
+
+// compressed block of level 0 values for a single gauge, using delta-of-delta encoding for the
+// capture times and XOR encoding for the values (as described in "Gorilla: A Fast, Scalable,
+// In-Memory Time Series Database"), since gauge values are captured at a fixed interval and often
+// change very little (or not at all) from one capture to the next
+//
+// values are appended as they are captured, and the block is written to the database as a whole
+class GaugeValueBlock {
+
+    private byte[] bytes = new byte[64];
+    private int bitCount;
+
+    private int count;
+    private long firstCaptureTime;
+    private long lastCaptureTime;
+    private long lastDelta;
+    private long lastValueBits;
+    // -1 means no prior leading/trailing zeros to reuse
+    private int lastLeadingZeros = -1;
+    private int lastTrailingZeros;
+    private long lastWeight;
+
+    void add(long captureTime, double value, long weight) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            writeBits(captureTime, 64);
+            writeBits(valueBits, 64);
+            writeBits(weight, 64);
+            firstCaptureTime = captureTime;
+        } else {
+            long delta = captureTime - lastCaptureTime;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+            writeValue(valueBits ^ lastValueBits);
+            if (weight == lastWeight) {
+                writeBits(0, 1);
+            } else {
+                writeBits(1, 1);
+                writeBits(weight, 64);
+            }
+        }
+        lastCaptureTime = captureTime;
+        lastValueBits = valueBits;
+        lastWeight = weight;
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstCaptureTime() {
+        return firstCaptureTime;
+    }
+
+    long getLastCaptureTime() {
+        return lastCaptureTime;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, (bitCount + 7) >> 3);
+    }
+
+    static GaugeValueBlock copyOf(byte[] bytes, int count) {
+        GaugeValueBlock block = new GaugeValueBlock();
+        Reader reader = new Reader(bytes, count);
+        while (reader.next()) {
+            block.add(reader.getCaptureTime(), reader.getValue(), reader.getWeight());
+        }
+        return block;
+    }
+
+    private void writeDeltaOfDelta(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writeBits(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writeBits(0x2, 2);
+            writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writeBits(0x6, 3);
+            writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writeBits(0xE, 4);
+            writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            writeBits(0xF, 4);
+            writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        writeBits(1, 1);
+        int leadingZeros = Long.numberOfLeadingZeros(xor);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (lastLeadingZeros != -1 && leadingZeros >= lastLeadingZeros
+                && trailingZeros >= lastTrailingZeros) {
+            // meaningful bits fall within the prior meaningful bits
+            writeBits(0, 1);
+            writeBits(xor >>> lastTrailingZeros, 64 - lastLeadingZeros - lastTrailingZeros);
+        } else {
+            int meaningfulBits = 64 - leadingZeros - trailingZeros;
+            writeBits(1, 1);
+            writeBits(leadingZeros, 6);
+            writeBits(meaningfulBits - 1, 6);
+            writeBits(xor >>> trailingZeros, meaningfulBits);
+            lastLeadingZeros = leadingZeros;
+            lastTrailingZeros = trailingZeros;
+        }
+    }
+
+    // writes the lowest n bits of value, most significant bit first
+    private void writeBits(long value, int n) {
+        int remaining = n;
+        while (remaining > 0) {
+            int byteIndex = bitCount >> 3;
+            if (byteIndex == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int free = 8 - (bitCount & 7);
+            int take = Math.min(free, remaining);
+            int bits = (int) (value >>> (remaining - take)) & ((1 << take) - 1);
+            bytes[byteIndex] |= bits << (free - take);
+            bitCount += take;
+            remaining -= take;
+        }
+    }
+
+    // not thread safe, and the capture time, value and weight are only valid after next() returns
+    // true
+    static class Reader {
+
+        private final byte[] bytes;
+        private final int count;
+        private int bitIndex;
+        private int index;
+
+        private long captureTime;
+        private long delta;
+        private long valueBits;
+        private int leadingZeros;
+        private int trailingZeros;
+        private long weight;
+
+        Reader(byte[] bytes, int count) {
+            this.bytes = bytes;
+            this.count = count;
+        }
+
+        boolean next() {
+            if (index == count) {
+                return false;
+            }
+            if (index == 0) {
+                captureTime = readBits(64);
+                valueBits = readBits(64);
+                weight = readBits(64);
+            } else {
+                delta += readDeltaOfDelta();
+                captureTime += delta;
+                readValue();
+                if (readBits(1) == 1) {
+                    weight = readBits(64);
+                }
+            }
+            index++;
+            return true;
+        }
+
+        long getCaptureTime() {
+            return captureTime;
+        }
+
+        double getValue() {
+            return Double.longBitsToDouble(valueBits);
+        }
+
+        long getWeight() {
+            return weight;
+        }
+
+        private long readDeltaOfDelta() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+            if (readBits(1) == 0) {
+                return readBits(7) - 63;
+            }
+            if (readBits(1) == 0) {
+                return readBits(9) - 255;
+            }
+            if (readBits(1) == 0) {
+                return readBits(12) - 2047;
+            }
+            return readBits(64);
+        }
+
+        private void readValue() {
+            if (readBits(1) == 0) {
+                // same value as prior
+                return;
+            }
+            if (readBits(1) == 1) {
+                leadingZeros = (int) readBits(6);
+                int meaningfulBits = (int) readBits(6) + 1;
+                trailingZeros = 64 - leadingZeros - meaningfulBits;
+            }
+            int meaningfulBits = 64 - leadingZeros - trailingZeros;
+            valueBits ^= readBits(meaningfulBits) << trailingZeros;
+        }
+
+        private long readBits(int n) {
+            long value = 0;
+            int remaining = n;
+            while (remaining > 0) {
+                int available = 8 - (bitIndex & 7);
+                int take = Math.min(available, remaining);
+                int bits = (bytes[bitIndex >> 3] >>> (available - take)) & ((1 << take) - 1);
+                value = (value << take) | bits;
+                bitIndex += take;
+                remaining -= take;
+            }
+            return value;
+        }
+    }
+}
@@ -18,16 +18,25 @@ package org.glowroot.agent.embedded.repo;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 
 import org.glowroot.agent.embedded.util.DataSource;
@@ -39,6 +48,7 @@ import org.glowroot.agent.embedded.util.ImmutableIndex;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.GaugeValueRepository;
@@ -46,7 +56,9 @@ import org.glowroot.common2.repo.util.Gauges;
 import org.glowroot.common2.repo.util.RollupLevelService;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class GaugeValueDao implements GaugeValueRepository {
@@ -60,6 +72,22 @@ public class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    // level 0 gauge values are stored in compressed blocks (see GaugeValueBlock), one row per
+    // gauge per block, instead of one row per gauge value in gauge_value_rollup_0 (which is now
+    // only used for data that was stored prior to gauge_value_block, until it expires, and for
+    // gauge values that are captured out of order, see store())
+    private static final ImmutableList<Column> blockColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("gauge_id", ColumnType.BIGINT),
+            ImmutableColumn.of("first_capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("last_capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("value_count", ColumnType.BIGINT),
+            ImmutableColumn.of("data", ColumnType.VARBINARY));
+
+    private static final long BLOCK_MILLIS = MINUTES.toMillis(5);
+
+    private static final RateLimitedLogger lateGaugeValueLogger =
+            new RateLimitedLogger(GaugeValueDao.class);
+
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
@@ -71,6 +99,19 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private final Object rollupLock = new Object();
 
+    // the most recent block for each gauge, which is buffered in memory and only written when it
+    // is closed (a gauge value is captured past the end of the block, or the gauge is no longer
+    // being captured), and prior to each level 0 rollup so that the rollup can read it back,
+    // instead of re-writing the whole block on each store
+    //
+    // gauge values that have not been written yet are lost if the jvm terminates, which is limited
+    // to the values captured since the last level 0 rollup
+    @GuardedBy("openBlocks")
+    private final Map<Long, GaugeValueBlock> openBlocks = Maps.newHashMap();
+
+    @GuardedBy("openBlocks")
+    private final Set<Long> unwrittenOpenBlockGaugeIds = Sets.newHashSet();
+
     GaugeValueDao(DataSource dataSource, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
             Clock clock) throws Exception {
         this.dataSource = dataSource;
@@ -94,6 +135,15 @@ public class GaugeValueDao implements GaugeValueRepository {
                                     ImmutableList.of("capture_time", "gauge_id", "value",
                                             "weight"))));
         }
+        dataSource.syncTable("gauge_value_block", blockColumns);
+        dataSource.syncIndexes("gauge_value_block", ImmutableList.<Index>of(
+                // this index is used by the block merge (which is keyed on first_capture_time since
+                // last_capture_time changes as gauge values are added to the block) and by reads
+                ImmutableIndex.of("gauge_value_block_idx",
+                        ImmutableList.of("gauge_id", "first_capture_time")),
+                // this index is used by rollup query and by the reaper
+                ImmutableIndex.of("gauge_value_block_by_last_capture_time_idx",
+                        ImmutableList.of("last_capture_time"))));
         List<Column> columns = Lists.newArrayList();
         for (int i = 1; i <= rollupConfigs.size(); i++) {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
@@ -139,7 +189,46 @@ public class GaugeValueDao implements GaugeValueRepository {
             gaugeNameDao.insert(gaugeValue.getCaptureTime(), gaugeValue.getGaugeName());
             gaugeValueIdMap.put(gaugeValue, gaugeId);
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValueIdMap));
+        synchronized (openBlocks) {
+            ListMultimap<Long, GaugeValueBlock> closedBlocks = ArrayListMultimap.create();
+            Map<GaugeValue, Long> lateGaugeValueIdMap = Maps.newLinkedHashMap();
+            long minBlockStartTime = Long.MAX_VALUE;
+            for (Map.Entry<GaugeValue, Long> entry : gaugeValueIdMap.entrySet()) {
+                GaugeValue gaugeValue = entry.getKey();
+                long gaugeId = entry.getValue();
+                long captureTime = gaugeValue.getCaptureTime();
+                GaugeValueBlock block = getOpenBlock(gaugeId, captureTime, closedBlocks);
+                if (block == null) {
+                    lateGaugeValueIdMap.put(gaugeValue, gaugeId);
+                } else {
+                    block.add(captureTime, gaugeValue.getValue(), gaugeValue.getWeight());
+                    unwrittenOpenBlockGaugeIds.add(gaugeId);
+                }
+                minBlockStartTime = Math.min(minBlockStartTime,
+                        RollupLevelService.getFloorRollupTime(captureTime, BLOCK_MILLIS));
+            }
+            // blocks of gauges that are no longer being captured
+            Iterator<Map.Entry<Long, GaugeValueBlock>> iterator =
+                    openBlocks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, GaugeValueBlock> entry = iterator.next();
+                long gaugeId = entry.getKey();
+                GaugeValueBlock block = entry.getValue();
+                if (RollupLevelService.getFloorRollupTime(block.getFirstCaptureTime(),
+                        BLOCK_MILLIS) < minBlockStartTime) {
+                    if (unwrittenOpenBlockGaugeIds.remove(gaugeId)) {
+                        closedBlocks.put(gaugeId, block);
+                    }
+                    iterator.remove();
+                }
+            }
+            if (!closedBlocks.isEmpty()) {
+                dataSource.batchUpdate(new GaugeValueBlocksBinder(closedBlocks));
+            }
+            if (!lateGaugeValueIdMap.isEmpty()) {
+                storeLateGaugeValues(lateGaugeValueIdMap);
+            }
+        }
         synchronized (rollupLock) {
             // clock can never go backwards and future gauge captures will wait until this method
             // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
@@ -151,7 +240,12 @@ public class GaugeValueDao implements GaugeValueRepository {
                         RollupLevelService.getSafeRollupTime(safeCurrentTime, intervalMillis);
                 long lastRollupTime = lastRollupTimes.get(i);
                 if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, intervalMillis, i + 1, i);
+                    if (i == 0) {
+                        writeOpenBlocks();
+                        rollupFromLevelZero(lastRollupTime, safeRollupTime, intervalMillis);
+                    } else {
+                        rollup(lastRollupTime, safeRollupTime, intervalMillis, i + 1, i);
+                    }
                     // JVM termination here will cause last_rollup_*_time to be out of sync, which
                     // will cause a re-rollup of this time after the next startup, but this is ok
                     // since it will just overwrite prior rollup
@@ -172,6 +266,40 @@ public class GaugeValueDao implements GaugeValueRepository {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
+        if (rollupLevel == 0) {
+            // the open block is read from memory (instead of its stored version), since it may
+            // have gauge values that have not been written yet
+            byte /*@Nullable*/ [] openBlockData = null;
+            int openBlockCount = 0;
+            long openBlockFirstCaptureTime = 0;
+            synchronized (openBlocks) {
+                GaugeValueBlock openBlock = openBlocks.get(gaugeId);
+                if (openBlock != null && openBlock.getCount() > 0) {
+                    openBlockData = openBlock.toByteArray();
+                    openBlockCount = openBlock.getCount();
+                    openBlockFirstCaptureTime = openBlock.getFirstCaptureTime();
+                }
+            }
+            List<GaugeValue> gaugeValues =
+                    Lists.newArrayList(dataSource.query(new GaugeValueQuery(gaugeId, from, to, 0)));
+            boolean needsSort = !gaugeValues.isEmpty();
+            gaugeValues.addAll(dataSource.query(new GaugeValueBlockQuery(gaugeId, from, to,
+                    openBlockData == null ? -1 : openBlockFirstCaptureTime)));
+            if (openBlockData != null) {
+                addGaugeValues(gaugeValues, openBlockData, openBlockCount, from, to);
+            }
+            if (needsSort) {
+                // gauge values in gauge_value_rollup_0 are either older than those in blocks
+                // (stored prior to gauge_value_block) or were captured out of order
+                Collections.sort(gaugeValues, new Comparator<GaugeValue>() {
+                    @Override
+                    public int compare(GaugeValue left, GaugeValue right) {
+                        return Longs.compare(left.getCaptureTime(), right.getCaptureTime());
+                    }
+                });
+            }
+            return gaugeValues;
+        }
         return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
     }
 
@@ -186,20 +314,114 @@ public class GaugeValueDao implements GaugeValueRepository {
         Long oldestCaptureTime = dataSource.queryForOptionalLong("select top 1 capture_time from"
                 + " gauge_value_rollup_" + castUntainted(rollupLevel) + " where gauge_id = ? order"
                 + " by capture_time", gaugeId);
+        if (oldestCaptureTime == null && rollupLevel == 0) {
+            oldestCaptureTime = dataSource.queryForOptionalLong("select min(first_capture_time)"
+                    + " from gauge_value_block where gauge_id = ?", gaugeId);
+        }
         return oldestCaptureTime == null ? Long.MAX_VALUE : oldestCaptureTime;
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws SQLException {
         dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        if (rollupLevel == 0) {
+            // blocks are only deleted once all of their gauge values have expired
+            dataSource.deleteBefore("gauge_value_block", "last_capture_time", captureTime);
+        }
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (openBlocks) {
+            openBlocks.clear();
+            unwrittenOpenBlockGaugeIds.clear();
+        }
         AtomicLongArray lastRollupTimes = initData(rollupConfigs, dataSource);
         for (int i = 0; i < lastRollupTimes.length(); i++) {
             this.lastRollupTimes.set(i, lastRollupTimes.get(i));
         }
     }
 
+    // returns null if the gauge value is not after the last gauge value stored for the gauge
+    //
+    // the prior open block is added to closedBlocks if it is closed and has not been written yet
+    @GuardedBy("openBlocks")
+    private @Nullable GaugeValueBlock getOpenBlock(long gaugeId, long captureTime,
+            ListMultimap<Long, GaugeValueBlock> closedBlocks) throws Exception {
+        long blockStartTime = RollupLevelService.getFloorRollupTime(captureTime, BLOCK_MILLIS);
+        GaugeValueBlock block = openBlocks.get(gaugeId);
+        if (block == null) {
+            // first gauge value since startup (or since the gauge was last captured)
+            StoredBlock storedBlock = dataSource.queryAtMostOne(new LastBlockQuery(gaugeId));
+            if (storedBlock != null) {
+                if (captureTime <= storedBlock.lastCaptureTime) {
+                    return null;
+                }
+                if (RollupLevelService.getFloorRollupTime(storedBlock.firstCaptureTime,
+                        BLOCK_MILLIS) == blockStartTime) {
+                    block = GaugeValueBlock.copyOf(storedBlock.data, storedBlock.valueCount);
+                }
+            }
+        } else if (captureTime <= block.getLastCaptureTime()) {
+            return null;
+        } else if (RollupLevelService.getFloorRollupTime(block.getFirstCaptureTime(),
+                BLOCK_MILLIS) != blockStartTime) {
+            if (unwrittenOpenBlockGaugeIds.remove(gaugeId)) {
+                closedBlocks.put(gaugeId, block);
+            }
+            block = null;
+        }
+        if (block == null) {
+            block = new GaugeValueBlock();
+        }
+        openBlocks.put(gaugeId, block);
+        return block;
+    }
+
+    private void writeOpenBlocks() throws Exception {
+        synchronized (openBlocks) {
+            if (unwrittenOpenBlockGaugeIds.isEmpty()) {
+                return;
+            }
+            ListMultimap<Long, GaugeValueBlock> blocks = ArrayListMultimap.create();
+            for (Long gaugeId : unwrittenOpenBlockGaugeIds) {
+                blocks.put(gaugeId, checkNotNull(openBlocks.get(gaugeId)));
+            }
+            dataSource.batchUpdate(new GaugeValueBlocksBinder(blocks));
+            unwrittenOpenBlockGaugeIds.clear();
+        }
+    }
+
+    // gauge values that are captured at or before the last gauge value in the gauge's block (e.g.
+    // after the system clock is set backwards) cannot be appended to the block, and are instead
+    // stored as individual rows in gauge_value_rollup_0, which is still read and rolled up
+    @GuardedBy("openBlocks")
+    private void storeLateGaugeValues(Map<GaugeValue, Long> lateGaugeValueIdMap)
+            throws Exception {
+        dataSource.batchUpdate(new GaugeValuesBinder(lateGaugeValueIdMap));
+        long lastRollupTime = lastRollupTimes.get(0);
+        for (GaugeValue gaugeValue : lateGaugeValueIdMap.keySet()) {
+            if (gaugeValue.getCaptureTime() <= lastRollupTime) {
+                lateGaugeValueLogger.warn("gauge value for {} captured at {} was stored after its"
+                        + " rollup interval was already rolled up, and so it will only be visible"
+                        + " at the finest granularity", gaugeValue.getGaugeName(),
+                        gaugeValue.getCaptureTime());
+            }
+        }
+    }
+
+    private void rollupFromLevelZero(long lastRollupTime, long safeRollupTime,
+            long fixedIntervalMillis) throws Exception {
+        // rolled up in java (instead of using merge into ... select like the other levels) since
+        // the gauge values need to be decoded from their blocks
+        Map<Long, Map<Long, WeightedValue>> rollups = Maps.newHashMap();
+        dataSource.query(new LevelZeroRollupQuery(lastRollupTime, safeRollupTime,
+                fixedIntervalMillis, rollups));
+        dataSource.query(new GaugeValueBlockRollupQuery(lastRollupTime, safeRollupTime,
+                fixedIntervalMillis, rollups));
+        if (!rollups.isEmpty()) {
+            dataSource.batchUpdate(new RollupBinder(rollups));
+        }
+    }
+
     private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
         // need ".0" to force double result
@@ -234,6 +456,42 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private static void addGaugeValues(List<GaugeValue> gaugeValues, byte[] data, int count,
+            long from, long to) {
+        GaugeValueBlock.Reader reader = new GaugeValueBlock.Reader(data, count);
+        while (reader.next()) {
+            long captureTime = reader.getCaptureTime();
+            if (captureTime > to) {
+                break;
+            }
+            if (captureTime >= from) {
+                gaugeValues.add(GaugeValue.newBuilder()
+                        .setCaptureTime(captureTime)
+                        .setValue(reader.getValue())
+                        .setWeight(reader.getWeight())
+                        .build());
+            }
+        }
+    }
+
+    private static void addToRollup(Map<Long, Map<Long, WeightedValue>> rollups, long gaugeId,
+            long captureTime, double value, long weight, long fixedIntervalMillis) {
+        Map<Long, WeightedValue> gaugeRollups = rollups.get(gaugeId);
+        if (gaugeRollups == null) {
+            gaugeRollups = Maps.newHashMap();
+            rollups.put(gaugeId, gaugeRollups);
+        }
+        long rollupCaptureTime =
+                RollupLevelService.getCeilRollupTime(captureTime, fixedIntervalMillis);
+        WeightedValue weightedValue = gaugeRollups.get(rollupCaptureTime);
+        if (weightedValue == null) {
+            weightedValue = new WeightedValue();
+            gaugeRollups.put(rollupCaptureTime, weightedValue);
+        }
+        weightedValue.totalValue += value * weight;
+        weightedValue.totalWeight += weight;
+    }
+
     private static class GaugeValuesBinder implements JdbcUpdate {
 
         private final Map<GaugeValue, Long> gaugeValueIdMap;
@@ -252,9 +510,8 @@ public class GaugeValueDao implements GaugeValueRepository {
         public void bind(PreparedStatement preparedStatement) throws SQLException {
             for (Map.Entry<GaugeValue, Long> entry : gaugeValueIdMap.entrySet()) {
                 GaugeValue gaugeValue = entry.getKey();
-                long gaugeId = entry.getValue();
                 int i = 1;
-                preparedStatement.setLong(i++, gaugeId);
+                preparedStatement.setLong(i++, entry.getValue());
                 preparedStatement.setLong(i++, gaugeValue.getCaptureTime());
                 preparedStatement.setDouble(i++, gaugeValue.getValue());
                 preparedStatement.setLong(i++, gaugeValue.getWeight());
@@ -263,6 +520,68 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private static class GaugeValueBlocksBinder implements JdbcUpdate {
+
+        private final ListMultimap<Long, GaugeValueBlock> blocks;
+
+        private GaugeValueBlocksBinder(ListMultimap<Long, GaugeValueBlock> blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "merge into gauge_value_block (gauge_id, first_capture_time, last_capture_time,"
+                    + " value_count, data) key (gauge_id, first_capture_time) values"
+                    + " (?, ?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (Map.Entry<Long, GaugeValueBlock> entry : blocks.entries()) {
+                GaugeValueBlock block = entry.getValue();
+                int i = 1;
+                preparedStatement.setLong(i++, entry.getKey());
+                preparedStatement.setLong(i++, block.getFirstCaptureTime());
+                preparedStatement.setLong(i++, block.getLastCaptureTime());
+                preparedStatement.setLong(i++, block.getCount());
+                preparedStatement.setBytes(i++, block.toByteArray());
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    private static class RollupBinder implements JdbcUpdate {
+
+        private final Map<Long, Map<Long, WeightedValue>> rollups;
+
+        private RollupBinder(Map<Long, Map<Long, WeightedValue>> rollups) {
+            this.rollups = rollups;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "merge into gauge_value_rollup_1 (gauge_id, capture_time, value, weight) key"
+                    + " (gauge_id, capture_time) values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (Map.Entry<Long, Map<Long, WeightedValue>> entry : rollups.entrySet()) {
+                long gaugeId = entry.getKey();
+                for (Map.Entry<Long, WeightedValue> innerEntry : entry.getValue().entrySet()) {
+                    WeightedValue weightedValue = innerEntry.getValue();
+                    int i = 1;
+                    preparedStatement.setLong(i++, gaugeId);
+                    preparedStatement.setLong(i++, innerEntry.getKey());
+                    preparedStatement.setDouble(i++,
+                            weightedValue.totalValue / weightedValue.totalWeight);
+                    preparedStatement.setLong(i++, weightedValue.totalWeight);
+                    preparedStatement.addBatch();
+                }
+            }
+        }
+    }
+
     private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
 
         private final @Untainted String selectClause;
@@ -337,4 +656,214 @@ public class GaugeValueDao implements GaugeValueRepository {
                     .build();
         }
     }
+
+    private static class LastBlockQuery implements JdbcRowQuery<StoredBlock> {
+
+        private final long gaugeId;
+
+        private LastBlockQuery(long gaugeId) {
+            this.gaugeId = gaugeId;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select top 1 first_capture_time, last_capture_time, value_count, data from"
+                    + " gauge_value_block where gauge_id = ? order by first_capture_time desc";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, gaugeId);
+        }
+
+        @Override
+        public StoredBlock mapRow(ResultSet resultSet) throws SQLException {
+            int i = 1;
+            long firstCaptureTime = resultSet.getLong(i++);
+            long lastCaptureTime = resultSet.getLong(i++);
+            int valueCount = resultSet.getInt(i++);
+            byte[] data = checkNotNull(resultSet.getBytes(i++));
+            return new StoredBlock(firstCaptureTime, lastCaptureTime, valueCount, data);
+        }
+    }
+
+    private static class GaugeValueBlockQuery implements JdbcQuery<List<GaugeValue>> {
+
+        private final long gaugeId;
+        private final long from;
+        private final long to;
+        // the block with this first capture time is skipped (-1 to not skip any)
+        private final long skipFirstCaptureTime;
+
+        private GaugeValueBlockQuery(long gaugeId, long from, long to, long skipFirstCaptureTime) {
+            this.gaugeId = gaugeId;
+            this.from = from;
+            this.to = to;
+            this.skipFirstCaptureTime = skipFirstCaptureTime;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            // the lower bound on first_capture_time (a block never spans more than BLOCK_MILLIS)
+            // is so that the index range scan doesn't start at the beginning of the gauge
+            return "select value_count, data from gauge_value_block where gauge_id = ? and"
+                    + " first_capture_time > ? and first_capture_time <= ? and"
+                    + " first_capture_time != ? and last_capture_time >= ? order by"
+                    + " first_capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, gaugeId);
+            preparedStatement.setLong(i++, from - BLOCK_MILLIS);
+            preparedStatement.setLong(i++, to);
+            preparedStatement.setLong(i++, skipFirstCaptureTime);
+            preparedStatement.setLong(i++, from);
+        }
+
+        @Override
+        public List<GaugeValue> processResultSet(ResultSet resultSet) throws Exception {
+            List<GaugeValue> gaugeValues = Lists.newArrayList();
+            while (resultSet.next()) {
+                addGaugeValues(gaugeValues, checkNotNull(resultSet.getBytes(2)),
+                        resultSet.getInt(1), from, to);
+            }
+            return gaugeValues;
+        }
+
+        @Override
+        public List<GaugeValue> valueIfDataSourceClosed() {
+            return ImmutableList.of();
+        }
+    }
+
+    // gauge values in gauge_value_rollup_0 that were stored prior to gauge_value_block
+    private static class LevelZeroRollupQuery
+            implements JdbcQuery<Map<Long, Map<Long, WeightedValue>>> {
+
+        private final long lastRollupTime;
+        private final long safeRollupTime;
+        private final long fixedIntervalMillis;
+        private final Map<Long, Map<Long, WeightedValue>> rollups;
+
+        private LevelZeroRollupQuery(long lastRollupTime, long safeRollupTime,
+                long fixedIntervalMillis, Map<Long, Map<Long, WeightedValue>> rollups) {
+            this.lastRollupTime = lastRollupTime;
+            this.safeRollupTime = safeRollupTime;
+            this.fixedIntervalMillis = fixedIntervalMillis;
+            this.rollups = rollups;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select gauge_id, capture_time, value, weight from gauge_value_rollup_0 where"
+                    + " capture_time > ? and capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, lastRollupTime);
+            preparedStatement.setLong(i++, safeRollupTime);
+        }
+
+        @Override
+        public Map<Long, Map<Long, WeightedValue>> processResultSet(ResultSet resultSet)
+                throws Exception {
+            while (resultSet.next()) {
+                int i = 1;
+                long gaugeId = resultSet.getLong(i++);
+                long captureTime = resultSet.getLong(i++);
+                double value = resultSet.getDouble(i++);
+                long weight = resultSet.getLong(i++);
+                addToRollup(rollups, gaugeId, captureTime, value, weight, fixedIntervalMillis);
+            }
+            return rollups;
+        }
+
+        @Override
+        public Map<Long, Map<Long, WeightedValue>> valueIfDataSourceClosed() {
+            return rollups;
+        }
+    }
+
+    private static class GaugeValueBlockRollupQuery
+            implements JdbcQuery<Map<Long, Map<Long, WeightedValue>>> {
+
+        private final long lastRollupTime;
+        private final long safeRollupTime;
+        private final long fixedIntervalMillis;
+        private final Map<Long, Map<Long, WeightedValue>> rollups;
+
+        private GaugeValueBlockRollupQuery(long lastRollupTime, long safeRollupTime,
+                long fixedIntervalMillis, Map<Long, Map<Long, WeightedValue>> rollups) {
+            this.lastRollupTime = lastRollupTime;
+            this.safeRollupTime = safeRollupTime;
+            this.fixedIntervalMillis = fixedIntervalMillis;
+            this.rollups = rollups;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select gauge_id, value_count, data from gauge_value_block where"
+                    + " last_capture_time > ? and first_capture_time <= ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, lastRollupTime);
+            preparedStatement.setLong(i++, safeRollupTime);
+        }
+
+        @Override
+        public Map<Long, Map<Long, WeightedValue>> processResultSet(ResultSet resultSet)
+                throws Exception {
+            while (resultSet.next()) {
+                long gaugeId = resultSet.getLong(1);
+                GaugeValueBlock.Reader reader = new GaugeValueBlock.Reader(
+                        checkNotNull(resultSet.getBytes(3)), resultSet.getInt(2));
+                while (reader.next()) {
+                    long captureTime = reader.getCaptureTime();
+                    if (captureTime > safeRollupTime) {
+                        break;
+                    }
+                    if (captureTime > lastRollupTime) {
+                        addToRollup(rollups, gaugeId, captureTime, reader.getValue(),
+                                reader.getWeight(), fixedIntervalMillis);
+                    }
+                }
+            }
+            return rollups;
+        }
+
+        @Override
+        public Map<Long, Map<Long, WeightedValue>> valueIfDataSourceClosed() {
+            return rollups;
+        }
+    }
+
+    private static class StoredBlock {
+
+        private final long firstCaptureTime;
+        private final long lastCaptureTime;
+        private final int valueCount;
+        private final byte[] data;
+
+        private StoredBlock(long firstCaptureTime, long lastCaptureTime, int valueCount,
+                byte[] data) {
+            this.firstCaptureTime = firstCaptureTime;
+            this.lastCaptureTime = lastCaptureTime;
+            this.valueCount = valueCount;
+            this.data = data;
+        }
+    }
+
+    private static class WeightedValue {
+
+        // sum of value * weight
+        private double totalValue;
+        private long totalWeight;
+    }
 }
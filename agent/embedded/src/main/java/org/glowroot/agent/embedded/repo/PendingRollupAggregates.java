@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.embedded.repo.AggregateDao.TruncatedQueryText;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.common2.repo.util.RollupLevelService;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// level 0 aggregates merged (as they are stored) into the rollup intervals that have not been
+// rolled up yet, so that rolling up an interval is a single write per aggregate, instead of reading
+// back and re-merging all of the lower level aggregates, including their capped database blobs
+//
+// an interval is only held in memory if all of its level 0 aggregates are stored by this jvm, the
+// others (e.g. intervals that were in progress at startup) are still rolled up from the database
+//
+// memory is bounded by an estimate of the retained bytes across all of the pending intervals (the
+// sum of the serialized sizes of the merged level 0 aggregates, which over-counts the scalar and
+// histogram state but grows with the number of distinct queries, service calls and profile stack
+// traces), and when that estimate goes over the limit, the largest pending interval is dropped from
+// memory and rolled up from the database instead
+//
+// not thread safe, access is guarded by AggregateDao.rollupLock
+class PendingRollupAggregates {
+
+    private static final long MAX_ESTIMATED_BYTES =
+            Long.getLong("glowroot.internal.aggregate.maxPendingRollupBytes", 16 * 1024 * 1024);
+
+    // index 0 (level 0) is unused
+    private final List<Long> intervalMillis;
+    private final long[] incrementalFromCaptureTimes;
+    private final List<NavigableMap<Long, Interval>> intervals;
+
+    private long totalEstimatedBytes;
+
+    PendingRollupAggregates(List<Long> intervalMillis, long lastStoredCaptureTime) {
+        this.intervalMillis = intervalMillis;
+        incrementalFromCaptureTimes = new long[intervalMillis.size()];
+        intervals = Lists.newArrayList();
+        for (int i = 0; i < intervalMillis.size(); i++) {
+            // level 0 aggregates stored prior to this jvm are only included up to the end of the
+            // interval that contains them
+            incrementalFromCaptureTimes[i] = RollupLevelService
+                    .getCeilRollupTime(lastStoredCaptureTime, intervalMillis.get(i));
+            intervals.add(Maps.<Long, Interval>newTreeMap());
+        }
+    }
+
+    // intervals with rollup capture time greater than this are held completely in memory (and have
+    // not been rolled up yet)
+    long getIncrementalFromCaptureTime(int rollupLevel) {
+        return incrementalFromCaptureTimes[rollupLevel];
+    }
+
+    void add(long captureTime, String transactionType, @Nullable String transactionName,
+            Aggregate aggregate, List<TruncatedQueryText> truncatedQueryTexts,
+            int maxQueryAggregates, int maxServiceCallAggregates) {
+        int estimatedBytes = aggregate.getSerializedSize();
+        for (int i = 1; i < intervalMillis.size(); i++) {
+            long rollupCaptureTime =
+                    RollupLevelService.getCeilRollupTime(captureTime, intervalMillis.get(i));
+            if (rollupCaptureTime <= incrementalFromCaptureTimes[i]) {
+                continue;
+            }
+            Interval interval = intervals.get(i).get(rollupCaptureTime);
+            if (interval == null) {
+                interval = new Interval();
+                intervals.get(i).put(rollupCaptureTime, interval);
+            }
+            if (interval.overflowed) {
+                continue;
+            }
+            MutableAggregate mutableAggregate = interval.get(transactionType, transactionName);
+            if (mutableAggregate == null) {
+                mutableAggregate =
+                        new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+                interval.put(transactionType, transactionName, mutableAggregate);
+            }
+            merge(mutableAggregate, aggregate, truncatedQueryTexts);
+            interval.estimatedBytes += estimatedBytes;
+            totalEstimatedBytes += estimatedBytes;
+        }
+        while (totalEstimatedBytes > MAX_ESTIMATED_BYTES) {
+            overflowLargestInterval();
+        }
+    }
+
+    // removes and returns the intervals with rollup capture time less than or equal to
+    // safeRollupTime
+    NavigableMap<Long, Interval> removeThrough(int rollupLevel, long safeRollupTime) {
+        NavigableMap<Long, Interval> removed = Maps.newTreeMap();
+        NavigableMap<Long, Interval> headMap = intervals.get(rollupLevel).headMap(safeRollupTime,
+                true);
+        removed.putAll(headMap);
+        headMap.clear();
+        for (Interval interval : removed.values()) {
+            totalEstimatedBytes -= interval.estimatedBytes;
+        }
+        // don't hold on to late aggregates for intervals that have already been rolled up
+        incrementalFromCaptureTimes[rollupLevel] =
+                Math.max(incrementalFromCaptureTimes[rollupLevel], safeRollupTime);
+        return removed;
+    }
+
+    // called after the database has been deleted, since the pending intervals contain aggregates
+    // that are no longer in the database
+    void clear() {
+        for (NavigableMap<Long, Interval> levelIntervals : intervals) {
+            levelIntervals.clear();
+        }
+        totalEstimatedBytes = 0;
+    }
+
+    long getTotalEstimatedBytes() {
+        return totalEstimatedBytes;
+    }
+
+    private void overflowLargestInterval() {
+        @Nullable Interval largest = null;
+        for (NavigableMap<Long, Interval> levelIntervals : intervals) {
+            for (Interval interval : levelIntervals.values()) {
+                if (largest == null || interval.estimatedBytes > largest.estimatedBytes) {
+                    largest = interval;
+                }
+            }
+        }
+        // totalEstimatedBytes is the sum over the (non-overflowed) intervals, so there is always
+        // one with estimatedBytes > 0 while totalEstimatedBytes > 0
+        checkNotNull(largest);
+        // this interval will be rolled up from the database instead
+        largest.overflowed = true;
+        largest.overallAggregates.clear();
+        largest.transactionAggregates.clear();
+        totalEstimatedBytes -= largest.estimatedBytes;
+        largest.estimatedBytes = 0;
+    }
+
+    private static void merge(MutableAggregate mutableAggregate, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) {
+        mutableAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mutableAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mutableAggregate.addErrorCount(aggregate.getErrorCount());
+        mutableAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mutableAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mutableAggregate.mergeMainThreadStats(aggregate.getMainThreadStats());
+        if (aggregate.hasAuxThreadRootTimer()) {
+            mutableAggregate.mergeAuxThreadRootTimer(aggregate.getAuxThreadRootTimer());
+            mutableAggregate.mergeAuxThreadStats(aggregate.getAuxThreadStats());
+        }
+        mutableAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        mutableAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.Query query : aggregate.getQueryList()) {
+            TruncatedQueryText truncatedQueryText =
+                    truncatedQueryTexts.get(query.getSharedQueryTextIndex());
+            mutableAggregate.mergeQuery(query.getType(), truncatedQueryText.truncatedText(),
+                    truncatedQueryText.fullTextSha1(), query.getTotalDurationNanos(),
+                    query.getExecutionCount(), query.hasTotalRows(),
+                    query.getTotalRows().getValue());
+        }
+        for (Aggregate.ServiceCall serviceCall : aggregate.getServiceCallList()) {
+            mutableAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                    serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mutableAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mutableAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    static class Interval {
+
+        private final Map<String, MutableAggregate> overallAggregates = Maps.newHashMap();
+        private final Map<String, Map<String, MutableAggregate>> transactionAggregates =
+                Maps.newHashMap();
+        private long estimatedBytes;
+        // too large to hold in memory
+        private boolean overflowed;
+
+        Map<String, MutableAggregate> getOverallAggregates() {
+            return overallAggregates;
+        }
+
+        Map<String, Map<String, MutableAggregate>> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+
+        boolean isOverflowed() {
+            return overflowed;
+        }
+
+        private @Nullable MutableAggregate get(String transactionType,
+                @Nullable String transactionName) {
+            if (transactionName == null) {
+                return overallAggregates.get(transactionType);
+            }
+            Map<String, MutableAggregate> aggregates = transactionAggregates.get(transactionType);
+            return aggregates == null ? null : aggregates.get(transactionName);
+        }
+
+        private void put(String transactionType, @Nullable String transactionName,
+                MutableAggregate aggregate) {
+            if (transactionName == null) {
+                overallAggregates.put(transactionType, aggregate);
+            } else {
+                Map<String, MutableAggregate> aggregates =
+                        transactionAggregates.get(transactionType);
+                if (aggregates == null) {
+                    aggregates = Maps.newHashMap();
+                    transactionAggregates.put(transactionType, aggregates);
+                }
+                aggregates.put(transactionName, aggregate);
+            }
+        }
+    }
+}
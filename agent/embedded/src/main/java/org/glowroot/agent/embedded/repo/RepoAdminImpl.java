@@ -46,6 +46,7 @@ class RepoAdminImpl implements RepoAdmin {
     private final CappedDatabase traceCappedDatabase;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingDisabledDao alertingDisabledDao;
+    private final AggregateDao aggregateDao;
     private final EnvironmentDao environmentDao;
     private final GaugeIdDao gaugeIdDao;
     private final GaugeNameDao gaugeNameDao;
@@ -57,15 +58,17 @@ class RepoAdminImpl implements RepoAdmin {
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             CappedDatabase traceCappedDatabase, ConfigRepositoryImpl configRepository,
-            AlertingDisabledDao alertingDisabledDao, EnvironmentDao environmentDao,
-            GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao, GaugeValueDao gaugeValueDao,
-            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
+            AlertingDisabledDao alertingDisabledDao, AggregateDao aggregateDao,
+            EnvironmentDao environmentDao, GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao,
+            GaugeValueDao gaugeValueDao, TransactionTypeDao transactionTypeDao,
+            FullQueryTextDao fullQueryTextDao,
             TraceAttributeNameDao traceAttributeNameDao, Clock clock) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
         this.configRepository = configRepository;
         this.alertingDisabledDao = alertingDisabledDao;
+        this.aggregateDao = aggregateDao;
         this.environmentDao = environmentDao;
         this.gaugeIdDao = gaugeIdDao;
         this.gaugeNameDao = gaugeNameDao;
@@ -88,6 +91,7 @@ class RepoAdminImpl implements RepoAdmin {
         Environment environment = environmentDao.read("");
         dataSource.deleteAll();
         alertingDisabledDao.reinitAfterDeletingDatabase();
+        aggregateDao.reinitAfterDeletingDatabase();
         environmentDao.reinitAfterDeletingDatabase();
         gaugeIdDao.invalidateCache();
         gaugeNameDao.invalidateCache();
@@ -17,6 +17,7 @@ package org.glowroot.agent.embedded.repo;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
+import org.glowroot.agent.embedded.util.CappedDatabaseWriterStats;
 
 public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBean {
 
@@ -44,4 +45,9 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     public CappedDatabaseStats getAggregateProfiles() {
         return cappedDatabase.getStats(AGGREGATE_PROFILES);
     }
+
+    @Override
+    public CappedDatabaseWriterStats getWriter() {
+        return cappedDatabase.getWriterStats();
+    }
 }
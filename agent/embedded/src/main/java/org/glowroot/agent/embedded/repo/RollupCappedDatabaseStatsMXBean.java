@@ -16,10 +16,12 @@
 package org.glowroot.agent.embedded.repo;
 
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
+import org.glowroot.agent.embedded.util.CappedDatabaseWriterStats;
 
 public interface RollupCappedDatabaseStatsMXBean {
 
     CappedDatabaseStats getAggregateQueries();
     CappedDatabaseStats getAggregateServiceCalls();
     CappedDatabaseStats getAggregateProfiles();
+    CappedDatabaseWriterStats getWriter();
 }
@@ -17,6 +17,7 @@ package org.glowroot.agent.embedded.repo;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
+import org.glowroot.agent.embedded.util.CappedDatabaseWriterStats;
 
 public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean {
 
@@ -50,4 +51,9 @@ public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean
     public CappedDatabaseStats getTraceProfiles() {
         return cappedDatabase.getStats(TRACE_PROFILES);
     }
+
+    @Override
+    public CappedDatabaseWriterStats getWriter() {
+        return cappedDatabase.getWriterStats();
+    }
 }
@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.repo;
 
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
+import org.glowroot.agent.embedded.util.CappedDatabaseWriterStats;
 
 public interface TraceCappedDatabaseStatsMXBean {
 
@@ -23,4 +24,5 @@ public interface TraceCappedDatabaseStatsMXBean {
     CappedDatabaseStats getTraceQueries();
     CappedDatabaseStats getTraceSharedQueryTexts();
     CappedDatabaseStats getTraceProfiles();
+    CappedDatabaseWriterStats getWriter();
 }
@@ -22,11 +22,13 @@ import java.sql.SQLException;
 import java.sql.Types;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
@@ -105,6 +107,14 @@ public class TraceDao implements TraceRepository {
                     ImmutableColumn.of("value", ColumnType.VARCHAR),
                     ImmutableColumn.of("capture_time", ColumnType.BIGINT));
 
+    // inverted index on headline, error message, user and attribute values (see TraceSearchTokens)
+    //
+    // capture_time column is used for expiring records without using FK with on delete cascade
+    private static final ImmutableList<Column> traceSearchTokenColumns =
+            ImmutableList.<Column>of(ImmutableColumn.of("trace_id", ColumnType.VARCHAR),
+                    ImmutableColumn.of("token", ColumnType.VARCHAR),
+                    ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+
     private static final ImmutableList<Index> traceIndexes = ImmutableList.<Index>of(
             // duration_nanos, id and error columns are included so database can return the
             // result set directly from the index without having to reference the table for each row
@@ -134,12 +144,28 @@ public class TraceDao implements TraceRepository {
     private static final ImmutableList<Index> traceAttributeIndexes = ImmutableList.<Index>of(
             ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")));
 
+    private static final ImmutableList<Index> traceSearchTokenIndexes = ImmutableList.<Index>of(
+            // trace_id is included so database can return the sub query result directly from the
+            // index
+            ImmutableIndex.of("trace_search_token_idx",
+                    ImmutableList.of("token", "capture_time", "trace_id")),
+            // trace_search_token_trace_id_idx is for deleting the tokens of partial trace updates
+            ImmutableIndex.of("trace_search_token_trace_id_idx", ImmutableList.of("trace_id")),
+            // trace_search_token_capture_time_idx is for reaper
+            ImmutableIndex.of("trace_search_token_capture_time_idx",
+                    ImmutableList.of("capture_time")));
+
     private final DataSource dataSource;
     private final CappedDatabase traceCappedDatabase;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
+    // capture time of the upgrade marker row in trace_search_token (see constructor), the marker
+    // row is only ever inserted at startup and removed by the reaper, so it is cached here instead
+    // of being read on every trace search
+    private volatile long unindexedCaptureTime;
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
             TraceAttributeNameDao traceAttributeNameDao) throws Exception {
@@ -164,10 +190,31 @@ public class TraceDao implements TraceRepository {
             dataSource.execute("alter table trace add column queries_capped_id bigint");
             startupLogger.info("glowroot schema upgrade complete");
         }
+        boolean addingSearchTokens =
+                dataSource.tableExists("trace") && !dataSource.tableExists("trace_search_token");
         dataSource.syncTable("trace", traceColumns);
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        dataSource.syncTable("trace_search_token", traceSearchTokenColumns);
+        dataSource.syncIndexes("trace_search_token", traceSearchTokenIndexes);
+        if (addingSearchTokens) {
+            // upgrade to 0.13.7
+            //
+            // instead of tokenizing existing traces (which could delay startup significantly),
+            // a marker row (with empty token) records the capture time up to which traces have no
+            // tokens, and trace searches fall back to only "like" for those traces, and the
+            // marker row is removed by the reaper along with those traces
+            Long maxCaptureTime = dataSource.queryForOptionalLong("select max(capture_time) from"
+                    + " trace");
+            if (maxCaptureTime != null) {
+                dataSource.update("insert into trace_search_token (trace_id, token, capture_time)"
+                        + " values ('', '', ?)", maxCaptureTime);
+            }
+        }
+        Long unindexedCaptureTime = dataSource.queryForOptionalLong(
+                "select max(capture_time) from trace_search_token where token = ''");
+        this.unindexedCaptureTime = unindexedCaptureTime == null ? 0 : unindexedCaptureTime;
     }
 
     public void store(TraceReader traceReader) throws Exception {
@@ -192,6 +239,14 @@ public class TraceDao implements TraceRepository {
                         attribute.getName(), header.getCaptureTime());
             }
         }
+        if (trace.getUpdate()) {
+            dataSource.update("delete from trace_search_token where trace_id = ?", trace.getId());
+        }
+        Set<String> searchTokens = getSearchTokens(header);
+        if (!searchTokens.isEmpty()) {
+            dataSource.batchUpdate(new TraceSearchTokenInsert(trace.getId(),
+                    header.getCaptureTime(), searchTokens));
+        }
         transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
                 header.getCaptureTime());
     }
@@ -324,12 +379,17 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        dataSource.deleteBefore("trace_search_token", captureTime);
+        if (unindexedCaptureTime < captureTime) {
+            // the marker row has been removed along with the traces that it covered
+            unindexedCaptureTime = 0;
+        }
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        ParameterizedSql parameterizedSql =
-                new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
+        ParameterizedSql parameterizedSql = new TracePointQueryBuilder(traceKind, query, filter,
+                limit, unindexedCaptureTime).getParameterizedSql();
         List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return Result.create(points, limit);
@@ -360,6 +420,24 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTextsForExport;
     }
 
+    private static Set<String> getSearchTokens(Trace.Header header) {
+        Set<String> tokens = Sets.newHashSet();
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.USER,
+                ImmutableList.of(header.getUser()));
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.HEADLINE,
+                ImmutableList.of(header.getHeadline()));
+        if (header.hasError()) {
+            TraceSearchTokens.addTokens(tokens, TraceSearchTokens.ERROR_MESSAGE,
+                    ImmutableList.of(header.getError().getMessage()));
+        }
+        List<String> attributeValues = Lists.newArrayList();
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            attributeValues.addAll(attribute.getValueList());
+        }
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.ATTRIBUTE_VALUE, attributeValues);
+        return tokens;
+    }
+
     private static void appendQuery(StringBuilder sql, TraceQuery query) {
         sql.append(" and transaction_type = ?");
         String transactionName = query.transactionName();
@@ -588,6 +666,36 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceSearchTokenInsert implements JdbcUpdate {
+
+        private final String traceId;
+        private final long captureTime;
+        private final Set<String> tokens;
+
+        private TraceSearchTokenInsert(String traceId, long captureTime, Set<String> tokens) {
+            this.traceId = traceId;
+            this.captureTime = captureTime;
+            this.tokens = tokens;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into trace_search_token (trace_id, token, capture_time) values (?, ?,"
+                    + " ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (String token : tokens) {
+                int i = 1;
+                preparedStatement.setString(i++, traceId);
+                preparedStatement.setString(i++, token);
+                preparedStatement.setLong(i++, captureTime);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
     private static class TracePointQuery implements JdbcRowQuery<TracePoint> {
 
         private final ParameterizedSql parameterizedSql;
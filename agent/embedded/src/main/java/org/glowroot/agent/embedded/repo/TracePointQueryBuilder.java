@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -37,13 +37,16 @@ class TracePointQueryBuilder {
     private final TraceQuery query;
     private final TracePointFilter filter;
     private final int limit;
+    // traces captured at or before this time were stored prior to trace_search_token
+    private final long unindexedCaptureTime;
 
     TracePointQueryBuilder(TraceKind traceKind, TraceQuery query, TracePointFilter filter,
-            int limit) {
+            int limit, long unindexedCaptureTime) {
         this.traceKind = traceKind;
         this.query = query;
         this.filter = filter;
         this.limit = limit;
+        this.unindexedCaptureTime = unindexedCaptureTime;
     }
 
     // capture time lower bound is non-inclusive so that aggregate data intervals can be mapped
@@ -74,6 +77,7 @@ class TracePointQueryBuilder {
         appendHeadlineCriteria(builder);
         appendErrorCriteria(builder);
         appendUserCriteria(builder);
+        appendAttributeValueSearchTokenCriteria(builder);
         appendOrderByAndLimit(builder);
         return builder.build();
     }
@@ -143,6 +147,8 @@ class TracePointQueryBuilder {
             builder.appendText(
                     " and upper(trace.headline) " + headlineComparator.getComparator() + " ?");
             builder.addArg(headlineComparator.formatParameter(headline));
+            appendSearchTokenCriteria(builder, TraceSearchTokens.HEADLINE, headlineComparator,
+                    headline);
         }
     }
 
@@ -153,6 +159,8 @@ class TracePointQueryBuilder {
             builder.appendText(
                     " and upper(trace.error_message) " + errorComparator.getComparator() + " ?");
             builder.addArg(errorComparator.formatParameter(error));
+            appendSearchTokenCriteria(builder, TraceSearchTokens.ERROR_MESSAGE, errorComparator,
+                    error);
         }
     }
 
@@ -162,6 +170,39 @@ class TracePointQueryBuilder {
         if (userComparator != null && !Strings.isNullOrEmpty(user)) {
             builder.appendText(" and upper(trace.user) " + userComparator.getComparator() + " ?");
             builder.addArg(userComparator.formatParameter(user));
+            appendSearchTokenCriteria(builder, TraceSearchTokens.USER, userComparator, user);
+        }
+    }
+
+    // the attribute value itself is matched against trace_attribute (see getAttributeCriteria())
+    private void appendAttributeValueSearchTokenCriteria(ParameterizedSqlBuilder builder) {
+        StringComparator attributeValueComparator = filter.attributeValueComparator();
+        String attributeValue = filter.attributeValue();
+        if (attributeValueComparator != null && !Strings.isNullOrEmpty(attributeValue)) {
+            appendSearchTokenCriteria(builder, TraceSearchTokens.ATTRIBUTE_VALUE,
+                    attributeValueComparator, attributeValue);
+        }
+    }
+
+    // this only narrows down the traces, the "like" criteria is still needed since matching all of
+    // the tokens doesn't mean the text matches (e.g. the tokens could be in a different order)
+    private void appendSearchTokenCriteria(ParameterizedSqlBuilder builder, char field,
+            StringComparator comparator, String text) {
+        if (comparator == StringComparator.NOT_CONTAINS) {
+            return;
+        }
+        for (String token : TraceSearchTokens.getSearchTokens(field, text)) {
+            builder.appendText(" and (");
+            if (unindexedCaptureTime > query.from()) {
+                builder.appendText("trace.capture_time <= ? or ");
+                builder.addArg(unindexedCaptureTime);
+            }
+            builder.appendText("trace.id in (select trace_id from trace_search_token where token"
+                    + " in (?, ?) and capture_time > ? and capture_time <= ?))");
+            builder.addArg(token);
+            builder.addArg(TraceSearchTokens.getOverflowToken(field));
+            builder.addArg(query.from());
+            builder.addArg(query.to());
         }
     }
 
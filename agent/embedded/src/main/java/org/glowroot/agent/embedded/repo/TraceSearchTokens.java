@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+// trigram tokens for the trace_search_token table, which is an inverted index used to narrow down
+// the traces that need to be checked by the (otherwise full scan) "like" filters on headline,
+// error message, user and attribute values
+//
+// each token is prefixed by a single character identifying the field, so that all fields can share
+// a single table and index
+class TraceSearchTokens {
+
+    static final char HEADLINE = 'h';
+    static final char ERROR_MESSAGE = 'e';
+    static final char USER = 'u';
+    static final char ATTRIBUTE_VALUE = 'a';
+
+    private static final int TOKEN_LENGTH = 3;
+
+    // text longer than this is not tokenized, and is instead marked with the field's overflow token
+    // which is then matched by every search on that field
+    private static final int MAX_TOKENIZED_LENGTH =
+            Integer.getInteger("glowroot.internal.trace.maxSearchTokenizedLength", 1000);
+
+    // each token is a row in trace_search_token (with 3 indexes), inserted under the data source
+    // lock, so the number of tokens per field and per trace are also limited, with the same
+    // overflow token fallback
+    private static final int MAX_TOKENS_PER_FIELD =
+            Integer.getInteger("glowroot.internal.trace.maxSearchTokensPerField", 128);
+    private static final int MAX_TOKENS_PER_TRACE =
+            Integer.getInteger("glowroot.internal.trace.maxSearchTokensPerTrace", 256);
+
+    // searching on more than a few tokens doesn't narrow down the results much further
+    private static final int MAX_SEARCH_TOKENS = 4;
+
+    private TraceSearchTokens() {}
+
+    // fields should be added in order of importance, since once the per trace limit is reached,
+    // the remaining fields are only marked with their overflow token
+    static void addTokens(Set<String> tokens, char field, List<String> texts) {
+        Set<String> fieldTokens = Sets.newHashSet();
+        for (String text : texts) {
+            if (!addFieldTokens(fieldTokens, field, text)) {
+                tokens.add(getOverflowToken(field));
+                return;
+            }
+        }
+        if (tokens.size() + fieldTokens.size() > MAX_TOKENS_PER_TRACE) {
+            tokens.add(getOverflowToken(field));
+            return;
+        }
+        tokens.addAll(fieldTokens);
+    }
+
+    // returns false if the field's token limit is exceeded
+    private static boolean addFieldTokens(Set<String> fieldTokens, char field, String text) {
+        if (text.length() > MAX_TOKENIZED_LENGTH) {
+            return false;
+        }
+        String upper = text.toUpperCase(Locale.ENGLISH);
+        for (int i = 0; i <= upper.length() - TOKEN_LENGTH; i++) {
+            fieldTokens.add(field + upper.substring(i, i + TOKEN_LENGTH));
+            if (fieldTokens.size() > MAX_TOKENS_PER_FIELD) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns empty list if the search text is too short to use the index
+    static List<String> getSearchTokens(char field, String searchText) {
+        String upper = searchText.toUpperCase(Locale.ENGLISH);
+        Set<String> allTokens = Sets.newLinkedHashSet();
+        for (int i = 0; i <= upper.length() - TOKEN_LENGTH; i++) {
+            allTokens.add(field + upper.substring(i, i + TOKEN_LENGTH));
+        }
+        List<String> tokens = Lists.newArrayList(allTokens);
+        if (tokens.size() <= MAX_SEARCH_TOKENS) {
+            return tokens;
+        }
+        // spread out over the search text, always including the first and last tokens
+        List<String> searchTokens = Lists.newArrayList();
+        for (int i = 0; i < MAX_SEARCH_TOKENS; i++) {
+            searchTokens.add(tokens.get(i * (tokens.size() - 1) / (MAX_SEARCH_TOKENS - 1)));
+        }
+        return searchTokens;
+    }
+
+    static String getOverflowToken(char field) {
+        return field + "*";
+    }
+}
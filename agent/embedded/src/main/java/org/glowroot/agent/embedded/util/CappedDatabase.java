@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,9 +25,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -77,8 +83,15 @@ public class CappedDatabase {
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+
+    // readers use positional reads on a shared FileChannel, which do not share a file pointer, so
+    // readers do not need to synchronize with each other or with the writer (see
+    // CappedBlockInputStream for how blocks that are overwritten mid-read are detected)
+    //
+    // the read lock is only held for the duration of each read, and the write lock is only used
+    // when swapping out the underlying file (resize and close)
+    private final ReadWriteLock inChannelLock = new ReentrantReadWriteLock();
+    private volatile FileChannel inChannel;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
@@ -90,7 +103,7 @@ public class CappedDatabase {
         this.file = file;
         this.ticker = ticker;
         out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker);
-        inFile = new RandomAccessFile(file, "r");
+        inChannel = openInChannel(file);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -124,6 +137,10 @@ public class CappedDatabase {
         return stats;
     }
 
+    public CappedDatabaseWriterStats getWriterStats() {
+        return out.getWriterStats();
+    }
+
     @OnlyUsedByTests
     long write(final ByteSource byteSource, String type) throws IOException {
         return write(type, new Copier() {
@@ -158,8 +175,8 @@ public class CappedDatabase {
                     countingStreamAfterCompression.getCount(), endTick - startTick);
             blockStartIndex = out.endBlock();
         }
-        // fsync (if really needed here) does not need to be done under lock
-        out.fsyncIfReallyNeeded();
+        // fsync (if needed here) does not need to be done under lock
+        out.fsyncAfterBlock(blockStartIndex);
         return blockStartIndex;
     }
 
@@ -177,7 +194,7 @@ public class CappedDatabase {
             return null;
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads from the underlying FileChannel
         final int bufferSize = 32768;
         InputStream input = newLZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -207,7 +224,7 @@ public class CappedDatabase {
             return ImmutableList.of();
         }
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
+        // lots of small reads from the underlying FileChannel
         final int bufferSize = 32768;
         InputStream input = newLZFInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
@@ -248,9 +265,14 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            inChannelLock.writeLock().lock();
+            try {
+                inChannel.close();
+                out.resize(newSizeKb);
+                inChannel = openInChannel(file);
+            } finally {
+                inChannelLock.writeLock().unlock();
+            }
         }
     }
 
@@ -259,11 +281,50 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            closeInChannel();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private void closeInChannel() throws IOException {
+        inChannelLock.writeLock().lock();
+        try {
+            inChannel.close();
+        } finally {
+            inChannelLock.writeLock().unlock();
+        }
+    }
+
+    // must be called under inChannelLock read lock
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        int total = 0;
+        int len = buffer.remaining();
+        while (total < len) {
+            int n = channel.read(buffer, position + total);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            total += n;
+        }
+    }
+
+    // must not be called under inChannelLock read lock, since the read lock cannot be upgraded
+    private void reopenInChannel(FileChannel closedChannel) throws IOException {
+        inChannelLock.writeLock().lock();
+        try {
+            if (inChannel == closedChannel && !closed) {
+                inChannel = openInChannel(file);
+            }
+        } finally {
+            inChannelLock.writeLock().unlock();
+        }
+    }
+
+    private static FileChannel openInChannel(File file) throws IOException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (USE_SAFE_LZF_ENCODER) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -292,7 +353,7 @@ public class CappedDatabase {
         @Override
         public Reader openStream() throws IOException {
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
+            // lots of small reads from the underlying FileChannel
             final int bufferSize = 32768;
             return new InputStreamReader(newLZFInputStream(
                     new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
@@ -315,25 +376,53 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+            while (true) {
+                inChannelLock.readLock().lock();
+                FileChannel channel = inChannel;
+                try {
+                    return read(channel, bytes, off, len);
+                } catch (ClosedChannelException e) {
+                    if (closed || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                } finally {
+                    inChannelLock.readLock().unlock();
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+                // a FileChannel is closed when any thread that is reading from it is interrupted,
+                // in which case it needs to be re-opened for the other readers (this is done
+                // outside of the read lock, and then the read is retried from the start, since
+                // the file positions need to be re-computed in case the file has been resized in
+                // the meantime)
+                reopenInChannel(channel);
+            }
+        }
+
+        // must be called under inChannelLock read lock
+        private int read(FileChannel channel, byte[] bytes, int off, int len) throws IOException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            if (blockLength == -1) {
+                long filePosition = out.convertToFilePosition(cappedId);
+                ByteBuffer blockLengthBuffer = ByteBuffer.allocate(8);
+                readFully(channel, blockLengthBuffer,
+                        CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                blockLength = blockLengthBuffer.getLong(0);
+            }
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            readFully(channel, ByteBuffer.wrap(bytes, off, numToRead),
+                    CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            // the writer marks bytes as overwritten before overwriting them, so if the block has
+            // not been marked as overwritten after reading then the bytes read are valid
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
             }
+            blockIndex += numToRead;
+            return numToRead;
         }
 
         @Override
@@ -360,7 +449,7 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    closeInChannel();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
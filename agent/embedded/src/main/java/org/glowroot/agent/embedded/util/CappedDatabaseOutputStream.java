@@ -19,13 +19,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.util.Locale;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ScheduledRunnable;
 
@@ -35,6 +38,8 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
 class CappedDatabaseOutputStream extends OutputStream {
 
+    private static final Logger logger = LoggerFactory.getLogger(CappedDatabaseOutputStream.class);
+
     static final int HEADER_SKIP_BYTES = 20;
     static final int BLOCK_HEADER_SKIP_BYTES = 8;
 
@@ -42,8 +47,17 @@ class CappedDatabaseOutputStream extends OutputStream {
     private static final int FSYNC_INTERVAL_MILLIS = 100;
     private static final int HEADER_CURR_INDEX_POS = 0;
 
+    // block writes are coalesced in this buffer so that (most) blocks end up being written to disk
+    // as a single sequential append, instead of as many small writes
+    private static final int WRITE_BUFFER_SIZE = 65536;
+
+    static final DurabilityMode DEFAULT_DURABILITY_MODE =
+            DurabilityMode.parse(System.getProperty("glowroot.internal.cappedDatabase.durability"));
+
     private final File file;
     private final Ticker ticker;
+    private final DurabilityMode durabilityMode;
+    // only replaced (by resize) while holding both the external synchronization and fsyncLock
     private RandomAccessFile out;
 
     // currIndex is ever-increasing even over capped boundary
@@ -60,29 +74,55 @@ class CappedDatabaseOutputStream extends OutputStream {
     private volatile long smallestNonOverwrittenId;
 
     private long blockStartIndex;
-    private long blockStartPosition;
 
-    private final AtomicBoolean fsyncNeeded = new AtomicBoolean();
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+    private long writeBufferStartIndex;
+    private int writeBufferLength;
+    private long blockWriteNanos;
+
+    // index up to which all blocks have been fully written to the file
+    private volatile long endedIndex;
+    // index up to which all blocks have been fsynced
+    @GuardedBy("fsyncLock")
+    private long syncedIndex;
+    // fsync is performed outside of the external synchronization, so that writers do not have to
+    // wait on fsync, and so that concurrent writers waiting on fsync (see DurabilityMode.PER_WRITE)
+    // can share a single fsync (group commit)
+    private final Object fsyncLock = new Object();
     private final AtomicLong lastFsyncTick = new AtomicLong();
 
+    private final AtomicLong appendCount = new AtomicLong();
+    private final AtomicLong totalAppendBytes = new AtomicLong();
+    private final AtomicLong totalAppendNanos = new AtomicLong();
+    private final AtomicLong fsyncCount = new AtomicLong();
+    private final AtomicLong totalFsyncBytes = new AtomicLong();
+    private final AtomicLong totalFsyncNanos = new AtomicLong();
+
     private final FsyncRunnable fsyncScheduledRunnable;
 
     static CappedDatabaseOutputStream create(File file, int requestedSizeKb,
             @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker)
             throws IOException {
+        return create(file, requestedSizeKb, scheduledExecutor, ticker, DEFAULT_DURABILITY_MODE);
+    }
+
+    static CappedDatabaseOutputStream create(File file, int requestedSizeKb,
+            @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker,
+            DurabilityMode durabilityMode) throws IOException {
         CappedDatabaseOutputStream out =
-                new CappedDatabaseOutputStream(file, requestedSizeKb, ticker);
-        if (scheduledExecutor != null) {
+                new CappedDatabaseOutputStream(file, requestedSizeKb, ticker, durabilityMode);
+        if (scheduledExecutor != null && durabilityMode == DurabilityMode.PERIODIC) {
             out.fsyncScheduledRunnable.scheduleWithFixedDelay(scheduledExecutor,
                     FSYNC_INTERVAL_MILLIS, FSYNC_INTERVAL_MILLIS, MILLISECONDS);
         }
         return out;
     }
 
-    private CappedDatabaseOutputStream(File file, int requestedSizeKb, Ticker ticker)
-            throws IOException {
+    private CappedDatabaseOutputStream(File file, int requestedSizeKb, Ticker ticker,
+            DurabilityMode durabilityMode) throws IOException {
         this.file = file;
         this.ticker = ticker;
+        this.durabilityMode = durabilityMode;
         boolean newFile = !file.exists() || file.length() == 0;
         out = new RandomAccessFile(file, "rw");
         if (newFile) {
@@ -103,6 +143,8 @@ class CappedDatabaseOutputStream extends OutputStream {
         }
         smallestNonOverwrittenId =
                 calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex, sizeBytes);
+        endedIndex = currIndex;
+        syncedIndex = currIndex;
         lastFsyncTick.set(ticker.read());
         fsyncScheduledRunnable = new FsyncRunnable();
     }
@@ -115,27 +157,75 @@ class CappedDatabaseOutputStream extends OutputStream {
             currIndex += remainingBytes;
         }
         blockStartIndex = currIndex;
-        blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        // make space for block size to be written at start position
+        // make space for block size to be written at start position (the block size is filled in
+        // by endBlock(), and is written together with the rest of the block if the block fits in
+        // the write buffer)
         currIndex += BLOCK_HEADER_SKIP_BYTES;
         updateSmallestNonOverwrittenId();
+        // any bytes left in the write buffer are from a block that was never ended (due to an
+        // exception while writing it), and so are not referenced and do not need to be written
+        writeBufferStartIndex = blockStartIndex;
+        writeBufferLength = BLOCK_HEADER_SKIP_BYTES;
+        blockWriteNanos = 0;
     }
 
     long endBlock() throws IOException {
-        out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        fsyncNeeded.set(true);
+        long blockLength = currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES;
+        if (writeBufferStartIndex == blockStartIndex) {
+            // block header is still in the write buffer
+            writeLong(writeBuffer, 0, blockLength);
+            flushWriteBuffer();
+        } else {
+            flushWriteBuffer();
+            long startTick = ticker.read();
+            out.seek(HEADER_SKIP_BYTES + convertToFilePosition(blockStartIndex));
+            out.writeLong(blockLength);
+            blockWriteNanos += ticker.read() - startTick;
+        }
+        long startTick = ticker.read();
+        out.seek(HEADER_CURR_INDEX_POS);
+        out.writeLong(currIndex);
+        blockWriteNanos += ticker.read() - startTick;
+        appendCount.getAndIncrement();
+        totalAppendBytes.addAndGet(currIndex - blockStartIndex);
+        totalAppendNanos.addAndGet(blockWriteNanos);
+        endedIndex = currIndex;
         return blockStartIndex;
     }
 
-    void fsyncIfReallyNeeded() throws IOException {
+    // this is ok to call outside of external synchronization (and it should be, so that fsyncs
+    // do not block other writers)
+    void fsyncAfterBlock(long blockStartIndex) throws IOException {
+        switch (durabilityMode) {
+            case PER_WRITE:
+                // syncedIndex is always at a block boundary, so once it is past the start of the
+                // block, the whole block has been fsynced
+                fsync(blockStartIndex + 1);
+                break;
+            case PERIODIC:
+                fsyncIfReallyNeeded();
+                break;
+            default:
+                // OS_MANAGED, leave it to the OS to flush the page cache
+                break;
+        }
+    }
+
+    private void fsyncIfReallyNeeded() throws IOException {
         if (ticker.read() - lastFsyncTick.get() > SECONDS.toNanos(2)) {
             // scheduled fsyncs must have fallen behind (since they share a single thread with other
             // tasks in order to keep number of threads down), so force an fsync now
-            fsyncIfNeeded();
+            fsync(Long.MAX_VALUE);
         }
     }
 
+    // this is ok to call outside of external synchronization
+    CappedDatabaseWriterStats getWriterStats() {
+        return new CappedDatabaseWriterStats(durabilityMode.name(), appendCount.get(),
+                totalAppendBytes.get(), totalAppendNanos.get(), fsyncCount.get(),
+                totalFsyncBytes.get(), totalFsyncNanos.get());
+    }
+
     // this is ok to call outside of external synchronization
     boolean isInTheFuture(long cappedId) {
         return cappedId >= currIndex;
@@ -156,12 +246,22 @@ class CappedDatabaseOutputStream extends OutputStream {
         return sizeKb;
     }
 
+    // this is ok to call outside of external synchronization, as long as not concurrent with
+    // resize()
     long convertToFilePosition(long index) {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
     // perform resize in-place to avoid using extra disk space
     void resize(int newSizeKb) throws IOException {
+        // resize closes and re-opens the underlying file
+        synchronized (fsyncLock) {
+            resizeInternal(newSizeKb);
+        }
+    }
+
+    @GuardedBy("fsyncLock")
+    private void resizeInternal(int newSizeKb) throws IOException {
         if (performEasyResize(newSizeKb)) {
             return;
         }
@@ -207,7 +307,9 @@ class CappedDatabaseOutputStream extends OutputStream {
     @Override
     public void close() throws IOException {
         fsyncScheduledRunnable.cancel();
-        out.close();
+        synchronized (fsyncLock) {
+            out.close();
+        }
     }
 
     @Override
@@ -226,27 +328,64 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
-        long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        out.seek(HEADER_SKIP_BYTES + currPosition);
-        long remaining = sizeBytes - currPosition;
+        // mark the bytes that are about to be overwritten as overwritten before overwriting them,
+        // since readers do not synchronize with the writer and instead check isOverwritten()
+        // after reading
+        smallestNonOverwrittenId =
+                calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex + len, sizeBytes);
+        if (writeBufferLength + len > WRITE_BUFFER_SIZE) {
+            flushWriteBuffer();
+        }
+        if (len >= WRITE_BUFFER_SIZE) {
+            writeToFile(currIndex, b, off, len);
+            writeBufferStartIndex = currIndex + len;
+        } else {
+            System.arraycopy(b, off, writeBuffer, writeBufferLength, len);
+            writeBufferLength += len;
+        }
+        currIndex += len;
+        updateSmallestNonOverwrittenId();
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        if (writeBufferLength > 0) {
+            writeToFile(writeBufferStartIndex, writeBuffer, 0, writeBufferLength);
+        }
+        writeBufferStartIndex += writeBufferLength;
+        writeBufferLength = 0;
+    }
+
+    private void writeToFile(long index, byte[] b, int off, int len) throws IOException {
+        long startTick = ticker.read();
+        long position = convertToFilePosition(index);
+        out.seek(HEADER_SKIP_BYTES + position);
+        long remaining = sizeBytes - position;
         if (len >= remaining) {
             // intentionally handling == case here
             out.write(b, off, (int) remaining);
             out.seek(HEADER_SKIP_BYTES);
-            out.write(b, (int) remaining, (int) (len - remaining));
+            out.write(b, off + (int) remaining, (int) (len - remaining));
         } else {
             out.write(b, off, len);
         }
-        currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
-        updateSmallestNonOverwrittenId();
+        blockWriteNanos += ticker.read() - startTick;
     }
 
-    private void fsyncIfNeeded() throws IOException {
-        if (fsyncNeeded.getAndSet(false)) {
+    private void fsync(long minSyncedIndex) throws IOException {
+        synchronized (fsyncLock) {
+            long index = endedIndex;
+            if (syncedIndex >= minSyncedIndex || syncedIndex == index) {
+                // another writer's fsync already covered this
+                return;
+            }
+            long startTick = ticker.read();
             out.getFD().sync();
-            lastFsyncTick.set(ticker.read());
+            long endTick = ticker.read();
+            fsyncCount.getAndIncrement();
+            totalFsyncBytes.addAndGet(index - syncedIndex);
+            totalFsyncNanos.addAndGet(endTick - startTick);
+            syncedIndex = index;
+            lastFsyncTick.set(endTick);
         }
     }
 
@@ -293,6 +432,13 @@ class CappedDatabaseOutputStream extends OutputStream {
         return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
     }
 
+    private static void writeLong(byte[] bytes, int off, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
     private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
             throws IOException {
         byte[] block = new byte[1024];
@@ -307,7 +453,31 @@ class CappedDatabaseOutputStream extends OutputStream {
     private class FsyncRunnable extends ScheduledRunnable {
         @Override
         protected void runInternal() throws IOException {
-            fsyncIfNeeded();
+            fsync(Long.MAX_VALUE);
+        }
+    }
+
+    enum DurabilityMode {
+
+        // fsync after every block write, concurrent writers share fsyncs (group commit)
+        PER_WRITE,
+        // fsync every 100 milliseconds (if anything was written)
+        PERIODIC,
+        // never fsync, leave it to the OS to flush writes to disk
+        OS_MANAGED;
+
+        private static DurabilityMode parse(@Nullable String value) {
+            if (value == null) {
+                return PERIODIC;
+            }
+            try {
+                return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                logger.warn("invalid glowroot.internal.cappedDatabase.durability value: {}"
+                        + " (expecting per-write, periodic or os-managed)", value);
+                logger.debug(e.getMessage(), e);
+                return PERIODIC;
+            }
         }
     }
 }
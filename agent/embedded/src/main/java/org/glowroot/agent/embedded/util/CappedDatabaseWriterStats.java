@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+public class CappedDatabaseWriterStats {
+
+    private final String durabilityMode;
+    private final long appendCount;
+    private final long totalAppendBytes;
+    private final long totalAppendNanos;
+    private final long fsyncCount;
+    private final long totalFsyncBytes;
+    private final long totalFsyncNanos;
+
+    CappedDatabaseWriterStats(String durabilityMode, long appendCount, long totalAppendBytes,
+            long totalAppendNanos, long fsyncCount, long totalFsyncBytes, long totalFsyncNanos) {
+        this.durabilityMode = durabilityMode;
+        this.appendCount = appendCount;
+        this.totalAppendBytes = totalAppendBytes;
+        this.totalAppendNanos = totalAppendNanos;
+        this.fsyncCount = fsyncCount;
+        this.totalFsyncBytes = totalFsyncBytes;
+        this.totalFsyncNanos = totalFsyncNanos;
+    }
+
+    public String getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public long getAppendCount() {
+        return appendCount;
+    }
+
+    public double getAverageBytesPerAppend() {
+        return totalAppendBytes / (double) appendCount;
+    }
+
+    public double getAverageMillisPerAppend() {
+        return totalAppendNanos / (1000 * 1000 * (double) appendCount);
+    }
+
+    public long getFsyncCount() {
+        return fsyncCount;
+    }
+
+    public double getAverageBytesPerFsync() {
+        return totalFsyncBytes / (double) fsyncCount;
+    }
+
+    public double getAverageMillisPerFsync() {
+        return totalFsyncNanos / (1000 * 1000 * (double) fsyncCount);
+    }
+}
@@ -23,6 +23,8 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -38,6 +40,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.h2.jdbc.JdbcConnection;
@@ -52,6 +55,7 @@ import org.glowroot.common2.repo.RepoAdmin.H2Table;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class DataSource {
@@ -64,14 +68,38 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // number of additional connections that are only used for queries, so that slow queries from
+    // the UI do not hold the lock that the collector needs in order to store aggregates and traces
+    // (0 means use the single connection for everything, which is also what is used for memDb)
+    //
+    // this is opt-in since the read connections require h2's mvcc mode, which is still
+    // experimental in h2 1.3.x
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 0);
+
+    // how long defrag, compact and deleteAll wait for in-use read connections to be released
+    private static final int CLOSE_READ_CONNECTIONS_TIMEOUT_SECONDS = QUERY_TIMEOUT_SECONDS * 2;
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private JdbcConnection connection;
+    // serializes defrag, compact and deleteAll, which all need to take every read connection out of
+    // the pool before taking the lock
+    private final Object maintenanceLock = new Object();
     private volatile boolean closed;
 
+    // null means all queries go through the single (writer) connection
+    private final @Nullable BlockingQueue<ReadConnection> readConnections;
+
+    private final ThreadLocal</*@Nullable*/ ReadConnection> currentReadConnection =
+            new ThreadLocal</*@Nullable*/ ReadConnection>();
+
+    private final QueueWaitStats readQueueWaitStats = new QueueWaitStats();
+    private final QueueWaitStats writeQueueWaitStats = new QueueWaitStats();
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -98,14 +126,24 @@ public class DataSource {
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        readConnections = null;
+        connection = createConnection(null, false);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        if (READ_CONNECTIONS > 0) {
+            readConnections = new ArrayBlockingQueue<ReadConnection>(READ_CONNECTIONS);
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                // the underlying jdbc connections are opened lazily
+                readConnections.add(new ReadConnection());
+            }
+        } else {
+            readConnections = null;
+        }
+        connection = createConnection(dbFile, readConnections != null);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -114,14 +152,21 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        synchronized (maintenanceLock) {
+            List<ReadConnection> closedReadConnections = closeReadConnections();
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    checkConnectionUnderLock();
+                    execute("shutdown defrag");
+                    connection = createConnection(dbFile, readConnections != null);
+                    preparedStatementCache.invalidateAll();
+                }
+            } finally {
+                releaseReadConnections(closedReadConnections);
             }
-            checkConnectionUnderLock();
-            execute("shutdown defrag");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
         }
     }
 
@@ -129,14 +174,21 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        synchronized (maintenanceLock) {
+            List<ReadConnection> closedReadConnections = closeReadConnections();
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    checkConnectionUnderLock();
+                    execute("shutdown compact");
+                    connection = createConnection(dbFile, readConnections != null);
+                    preparedStatementCache.invalidateAll();
+                }
+            } finally {
+                releaseReadConnections(closedReadConnections);
             }
-            checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
         }
     }
 
@@ -157,36 +209,48 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            checkConnectionUnderLock();
-            List<String> schemaVersionRows =
-                    queryForStringList("select schema_version from schema_version");
-            connection.close();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
-            }
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
-                    .entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
-                    .entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            for (String schemaVersionRow : schemaVersionRows) {
-                update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+        synchronized (maintenanceLock) {
+            List<ReadConnection> closedReadConnections = closeReadConnections();
+            try {
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    checkConnectionUnderLock();
+                    deleteAllUnderLock(dbFile);
+                }
+            } finally {
+                releaseReadConnections(closedReadConnections);
             }
         }
     }
 
+    @GuardedBy("lock")
+    private void deleteAllUnderLock(File dbFile) throws SQLException {
+        List<String> schemaVersionRows =
+                queryForStringList("select schema_version from schema_version");
+        connection.close();
+        if (!dbFile.delete()) {
+            throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+        }
+        connection = createConnection(dbFile, readConnections != null);
+        preparedStatementCache.invalidateAll();
+        for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables.entrySet()) {
+            syncTable(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes.entrySet()) {
+            syncIndexes(entry.getKey(), entry.getValue());
+        }
+        for (String schemaVersionRow : schemaVersionRows) {
+            update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+        }
+    }
+
     public void execute(@Untainted String sql) throws SQLException {
         debug(sql);
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            writeQueueWaitStats.record(System.nanoTime() - startTick);
             if (closed) {
                 return;
             }
@@ -208,53 +272,41 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("no rows returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
+        return query(sql, args, new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("no rows returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        }, 0L);
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
+        return query(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                Long value = resultSet.wasNull() ? null : val;
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return value;
+            }
+        }, null);
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -273,24 +325,30 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
+        ReadConnection readConnection = acquireReadConnection();
+        if (readConnection == null) {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                readQueueWaitStats.record(System.nanoTime() - startTick);
+                if (closed) {
+                    return jdbcQuery.valueIfDataSourceClosed();
+                }
+                checkConnectionUnderLock();
+                return executeQuery(
+                        prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                        jdbcQuery);
+                // don't need to close statement since they are all cached and used under lock
+            }
+        }
+        try {
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
+            return executeQuery(
+                    readConnection.prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                    jdbcQuery);
+        } finally {
+            releaseReadConnection(readConnection);
         }
     }
 
@@ -308,28 +366,30 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
+        ReadConnection readConnection = acquireReadConnection();
+        if (readConnection == null) {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                readQueueWaitStats.record(System.nanoTime() - startTick);
+                if (closed) {
+                    return ImmutableList.of();
+                }
+                checkConnectionUnderLock();
+                return executeQuery(
+                        prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                        jdbcQuery);
+                // don't need to close statement since they are all cached and used under lock
+            }
+        }
+        try {
             if (closed) {
                 return ImmutableList.of();
             }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
+            return executeQuery(
+                    readConnection.prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                    jdbcQuery);
+        } finally {
+            releaseReadConnection(readConnection);
         }
     }
 
@@ -356,7 +416,9 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return 0;
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            writeQueueWaitStats.record(System.nanoTime() - startTick);
             if (closed) {
                 return 0;
             }
@@ -375,7 +437,9 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return new int[0];
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            writeQueueWaitStats.record(System.nanoTime() - startTick);
             if (closed) {
                 return new int[0];
             }
@@ -443,6 +507,14 @@ public class DataSource {
         return dbFile == null ? 0 : dbFile.length();
     }
 
+    QueueWaitStats getReadQueueWaitStats() {
+        return readQueueWaitStats;
+    }
+
+    QueueWaitStats getWriteQueueWaitStats() {
+        return writeQueueWaitStats;
+    }
+
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
@@ -514,6 +586,7 @@ public class DataSource {
             closed = true;
             connection.close();
         }
+        closeIdleReadConnections();
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
@@ -521,7 +594,7 @@ public class DataSource {
     private void checkConnectionUnderLock() throws SQLException {
         if (connection.getPowerOffCount() == -1) {
             // connection was closed internally due to OutOfMemoryError
-            connection = createConnection(dbFile);
+            connection = createConnection(dbFile, readConnections != null);
             preparedStatementCache.invalidateAll();
         }
     }
@@ -529,6 +602,12 @@ public class DataSource {
     @GuardedBy("lock")
     private PreparedStatement prepareStatementUnderLock(@Untainted String sql,
             int queryTimeoutSeconds) throws SQLException {
+        return prepareStatement(preparedStatementCache, sql, queryTimeoutSeconds);
+    }
+
+    private PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -548,16 +627,127 @@ public class DataSource {
         }
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
+    private <T extends /*@Nullable*/ Object> T query(@Untainted String sql, Object[] args,
+            ResultSetExtractor<T> rse, T valueIfDataSourceClosed) throws SQLException {
+        ReadConnection readConnection = acquireReadConnection();
+        if (readConnection == null) {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                readQueueWaitStats.record(System.nanoTime() - startTick);
+                if (closed) {
+                    return valueIfDataSourceClosed;
+                }
+                checkConnectionUnderLock();
+                return executeQuery(prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS), args,
+                        rse);
+                // don't need to close statement since they are all cached and used under lock
+            }
+        }
+        try {
+            if (closed) {
+                return valueIfDataSourceClosed;
+            }
+            return executeQuery(readConnection.prepareStatement(sql, QUERY_TIMEOUT_SECONDS), args,
+                    rse);
+        } finally {
+            releaseReadConnection(readConnection);
+        }
+    }
+
+    // returns null if the query should go through the single (writer) connection
+    private @Nullable ReadConnection acquireReadConnection() {
+        BlockingQueue<ReadConnection> readConnections = this.readConnections;
+        if (readConnections == null || Thread.holdsLock(lock)) {
+            // queries made while holding the lock (e.g. from deleteAll()) use the writer connection,
+            // both to see the state left by that thread, and since the read connections may be
+            // closed at that point
+            return null;
+        }
+        ReadConnection readConnection = currentReadConnection.get();
+        if (readConnection != null) {
+            // nested query from inside the processing of another query's result set
+            readConnection.depth++;
+            return readConnection;
+        }
+        long startTick = System.nanoTime();
+        readConnection = Uninterruptibles.takeUninterruptibly(readConnections);
+        readQueueWaitStats.record(System.nanoTime() - startTick);
+        readConnection.depth = 1;
+        currentReadConnection.set(readConnection);
+        return readConnection;
+    }
+
+    private void releaseReadConnection(ReadConnection readConnection) throws SQLException {
+        if (--readConnection.depth > 0) {
+            return;
+        }
+        currentReadConnection.remove();
+        try {
+            if (closed) {
+                readConnection.close();
+            }
+        } finally {
+            checkNotNull(readConnections).add(readConnection);
+        }
+    }
+
+    // takes all of the read connections out of the pool (waiting for any that are in use) and
+    // closes their underlying jdbc connections, e.g. prior to "shutdown defrag"
+    //
+    // this must be called before taking the lock, since a thread that is using a read connection
+    // can itself be waiting on the lock
+    private List<ReadConnection> closeReadConnections() throws SQLException {
+        BlockingQueue<ReadConnection> readConnections = this.readConnections;
+        if (readConnections == null) {
+            return ImmutableList.of();
+        }
+        if (Thread.holdsLock(lock) || currentReadConnection.get() != null) {
+            throw new IllegalStateException("Cannot close read connections while holding the lock"
+                    + " or a read connection");
+        }
+        List<ReadConnection> closedReadConnections = Lists.newArrayList();
+        try {
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                ReadConnection readConnection = readConnections
+                        .poll(CLOSE_READ_CONNECTIONS_TIMEOUT_SECONDS, SECONDS);
+                if (readConnection == null) {
+                    throw new SQLException("Timed out waiting for read connections to be released");
+                }
+                closedReadConnections.add(readConnection);
+                readConnection.close();
+            }
+        } catch (InterruptedException e) {
+            releaseReadConnections(closedReadConnections);
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } catch (SQLException e) {
+            releaseReadConnections(closedReadConnections);
+            throw e;
+        }
+        return closedReadConnections;
+    }
+
+    // the underlying jdbc connections are re-opened lazily on next use
+    private void releaseReadConnections(List<ReadConnection> closedReadConnections) {
+        if (readConnections != null) {
+            readConnections.addAll(closedReadConnections);
+        }
+    }
+
+    private void closeIdleReadConnections() throws SQLException {
+        BlockingQueue<ReadConnection> readConnections = this.readConnections;
+        if (readConnections == null) {
+            return;
+        }
+        List<ReadConnection> idleReadConnections = Lists.newArrayList();
+        readConnections.drainTo(idleReadConnections);
+        try {
+            for (ReadConnection readConnection : idleReadConnections) {
+                readConnection.close();
+            }
+        } finally {
+            readConnections.addAll(idleReadConnections);
         }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
     }
 
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
@@ -607,7 +797,50 @@ public class DataSource {
         }
     }
 
-    private static JdbcConnection createConnection(@Nullable File dbFile) throws SQLException {
+    private static <T> T executeQuery(PreparedStatement preparedStatement, JdbcQuery<T> jdbcQuery)
+            throws Exception {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return jdbcQuery.processResultSet(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@NonNull*/ Object> List<T> executeQuery(
+            PreparedStatement preparedStatement, JdbcRowQuery<T> jdbcQuery) throws SQLException {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List<T> mappedRows = Lists.newArrayList();
+            while (resultSet.next()) {
+                mappedRows.add(jdbcQuery.mapRow(resultSet));
+            }
+            return ImmutableList.copyOf(mappedRows);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@Nullable*/ Object> T executeQuery(
+            PreparedStatement preparedStatement, Object[] args, ResultSetExtractor<T> rse)
+            throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            preparedStatement.setObject(i + 1, args[i]);
+        }
+        ResultSet resultSet = preparedStatement.executeQuery();
+        return extractAndClose(resultSet, rse);
+    }
+
+    private static JdbcConnection createConnection(@Nullable File dbFile, boolean mvcc)
+            throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -621,6 +854,11 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (mvcc) {
+                // so that the read connections do not take (shared) table locks, which would
+                // otherwise block (and time out) the writer connection
+                url += ";mvcc=true";
+            }
             return new JdbcConnection(url, props);
         }
     }
@@ -690,6 +928,47 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // only used by one thread at a time (while it is out of the readConnections pool)
+    private class ReadConnection {
+
+        private @Nullable JdbcConnection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
+                CacheBuilder.newBuilder().weakValues()
+                        .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                            @Override
+                            public PreparedStatement load(@Untainted String sql)
+                                    throws SQLException {
+                                return checkNotNull(connection).prepareStatement(sql);
+                            }
+                        });
+
+        // for nested queries from the same thread
+        private int depth;
+
+        private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
+                throws SQLException {
+            JdbcConnection connection = this.connection;
+            if (connection == null || connection.getPowerOffCount() == -1) {
+                // not opened yet, closed by closeReadConnections(), or closed internally
+                // due to OutOfMemoryError
+                this.connection = createConnection(checkNotNull(dbFile), true);
+                preparedStatementCache.invalidateAll();
+            }
+            return DataSource.this.prepareStatement(preparedStatementCache, sql,
+                    queryTimeoutSeconds);
+        }
+
+        private void close() throws SQLException {
+            JdbcConnection connection = this.connection;
+            if (connection != null) {
+                this.connection = null;
+                preparedStatementCache.invalidateAll();
+                connection.close();
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -704,6 +983,8 @@ public class DataSource {
                 synchronized (lock) {
                     connection.close();
                 }
+                // read connections that are currently in use are closed when they are released
+                closeIdleReadConnections();
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
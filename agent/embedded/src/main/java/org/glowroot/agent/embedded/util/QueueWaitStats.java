@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import javax.annotation.concurrent.GuardedBy;
+
+// time spent waiting for a connection (read queries) or for the lock (writes) in DataSource
+public class QueueWaitStats {
+
+    @GuardedBy("this")
+    private long count;
+    @GuardedBy("this")
+    private long totalNanos;
+    @GuardedBy("this")
+    private long maxNanos;
+
+    QueueWaitStats() {}
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getTotalMillis() {
+        return totalNanos / 1000000.0;
+    }
+
+    public synchronized double getAverageMillis() {
+        return totalNanos / (1000 * 1000 * (double) count);
+    }
+
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1000000.0;
+    }
+
+    synchronized void record(long nanos) {
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+}
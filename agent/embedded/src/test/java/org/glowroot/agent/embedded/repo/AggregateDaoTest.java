@@ -138,6 +138,50 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollUpTransactions() throws Exception {
+        // given
+        populateAggregates();
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return 30000;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) {}
+        });
+
+        // when
+        AggregateQuery aggregateQuery = ImmutableAggregateQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        SummaryQuery summaryQuery = ImmutableSummaryQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        List<OverviewAggregate> overallAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, aggregateQuery);
+        aggregateDao.mergeTransactionNameSummariesInto(AGENT_ID, summaryQuery,
+                SummarySortOrder.TOTAL_TIME, 10, collector);
+        Result<TransactionNameSummary> queryResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+
+        // then
+        assertThat(overallAggregates).hasSize(2);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overallAggregates.get(1).captureTime()).isEqualTo(30000);
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("seven");
+        assertThat(queryResult.records().get(0).totalDurationNanos()).isEqualTo(2800000);
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(14);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
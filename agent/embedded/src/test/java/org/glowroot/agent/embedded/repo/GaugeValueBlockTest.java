@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlockTest {
+
+    @Test
+    public void shouldReadValues() {
+        // given
+        long[] captureTimes = {1000, 6000, 11003, 15998, 21000, 26000, 126000, 126001};
+        double[] values = {0, 0, 1.5, -2.25, Double.NaN, 123456789.123, 123456789.124, 0};
+        long[] weights = {5000, 5000, 5000, 5000, 5000, 5000, 100000, 1};
+        GaugeValueBlock block = new GaugeValueBlock();
+        for (int i = 0; i < captureTimes.length; i++) {
+            block.add(captureTimes[i], values[i], weights[i]);
+        }
+        // when
+        GaugeValueBlock.Reader reader =
+                new GaugeValueBlock.Reader(block.toByteArray(), block.getCount());
+        // then
+        for (int i = 0; i < captureTimes.length; i++) {
+            assertThat(reader.next()).isTrue();
+            assertThat(reader.getCaptureTime()).isEqualTo(captureTimes[i]);
+            assertThat(reader.getValue()).isEqualTo(values[i]);
+            assertThat(reader.getWeight()).isEqualTo(weights[i]);
+        }
+        assertThat(reader.next()).isFalse();
+        assertThat(block.getFirstCaptureTime()).isEqualTo(1000);
+        assertThat(block.getLastCaptureTime()).isEqualTo(126001);
+    }
+
+    @Test
+    public void shouldCompressRegularValues() {
+        // given
+        GaugeValueBlock block = new GaugeValueBlock();
+        // when
+        for (int i = 0; i < 60; i++) {
+            block.add(1000 + i * 5000, 0.5, 5000);
+        }
+        // then
+        // 24 bytes for the first value, ~9 bytes for the first delta, and then 3 bits per value
+        // (compared to 24 bytes per value uncompressed)
+        assertThat(block.toByteArray().length).isLessThan(60);
+    }
+
+    @Test
+    public void shouldResumeFromByteArray() {
+        // given
+        GaugeValueBlock block = new GaugeValueBlock();
+        block.add(1000, 1, 5000);
+        block.add(6000, 2, 5000);
+        // when
+        GaugeValueBlock copy = GaugeValueBlock.copyOf(block.toByteArray(), block.getCount());
+        block.add(11000, 3, 5000);
+        copy.add(11000, 3, 5000);
+        // then
+        assertThat(copy.getCount()).isEqualTo(3);
+        assertThat(copy.toByteArray()).isEqualTo(block.toByteArray());
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// level 0 gauge values are stored in 5 minute blocks, and level 1 is rolled up every minute (see
+// ConfigRepository.ROLLUP_0_INTERVAL_MILLIS)
+public class GaugeValueDaoTest {
+
+    private static final String AGENT_ID = "";
+    private static final String GAUGE_NAME = "java.lang:type=Memory:HeapMemoryUsage.used";
+    private static final String OTHER_GAUGE_NAME = "java.lang:type=Threading:ThreadCount";
+
+    private DataSource dataSource;
+    private Clock clock;
+    private GaugeValueDao gaugeValueDao;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        clock = mock(Clock.class);
+        gaugeValueDao = newGaugeValueDao();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldReadAcrossBlockBoundary() throws Exception {
+        // when
+        for (long captureTime = 280000; captureTime <= 320000; captureTime += 5000) {
+            store(GAUGE_NAME, captureTime, captureTime / 1000.0, 5000);
+        }
+
+        // then
+        List<GaugeValue> gaugeValues = read(0, 400000, 0);
+        assertThat(gaugeValues).hasSize(9);
+        for (int i = 0; i < 9; i++) {
+            long captureTime = 280000 + i * 5000;
+            assertThat(gaugeValues.get(i).getCaptureTime()).isEqualTo(captureTime);
+            assertThat(gaugeValues.get(i).getValue()).isEqualTo(captureTime / 1000.0);
+            assertThat(gaugeValues.get(i).getWeight()).isEqualTo(5000);
+        }
+        // the block that ends at 300000 was closed and written
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block"
+                + " where first_capture_time = 280000 and value_count = 4")).isEqualTo(1);
+        // and only the requested range is returned
+        gaugeValues = read(290000, 305000, 0);
+        assertThat(gaugeValues).hasSize(4);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(290000);
+        assertThat(gaugeValues.get(3).getCaptureTime()).isEqualTo(305000);
+    }
+
+    @Test
+    public void shouldWriteOpenBlocksAndRollup() throws Exception {
+        // given
+        // the first store triggers rollup of (0, 60000], which writes the open block
+        store(GAUGE_NAME, 61000, 1, 5000);
+        store(GAUGE_NAME, 90000, 3, 5000);
+        assertThat(dataSource.queryForLong("select value_count from gauge_value_block"))
+                .isEqualTo(1);
+
+        // when
+        // this triggers rollup of (60000, 120000]
+        store(GAUGE_NAME, 121000, 100, 5000);
+
+        // then
+        // the open block (including the gauge value that triggered the rollup) was written before
+        // the rollup, even though it is not closed yet
+        assertThat(dataSource.queryForLong("select value_count from gauge_value_block"))
+                .isEqualTo(3);
+        List<GaugeValue> gaugeValues = read(0, 300000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(120000);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(2);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(10000);
+    }
+
+    @Test
+    public void shouldResumeBlockAfterRestart() throws Exception {
+        // given
+        store(GAUGE_NAME, 61000, 1, 5000);
+        store(GAUGE_NAME, 66000, 2, 5000);
+        // this triggers rollup, which writes the open block
+        store(GAUGE_NAME, 121000, 3, 5000);
+
+        // when
+        gaugeValueDao = newGaugeValueDao();
+        store(GAUGE_NAME, 126000, 4, 5000);
+        store(GAUGE_NAME, 181000, 5, 5000);
+
+        // then
+        // the stored block was resumed (via LastBlockQuery), instead of starting a second block
+        // with the same block start time
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block")).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select value_count from gauge_value_block"))
+                .isEqualTo(5);
+        List<GaugeValue> gaugeValues = read(0, 300000, 0);
+        assertThat(gaugeValues).hasSize(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(gaugeValues.get(i).getValue()).isEqualTo(i + 1);
+        }
+    }
+
+    @Test
+    public void shouldStoreLateGaugeValues() throws Exception {
+        // given
+        store(GAUGE_NAME, 61000, 1, 5000);
+        store(GAUGE_NAME, 121000, 3, 5000);
+
+        // when
+        // e.g. after the system clock is set backwards
+        store(GAUGE_NAME, 100000, 2, 5000);
+
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_rollup_0"))
+                .isEqualTo(1);
+        List<GaugeValue> gaugeValues = read(0, 300000, 0);
+        assertThat(gaugeValues).hasSize(3);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(61000);
+        assertThat(gaugeValues.get(1).getCaptureTime()).isEqualTo(100000);
+        assertThat(gaugeValues.get(2).getCaptureTime()).isEqualTo(121000);
+    }
+
+    @Test
+    public void shouldStoreLateGaugeValuesAfterRestart() throws Exception {
+        // given
+        store(GAUGE_NAME, 61000, 1, 5000);
+        // this triggers rollup, which writes the open block
+        store(GAUGE_NAME, 121000, 3, 5000);
+
+        // when
+        gaugeValueDao = newGaugeValueDao();
+        store(GAUGE_NAME, 100000, 2, 5000);
+
+        // then
+        // the late gauge value is detected using the last stored block (via LastBlockQuery)
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_rollup_0"))
+                .isEqualTo(1);
+        assertThat(dataSource.queryForLong("select value_count from gauge_value_block"))
+                .isEqualTo(2);
+        assertThat(read(0, 300000, 0)).hasSize(3);
+    }
+
+    @Test
+    public void shouldRollupFromBothLevelZeroTables() throws Exception {
+        // given
+        store(GAUGE_NAME, 61000, 1, 5000);
+        store(GAUGE_NAME, 90000, 3, 5000);
+        // late gauge value, stored in gauge_value_rollup_0
+        store(GAUGE_NAME, 80000, 5, 10000);
+
+        // when
+        // this triggers rollup of (60000, 120000]
+        store(GAUGE_NAME, 121000, 0, 5000);
+
+        // then
+        List<GaugeValue> gaugeValues = read(0, 300000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(120000);
+        // (1 * 5000 + 3 * 5000 + 5 * 10000) / 20000
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(3.5);
+        assertThat(gaugeValues.get(0).getWeight()).isEqualTo(20000);
+    }
+
+    @Test
+    public void shouldMergeOpenBlockWithStoredBlocks() throws Exception {
+        // given
+        store(GAUGE_NAME, 290000, 1, 5000);
+        // this closes (and writes) the first block, and triggers rollup which writes the open
+        // block with a single gauge value
+        store(GAUGE_NAME, 301000, 2, 5000);
+        // these are only in the in-memory open block, so the stored version of the open block is
+        // now stale
+        store(GAUGE_NAME, 306000, 3, 5000);
+        store(GAUGE_NAME, 311000, 4, 5000);
+
+        // when
+        List<GaugeValue> gaugeValues = read(0, 600000, 0);
+
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block")).isEqualTo(2);
+        assertThat(gaugeValues).hasSize(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(gaugeValues.get(i).getValue()).isEqualTo(i + 1);
+        }
+    }
+
+    @Test
+    public void shouldReapAcrossBlockBoundary() throws Exception {
+        // given
+        for (long captureTime = 290000; captureTime <= 310000; captureTime += 5000) {
+            store(GAUGE_NAME, captureTime, captureTime / 1000.0, 5000);
+        }
+        // this triggers rollup, which writes the open block of the first gauge
+        store(OTHER_GAUGE_NAME, 361000, 1, 5000);
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block"
+                + " where first_capture_time >= 300000")).isEqualTo(2);
+
+        // when
+        gaugeValueDao.deleteBefore(300000, 0);
+
+        // then
+        List<GaugeValue> gaugeValues = read(0, 400000, 0);
+        assertThat(gaugeValues).hasSize(3);
+        assertThat(gaugeValues.get(0).getCaptureTime()).isEqualTo(300000);
+
+        // when
+        gaugeValueDao.deleteBefore(305000, 0);
+
+        // then
+        // blocks are only deleted once all of their gauge values have expired
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block"
+                + " where first_capture_time = 300000")).isEqualTo(1);
+        assertThat(read(0, 400000, 0)).hasSize(3);
+
+        // when
+        gaugeValueDao.deleteBefore(400000, 0);
+
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from gauge_value_block")).isZero();
+        assertThat(read(0, 400000, 1)).isNotEmpty();
+    }
+
+    private GaugeValueDao newGaugeValueDao() throws Exception {
+        return new GaugeValueDao(dataSource, new GaugeIdDao(dataSource),
+                new GaugeNameDao(dataSource), clock);
+    }
+
+    // the clock is set to just after the capture time, similar to GaugeCollector
+    private void store(String gaugeName, long captureTime, double value, long weight)
+            throws Exception {
+        when(clock.currentTimeMillis()).thenReturn(captureTime + 1);
+        gaugeValueDao.store(ImmutableList.of(GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build()));
+    }
+
+    private List<GaugeValue> read(long from, long to, int rollupLevel) throws Exception {
+        return gaugeValueDao.readGaugeValues(AGENT_ID, GAUGE_NAME, from, to, rollupLevel);
+    }
+}
@@ -80,6 +80,7 @@ public class TraceDaoTest {
     public void beforeEachTest() throws Exception {
         dataSource.execute("truncate table trace");
         dataSource.execute("truncate table trace_attribute");
+        dataSource.execute("truncate table trace_search_token");
     }
 
     @Test
@@ -292,6 +293,77 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTraceWithHeadlineQualifier() throws Exception {
+        // given
+        traceDao.store(TraceTestData.createTraceReader());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("T HEADL")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingHeadlineQualifier() throws Exception {
+        // given
+        traceDao.store(TraceTestData.createTraceReader());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("headline test")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceWithErrorMessageQualifier() throws Exception {
+        // given
+        Trace.Header header = TraceTestData.createTraceHeader();
+        header = header.toBuilder()
+                .setError(Trace.Error.newBuilder()
+                        .setMessage("this is A test"))
+                .build();
+        traceDao.store(TraceTestData.createTraceReader(header));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .errorMessageComparator(StringComparator.CONTAINS)
+                .errorMessage("is a te")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readErrorPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
     @Test
     public void shouldReadTraceError() throws Exception {
         // given
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceSearchTokensTest {
+
+    @Test
+    public void shouldTokenize() {
+        // given
+        Set<String> tokens = Sets.newHashSet();
+        // when
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.HEADLINE,
+                ImmutableList.of("abcd"));
+        // then
+        assertThat(tokens).containsOnly("hABC", "hBCD");
+    }
+
+    @Test
+    public void shouldOverflowLongText() {
+        // given
+        Set<String> tokens = Sets.newHashSet();
+        // when
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.ERROR_MESSAGE,
+                ImmutableList.of(Strings.repeat("a", 1001)));
+        // then
+        assertThat(tokens).containsOnly("e*");
+    }
+
+    @Test
+    public void shouldOverflowFieldWithTooManyTokens() {
+        // given
+        Set<String> tokens = Sets.newHashSet();
+        // when
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.ERROR_MESSAGE,
+                ImmutableList.of(distinctText(200)));
+        // then
+        assertThat(tokens).containsOnly("e*");
+    }
+
+    @Test
+    public void shouldCapTokensAcrossAttributeValues() {
+        // given
+        Set<String> tokens = Sets.newHashSet();
+        List<String> values = Lists.newArrayList();
+        for (int i = 0; i < 200; i++) {
+            values.add("value " + i);
+        }
+        // when
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.ATTRIBUTE_VALUE, values);
+        // then
+        assertThat(tokens).containsOnly("a*");
+    }
+
+    @Test
+    public void shouldOverflowFieldsOverTraceLimit() {
+        // given
+        Set<String> tokens = Sets.newHashSet();
+        // when
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.USER, ImmutableList.of("abc"));
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.HEADLINE,
+                ImmutableList.of(distinctText(100)));
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.ERROR_MESSAGE,
+                ImmutableList.of(distinctText(100)));
+        TraceSearchTokens.addTokens(tokens, TraceSearchTokens.ATTRIBUTE_VALUE,
+                ImmutableList.of(distinctText(100)));
+        // then
+        assertThat(tokens).hasSize(1 + 98 + 98 + 1);
+        assertThat(tokens).contains("uABC", "a*");
+        assertThat(tokens).doesNotContain("h*", "e*");
+    }
+
+    @Test
+    public void shouldSpreadSearchTokens() {
+        // when
+        List<String> searchTokens =
+                TraceSearchTokens.getSearchTokens(TraceSearchTokens.HEADLINE, "abcdefghij");
+        // then
+        assertThat(searchTokens).containsExactly("hABC", "hCDE", "hEFG", "hHIJ");
+    }
+
+    // text of the given length where every trigram is distinct
+    private static String distinctText(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // cjk characters, which are not affected by upper casing
+            sb.append((char) (0x4e00 + i));
+        }
+        return sb.toString();
+    }
+}
@@ -316,6 +316,32 @@ public class CappedDatabaseOutputStreamTest {
         assertThat(content).isEqualTo(text);
     }
 
+    @Test
+    public void shouldFsyncOncePerBlockWithPerWriteDurability() throws IOException {
+        // given
+        cappedOut.close();
+        cappedOut = CappedDatabaseOutputStream.create(tempFile, 10, scheduledExecutor,
+                Ticker.systemTicker(), CappedDatabaseOutputStream.DurabilityMode.PER_WRITE);
+        String text = "0123456789";
+
+        // when
+        cappedOut.startBlock();
+        cappedOut.write(text.getBytes());
+        long cappedId = cappedOut.endBlock();
+        cappedOut.fsyncAfterBlock(cappedId);
+        // second call is already covered by the first fsync
+        cappedOut.fsyncAfterBlock(cappedId);
+
+        // then
+        assertWrite(text, cappedId);
+        CappedDatabaseWriterStats stats = cappedOut.getWriterStats();
+        assertThat(stats.getDurabilityMode()).isEqualTo("PER_WRITE");
+        assertThat(stats.getAppendCount()).isEqualTo(1);
+        assertThat(stats.getAverageBytesPerAppend()).isEqualTo(10 + BLOCK_HEADER_SIZE);
+        assertThat(stats.getFsyncCount()).isEqualTo(1);
+        assertThat(stats.getAverageBytesPerFsync()).isEqualTo(10 + BLOCK_HEADER_SIZE);
+    }
+
     private void assertWrite(String text, long cappedId) throws IOException {
         assertThat(cappedId).isEqualTo(0);
         long currIndex = in.readLong();
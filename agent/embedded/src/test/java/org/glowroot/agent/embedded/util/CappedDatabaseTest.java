@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,11 +18,22 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -157,4 +168,115 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldReadAfterOtherReaderWasInterrupted() throws Exception {
+        // given
+        String text = "0123456789";
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        // reading with the interrupt flag set closes the shared FileChannel
+        Thread.currentThread().interrupt();
+        Exception exception = null;
+        try {
+            cappedDatabase.read(cappedId).read();
+        } catch (Exception e) {
+            exception = e;
+        } finally {
+            Thread.interrupted();
+        }
+        assertThat(exception).isInstanceOf(ClosedByInterruptException.class);
+
+        // when
+        String text2 = cappedDatabase.read(cappedId).read();
+
+        // then
+        assertThat(text2).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldReadConcurrentlyDuringRolloverAndReopen() throws Exception {
+        // given
+        final ConcurrentMap<Long, String> texts = Maps.newConcurrentMap();
+        final AtomicLong lastCappedId = new AtomicLong(-1);
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<Future<Integer>> readerFutures = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            // every other reader interrupts itself before some of its reads, which closes the
+            // shared FileChannel underneath the other readers and forces it to be re-opened
+            final boolean interrupting = i % 2 == 1;
+            readerFutures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return readUntilDone(texts, lastCappedId, done, interrupting);
+                }
+            }));
+        }
+
+        // when
+        // the 1kb capped database rolls over many times during this
+        Random random = new Random();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(i);
+            sb.append(':');
+            for (int j = 0; j < 100; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            String text = sb.toString();
+            // readers only read a capped id once its text has been registered here
+            long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+            texts.put(cappedId, text);
+            lastCappedId.set(cappedId);
+        }
+        done.set(true);
+
+        // then
+        int successfulReads = 0;
+        for (Future<Integer> readerFuture : readerFutures) {
+            successfulReads += readerFuture.get();
+        }
+        executor.shutdown();
+        assertThat(successfulReads).isGreaterThan(0);
+        // and the shared FileChannel is still usable
+        long cappedId = lastCappedId.get();
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(texts.get(cappedId));
+    }
+
+    // each read either returns exactly the text that was written, or fails because the block was
+    // rolled over (or because the reader interrupted itself), anything else fails the test
+    private int readUntilDone(ConcurrentMap<Long, String> texts, AtomicLong lastCappedId,
+            AtomicBoolean done, boolean interrupting) throws Exception {
+        int successfulReads = 0;
+        int count = 0;
+        while (!done.get()) {
+            long cappedId = lastCappedId.get();
+            String text = texts.get(cappedId);
+            if (text == null) {
+                continue;
+            }
+            boolean interrupt = interrupting && count++ % 10 == 0;
+            if (interrupt) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+                successfulReads++;
+            } catch (ClosedChannelException e) {
+                // ClosedByInterruptException if this reader closed the FileChannel, or plain
+                // ClosedChannelException if another reader closed it first
+                if (!interrupt) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                if (!e.getClass().getName().equals("org.glowroot.agent.embedded.util"
+                        + ".CappedDatabase$CappedBlockRolledOverMidReadException")) {
+                    throw e;
+                }
+            } finally {
+                Thread.interrupted();
+            }
+        }
+        return successfulReads;
+    }
 }
@@ -15,11 +15,14 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
 import java.sql.SQLException;
 
+import com.google.common.io.Files;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -28,6 +31,30 @@ import static org.mockito.Mockito.when;
 
 public class DataSourceTest {
 
+    @Test
+    public void shouldReadWritesFromReadConnections() throws Exception {
+        // given
+        File tmpDir = Files.createTempDir();
+        DataSource dataSource = new DataSource(new File(tmpDir, "data.h2.db"));
+        try {
+            dataSource.execute("create table tab (a bigint)");
+            // when
+            dataSource.update("insert into tab (a) values (?)", 1);
+            dataSource.defrag();
+            dataSource.update("insert into tab (a) values (?)", 2);
+            // then
+            assertThat(dataSource.queryForLong("select sum(a) from tab")).isEqualTo(3);
+            assertThat(dataSource.getReadQueueWaitStats().getCount()).isEqualTo(1);
+            assertThat(dataSource.getWriteQueueWaitStats().getCount()).isGreaterThan(2);
+        } finally {
+            dataSource.close();
+            for (File file : tmpDir.listFiles()) {
+                file.delete();
+            }
+            tmpDir.delete();
+        }
+    }
+
     @Test
     public void testDebugNoArgs() throws SQLException {
         // given
@@ -230,8 +230,8 @@ public class CentralModule {
                     directories.getConfDir(), repos.getAgentDisplayDao(), repos.getAgentConfigDao(),
                     repos.getActiveAgentDao(), repos.getEnvironmentDao(), repos.getHeartbeatDao(),
                     repos.getAggregateDao(), repos.getGaugeValueDao(), repos.getTraceDao(),
-                    repos.getV09AgentRollupDao(), centralAlertingService, clusterManager, clock,
-                    version);
+                    repos.getV09AgentRollupDao(), centralAlertingService, clusterManager, session,
+                    clock, version);
             DownstreamServiceImpl downstreamService = grpcServer.getDownstreamService();
             updateAgentConfigIfNeededService = new UpdateAgentConfigIfNeededService(
                     repos.getAgentConfigDao(), repos.getActiveAgentDao(), downstreamService, clock);
@@ -247,7 +247,7 @@ public class CentralModule {
             });
             rollupService = new RollupService(repos.getActiveAgentDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    repos.getConfigRepository(), clusterManager, clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getActiveAgentDao(),
                     repos.getConfigRepository(), repos.getAlertingDisabledDao(),
                     repos.getIncidentDao(), alertingService, repos.getSyntheticResultDao(),
@@ -22,20 +22,18 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.IngestionScheduler.CollectionType;
 import org.glowroot.central.repo.ActiveAgentDao;
 import org.glowroot.central.repo.AgentConfigDao;
 import org.glowroot.central.repo.AgentDisplayDao;
@@ -58,6 +56,8 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMes
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.AggregateStreamHeader;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.OverallAggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.TransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchStreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
@@ -79,7 +79,6 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.HOURS;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase {
 
@@ -102,20 +101,14 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
-    private final LoadingCache<String, Semaphore> throttlePerAgentId = CacheBuilder.newBuilder()
-            .weakValues()
-            .build(new CacheLoader<String, Semaphore>() {
-                @Override
-                public Semaphore load(String key) throws Exception {
-                    return new Semaphore(1);
-                }
-            });
+    private final IngestionScheduler ingestionScheduler;
 
     CollectorServiceImpl(AgentDisplayDao agentDisplayDao, AgentConfigDao agentConfigDao,
             ActiveAgentDao activeAgentDao, EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, TraceDao traceDao,
             V09AgentRollupDao v09AgentRollupDao, GrpcCommon grpcCommon,
-            CentralAlertingService centralAlertingService, Clock clock, String version) {
+            CentralAlertingService centralAlertingService, IngestionScheduler ingestionScheduler,
+            Clock clock, String version) {
         this.agentDisplayDao = agentDisplayDao;
         this.agentConfigDao = agentConfigDao;
         this.activeAgentDao = activeAgentDao;
@@ -127,6 +120,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.v09AgentRollupDao = v09AgentRollupDao;
         this.grpcCommon = grpcCommon;
         this.centralAlertingService = centralAlertingService;
+        this.ingestionScheduler = ingestionScheduler;
         this.clock = clock;
         this.version = version;
     }
@@ -215,6 +209,12 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         return new TraceStreamObserver(responseObserver);
     }
 
+    @Override
+    public StreamObserver<BatchStreamMessage> collectBatchStream(
+            StreamObserver<BatchResponseMessage> responseObserver) {
+        return new BatchStreamObserver(responseObserver);
+    }
+
     @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Trace",
             traceHeadline = "Collect trace: {{0.agentId}}", timer = "trace")
     @Override
@@ -263,19 +263,27 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             List<Aggregate.SharedQueryText> sharedQueryTexts,
             List<OldAggregatesByType> aggregatesByTypeList,
             StreamObserver<AggregateResponseMessage> responseObserver) {
-        throttle(agentId, postV09, "aggregate", responseObserver, new Runnable() {
-            @Override
-            public void run() {
-                collectAggregatesUnderThrottle(agentId, postV09, captureTime, sharedQueryTexts,
-                        aggregatesByTypeList, responseObserver);
-            }
-        });
+        long bytes = 0;
+        for (Aggregate.SharedQueryText sharedQueryText : sharedQueryTexts) {
+            bytes += sharedQueryText.getSerializedSize();
+        }
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            bytes += aggregatesByType.getSerializedSize();
+        }
+        throttle(agentId, postV09, CollectionType.AGGREGATE, bytes, responseObserver,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        collectAggregatesUnderThrottle(agentId, postV09, captureTime,
+                                sharedQueryTexts, aggregatesByTypeList, responseObserver);
+                    }
+                });
     }
 
     private void throttledCollectGaugeValues(GaugeValueMessage request,
             StreamObserver<GaugeValueResponseMessage> responseObserver) {
-        throttle(request.getAgentId(), request.getPostV09(), "gauge value", responseObserver,
-                new Runnable() {
+        throttle(request.getAgentId(), request.getPostV09(), CollectionType.GAUGE_VALUE,
+                request.getSerializedSize(), responseObserver, new Runnable() {
                     @Override
                     public void run() {
                         collectGaugeValuesUnderThrottle(request, responseObserver);
@@ -285,37 +293,31 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
     private void throttledCollectTrace(String agentId, boolean postV09, Trace trace,
             StreamObserver<EmptyMessage> responseObserver) {
-        throttle(agentId, postV09, "trace", responseObserver, new Runnable() {
-            @Override
-            public void run() {
-                collectTraceUnderThrottle(agentId, postV09, trace, responseObserver);
-            }
-        });
+        throttle(agentId, postV09, CollectionType.TRACE, trace.getSerializedSize(),
+                responseObserver, new Runnable() {
+                    @Override
+                    public void run() {
+                        collectTraceUnderThrottle(agentId, postV09, trace, responseObserver);
+                    }
+                });
     }
 
-    private <T> void throttle(String agentId, boolean postV09, String collectionType,
-            StreamObserver<T> responseObserver, Runnable runnable) {
-        Semaphore semaphore = throttlePerAgentId.getUnchecked(agentId);
-        boolean acquired;
+    private <T> void throttle(String agentId, boolean postV09, CollectionType collectionType,
+            long bytes, StreamObserver<T> responseObserver, Runnable runnable) {
+        boolean collected;
         try {
-            acquired = semaphore.tryAcquire(1, MINUTES);
+            collected = ingestionScheduler.run(agentId, collectionType, bytes, runnable);
         } catch (InterruptedException e) {
             // probably shutdown requested
             responseObserver.onError(e);
             return;
         }
-        if (!acquired) {
+        if (!collected) {
             logger.warn("{} - {} collection rejected due to backlog",
-                    getAgentIdForLogging(agentId, postV09), collectionType);
+                    getAgentIdForLogging(agentId, postV09), collectionType.display());
             responseObserver.onError(Status.RESOURCE_EXHAUSTED
                     .withDescription("collection rejected due to backlog")
                     .asRuntimeException());
-            return;
-        }
-        try {
-            runnable.run();
-        } finally {
-            semaphore.release();
         }
     }
 
@@ -794,4 +796,102 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     streamHeader.getPostV09());
         }
     }
+
+    // each gauge value message and trace in the batch is collected (under the same throttle as when
+    // sent individually) as soon as it has been fully received, so the batch as a whole is never
+    // held in memory
+    private final class BatchStreamObserver implements StreamObserver<BatchStreamMessage> {
+
+        private final StreamObserver<BatchResponseMessage> responseObserver;
+        private @Nullable TraceStreamObserver traceStreamObserver;
+        private boolean resendInit;
+        private @Nullable Throwable error;
+
+        private final StreamObserver<GaugeValueResponseMessage> gaugeValueResponseObserver =
+                new StreamObserver<GaugeValueResponseMessage>() {
+                    @Override
+                    public void onNext(GaugeValueResponseMessage value) {
+                        resendInit |= value.getResendInit();
+                    }
+                    @Override
+                    public void onError(Throwable t) {
+                        onItemError(t);
+                    }
+                    @Override
+                    public void onCompleted() {}
+                };
+
+        private final StreamObserver<EmptyMessage> traceResponseObserver =
+                new StreamObserver<EmptyMessage>() {
+                    @Override
+                    public void onNext(EmptyMessage value) {}
+                    @Override
+                    public void onError(Throwable t) {
+                        onItemError(t);
+                    }
+                    @Override
+                    public void onCompleted() {}
+                };
+
+        private BatchStreamObserver(StreamObserver<BatchResponseMessage> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(BatchStreamMessage value) {
+            try {
+                onNextInternal(value);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                throw t;
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (error != null) {
+                // the agent re-sends the whole batch, which is ok since collection is idempotent
+                responseObserver.onError(error);
+                return;
+            }
+            responseObserver.onNext(BatchResponseMessage.newBuilder()
+                    .setResendInit(resendInit)
+                    .build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+
+        private void onNextInternal(BatchStreamMessage value) {
+            switch (value.getMessageCase()) {
+                case GAUGE_VALUE_MESSAGE:
+                    throttledCollectGaugeValues(value.getGaugeValueMessage(),
+                            gaugeValueResponseObserver);
+                    break;
+                case TRACE_STREAM_MESSAGE:
+                    TraceStreamMessage message = value.getTraceStreamMessage();
+                    if (message.getMessageCase() == TraceStreamMessage.MessageCase.STREAM_HEADER) {
+                        traceStreamObserver = new TraceStreamObserver(traceResponseObserver);
+                    }
+                    checkNotNull(traceStreamObserver).onNext(message);
+                    if (message.getMessageCase() == TraceStreamMessage.MessageCase.STREAM_COUNTS) {
+                        // stream counts is always the last message of each trace
+                        traceStreamObserver.onCompleted();
+                        traceStreamObserver = null;
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected message: " + value.getMessageCase());
+            }
+        }
+
+        private void onItemError(Throwable t) {
+            if (error == null) {
+                error = t;
+            }
+        }
+    }
 }
@@ -18,6 +18,7 @@ package org.glowroot.central;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
@@ -27,6 +28,8 @@ import java.nio.file.WatchService;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSessionContext;
 
@@ -51,6 +54,7 @@ import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.V09AgentRollupDao;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreExecutors2;
+import org.glowroot.central.util.Session;
 import org.glowroot.common.util.Clock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -79,15 +83,20 @@ class GrpcServer {
             ActiveAgentDao activeAgentDao, EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, TraceDao traceDao,
             V09AgentRollupDao v09AgentRollupDao, CentralAlertingService centralAlertingService,
-            ClusterManager clusterManager, Clock clock, String version) throws IOException {
+            ClusterManager clusterManager, Session session, Clock clock, String version)
+            throws Exception {
 
         GrpcCommon grpcCommon = new GrpcCommon(v09AgentRollupDao);
         downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager);
 
+        IngestionScheduler ingestionScheduler = new IngestionScheduler(session);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(ingestionScheduler,
+                ObjectName.getInstance("org.glowroot.central:type=IngestionScheduler"));
+
         CollectorServiceImpl collectorService = new CollectorServiceImpl(agentDisplayDao,
                 agentConfigDao, activeAgentDao, environmentDao, heartbeatDao, aggregateDao,
                 gaugeValueDao, traceDao, v09AgentRollupDao, grpcCommon, centralAlertingService,
-                clock, version);
+                ingestionScheduler, clock, version);
 
         if (httpPort == null) {
             httpServer = null;
@@ -139,7 +148,7 @@ class GrpcServer {
         return downstreamService;
     }
 
-    void close(boolean jvmTermination) throws InterruptedException {
+    void close(boolean jvmTermination) throws Exception {
         if (confDirWatchExecutor != null && !jvmTermination) {
             // shutdownNow() is needed here to send interrupt to conf dir watching thread
             confDirWatchExecutor.shutdownNow();
@@ -201,6 +210,9 @@ class GrpcServer {
                 && !httpServer.awaitTermination(remainingMillis, MILLISECONDS)) {
             throw new IllegalStateException("Timed out waiting for grpc server to terminate");
         }
+        MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+        platformMBeanServer.unregisterMBean(
+                ObjectName.getInstance("org.glowroot.central:type=IngestionScheduler"));
     }
 
     private static class DelegatingSslContext extends SslContext {
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.central.repo.AgentRollupIds;
+import org.glowroot.central.util.Session;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// schedules collection of aggregates, gauge values and traces so that a few agents sending a lot
+// of data (e.g. during a large deployment) cannot starve all of the other agents of cassandra write
+// capacity
+//
+// collections from the same agent are still run one at a time, and across agents the next
+// collection to run is chosen by start-time fair queueing, where the cost of each collection is its
+// size divided by the weight of its collection type
+//
+// the number of collections running at the same time is limited by the number of write query
+// permits in Session, and no new collection is started while there are queries already waiting on
+// those permits, since that would just move the queueing to the (unfair) write query semaphore
+class IngestionScheduler implements IngestionSchedulerMXBean {
+
+    private static final long MAX_RUNNING_BYTES =
+            Long.getLong("glowroot.internal.ingestion.maxRunningMb", 64) * 1024 * 1024;
+
+    private static final long MAX_QUEUED_BYTES =
+            Long.getLong("glowroot.internal.ingestion.maxQueuedMb", 256) * 1024 * 1024;
+
+    private static final long MAX_WAIT_MILLIS = MINUTES.toMillis(1);
+
+    private final Session session;
+    private final long maxRunningBytes;
+    private final long maxQueuedBytes;
+    private final long maxWaitMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @GuardedBy("lock")
+    private final Map<String, AgentQueue> agentQueues = new HashMap<>();
+
+    // agent queues that have waiting collections and no running collection, ordered by the start
+    // tag of their next collection
+    @GuardedBy("lock")
+    private final PriorityQueue<AgentQueue> eligible =
+            new PriorityQueue<>(16, new Comparator<AgentQueue>() {
+                @Override
+                public int compare(AgentQueue left, AgentQueue right) {
+                    return Double.compare(left.getNextStartTag(), right.getNextStartTag());
+                }
+            });
+
+    @GuardedBy("lock")
+    private double virtualTime;
+
+    @GuardedBy("lock")
+    private int runningCount;
+    @GuardedBy("lock")
+    private long runningBytes;
+    @GuardedBy("lock")
+    private int queuedCount;
+    @GuardedBy("lock")
+    private long queuedBytes;
+
+    // expiration so that agent rollups that are no longer sending data (e.g. after agent ids are
+    // changed or agents are decommissioned) do not accumulate stats forever
+    private final LoadingCache<String, AgentRollupStats> agentRollupStats =
+            CacheBuilder.newBuilder()
+                    .expireAfterAccess(1, HOURS)
+                    .build(new CacheLoader<String, AgentRollupStats>() {
+                        @Override
+                        public AgentRollupStats load(String agentRollupId) {
+                            return new AgentRollupStats();
+                        }
+                    });
+
+    IngestionScheduler(Session session) {
+        this(session, MAX_RUNNING_BYTES, MAX_QUEUED_BYTES, MAX_WAIT_MILLIS);
+    }
+
+    IngestionScheduler(Session session, long maxRunningBytes, long maxQueuedBytes,
+            long maxWaitMillis) {
+        this.session = session;
+        this.maxRunningBytes = maxRunningBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    // returns false if the collection was shed, either immediately because the queue is too full,
+    // or because it could not be scheduled in time
+    boolean run(String agentId, CollectionType collectionType, long bytes, Runnable runnable)
+            throws InterruptedException {
+        AgentRollupStats stats = getAgentRollupStats(agentId);
+        long startNanos = System.nanoTime();
+        Ticket ticket = schedule(agentId, collectionType, bytes);
+        if (ticket == null) {
+            stats.shedCount.incrementAndGet();
+            return false;
+        }
+        stats.queueWaitNanos.addAndGet(System.nanoTime() - startNanos);
+        try {
+            runnable.run();
+        } finally {
+            release(ticket);
+        }
+        stats.collectedCount.incrementAndGet();
+        stats.collectedBytes.addAndGet(bytes);
+        return true;
+    }
+
+    @Override
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return runningCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getRunningBytes() {
+        lock.lock();
+        try {
+            return runningBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return queuedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCollectedCountPerAgentRollup() {
+        Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, AgentRollupStats> entry : agentRollupStats.asMap().entrySet()) {
+            values.put(entry.getKey(), entry.getValue().collectedCount.get());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getCollectedBytesPerAgentRollup() {
+        Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, AgentRollupStats> entry : agentRollupStats.asMap().entrySet()) {
+            values.put(entry.getKey(), entry.getValue().collectedBytes.get());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getQueueWaitMillisPerAgentRollup() {
+        Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, AgentRollupStats> entry : agentRollupStats.asMap().entrySet()) {
+            values.put(entry.getKey(),
+                    MILLISECONDS.convert(entry.getValue().queueWaitNanos.get(), NANOSECONDS));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getShedCountPerAgentRollup() {
+        Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, AgentRollupStats> entry : agentRollupStats.asMap().entrySet()) {
+            values.put(entry.getKey(), entry.getValue().shedCount.get());
+        }
+        return values;
+    }
+
+    private @Nullable Ticket schedule(String agentId, CollectionType collectionType, long bytes)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            // traces are shed once the queue is half full, leaving the rest of the queue for
+            // aggregates and gauge values, which are much smaller and are needed for alerting
+            long limit = collectionType == CollectionType.TRACE ? maxQueuedBytes / 2
+                    : maxQueuedBytes;
+            if (queuedCount > 0 && queuedBytes + bytes > limit) {
+                return null;
+            }
+            AgentQueue agentQueue = agentQueues.get(agentId);
+            if (agentQueue == null) {
+                agentQueue = new AgentQueue(agentId);
+                agentQueues.put(agentId, agentQueue);
+            }
+            Ticket ticket = new Ticket(agentQueue, bytes, lock.newCondition());
+            ticket.startTag = Math.max(virtualTime, agentQueue.lastFinishTag);
+            agentQueue.lastFinishTag = ticket.startTag + (double) bytes / collectionType.weight;
+            agentQueue.waiting.add(ticket);
+            queuedCount++;
+            queuedBytes += bytes;
+            if (agentQueue.waiting.size() == 1 && !agentQueue.running) {
+                eligible.add(agentQueue);
+            }
+            dispatch();
+            long remainingNanos = MILLISECONDS.toNanos(maxWaitMillis);
+            try {
+                while (!ticket.running) {
+                    if (remainingNanos <= 0) {
+                        cancel(ticket);
+                        return null;
+                    }
+                    remainingNanos = ticket.dispatched.awaitNanos(remainingNanos);
+                }
+            } catch (InterruptedException e) {
+                // probably shutdown requested
+                if (ticket.running) {
+                    releaseUnderLock(ticket);
+                } else {
+                    cancel(ticket);
+                }
+                throw e;
+            }
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Ticket ticket) {
+        lock.lock();
+        try {
+            releaseUnderLock(ticket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void releaseUnderLock(Ticket ticket) {
+        runningCount--;
+        runningBytes -= ticket.bytes;
+        AgentQueue agentQueue = ticket.agentQueue;
+        agentQueue.running = false;
+        if (agentQueue.waiting.isEmpty()) {
+            agentQueues.remove(agentQueue.agentId);
+        } else {
+            eligible.add(agentQueue);
+        }
+        dispatch();
+    }
+
+    @GuardedBy("lock")
+    private void cancel(Ticket ticket) {
+        AgentQueue agentQueue = ticket.agentQueue;
+        boolean head = agentQueue.waiting.peekFirst() == ticket;
+        if (head && !agentQueue.running) {
+            // need to remove and re-add since the ordering depends on the head of the queue
+            eligible.remove(agentQueue);
+        }
+        agentQueue.waiting.remove(ticket);
+        queuedCount--;
+        queuedBytes -= ticket.bytes;
+        if (agentQueue.waiting.isEmpty()) {
+            if (!agentQueue.running) {
+                agentQueues.remove(agentQueue.agentId);
+            }
+        } else if (head && !agentQueue.running) {
+            eligible.add(agentQueue);
+        }
+        dispatch();
+    }
+
+    @GuardedBy("lock")
+    private void dispatch() {
+        AgentQueue agentQueue;
+        while ((agentQueue = eligible.peek()) != null) {
+            Ticket ticket = agentQueue.waiting.getFirst();
+            if (!canRun(ticket.bytes)) {
+                return;
+            }
+            eligible.poll();
+            agentQueue.waiting.removeFirst();
+            agentQueue.running = true;
+            queuedCount--;
+            queuedBytes -= ticket.bytes;
+            runningCount++;
+            runningBytes += ticket.bytes;
+            virtualTime = ticket.startTag;
+            ticket.running = true;
+            ticket.dispatched.signal();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean canRun(long bytes) {
+        if (runningCount == 0) {
+            // always allow one, even if it is larger than the limit
+            return true;
+        }
+        return runningCount < session.getMaxConcurrentWriteQueries()
+                && runningBytes + bytes <= maxRunningBytes
+                && !session.hasQueuedWriteQueries();
+    }
+
+    private AgentRollupStats getAgentRollupStats(String agentId) {
+        List<String> agentRollupIds = AgentRollupIds.getAgentRollupIds(agentId);
+        String topLevelAgentRollupId = agentRollupIds.get(agentRollupIds.size() - 1);
+        return agentRollupStats.getUnchecked(topLevelAgentRollupId);
+    }
+
+    enum CollectionType {
+
+        AGGREGATE("aggregate", 4), GAUGE_VALUE("gauge value", 2), TRACE("trace", 1);
+
+        private final String display;
+        private final int weight;
+
+        private CollectionType(String display, int weight) {
+            this.display = display;
+            this.weight = weight;
+        }
+
+        String display() {
+            return display;
+        }
+    }
+
+    private static class AgentQueue {
+
+        private final String agentId;
+        private final Deque<Ticket> waiting = new ArrayDeque<>();
+        private boolean running;
+        private double lastFinishTag;
+
+        private AgentQueue(String agentId) {
+            this.agentId = agentId;
+        }
+
+        private double getNextStartTag() {
+            return waiting.getFirst().startTag;
+        }
+    }
+
+    private static class Ticket {
+
+        private final AgentQueue agentQueue;
+        private final long bytes;
+        private final Condition dispatched;
+
+        private double startTag;
+        private boolean running;
+
+        private Ticket(AgentQueue agentQueue, long bytes, Condition dispatched) {
+            this.agentQueue = agentQueue;
+            this.bytes = bytes;
+            this.dispatched = dispatched;
+        }
+    }
+
+    private static class AgentRollupStats {
+
+        private final AtomicLong collectedCount = new AtomicLong();
+        private final AtomicLong collectedBytes = new AtomicLong();
+        private final AtomicLong queueWaitNanos = new AtomicLong();
+        private final AtomicLong shedCount = new AtomicLong();
+    }
+}
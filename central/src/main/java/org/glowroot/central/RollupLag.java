@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+// lag (age of the oldest data waiting to be rolled up) observed during the most recent rollup of
+// each agent rollup and rollup level owned by this central node
+class RollupLag implements RollupLagMXBean {
+
+    private final ConcurrentMap<String, ConcurrentMap<Integer, Long>> lagMillis =
+            Maps.newConcurrentMap();
+
+    void record(String agentRollupId, int rollupLevel, long lagMillis) {
+        ConcurrentMap<Integer, Long> lagMillisPerRollupLevel = this.lagMillis.get(agentRollupId);
+        if (lagMillisPerRollupLevel == null) {
+            lagMillisPerRollupLevel = Maps.newConcurrentMap();
+            ConcurrentMap<Integer, Long> existing =
+                    this.lagMillis.putIfAbsent(agentRollupId, lagMillisPerRollupLevel);
+            if (existing != null) {
+                lagMillisPerRollupLevel = existing;
+            }
+        }
+        lagMillisPerRollupLevel.put(rollupLevel, lagMillis);
+    }
+
+    long getLagMillis(String agentRollupId) {
+        Map<Integer, Long> lagMillisPerRollupLevel = lagMillis.get(agentRollupId);
+        if (lagMillisPerRollupLevel == null) {
+            return 0;
+        }
+        long max = 0;
+        for (long value : lagMillisPerRollupLevel.values()) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    // drops agent rollups that are no longer active (or are now owned by another central node)
+    void retainAll(Set<String> agentRollupIds) {
+        lagMillis.keySet().retainAll(agentRollupIds);
+    }
+
+    @Override
+    public Map<Integer, Long> getMaxLagMillisPerRollupLevel() {
+        Map<Integer, Long> maxLagMillis = Maps.newTreeMap();
+        for (Map<Integer, Long> lagMillisPerRollupLevel : lagMillis.values()) {
+            for (Map.Entry<Integer, Long> entry : lagMillisPerRollupLevel.entrySet()) {
+                Long max = maxLagMillis.get(entry.getKey());
+                if (max == null || entry.getValue() > max) {
+                    maxLagMillis.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return maxLagMillis;
+    }
+
+    @Override
+    public Map<String, Long> getLagMillisPerAgentRollup() {
+        Map<String, Long> lagMillisPerAgentRollup = Maps.newTreeMap();
+        for (String agentRollupId : lagMillis.keySet()) {
+            lagMillisPerAgentRollup.put(agentRollupId, getLagMillis(agentRollupId));
+        }
+        return lagMillisPerAgentRollup;
+    }
+}
@@ -15,18 +15,31 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,12 +48,15 @@ import org.glowroot.central.repo.ActiveAgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreExecutors2;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ActiveAgentRepository.AgentRollup;
+import org.glowroot.common2.repo.ConfigRepository;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -59,21 +75,30 @@ class RollupService implements Runnable {
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final CentralAlertingService centralAlertingService;
+    private final ConfigRepository configRepository;
+    private final ClusterManager clusterManager;
     private final Clock clock;
 
+    private final RollupLag rollupLag = new RollupLag();
+
     private final ExecutorService mainLoopExecutor;
 
     private volatile boolean closed;
 
     RollupService(ActiveAgentDao activeAgentDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, SyntheticResultDao syntheticResultDao,
-            CentralAlertingService centralAlertingService, Clock clock) {
+            CentralAlertingService centralAlertingService, ConfigRepository configRepository,
+            ClusterManager clusterManager, Clock clock) throws Exception {
         this.activeAgentDao = activeAgentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
+        this.configRepository = configRepository;
+        this.clusterManager = clusterManager;
         this.clock = clock;
+        ManagementFactory.getPlatformMBeanServer().registerMBean(rollupLag,
+                ObjectName.getInstance("org.glowroot.central:type=RollupLag"));
         mainLoopExecutor = MoreExecutors2.newSingleThreadExecutor("Rollup-Main-Loop");
         mainLoopExecutor.execute(castInitialized(this));
     }
@@ -136,7 +161,7 @@ class RollupService implements Runnable {
         }
     }
 
-    void close() throws InterruptedException {
+    void close() throws Exception {
         closed = true;
         // shutdownNow() is needed here to send interrupt to main rollup thread
         mainLoopExecutor.shutdownNow();
@@ -144,6 +169,8 @@ class RollupService implements Runnable {
             throw new IllegalStateException(
                     "Timed out waiting for main rollup thread to terminate");
         }
+        ManagementFactory.getPlatformMBeanServer()
+                .unregisterMBean(ObjectName.getInstance("org.glowroot.central:type=RollupLag"));
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
@@ -152,16 +179,36 @@ class RollupService implements Runnable {
     private void runInternal(List<AgentRollup> agentRollups,
             ListeningExecutorService workerExecutor) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(agentRollups)) {
-            futures.addAll(rollupAggregates(agentRollup, workerExecutor));
+        // each top-level agent rollup (along with all of its children) is rolled up by a single
+        // central collector node, which avoids duplicative work across nodes, and also keeps the
+        // ordering needed between child and parent gauge rollups on a single node
+        List<AgentRollup> ownedAgentRollups = new ArrayList<>();
+        Set<String> ownedAgentRollupIds = Sets.newHashSet();
+        for (AgentRollup agentRollup : agentRollups) {
+            if (clusterManager.ownsPartition(agentRollup.id())) {
+                ownedAgentRollups.add(agentRollup);
+                addIds(agentRollup, ownedAgentRollupIds);
+            }
+        }
+        rollupLag.retainAll(ownedAgentRollupIds);
+        int rollupLevelCount = configRepository.getRollupConfigs().size();
+        for (AgentRollup agentRollup : shuffle(ownedAgentRollups)) {
+            futures.addAll(rollupAggregates(agentRollup, rollupLevelCount, workerExecutor));
             futures.add(rollupGauges(agentRollup, workerExecutor));
             futures.addAll(rollupSyntheticMonitors(agentRollup, workerExecutor));
+        }
+        // none of the futures should fail since they all catch and log exception at the end
+        MoreFutures.waitForAll(futures);
+        futures.clear();
+        for (AgentRollup agentRollup : ownedAgentRollups) {
             // checking aggregate and gauge alerts after rollup since their calculation can depend
             // on rollups depending on time period length (and alerts on rollups are not checked
             // anywhere else)
             //
+            // alerts are only checked by the central collector node that rolls up the agent rollup,
+            // both so that each alert is only evaluated once across the cluster, and so that it is
+            // evaluated against rollups that this node has just completed
+            //
             // agent (not rollup) alerts are also checked right after receiving the respective data
             // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
             // minute in case no data has been received from the agent recently
@@ -179,26 +226,44 @@ class RollupService implements Runnable {
         }
     }
 
-    private List<Future<?>> rollupAggregates(AgentRollup agentRollup,
+    private List<Future<?>> rollupAggregates(AgentRollup agentRollup, int rollupLevelCount,
             ListeningExecutorService workerExecutor) {
         List<Future<?>> futures = new ArrayList<>();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
-            futures.addAll(rollupAggregates(childAgentRollup, workerExecutor));
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            futures.addAll(rollupAggregates(childAgentRollup, rollupLevelCount, workerExecutor));
         }
-        futures.add(workerExecutor.submit(new Runnable() {
+        // each rollup level is submitted as a separate task once the prior level completes, so that
+        // the (prioritized) worker threads interleave the level chains of different agent rollups
+        // instead of working through all levels of one agent rollup before starting the next
+        //
+        // the lag is read first (as a non-prioritized task, so these all run ahead of the
+        // prioritized rollup tasks), since the lag observed during the prior sweep is stale
+        SettableFuture</*@Nullable*/ Void> future = SettableFuture.create();
+        workerExecutor.execute(new Runnable() {
             @Override
             public void run() {
+                long lagMillis = 0;
                 try {
-                    aggregateDao.rollup(agentRollup.id());
+                    lagMillis = aggregateDao.readLagMillis(agentRollup.id());
                 } catch (InterruptedException e) {
                     // probably shutdown requested (see close method above)
+                    future.set(null);
+                    return;
                 } catch (Throwable t) {
+                    // still rolling up, just without knowing its priority
                     logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
                 }
+                try {
+                    workerExecutor.execute(new RollupAggregates(agentRollup.id(), 0,
+                            rollupLevelCount, lagMillis, workerExecutor, future));
+                } catch (RejectedExecutionException e) {
+                    // worker executor shutdown (see run method above)
+                    logger.debug(e.getMessage(), e);
+                    future.set(null);
+                }
             }
-        }));
+        });
+        futures.add(future);
         return futures;
     }
 
@@ -267,8 +332,15 @@ class RollupService implements Runnable {
     }
 
     private static ListeningExecutorService newWorkerExecutor(int numWorkerThreads) {
-        return MoreExecutors.listeningDecorator(
-                MoreExecutors2.newFixedThreadPool(numWorkerThreads, "Rollup-Worker-%d"));
+        return MoreExecutors.listeningDecorator(new PrioritizedThreadPoolExecutor(numWorkerThreads,
+                MoreExecutors2.newThreadFactory("Rollup-Worker-%d")));
+    }
+
+    private static void addIds(AgentRollup agentRollup, Set<String> agentRollupIds) {
+        agentRollupIds.add(agentRollup.id());
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            addIds(childAgentRollup, agentRollupIds);
+        }
     }
 
     private static <T> List<T> shuffle(List<T> agentRollups) {
@@ -300,6 +372,51 @@ class RollupService implements Runnable {
         void accept(AgentRollup agentRollup) throws Exception;
     }
 
+    private class RollupAggregates extends PrioritizedTask {
+
+        private final String agentRollupId;
+        private final int rollupLevel;
+        private final int rollupLevelCount;
+        private final ListeningExecutorService workerExecutor;
+        private final SettableFuture</*@Nullable*/ Void> future;
+
+        private RollupAggregates(String agentRollupId, int rollupLevel, int rollupLevelCount,
+                long lagMillis, ListeningExecutorService workerExecutor,
+                SettableFuture</*@Nullable*/ Void> future) {
+            super(lagMillis, rollupLevel);
+            this.agentRollupId = agentRollupId;
+            this.rollupLevel = rollupLevel;
+            this.rollupLevelCount = rollupLevelCount;
+            this.workerExecutor = workerExecutor;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long lagMillis = aggregateDao.rollup(agentRollupId, rollupLevel);
+                rollupLag.record(agentRollupId, rollupLevel, lagMillis);
+                if (rollupLevel + 1 < rollupLevelCount) {
+                    // the next level keeps the agent rollup's original priority so that a lagging
+                    // agent rollup's chain is not preempted by other agent rollups' first levels
+                    workerExecutor.execute(new RollupAggregates(agentRollupId, rollupLevel + 1,
+                            rollupLevelCount, getLagMillis(), workerExecutor, future));
+                    return;
+                }
+            } catch (InterruptedException e) {
+                // probably shutdown requested (see close method above)
+            } catch (RejectedExecutionException e) {
+                // worker executor shutdown (see run method above)
+                logger.debug(e.getMessage(), e);
+            } catch (Throwable t) {
+                // not proceeding to the next rollup level, same as if all levels were rolled up in
+                // a single task
+                logger.error("{} - {}", agentRollupId, t.getMessage(), t);
+            }
+            future.set(null);
+        }
+    }
+
     private class RollupGauges implements Runnable {
 
         private final String agentRollupId;
@@ -319,4 +436,79 @@ class RollupService implements Runnable {
             }
         }
     }
+
+    // worker tasks that are not prioritized (reading lag, gauge, synthetic monitor and alert tasks)
+    // run ahead of the aggregate rollup tasks in submission order, same as before aggregate rollups
+    // were prioritized
+    @VisibleForTesting
+    static class PrioritizedTask implements Runnable {
+
+        private static final AtomicLong sequenceCounter = new AtomicLong();
+
+        private final long lagMillis;
+        private final int rollupLevel;
+        private final long sequence = sequenceCounter.getAndIncrement();
+
+        private final @Nullable Runnable runnable;
+
+        PrioritizedTask(long lagMillis, int rollupLevel) {
+            this.lagMillis = lagMillis;
+            this.rollupLevel = rollupLevel;
+            runnable = null;
+        }
+
+        private PrioritizedTask(Runnable runnable) {
+            lagMillis = Long.MAX_VALUE;
+            rollupLevel = 0;
+            this.runnable = runnable;
+        }
+
+        long getLagMillis() {
+            return lagMillis;
+        }
+
+        @Override
+        public void run() {
+            checkNotNull(runnable).run();
+        }
+    }
+
+    // the agent rollups that are furthest behind are rolled up first, and within the same agent
+    // rollup the lower levels are rolled up first (since they feed the higher levels)
+    private static class PrioritizedTaskComparator implements Comparator<Runnable> {
+
+        @Override
+        public int compare(Runnable left, Runnable right) {
+            PrioritizedTask leftTask = (PrioritizedTask) left;
+            PrioritizedTask rightTask = (PrioritizedTask) right;
+            int result = Long.compare(rightTask.lagMillis, leftTask.lagMillis);
+            if (result != 0) {
+                return result;
+            }
+            result = Integer.compare(leftTask.rollupLevel, rightTask.rollupLevel);
+            if (result != 0) {
+                return result;
+            }
+            return Long.compare(leftTask.sequence, rightTask.sequence);
+        }
+    }
+
+    @VisibleForTesting
+    static class PrioritizedThreadPoolExecutor extends ThreadPoolExecutor {
+
+        PrioritizedThreadPoolExecutor(int numThreads, ThreadFactory threadFactory) {
+            super(numThreads, numThreads, 0, MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(11, new PrioritizedTaskComparator()),
+                    threadFactory);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (command instanceof PrioritizedTask) {
+                super.execute(command);
+            } else {
+                super.execute(new PrioritizedTask(command));
+            }
+        }
+    }
 }
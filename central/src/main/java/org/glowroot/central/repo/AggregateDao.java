@@ -35,6 +35,19 @@ public interface AggregateDao extends AggregateRepository {
             alreadyInTransactionBehavior = AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION)
     void rollup(String agentRollupId) throws Exception;
 
+    // rolls up a single rollup level (level 0 is the rollup from children, which only applies to
+    // non-leaf agent rollups), returning the lag in milliseconds of the oldest data that needed to
+    // be rolled up (or zero if there was none)
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Rollup aggregates", traceHeadline = "Rollup aggregates: {{0}}",
+            timer = "rollup aggregates",
+            alreadyInTransactionBehavior = AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION)
+    long rollup(String agentRollupId, int rollupLevel) throws Exception;
+
+    // returns the lag in milliseconds of the oldest data waiting to be rolled up at any rollup
+    // level (or zero if there is none), without rolling anything up
+    long readLagMillis(String agentRollupId) throws Exception;
+
     @OnlyUsedByTests
     void truncateAll() throws Exception;
 }
@@ -48,12 +48,15 @@ import com.google.protobuf.AbstractMessage;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
+import org.glowroot.central.repo.ChildAggregateCombiner.ChildAggregates;
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoRollup;
 import org.glowroot.central.util.Session;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableAggregateQuery;
@@ -207,9 +210,12 @@ public class AggregateDaoImpl implements AggregateDao {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final ConfigRepositoryImpl configRepository;
+    private final ClusterManager clusterManager;
     private final Executor asyncExecutor;
     private final Clock clock;
 
+    private final ChildAggregateCombiner childAggregateCombiner;
+
     // list index is rollupLevel
     private final Map<Table, List<PreparedStatement>> insertOverallPS;
     private final Map<Table, List<PreparedStatement>> insertTransactionPS;
@@ -227,26 +233,33 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
+    private final List<PreparedStatement> readOldestNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
 
     private final PreparedStatement insertNeedsRollupFromChild;
     private final PreparedStatement readNeedsRollupFromChild;
+    private final PreparedStatement readOldestNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
     private final ImmutableList<Table> allTables;
 
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            ConfigRepositoryImpl configRepository, Executor asyncExecutor, Clock clock)
-            throws Exception {
+            ConfigRepositoryImpl configRepository, ClusterManager clusterManager,
+            Executor asyncExecutor, Clock clock) throws Exception {
         this.session = session;
         this.activeAgentDao = activeAgentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
+        this.clusterManager = clusterManager;
         this.asyncExecutor = asyncExecutor;
         this.clock = clock;
 
+        childAggregateCombiner = new ChildAggregateCombiner(
+                Long.getLong("glowroot.internal.rollup.childAggregateCacheMb", 64) * 1024 * 1024,
+                clock);
+
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
                 configRepository.getCentralStorageConfig().rollupExpirationHours();
@@ -373,6 +386,7 @@ public class AggregateDaoImpl implements AggregateDao {
 
         List<PreparedStatement> insertNeedsRollup = new ArrayList<>();
         List<PreparedStatement> readNeedsRollup = new ArrayList<>();
+        List<PreparedStatement> readOldestNeedsRollup = new ArrayList<>();
         List<PreparedStatement> deleteNeedsRollup = new ArrayList<>();
         for (int i = 1; i < count; i++) {
             session.createTableWithLCS("create table if not exists aggregate_needs_rollup_" + i
@@ -386,11 +400,14 @@ public class AggregateDaoImpl implements AggregateDao {
                     + " (?, ?, ?, ?) using TTL ?"));
             readNeedsRollup.add(session.prepare("select capture_time, uniqueness, transaction_types"
                     + " from aggregate_needs_rollup_" + i + " where agent_rollup = ?"));
+            readOldestNeedsRollup.add(session.prepare("select capture_time from"
+                    + " aggregate_needs_rollup_" + i + " where agent_rollup = ? limit 1"));
             deleteNeedsRollup.add(session.prepare("delete from aggregate_needs_rollup_" + i
                     + " where agent_rollup = ? and capture_time = ? and uniqueness = ?"));
         }
         this.insertNeedsRollup = insertNeedsRollup;
         this.readNeedsRollup = readNeedsRollup;
+        this.readOldestNeedsRollup = readOldestNeedsRollup;
         this.deleteNeedsRollup = deleteNeedsRollup;
 
         session.createTableWithLCS("create table if not exists aggregate_needs_rollup_from_child"
@@ -406,6 +423,8 @@ public class AggregateDaoImpl implements AggregateDao {
         readNeedsRollupFromChild = session.prepare("select capture_time, uniqueness,"
                 + " child_agent_rollup, transaction_types from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ?");
+        readOldestNeedsRollupFromChild = session.prepare("select capture_time from"
+                + " aggregate_needs_rollup_from_child where agent_rollup = ? limit 1");
         deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
     }
@@ -453,30 +472,32 @@ public class AggregateDaoImpl implements AggregateDao {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session);
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+            storeOverallAggregate(agentId, transactionType, captureTime, overallAggregate,
+                    sharedQueryTexts, adjustedTTL, writeCoalescer);
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL,
+                        writeCoalescer);
             }
             // wait for success before proceeding in order to ensure cannot end up with
             // "no overview table records found" during a transactionName rollup, since
             // transactionName rollups are based on finding transactionName in summary table
-            MoreFutures.waitForAll(futures);
-            futures.clear();
+            MoreFutures.waitForAll(writeCoalescer.flush());
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionNameSummary(agentId, transactionType,
+                storeTransactionNameSummary(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), adjustedTTL));
+                        transactionAggregate.getAggregate(), adjustedTTL, writeCoalescer);
             }
             futures.addAll(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
         }
+        futures.addAll(writeCoalescer.flush());
         futures.addAll(activeAgentDao.insert(agentIdForMeta, captureTime));
         // wait for success before inserting "needs rollup" records
         MoreFutures.waitForAll(futures);
@@ -491,6 +512,14 @@ public class AggregateDaoImpl implements AggregateDao {
         int needsRollupAdjustedTTL =
                 Common.getNeedsRollupAdjustedTTL(adjustedTTL.generalTTL(), rollupConfigs);
         if (agentRollupIds.size() > 1) {
+            // only retained on the central collector node that rolls up this agent rollup tree
+            // (see RollupService)
+            if (clusterManager.ownsPartition(
+                    agentRollupIdsForMeta.get(agentRollupIdsForMeta.size() - 1))) {
+                // needs to be added before inserting the "needs rollup from child" record below
+                childAggregateCombiner.add(agentRollupIds.get(1), agentId, captureTime,
+                        aggregatesByTypeList, sharedQueryTexts);
+            }
             BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
             int i = 0;
             boundStatement.setString(i++, agentRollupIds.get(1));
@@ -813,21 +842,63 @@ public class AggregateDaoImpl implements AggregateDao {
                 !agentRollupId.endsWith("::"));
     }
 
+    @Override
+    public long rollup(String agentRollupId, int rollupLevel) throws Exception {
+        return rollup(agentRollupId, agentRollupId, AgentRollupIds.getParent(agentRollupId),
+                !agentRollupId.endsWith("::"), rollupLevel);
+    }
+
+    @Override
+    public long readLagMillis(String agentRollupId) throws Exception {
+        return readLagMillis(agentRollupId, !agentRollupId.endsWith("::"));
+    }
+
     public void rollup(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, boolean leaf) throws Exception {
-        List<TTL> ttls = getTTLs();
-        if (!leaf) {
-            rollupFromChildren(agentRollupId, agentRollupIdForMeta, parentAgentRollupId,
-                    ttls.get(0));
-        }
-        int rollupLevel = 1;
+        int rollupLevel = 0;
         while (rollupLevel < configRepository.getRollupConfigs().size()) {
-            TTL ttl = ttls.get(rollupLevel);
-            rollup(agentRollupId, agentRollupIdForMeta, rollupLevel, ttl);
+            rollup(agentRollupId, agentRollupIdForMeta, parentAgentRollupId, leaf, rollupLevel);
             rollupLevel++;
         }
     }
 
+    public long rollup(String agentRollupId, String agentRollupIdForMeta,
+            @Nullable String parentAgentRollupId, boolean leaf, int rollupLevel) throws Exception {
+        TTL ttl = getTTLs().get(rollupLevel);
+        if (rollupLevel == 0) {
+            if (leaf) {
+                return 0;
+            }
+            return rollupFromChildren(agentRollupId, agentRollupIdForMeta, parentAgentRollupId,
+                    ttl);
+        }
+        return rollup(agentRollupId, agentRollupIdForMeta, rollupLevel, ttl);
+    }
+
+    public long readLagMillis(String agentRollupId, boolean leaf) throws Exception {
+        long currentTimeMillis = clock.currentTimeMillis();
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        if (!leaf) {
+            BoundStatement boundStatement = readOldestNeedsRollupFromChild.bind();
+            boundStatement.setString(0, agentRollupId);
+            futures.add(session.readAsync(boundStatement));
+        }
+        for (PreparedStatement readOldestNeedsRollup : this.readOldestNeedsRollup) {
+            BoundStatement boundStatement = readOldestNeedsRollup.bind();
+            boundStatement.setString(0, agentRollupId);
+            futures.add(session.readAsync(boundStatement));
+        }
+        long lagMillis = 0;
+        for (ResultSet results : Futures.allAsList(futures).get()) {
+            Row row = results.one();
+            if (row != null) {
+                long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+                lagMillis = Math.max(lagMillis, currentTimeMillis - captureTime);
+            }
+        }
+        return lagMillis;
+    }
+
     @Override
     @OnlyUsedByTests
     public void truncateAll() throws Exception {
@@ -845,11 +916,18 @@ public class AggregateDaoImpl implements AggregateDao {
         session.updateSchemaWithRetry("truncate aggregate_needs_rollup_from_child");
     }
 
-    private void rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
+    private long rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, TTL ttl) throws Exception {
         final int rollupLevel = 0;
+        long currentTimeMillis = clock.currentTimeMillis();
         List<NeedsRollupFromChildren> needsRollupFromChildrenList = Common
                 .getNeedsRollupFromChildrenList(agentRollupId, readNeedsRollupFromChild, session);
+        long lagMillis = 0;
+        if (!needsRollupFromChildrenList.isEmpty()) {
+            // ordered by capture time
+            lagMillis = Math.max(0,
+                    currentTimeMillis - needsRollupFromChildrenList.get(0).getCaptureTime());
+        }
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
         for (NeedsRollupFromChildren needsRollupFromChildren : needsRollupFromChildrenList) {
@@ -857,14 +935,27 @@ public class AggregateDaoImpl implements AggregateDao {
             TTL adjustedTTL = getAdjustedTTL(ttl, captureTime, clock);
             RollupParams rollupParams =
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
+            Map<String, ChildAggregates> childAggregatesMap =
+                    childAggregateCombiner.get(agentRollupId, captureTime);
+            List<OldAggregatesByType> combinedAggregatesByTypeList = new ArrayList<>();
+            List<Aggregate.SharedQueryText> combinedSharedQueryTexts = new ArrayList<>();
             List<Future<?>> futures = new ArrayList<>();
             for (Map.Entry<String, Collection<String>> entry : needsRollupFromChildren.getKeys()
                     .asMap()
                     .entrySet()) {
                 String transactionType = entry.getKey();
                 Collection<String> childAgentRollupIds = entry.getValue();
-                futures.addAll(rollupOneFromChildren(rollupParams, transactionType,
-                        childAgentRollupIds, captureTime));
+                OldAggregatesByType combinedAggregatesByType = combineFromMemory(rollupParams,
+                        transactionType, childAgentRollupIds, childAggregatesMap,
+                        combinedSharedQueryTexts);
+                if (combinedAggregatesByType == null) {
+                    futures.addAll(rollupOneFromChildren(rollupParams, transactionType,
+                            childAgentRollupIds, captureTime));
+                } else {
+                    combinedAggregatesByTypeList.add(combinedAggregatesByType);
+                    futures.addAll(storeFromChildren(rollupParams, combinedAggregatesByType,
+                            captureTime, combinedSharedQueryTexts));
+                }
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
@@ -872,6 +963,13 @@ public class AggregateDaoImpl implements AggregateDao {
             int needsRollupAdjustedTTL =
                     Common.getNeedsRollupAdjustedTTL(adjustedTTL.generalTTL(), rollupConfigs);
             if (parentAgentRollupId != null) {
+                if (combinedAggregatesByTypeList.size() == needsRollupFromChildren.getKeys()
+                        .keySet().size()) {
+                    // all transaction types were combined in memory, so the parent agent rollup
+                    // can also be rolled up from memory
+                    childAggregateCombiner.add(parentAgentRollupId, agentRollupId, captureTime,
+                            combinedAggregatesByTypeList, combinedSharedQueryTexts);
+                }
                 // insert needs to happen first before call to postRollup(), see method-level
                 // comment on postRollup
                 Common.insertNeedsRollupFromChild(agentRollupId, parentAgentRollupId,
@@ -883,15 +981,64 @@ public class AggregateDaoImpl implements AggregateDao {
                     needsRollupFromChildren.getUniquenessKeysForDeletion(),
                     nextRollupIntervalMillis, insertNeedsRollup.get(rollupLevel),
                     deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session);
+            childAggregateCombiner.remove(agentRollupId, captureTime,
+                    needsRollupFromChildren.getKeys().values());
         }
+        return lagMillis;
     }
 
-    private void rollup(String agentRollupId, String agentRollupIdForMeta, int rollupLevel, TTL ttl)
+    private @Nullable OldAggregatesByType combineFromMemory(RollupParams rollup,
+            String transactionType, Collection<String> childAgentRollupIds,
+            Map<String, ChildAggregates> childAggregatesMap,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        List<ChildAggregates> children = new ArrayList<>();
+        for (String childAgentRollupId : childAgentRollupIds) {
+            ChildAggregates childAggregates = childAggregatesMap.get(childAgentRollupId);
+            if (childAggregates == null) {
+                return null;
+            }
+            children.add(childAggregates);
+        }
+        return ChildAggregateCombiner.combine(transactionType, children,
+                rollup.maxQueryAggregatesPerTransactionAggregate(),
+                rollup.maxServiceCallAggregatesPerTransactionAggregate(), sharedQueryTexts);
+    }
+
+    // writes the same rows that rollupOneFromChildren() would have written after reading them back
+    private List<Future<?>> storeFromChildren(RollupParams rollup,
+            OldAggregatesByType aggregatesByType, long captureTime,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) throws Exception {
+        String transactionType = aggregatesByType.getTransactionType();
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session);
+        storeOverallAggregate(rollup.agentRollupId(), transactionType, captureTime,
+                aggregatesByType.getOverallAggregate(), sharedQueryTexts, rollup.adjustedTTL(),
+                writeCoalescer);
+        for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                .getTransactionAggregateList()) {
+            storeTransactionAggregate(rollup.agentRollupId(), transactionType,
+                    transactionAggregate.getTransactionName(), captureTime,
+                    transactionAggregate.getAggregate(), sharedQueryTexts, rollup.adjustedTTL(),
+                    writeCoalescer);
+            storeTransactionNameSummary(rollup.agentRollupId(), transactionType,
+                    transactionAggregate.getTransactionName(), captureTime,
+                    transactionAggregate.getAggregate(), rollup.adjustedTTL(), writeCoalescer);
+        }
+        return new ArrayList<>(writeCoalescer.flush());
+    }
+
+    private long rollup(String agentRollupId, String agentRollupIdForMeta, int rollupLevel, TTL ttl)
             throws Exception {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+        long currentTimeMillis = clock.currentTimeMillis();
         Collection<NeedsRollup> needsRollupList = Common.getNeedsRollupList(agentRollupId,
                 rollupLevel, rollupIntervalMillis, readNeedsRollup, session, clock);
+        long lagMillis = 0;
+        for (NeedsRollup needsRollup : needsRollupList) {
+            // ordered by capture time
+            lagMillis = Math.max(0, currentTimeMillis - needsRollup.getCaptureTime());
+            break;
+        }
         Long nextRollupIntervalMillis = null;
         if (rollupLevel + 1 < rollupConfigs.size()) {
             nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
@@ -929,6 +1076,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
                     insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session);
         }
+        return lagMillis;
     }
 
     private List<Future<?>> rollupOneFromChildren(RollupParams rollup, String transactionType,
@@ -1625,13 +1773,12 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
-    private List<ListenableFuture<?>> storeOverallAggregate(String agentRollupId,
-            String transactionType, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
+    private void storeOverallAggregate(String agentRollupId, String transactionType,
+            long captureTime, Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts,
+            TTL adjustedTTL, WriteCoalescer writeCoalescer) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<ListenableFuture<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1640,7 +1787,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1651,7 +1798,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1660,7 +1807,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1671,7 +1818,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1681,7 +1828,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1692,7 +1839,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1703,22 +1850,21 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel, agentRollupId,
+                transactionType, null, captureTime, adjustedTTL, writeCoalescer);
+        insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel, agentRollupId,
+                transactionType, null, captureTime, adjustedTTL, writeCoalescer);
     }
 
-    private List<Future<?>> storeTransactionAggregate(String agentRollupId, String transactionType,
+    private void storeTransactionAggregate(String agentRollupId, String transactionType,
             String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
+            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL,
+            WriteCoalescer writeCoalescer) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1726,7 +1872,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1738,7 +1884,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1749,7 +1895,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1761,7 +1907,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1773,22 +1919,20 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel, agentRollupId,
+                transactionType, transactionName, captureTime, adjustedTTL, writeCoalescer);
+        insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel, agentRollupId,
+                transactionType, transactionName, captureTime, adjustedTTL, writeCoalescer);
     }
 
-    private List<Future<?>> storeTransactionNameSummary(String agentRollupId,
+    private void storeTransactionNameSummary(String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            TTL adjustedTTL) throws Exception {
+            TTL adjustedTTL, WriteCoalescer writeCoalescer) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1798,7 +1942,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        writeCoalescer.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1810,16 +1954,14 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
-        return futures;
     }
 
-    private List<ListenableFuture<?>> insertQueries(List<Aggregate.Query> queries,
+    private void insertQueries(List<Aggregate.Query> queries,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
-            TTL adjustedTTL) throws Exception {
-        List<ListenableFuture<?>> futures = new ArrayList<>();
+            TTL adjustedTTL, WriteCoalescer writeCoalescer) throws Exception {
         for (Aggregate.Query query : queries) {
             Aggregate.SharedQueryText sharedQueryText =
                     sharedQueryTexts.get(query.getSharedQueryTextIndex());
@@ -1854,15 +1996,14 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
-        return futures;
     }
 
     private ListenableFuture<?> insertQueries(List<MutableQuery> queries, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
             long captureTime, TTL adjustedTTL) throws Exception {
-        List<ListenableFuture<?>> futures = new ArrayList<>();
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session);
         for (MutableQuery query : queries) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1890,16 +2031,15 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
-        return Futures.allAsList(futures);
+        return Futures.allAsList(writeCoalescer.flush());
     }
 
-    private List<ListenableFuture<?>> insertServiceCallsProto(
-            List<Aggregate.ServiceCall> serviceCalls, int rollupLevel, String agentRollupId,
-            String transactionType, @Nullable String transactionName, long captureTime,
-            TTL adjustedTTL) throws Exception {
-        List<ListenableFuture<?>> futures = new ArrayList<>();
+    private void insertServiceCallsProto(List<Aggregate.ServiceCall> serviceCalls,
+            int rollupLevel, String agentRollupId, String transactionType,
+            @Nullable String transactionName, long captureTime, TTL adjustedTTL,
+            WriteCoalescer writeCoalescer) throws Exception {
         for (Aggregate.ServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1919,15 +2059,14 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
             boundStatement.setLong(i++, serviceCall.getExecutionCount());
             boundStatement.setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
-        return futures;
     }
 
     private ListenableFuture<?> insertServiceCalls(List<MutableServiceCall> serviceCalls,
             int rollupLevel, String agentRollupId, String transactionType,
             @Nullable String transactionName, long captureTime, TTL adjustedTTL) throws Exception {
-        List<ListenableFuture<?>> futures = new ArrayList<>();
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session);
         for (MutableServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1947,9 +2086,9 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
             boundStatement.setLong(i++, serviceCall.getExecutionCount());
             boundStatement.setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.writeAsync(boundStatement));
+            writeCoalescer.add(boundStatement);
         }
-        return Futures.allAsList(futures);
+        return Futures.allAsList(writeCoalescer.flush());
     }
 
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
@@ -2171,7 +2310,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static List<Aggregate.Query> getQueries(Aggregate aggregate) {
+    static List<Aggregate.Query> getQueries(Aggregate aggregate) {
         List<Aggregate.OldQueriesByType> queriesByTypeList = aggregate.getOldQueriesByTypeList();
         if (queriesByTypeList.isEmpty()) {
             return aggregate.getQueryList();
@@ -2191,7 +2330,7 @@ public class AggregateDaoImpl implements AggregateDao {
         return queries;
     }
 
-    private static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
+    static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
         List<Aggregate.OldServiceCallsByType> serviceCallsByTypeList =
                 aggregate.getOldServiceCallsByTypeList();
         if (serviceCallsByTypeList.isEmpty()) {
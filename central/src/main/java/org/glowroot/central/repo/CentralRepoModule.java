@@ -138,7 +138,8 @@ public class CentralRepoModule {
         }
         fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, clusterManager,
+                asyncExecutor, clock);
         GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
                 clusterManager, asyncExecutor, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl = new SyntheticResultDaoImpl(session,
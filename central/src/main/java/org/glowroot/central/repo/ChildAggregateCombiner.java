@@ -0,0 +1,386 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.MutableServiceCall;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.model.ServiceCallCollector;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.common2.repo.MutableThreadStats;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// retains the (level 0) aggregates of child agent rollups in memory until the parent agent rollup
+// is rolled up from its children, so that the parent rollup can be written directly from memory
+// instead of re-reading the child rows from cassandra
+//
+// the cassandra read is still needed whenever the retained data does not cover all of the children
+// in aggregate_needs_rollup_from_child, e.g. late data, data that was received by a different
+// central collector node, data received prior to restart, or when over the memory limit
+class ChildAggregateCombiner {
+
+    // child data that has not been rolled up by then is almost certainly going to be rolled up
+    // from cassandra anyways (e.g. rollups are lagging far behind)
+    private static final long MAX_AGE_MILLIS = MINUTES.toMillis(15);
+
+    private final long maxBytes;
+    private final Clock clock;
+
+    // outer key is parent agent rollup id, inner key is capture time, innermost key is child agent
+    // rollup id
+    @GuardedBy("this")
+    private final Map<String, NavigableMap<Long, Map<String, ChildAggregates>>> childAggregates =
+            new HashMap<>();
+
+    @GuardedBy("this")
+    private long bytes;
+
+    ChildAggregateCombiner(long maxBytes, Clock clock) {
+        this.maxBytes = maxBytes;
+        this.clock = clock;
+    }
+
+    synchronized void add(String parentAgentRollupId, String childAgentRollupId,
+            long captureTime, List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        evictOld();
+        // the same data can be re-sent by the agent (e.g. after a failed response), in which case
+        // the child rows in cassandra are overwritten, so the previous data is replaced here too
+        remove(parentAgentRollupId, captureTime, ImmutableList.of(childAgentRollupId));
+        ChildAggregates added = new ChildAggregates(aggregatesByTypeList, sharedQueryTexts);
+        if (bytes + added.bytes > maxBytes) {
+            // rollup of this child will fall back to reading from cassandra
+            return;
+        }
+        NavigableMap<Long, Map<String, ChildAggregates>> byCaptureTime =
+                childAggregates.get(parentAgentRollupId);
+        if (byCaptureTime == null) {
+            byCaptureTime = new TreeMap<>();
+            childAggregates.put(parentAgentRollupId, byCaptureTime);
+        }
+        Map<String, ChildAggregates> byChild = byCaptureTime.get(captureTime);
+        if (byChild == null) {
+            byChild = new HashMap<>();
+            byCaptureTime.put(captureTime, byChild);
+        }
+        byChild.put(childAgentRollupId, added);
+        bytes += added.bytes;
+    }
+
+    synchronized Map<String, ChildAggregates> get(String parentAgentRollupId, long captureTime) {
+        NavigableMap<Long, Map<String, ChildAggregates>> byCaptureTime =
+                childAggregates.get(parentAgentRollupId);
+        if (byCaptureTime == null) {
+            return ImmutableMap.of();
+        }
+        Map<String, ChildAggregates> byChild = byCaptureTime.get(captureTime);
+        if (byChild == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.copyOf(byChild);
+    }
+
+    synchronized void remove(String parentAgentRollupId, long captureTime,
+            Collection<String> childAgentRollupIds) {
+        NavigableMap<Long, Map<String, ChildAggregates>> byCaptureTime =
+                childAggregates.get(parentAgentRollupId);
+        if (byCaptureTime == null) {
+            return;
+        }
+        Map<String, ChildAggregates> byChild = byCaptureTime.get(captureTime);
+        if (byChild == null) {
+            return;
+        }
+        for (String childAgentRollupId : childAgentRollupIds) {
+            ChildAggregates removed = byChild.remove(childAgentRollupId);
+            if (removed != null) {
+                bytes -= removed.bytes;
+            }
+        }
+        if (byChild.isEmpty()) {
+            byCaptureTime.remove(captureTime);
+            if (byCaptureTime.isEmpty()) {
+                childAggregates.remove(parentAgentRollupId);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void evictOld() {
+        long cutoff = clock.currentTimeMillis() - MAX_AGE_MILLIS;
+        Iterator<NavigableMap<Long, Map<String, ChildAggregates>>> i =
+                childAggregates.values().iterator();
+        while (i.hasNext()) {
+            NavigableMap<Long, Map<String, ChildAggregates>> old = i.next().headMap(cutoff, false);
+            for (Map<String, ChildAggregates> byChild : old.values()) {
+                for (ChildAggregates removed : byChild.values()) {
+                    bytes -= removed.bytes;
+                }
+            }
+            old.clear();
+        }
+        childAggregates.values().removeIf(NavigableMap::isEmpty);
+    }
+
+    // returns null if any of the children is missing the transaction type, in which case the caller
+    // needs to fall back to reading the child rows from cassandra
+    static @Nullable OldAggregatesByType combine(String transactionType,
+            Collection<ChildAggregates> children, int maxQueryAggregates,
+            int maxServiceCallAggregates, List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        MutableAggregate overallAggregate =
+                new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+        Map<String, MutableAggregate> transactionAggregates = new HashMap<>();
+        for (ChildAggregates child : children) {
+            OldAggregatesByType aggregatesByType = child.get(transactionType);
+            if (aggregatesByType == null) {
+                return null;
+            }
+            merge(overallAggregate, aggregatesByType.getOverallAggregate(),
+                    child.sharedQueryTexts);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                String transactionName = transactionAggregate.getTransactionName();
+                MutableAggregate aggregate = transactionAggregates.get(transactionName);
+                if (aggregate == null) {
+                    aggregate = new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+                    transactionAggregates.put(transactionName, aggregate);
+                }
+                merge(aggregate, transactionAggregate.getAggregate(), child.sharedQueryTexts);
+            }
+        }
+        Map<Aggregate.SharedQueryText, Integer> sharedQueryTextIndexes = new HashMap<>();
+        for (int i = 0; i < sharedQueryTexts.size(); i++) {
+            sharedQueryTextIndexes.put(sharedQueryTexts.get(i), i);
+        }
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        OldAggregatesByType.Builder builder = OldAggregatesByType.newBuilder()
+                .setTransactionType(transactionType)
+                .setOverallAggregate(toProto(overallAggregate, sharedQueryTexts,
+                        sharedQueryTextIndexes, scratchBuffer));
+        for (Map.Entry<String, MutableAggregate> entry : transactionAggregates.entrySet()) {
+            builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                    .setTransactionName(entry.getKey())
+                    .setAggregate(toProto(entry.getValue(), sharedQueryTexts,
+                            sharedQueryTextIndexes, scratchBuffer)));
+        }
+        return builder.build();
+    }
+
+    private static void merge(MutableAggregate mutableAggregate, Aggregate aggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        mutableAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mutableAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mutableAggregate.addErrorCount(aggregate.getErrorCount());
+        mutableAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mutableAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mutableAggregate.mergeMainThreadStats(getMainThreadStats(aggregate));
+        if (aggregate.hasAuxThreadRootTimer()) {
+            mutableAggregate.mergeAuxThreadRootTimer(aggregate.getAuxThreadRootTimer());
+            mutableAggregate.mergeAuxThreadStats(getAuxThreadStats(aggregate));
+        }
+        mutableAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        mutableAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.Query query : AggregateDaoImpl.getQueries(aggregate)) {
+            Aggregate.SharedQueryText sharedQueryText =
+                    sharedQueryTexts.get(query.getSharedQueryTextIndex());
+            String fullTextSha1 = sharedQueryText.getFullTextSha1();
+            // same as reading back the query rows, see AggregateDaoImpl.insertQueries()
+            if (fullTextSha1.isEmpty()) {
+                mutableAggregate.mergeQuery(query.getType(), sharedQueryText.getFullText(), null,
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue());
+            } else {
+                mutableAggregate.mergeQuery(query.getType(), sharedQueryText.getTruncatedText(),
+                        fullTextSha1, query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue());
+            }
+        }
+        for (Aggregate.ServiceCall serviceCall : AggregateDaoImpl.getServiceCalls(aggregate)) {
+            mutableAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                    serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mutableAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mutableAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    private static Aggregate toProto(MutableAggregate mutableAggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts,
+            Map<Aggregate.SharedQueryText, Integer> sharedQueryTextIndexes,
+            ScratchBuffer scratchBuffer) {
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(mutableAggregate.getTotalDurationNanos())
+                .setTransactionCount(mutableAggregate.getTransactionCount())
+                .setErrorCount(mutableAggregate.getErrorCount())
+                .setAsyncTransactions(mutableAggregate.isAsyncTransactions())
+                .addAllMainThreadRootTimer(mutableAggregate.getMainThreadRootTimersProto())
+                .setMainThreadStats(toProto(mutableAggregate.getMainThreadStats()))
+                .addAllAsyncTimer(mutableAggregate.getAsyncTimersProto())
+                .setDurationNanosHistogram(
+                        mutableAggregate.getDurationNanosHistogram().toProto(scratchBuffer));
+        Aggregate.Timer auxThreadRootTimer = mutableAggregate.getAuxThreadRootTimerProto();
+        if (auxThreadRootTimer != null) {
+            builder.setAuxThreadRootTimer(auxThreadRootTimer);
+            MutableThreadStats auxThreadStats = mutableAggregate.getAuxThreadStats();
+            if (auxThreadStats != null) {
+                builder.setAuxThreadStats(toProto(auxThreadStats));
+            }
+        }
+        QueryCollector queries = mutableAggregate.getQueries();
+        if (queries != null) {
+            for (MutableQuery query : queries.getSortedAndTruncatedQueries()) {
+                Aggregate.SharedQueryText sharedQueryText;
+                String fullTextSha1 = query.getFullTextSha1();
+                if (fullTextSha1 == null) {
+                    sharedQueryText = Aggregate.SharedQueryText.newBuilder()
+                            .setFullText(query.getTruncatedText())
+                            .build();
+                } else {
+                    sharedQueryText = Aggregate.SharedQueryText.newBuilder()
+                            .setTruncatedText(query.getTruncatedText())
+                            .setFullTextSha1(fullTextSha1)
+                            .build();
+                }
+                Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(sharedQueryText);
+                if (sharedQueryTextIndex == null) {
+                    sharedQueryTextIndex = sharedQueryTexts.size();
+                    sharedQueryTexts.add(sharedQueryText);
+                    sharedQueryTextIndexes.put(sharedQueryText, sharedQueryTextIndex);
+                }
+                Aggregate.Query.Builder queryBuilder = Aggregate.Query.newBuilder()
+                        .setType(query.getType())
+                        .setSharedQueryTextIndex(sharedQueryTextIndex)
+                        .setTotalDurationNanos(query.getTotalDurationNanos())
+                        .setExecutionCount(query.getExecutionCount());
+                if (query.hasTotalRows()) {
+                    queryBuilder.setTotalRows(OptionalInt64.newBuilder()
+                            .setValue(query.getTotalRows()));
+                }
+                builder.addQuery(queryBuilder);
+            }
+        }
+        ServiceCallCollector serviceCalls = mutableAggregate.getServiceCalls();
+        if (serviceCalls != null) {
+            for (MutableServiceCall serviceCall : serviceCalls
+                    .getSortedAndTruncatedServiceCalls()) {
+                builder.addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setType(serviceCall.getType())
+                        .setText(serviceCall.getText())
+                        .setTotalDurationNanos(serviceCall.getTotalDurationNanos())
+                        .setExecutionCount(serviceCall.getExecutionCount()));
+            }
+        }
+        MutableProfile mainThreadProfile = mutableAggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            builder.setMainThreadProfile(mainThreadProfile.toProto());
+        }
+        MutableProfile auxThreadProfile = mutableAggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            builder.setAuxThreadProfile(auxThreadProfile.toProto());
+        }
+        return builder.build();
+    }
+
+    private static Aggregate.ThreadStats getMainThreadStats(Aggregate aggregate) {
+        if (aggregate.hasOldMainThreadStats()) {
+            // data from agent prior to 0.10.9
+            return toThreadStats(aggregate.getOldMainThreadStats());
+        }
+        return aggregate.getMainThreadStats();
+    }
+
+    private static Aggregate.ThreadStats getAuxThreadStats(Aggregate aggregate) {
+        if (aggregate.hasOldAuxThreadStats()) {
+            // data from agent prior to 0.10.9
+            return toThreadStats(aggregate.getOldAuxThreadStats());
+        }
+        return aggregate.getAuxThreadStats();
+    }
+
+    // same values that are stored for old thread stats, see AggregateDaoImpl.bindAggregate()
+    private static Aggregate.ThreadStats toThreadStats(Aggregate.OldThreadStats threadStats) {
+        return Aggregate.ThreadStats.newBuilder()
+                .setTotalCpuNanos(threadStats.getTotalCpuNanos().getValue())
+                .setTotalBlockedNanos(threadStats.getTotalBlockedNanos().getValue())
+                .setTotalWaitedNanos(threadStats.getTotalWaitedNanos().getValue())
+                .setTotalAllocatedBytes(threadStats.getTotalAllocatedBytes().getValue())
+                .build();
+    }
+
+    private static Aggregate.ThreadStats toProto(MutableThreadStats threadStats) {
+        return Aggregate.ThreadStats.newBuilder()
+                .setTotalCpuNanos(threadStats.getTotalCpuNanos())
+                .setTotalBlockedNanos(threadStats.getTotalBlockedNanos())
+                .setTotalWaitedNanos(threadStats.getTotalWaitedNanos())
+                .setTotalAllocatedBytes(threadStats.getTotalAllocatedBytes())
+                .build();
+    }
+
+    static class ChildAggregates {
+
+        private final List<OldAggregatesByType> aggregatesByTypeList;
+        private final List<Aggregate.SharedQueryText> sharedQueryTexts;
+        private final long bytes;
+
+        private ChildAggregates(List<OldAggregatesByType> aggregatesByTypeList,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            this.aggregatesByTypeList = ImmutableList.copyOf(aggregatesByTypeList);
+            this.sharedQueryTexts = ImmutableList.copyOf(sharedQueryTexts);
+            long bytes = 0;
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                bytes += aggregatesByType.getSerializedSize();
+            }
+            for (Aggregate.SharedQueryText sharedQueryText : sharedQueryTexts) {
+                bytes += sharedQueryText.getSerializedSize();
+            }
+            this.bytes = bytes;
+        }
+
+        private @Nullable OldAggregatesByType get(String transactionType) {
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                if (aggregatesByType.getTransactionType().equals(transactionType)) {
+                    return aggregatesByType;
+                }
+            }
+            return null;
+        }
+    }
+}
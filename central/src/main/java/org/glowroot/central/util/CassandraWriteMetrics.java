@@ -25,6 +25,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ColumnDefinitions;
 import com.datastax.driver.core.ColumnMetadata;
@@ -158,6 +159,12 @@ public class CassandraWriteMetrics {
     }
 
     private void recordMetricsInternal(Statement statement) {
+        if (statement instanceof BatchStatement) {
+            for (Statement batchedStatement : ((BatchStatement) statement).getStatements()) {
+                recordMetricsInternal(batchedStatement);
+            }
+            return;
+        }
         if (!(statement instanceof BoundStatement)) {
             return;
         }
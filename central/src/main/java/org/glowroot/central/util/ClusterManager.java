@@ -18,6 +18,7 @@ package org.glowroot.central.util;
 import java.io.File;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -30,8 +31,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -58,6 +61,7 @@ import org.glowroot.common2.repo.util.LockSet;
 import org.glowroot.common2.repo.util.LockSet.LockSetImpl;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -107,8 +111,32 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    // used to partition work (e.g. rollups) across the central cluster nodes, each key is owned by
+    // exactly one of the current cluster members
+    public abstract boolean ownsPartition(String key);
+
     public abstract void close() throws InterruptedException;
 
+    // rendezvous hashing, so that when a node leaves (or joins) the cluster, only the keys owned by
+    // that node are reassigned
+    @VisibleForTesting
+    static <T extends /*@NonNull*/ Object> T getPartitionOwner(List<T> members, String key) {
+        @Nullable T owner = null;
+        long ownerHash = 0;
+        for (T member : members) {
+            long hash = Hashing.murmur3_128().newHasher()
+                    .putString(member.toString(), UTF_8)
+                    .putString(key, UTF_8)
+                    .hash()
+                    .asLong();
+            if (owner == null || hash > ownerHash) {
+                owner = member;
+                ownerHash = hash;
+            }
+        }
+        return checkNotNull(owner);
+    }
+
     private static class ClusterManagerImpl extends ClusterManager {
 
         private final EmbeddedCacheManager cacheManager;
@@ -193,6 +221,16 @@ public abstract class ClusterManager {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public boolean ownsPartition(String key) {
+            List<Address> members = cacheManager.getMembers();
+            Address localAddress = cacheManager.getAddress();
+            if (members == null || localAddress == null || members.size() <= 1) {
+                return true;
+            }
+            return localAddress.equals(getPartitionOwner(members, key));
+        }
+
         @Override
         public void close() throws InterruptedException {
             cacheManager.stop();
@@ -309,6 +347,11 @@ public abstract class ClusterManager {
                     .asMap();
         }
 
+        @Override
+        public boolean ownsPartition(String key) {
+            return true;
+        }
+
         @Override
         public void close() {}
     }
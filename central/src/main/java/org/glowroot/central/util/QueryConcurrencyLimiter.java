@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// adaptive limit on the number of concurrent cassandra queries, split into read, write and rollup
+// budgets (see Session)
+//
+// the total limit starts at the configured max and is adjusted once per window based on observed
+// query latency (AIMD with a latency gradient): it is increased by one while latency stays within
+// LATENCY_TOLERANCE of the lowest latency seen and the limit is actually being used, decreased in
+// proportion to the latency increase when latency goes above that, and cut by
+// MULTIPLICATIVE_DECREASE when cassandra signals overload (e.g. timeouts)
+//
+// each query class has its own semaphore holding its share of the total limit, so that acquire and
+// release of different query classes do not contend with each other, and a query class can borrow
+// idle permits from the other classes as long as there are no queries of those classes waiting for
+// their own share
+//
+// on release, a borrowed permit is handed back to the lending class if that class has queries
+// waiting (or if the borrowing class has none waiting), otherwise it is handed to the next waiting
+// query of the borrowing class and the debt is carried forward
+class QueryConcurrencyLimiter {
+
+    private static final long WINDOW_NANOS = SECONDS.toNanos(1);
+
+    private static final double LATENCY_TOLERANCE = 2;
+
+    private static final double MULTIPLICATIVE_DECREASE = 0.8;
+
+    // the lowest latency seen drifts slowly upwards so that the limit can recover if cassandra
+    // becomes permanently slower (e.g. after nodes are removed)
+    private static final double MIN_LATENCY_DRIFT = 0.01;
+
+    private static final QueryClass[] QUERY_CLASSES = QueryClass.values();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Ticker ticker;
+
+    private final ClassState[] classStates;
+
+    // only taken once per window, by a single releasing thread, to adjust the limit
+    private final ReentrantLock adjustLock = new ReentrantLock();
+
+    @GuardedBy("adjustLock")
+    private final int[] budgets;
+
+    private volatile int limit;
+
+    private volatile double minLatencyNanos;
+    private volatile double lastLatencyNanos;
+
+    private volatile long windowStartNanos;
+    private final LongAdder windowLatencyNanos = new LongAdder();
+    private final LongAdder windowSampleCount = new LongAdder();
+    // whether all permits were in use at some point during the window
+    private volatile boolean windowSaturated;
+    private volatile boolean windowOverload;
+
+    QueryConcurrencyLimiter(int maxLimit, Ticker ticker) {
+        this.maxLimit = Math.max(maxLimit, QUERY_CLASSES.length);
+        minLimit = Math.max(this.maxLimit / 8, QUERY_CLASSES.length);
+        this.ticker = ticker;
+        limit = this.maxLimit;
+        budgets = new int[QUERY_CLASSES.length];
+        classStates = new ClassState[QUERY_CLASSES.length];
+        for (QueryClass queryClass : QUERY_CLASSES) {
+            int budget = getBudget(queryClass, limit);
+            budgets[queryClass.ordinal()] = budget;
+            classStates[queryClass.ordinal()] = new ClassState(budget);
+        }
+        windowStartNanos = ticker.read();
+    }
+
+    void acquire(QueryClass queryClass) throws InterruptedException {
+        ClassState state = classStates[queryClass.ordinal()];
+        if (!state.semaphore.tryAcquire() && !tryBorrow(queryClass)) {
+            // all of the permits that this class can use are in use
+            windowSaturated = true;
+            state.semaphore.acquire();
+        }
+        state.inUse.incrementAndGet();
+        if (!windowSaturated && state.semaphore.availablePermits() <= 0 && allPermitsInUse()) {
+            windowSaturated = true;
+        }
+    }
+
+    // latencyNanos is -1 when there is no latency sample (e.g. schema updates)
+    void release(QueryClass queryClass, long latencyNanos, boolean overload) {
+        ClassState state = classStates[queryClass.ordinal()];
+        state.inUse.decrementAndGet();
+        releasePermit(queryClass, state);
+        if (latencyNanos >= 0) {
+            windowLatencyNanos.add(latencyNanos);
+            windowSampleCount.increment();
+        }
+        if (overload) {
+            windowOverload = true;
+        }
+        long currentNanos = ticker.read();
+        if (currentNanos - windowStartNanos >= WINDOW_NANOS && adjustLock.tryLock()) {
+            try {
+                // re-check now that the lock is held, in case another thread just adjusted
+                if (currentNanos - windowStartNanos >= WINDOW_NANOS) {
+                    adjustLimit();
+                    windowStartNanos = currentNanos;
+                }
+            } finally {
+                adjustLock.unlock();
+            }
+        }
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getBudget(QueryClass queryClass) {
+        return getBudget(queryClass, limit);
+    }
+
+    int getInUse(QueryClass queryClass) {
+        return classStates[queryClass.ordinal()].inUse.get();
+    }
+
+    int getWaiting(QueryClass queryClass) {
+        return classStates[queryClass.ordinal()].semaphore.getQueueLength();
+    }
+
+    double getLastLatencyMillis() {
+        return lastLatencyNanos / MILLISECONDS.toNanos(1);
+    }
+
+    double getMinLatencyMillis() {
+        return minLatencyNanos / MILLISECONDS.toNanos(1);
+    }
+
+    private boolean tryBorrow(QueryClass queryClass) {
+        ClassState state = classStates[queryClass.ordinal()];
+        for (QueryClass lender : QUERY_CLASSES) {
+            if (lender == queryClass) {
+                continue;
+            }
+            Semaphore lenderSemaphore = classStates[lender.ordinal()].semaphore;
+            // don't borrow from a class that is waiting for its own share
+            if (!lenderSemaphore.hasQueuedThreads() && lenderSemaphore.tryAcquire()) {
+                state.borrowed[lender.ordinal()].incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void releasePermit(QueryClass queryClass, ClassState state) {
+        for (QueryClass lender : QUERY_CLASSES) {
+            if (lender != queryClass && classStates[lender.ordinal()].semaphore.hasQueuedThreads()
+                    && repay(state, lender)) {
+                return;
+            }
+        }
+        if (state.semaphore.hasQueuedThreads()) {
+            state.semaphore.release();
+            return;
+        }
+        for (QueryClass lender : QUERY_CLASSES) {
+            if (lender != queryClass && repay(state, lender)) {
+                return;
+            }
+        }
+        state.semaphore.release();
+    }
+
+    private boolean repay(ClassState state, QueryClass lender) {
+        AtomicInteger borrowed = state.borrowed[lender.ordinal()];
+        while (true) {
+            int current = borrowed.get();
+            if (current == 0) {
+                return false;
+            }
+            if (borrowed.compareAndSet(current, current - 1)) {
+                classStates[lender.ordinal()].semaphore.release();
+                return true;
+            }
+        }
+    }
+
+    private boolean allPermitsInUse() {
+        for (ClassState state : classStates) {
+            if (state.semaphore.availablePermits() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @GuardedBy("adjustLock")
+    private void adjustLimit() {
+        // samples that are recorded concurrently with the reset may end up in the next window,
+        // which is fine given the number of samples per window
+        long latencySumNanos = windowLatencyNanos.sumThenReset();
+        long sampleCount = windowSampleCount.sumThenReset();
+        boolean overload = windowOverload;
+        windowOverload = false;
+        boolean saturated = windowSaturated;
+        windowSaturated = allPermitsInUse();
+        int newLimit = limit;
+        if (sampleCount > 0) {
+            double latencyNanos = (double) latencySumNanos / sampleCount;
+            lastLatencyNanos = latencyNanos;
+            if (minLatencyNanos == 0 || latencyNanos < minLatencyNanos) {
+                minLatencyNanos = latencyNanos;
+            } else {
+                minLatencyNanos += (latencyNanos - minLatencyNanos) * MIN_LATENCY_DRIFT;
+            }
+            double gradient = minLatencyNanos * LATENCY_TOLERANCE / latencyNanos;
+            if (!overload && gradient < 1) {
+                newLimit = (int) (limit * Math.max(gradient, 0.5));
+            } else if (!overload && saturated) {
+                newLimit = limit + 1;
+            }
+        }
+        if (overload) {
+            newLimit = (int) (limit * MULTIPLICATIVE_DECREASE);
+        }
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if (newLimit == limit) {
+            return;
+        }
+        limit = newLimit;
+        for (QueryClass queryClass : QUERY_CLASSES) {
+            int budget = getBudget(queryClass, newLimit);
+            int delta = budget - budgets[queryClass.ordinal()];
+            budgets[queryClass.ordinal()] = budget;
+            AdjustableSemaphore semaphore = classStates[queryClass.ordinal()].semaphore;
+            if (delta > 0) {
+                semaphore.release(delta);
+            } else if (delta < 0) {
+                // this can take the available permits negative, in which case the in-flight
+                // queries of this class drain before any new ones are let through
+                semaphore.reducePermits(-delta);
+            }
+        }
+    }
+
+    // the write budget gets the remainder from rounding, so that the budgets add up to the limit
+    private static int getBudget(QueryClass queryClass, int limit) {
+        if (queryClass == QueryClass.WRITE) {
+            return limit - getBudget(QueryClass.READ, limit) - getBudget(QueryClass.ROLLUP, limit);
+        }
+        return Math.max(1, (int) (limit * queryClass.share));
+    }
+
+    enum QueryClass {
+
+        // the split is the same as the prior static semaphores: read queries (primarily UI
+        // requests) and rollup queries each get a quarter, write queries get the remaining half
+        READ(0.25), WRITE(0.5), ROLLUP(0.25);
+
+        private final double share;
+
+        private QueryClass(double share) {
+            this.share = share;
+        }
+    }
+
+    private static class ClassState {
+
+        private final AdjustableSemaphore semaphore;
+        private final AtomicInteger inUse = new AtomicInteger();
+        // permits currently borrowed from each of the other classes
+        private final AtomicInteger[] borrowed = new AtomicInteger[QUERY_CLASSES.length];
+
+        private ClassState(int permits) {
+            semaphore = new AdjustableSemaphore(permits);
+            for (int i = 0; i < borrowed.length; i++) {
+                borrowed[i] = new AtomicInteger();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class AdjustableSemaphore extends Semaphore {
+
+        private AdjustableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -15,23 +15,46 @@
  */
 package org.glowroot.central.util;
 
-import java.util.concurrent.Semaphore;
+import org.glowroot.central.util.QueryConcurrencyLimiter.QueryClass;
 
 class SemaphoreStats implements SemaphoreStatsMXBean {
 
-    private final Semaphore semaphore;
+    private final QueryConcurrencyLimiter limiter;
+    private final QueryClass queryClass;
 
-    SemaphoreStats(Semaphore semaphore) {
-        this.semaphore = semaphore;
+    SemaphoreStats(QueryConcurrencyLimiter limiter, QueryClass queryClass) {
+        this.limiter = limiter;
+        this.queryClass = queryClass;
     }
 
     @Override
     public int getAvailablePermits() {
-        return semaphore.availablePermits();
+        // negative while borrowing idle capacity from the other query classes
+        return limiter.getBudget(queryClass) - limiter.getInUse(queryClass);
     }
 
     @Override
     public int getQueueLength() {
-        return semaphore.getQueueLength();
+        return limiter.getWaiting(queryClass);
+    }
+
+    @Override
+    public int getPermits() {
+        return limiter.getBudget(queryClass);
+    }
+
+    @Override
+    public int getTotalPermits() {
+        return limiter.getLimit();
+    }
+
+    @Override
+    public double getLatencyMillis() {
+        return limiter.getLastLatencyMillis();
+    }
+
+    @Override
+    public double getMinLatencyMillis() {
+        return limiter.getMinLatencyMillis();
     }
 }
@@ -19,4 +19,10 @@ public interface SemaphoreStatsMXBean {
 
     int getAvailablePermits();
     int getQueueLength();
+
+    // the following reflect the adaptive limits (see QueryConcurrencyLimiter)
+    int getPermits();
+    int getTotalPermits();
+    double getLatencyMillis();
+    double getMinLatencyMillis();
 }
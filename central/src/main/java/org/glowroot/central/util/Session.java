@@ -16,16 +16,17 @@
 package org.glowroot.central.util;
 
 import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Configuration;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
@@ -34,10 +35,15 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.exceptions.BusyPoolException;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.QueryTimeoutException;
 import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
@@ -49,6 +55,8 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.util.QueryConcurrencyLimiter.QueryClass;
+
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -70,9 +78,8 @@ public class Session {
     // write queries
     // separate rollup query limit in order to prevent rollup from hogging too many, and also to
     // prevent rollup from not getting enough
-    private final Semaphore readQuerySemaphore;
-    private final Semaphore writeQuerySemaphore;
-    private final Semaphore rollupQuerySemaphore;
+    // the limits adapt to the observed query latency, see QueryConcurrencyLimiter
+    private final QueryConcurrencyLimiter queryLimiter;
 
     private final com.datastax.driver.core.Session wrappedSession;
     private final String keyspaceName;
@@ -89,9 +96,7 @@ public class Session {
         this.keyspaceName = keyspaceName;
         this.writeConsistencyLevel = writeConsistencyLevel;
 
-        readQuerySemaphore = new Semaphore(maxConcurrentQueries / 4);
-        writeQuerySemaphore = new Semaphore(maxConcurrentQueries / 2);
-        rollupQuerySemaphore = new Semaphore(maxConcurrentQueries / 4);
+        queryLimiter = new QueryConcurrencyLimiter(maxConcurrentQueries, Ticker.systemTicker());
 
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
 
@@ -106,14 +111,23 @@ public class Session {
         wrappedSession.execute("use " + keyspaceName);
 
         MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
-        platformMBeanServer.registerMBean(new SemaphoreStats(readQuerySemaphore),
+        platformMBeanServer.registerMBean(new SemaphoreStats(queryLimiter, QueryClass.READ),
                 ObjectName.getInstance("org.glowroot.central:type=ReadQuerySemaphore"));
-        platformMBeanServer.registerMBean(new SemaphoreStats(writeQuerySemaphore),
+        platformMBeanServer.registerMBean(new SemaphoreStats(queryLimiter, QueryClass.WRITE),
                 ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
-        platformMBeanServer.registerMBean(new SemaphoreStats(rollupQuerySemaphore),
+        platformMBeanServer.registerMBean(new SemaphoreStats(queryLimiter, QueryClass.ROLLUP),
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
     }
 
+    // the current number of write query permits, see IngestionScheduler
+    public int getMaxConcurrentWriteQueries() {
+        return queryLimiter.getBudget(QueryClass.WRITE);
+    }
+
+    public boolean hasQueuedWriteQueries() {
+        return queryLimiter.getWaiting(QueryClass.WRITE) > 0;
+    }
+
     public CassandraWriteMetrics getCassandraWriteMetrics() {
         return cassandraWriteMetrics;
     }
@@ -231,6 +245,13 @@ public class Session {
         return wrappedSession.getCluster();
     }
 
+    // returns null if the partition key of the statement is not known
+    public @Nullable ByteBuffer getRoutingKey(Statement statement) {
+        Configuration configuration = wrappedSession.getCluster().getConfiguration();
+        return statement.getRoutingKey(configuration.getProtocolOptions().getProtocolVersion(),
+                configuration.getCodecRegistry());
+    }
+
     public String getKeyspaceName() {
         return keyspaceName;
     }
@@ -354,11 +375,11 @@ public class Session {
     }
 
     public void updateSchemaWithRetry(String query) throws InterruptedException {
-        writeQuerySemaphore.acquire();
+        queryLimiter.acquire(QueryClass.WRITE);
         try {
             updateSchemaWithRetry(wrappedSession, query);
         } finally {
-            writeQuerySemaphore.release();
+            queryLimiter.release(QueryClass.WRITE, -1, false);
         }
     }
 
@@ -385,47 +406,55 @@ public class Session {
     private ListenableFuture<ResultSet> throttleRead(DoUnderThrottle doUnderThrottle)
             throws Exception {
         if (inRollupThread.get()) {
-            return throttle(doUnderThrottle, rollupQuerySemaphore);
+            return throttle(doUnderThrottle, QueryClass.ROLLUP);
         } else {
-            return throttle(doUnderThrottle, readQuerySemaphore);
+            return throttle(doUnderThrottle, QueryClass.READ);
         }
     }
 
     private ListenableFuture<ResultSet> throttleWrite(DoUnderThrottle doUnderThrottle)
             throws Exception {
         if (inRollupThread.get()) {
-            return throttle(doUnderThrottle, rollupQuerySemaphore);
+            return throttle(doUnderThrottle, QueryClass.ROLLUP);
         } else {
-            return throttle(doUnderThrottle, writeQuerySemaphore);
+            return throttle(doUnderThrottle, QueryClass.WRITE);
         }
     }
 
-    private static ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle,
-            Semaphore overallSemaphore) throws Exception {
-        overallSemaphore.acquire();
+    private ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle,
+            QueryClass queryClass) throws Exception {
+        queryLimiter.acquire(queryClass);
         SettableFuture<ResultSet> outerFuture = SettableFuture.create();
         ResultSetFuture innerFuture;
+        long startNanos = System.nanoTime();
         try {
             innerFuture = doUnderThrottle.execute();
         } catch (Throwable t) {
-            overallSemaphore.release();
+            queryLimiter.release(queryClass, -1, false);
             throw t;
         }
         Futures.addCallback(innerFuture, new FutureCallback<ResultSet>() {
             @Override
             public void onSuccess(ResultSet result) {
-                overallSemaphore.release();
+                queryLimiter.release(queryClass, System.nanoTime() - startNanos, false);
                 outerFuture.set(result);
             }
             @Override
             public void onFailure(Throwable t) {
-                overallSemaphore.release();
+                queryLimiter.release(queryClass, -1, isOverload(t));
                 outerFuture.setException(t);
             }
         }, MoreExecutors.directExecutor());
         return outerFuture;
     }
 
+    private static boolean isOverload(Throwable t) {
+        // NoHostAvailableException is thrown when all hosts are busy (BusyPoolException)
+        return t instanceof QueryTimeoutException || t instanceof OperationTimedOutException
+                || t instanceof OverloadedException || t instanceof BusyPoolException
+                || t instanceof NoHostAvailableException;
+    }
+
     private static @Nullable String getTableName(String createTableQuery, String prefix) {
         if (createTableQuery.startsWith(prefix)) {
             String suffix = createTableQuery.substring(prefix.length());
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// groups inserts that share the same table and partition key into unlogged batches, so that the
+// many rows written to a single partition (e.g. transaction summaries, or queries and service calls
+// of a single transaction) are sent as one statement
+//
+// writes to different partitions are never batched together, since multi-partition batches just
+// move the work (and the memory pressure) to the coordinator
+//
+// not thread safe
+public class WriteCoalescer {
+
+    private static final int MAX_BATCH_STATEMENTS =
+            Integer.getInteger("glowroot.internal.cassandra.batch.maxStatements", 50);
+
+    // staying under the default batch_size_warn_threshold_in_kb of 5
+    private static final int MAX_BATCH_BYTES =
+            Integer.getInteger("glowroot.internal.cassandra.batch.maxBytes", 4096);
+
+    private final Session session;
+
+    private final Map<PreparedStatement, Map<ByteBuffer, Batch>> batches = new HashMap<>();
+    private final List<ListenableFuture<?>> futures = new ArrayList<>();
+
+    public WriteCoalescer(Session session) {
+        this.session = session;
+    }
+
+    public void add(BoundStatement boundStatement) throws Exception {
+        int bytes = getBytes(boundStatement);
+        ByteBuffer routingKey = session.getRoutingKey(boundStatement);
+        if (routingKey == null || bytes >= MAX_BATCH_BYTES) {
+            futures.add(session.writeAsync(boundStatement));
+            return;
+        }
+        Map<ByteBuffer, Batch> batchesForTable =
+                batches.computeIfAbsent(boundStatement.preparedStatement(), k -> new HashMap<>());
+        Batch batch = batchesForTable.get(routingKey);
+        if (batch != null && batch.bytes + bytes > MAX_BATCH_BYTES) {
+            write(batch);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new Batch();
+            batchesForTable.put(routingKey, batch);
+        }
+        batch.statements.add(boundStatement);
+        batch.bytes += bytes;
+        if (batch.statements.size() >= MAX_BATCH_STATEMENTS) {
+            write(batch);
+            batchesForTable.remove(routingKey);
+        }
+    }
+
+    // sends all pending batches and returns the futures of all writes since the last flush
+    public List<ListenableFuture<?>> flush() throws Exception {
+        for (Map<ByteBuffer, Batch> batchesForTable : batches.values()) {
+            for (Batch batch : batchesForTable.values()) {
+                write(batch);
+            }
+        }
+        batches.clear();
+        List<ListenableFuture<?>> futures = ImmutableList.copyOf(this.futures);
+        this.futures.clear();
+        return futures;
+    }
+
+    private void write(Batch batch) throws Exception {
+        if (batch.statements.size() == 1) {
+            futures.add(session.writeAsync(batch.statements.get(0)));
+            return;
+        }
+        BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batchStatement.addAll(batch.statements);
+        futures.add(session.writeAsync(batchStatement));
+    }
+
+    // rough estimate of the serialized size of the bound values
+    private static int getBytes(BoundStatement boundStatement) {
+        int bytes = 0;
+        int count = boundStatement.preparedStatement().getVariables().size();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer value = boundStatement.getBytesUnsafe(i);
+            if (value != null) {
+                bytes += value.remaining();
+            }
+        }
+        return bytes;
+    }
+
+    private static class Batch {
+
+        private final List<BoundStatement> statements = new ArrayList<>();
+        private int bytes;
+    }
+}
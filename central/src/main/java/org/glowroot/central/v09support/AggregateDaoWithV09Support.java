@@ -242,6 +242,29 @@ public class AggregateDaoWithV09Support implements AggregateDao {
         }
     }
 
+    @Override
+    public long rollup(String agentRollupId, int rollupLevel) throws Exception {
+        long lagMillis = delegate.rollup(agentRollupId, rollupLevel);
+        if (agentRollupIdsWithV09Data.contains(agentRollupId)
+                && clock.currentTimeMillis() < v09LastCaptureTime + DAYS.toMillis(30)) {
+            lagMillis = Math.max(lagMillis, delegate.rollup(V09Support.convertToV09(agentRollupId),
+                    agentRollupId, V09Support.getParentV09(agentRollupId),
+                    V09Support.isLeaf(agentRollupId), rollupLevel));
+        }
+        return lagMillis;
+    }
+
+    @Override
+    public long readLagMillis(String agentRollupId) throws Exception {
+        long lagMillis = delegate.readLagMillis(agentRollupId);
+        if (agentRollupIdsWithV09Data.contains(agentRollupId)
+                && clock.currentTimeMillis() < v09LastCaptureTime + DAYS.toMillis(30)) {
+            lagMillis = Math.max(lagMillis, delegate.readLagMillis(
+                    V09Support.convertToV09(agentRollupId), V09Support.isLeaf(agentRollupId)));
+        }
+        return lagMillis;
+    }
+
     private void splitMergeIfNeeded(String agentRollupId, SummaryQuery query,
             DelegateMergeAction<SummaryQuery> action) throws Exception {
         SummaryQueryPlan plan = getPlan(agentRollupId, query);
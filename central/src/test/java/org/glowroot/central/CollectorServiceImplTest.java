@@ -0,0 +1,199 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.central.IngestionScheduler.CollectionType;
+import org.glowroot.central.repo.ActiveAgentDao;
+import org.glowroot.central.repo.AgentConfigDao;
+import org.glowroot.central.repo.AgentDisplayDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.EnvironmentDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.repo.V09AgentRollupDao;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.BatchStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage.Environment;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamCounts;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamHeader;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CollectorServiceImplTest {
+
+    private GaugeValueDao gaugeValueDao;
+    private TraceDao traceDao;
+    private IngestionScheduler ingestionScheduler;
+    private CollectorServiceImpl collectorService;
+
+    @Before
+    public void beforeEach() throws Exception {
+        AgentConfigDao agentConfigDao = mock(AgentConfigDao.class);
+        when(agentConfigDao.read(anyString())).thenReturn(AgentConfig.getDefaultInstance());
+        EnvironmentDao environmentDao = mock(EnvironmentDao.class);
+        when(environmentDao.read(anyString())).thenReturn(Environment.getDefaultInstance());
+        gaugeValueDao = mock(GaugeValueDao.class);
+        traceDao = mock(TraceDao.class);
+        ingestionScheduler = mock(IngestionScheduler.class);
+        when(ingestionScheduler.run(anyString(), any(CollectionType.class), anyLong(),
+                any(Runnable.class))).thenAnswer(invocation -> {
+                    invocation.<Runnable>getArgument(3).run();
+                    return true;
+                });
+        collectorService = new CollectorServiceImpl(mock(AgentDisplayDao.class), agentConfigDao,
+                mock(ActiveAgentDao.class), environmentDao, mock(HeartbeatDao.class),
+                mock(AggregateDao.class), gaugeValueDao, traceDao, mock(V09AgentRollupDao.class),
+                new GrpcCommon(mock(V09AgentRollupDao.class)), mock(CentralAlertingService.class),
+                ingestionScheduler, Clock.systemClock(), "0.0.1");
+    }
+
+    @Test
+    public void shouldCollectEachItemInBatch() throws Exception {
+        // given
+        @SuppressWarnings("unchecked")
+        StreamObserver<BatchResponseMessage> responseObserver = mock(StreamObserver.class);
+        StreamObserver<BatchStreamMessage> requestObserver =
+                collectorService.collectBatchStream(responseObserver);
+        // when
+        requestObserver.onNext(gaugeValues("a1"));
+        for (BatchStreamMessage message : trace("a1", "t1")) {
+            requestObserver.onNext(message);
+        }
+        requestObserver.onNext(gaugeValues("a2"));
+        for (BatchStreamMessage message : trace("a2", "t2")) {
+            requestObserver.onNext(message);
+        }
+        requestObserver.onCompleted();
+        // then
+        verify(gaugeValueDao).store(eq("a1"), any());
+        verify(gaugeValueDao).store(eq("a2"), any());
+        ArgumentCaptor<Trace> traceCaptor = ArgumentCaptor.forClass(Trace.class);
+        verify(traceDao).store(eq("a1"), traceCaptor.capture());
+        verify(traceDao).store(eq("a2"), traceCaptor.capture());
+        assertThat(traceCaptor.getAllValues().get(0).getId()).isEqualTo("t1");
+        assertThat(traceCaptor.getAllValues().get(1).getId()).isEqualTo("t2");
+        verify(responseObserver).onNext(BatchResponseMessage.getDefaultInstance());
+        verify(responseObserver).onCompleted();
+        verify(responseObserver, never()).onError(any());
+    }
+
+    @Test
+    public void shouldFailBatchWithFailingItem() throws Exception {
+        // given
+        Exception exception = new Exception("failing item in batch");
+        doThrow(exception).when(gaugeValueDao).store(eq("bad"), any());
+        @SuppressWarnings("unchecked")
+        StreamObserver<BatchResponseMessage> responseObserver = mock(StreamObserver.class);
+        StreamObserver<BatchStreamMessage> requestObserver =
+                collectorService.collectBatchStream(responseObserver);
+        // when
+        requestObserver.onNext(gaugeValues("a1"));
+        requestObserver.onNext(gaugeValues("bad"));
+        requestObserver.onNext(gaugeValues("a2"));
+        requestObserver.onCompleted();
+        // then
+        // the remaining items are still collected, the agent re-sends the whole batch which is ok
+        // since collection is idempotent
+        verify(gaugeValueDao).store(eq("a1"), any());
+        verify(gaugeValueDao).store(eq("a2"), any());
+        verify(responseObserver).onError(exception);
+        verify(responseObserver, never()).onNext(any());
+        verify(responseObserver, never()).onCompleted();
+    }
+
+    @Test
+    public void shouldFailBatchWhenItemIsRejectedDueToBacklog() throws Exception {
+        // given
+        when(ingestionScheduler.run(eq("noisy"), any(CollectionType.class), anyLong(),
+                any(Runnable.class))).thenReturn(false);
+        @SuppressWarnings("unchecked")
+        StreamObserver<BatchResponseMessage> responseObserver = mock(StreamObserver.class);
+        StreamObserver<BatchStreamMessage> requestObserver =
+                collectorService.collectBatchStream(responseObserver);
+        // when
+        requestObserver.onNext(gaugeValues("a1"));
+        for (BatchStreamMessage message : trace("noisy", "t1")) {
+            requestObserver.onNext(message);
+        }
+        requestObserver.onCompleted();
+        // then
+        verify(gaugeValueDao).store(eq("a1"), any());
+        verify(traceDao, never()).store(anyString(), any());
+        ArgumentCaptor<Throwable> errorCaptor = ArgumentCaptor.forClass(Throwable.class);
+        verify(responseObserver).onError(errorCaptor.capture());
+        assertThat(Status.fromThrowable(errorCaptor.getValue()).getCode())
+                .isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+        verify(responseObserver, never()).onCompleted();
+    }
+
+    private static BatchStreamMessage gaugeValues(String agentId) {
+        return BatchStreamMessage.newBuilder()
+                .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                        .setAgentId(agentId)
+                        .addGaugeValue(GaugeValue.newBuilder()
+                                .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                                .setCaptureTime(1)
+                                .setValue(1)
+                                .setWeight(1))
+                        .setPostV09(true))
+                .build();
+    }
+
+    private static List<BatchStreamMessage> trace(String agentId, String traceId) {
+        return ImmutableList.of(
+                BatchStreamMessage.newBuilder()
+                        .setTraceStreamMessage(TraceStreamMessage.newBuilder()
+                                .setStreamHeader(TraceStreamHeader.newBuilder()
+                                        .setAgentId(agentId)
+                                        .setTraceId(traceId)
+                                        .setPostV09(true)))
+                        .build(),
+                BatchStreamMessage.newBuilder()
+                        .setTraceStreamMessage(TraceStreamMessage.newBuilder()
+                                .setHeader(Trace.Header.newBuilder()
+                                        .setCaptureTime(1)))
+                        .build(),
+                BatchStreamMessage.newBuilder()
+                        .setTraceStreamMessage(TraceStreamMessage.newBuilder()
+                                .setStreamCounts(TraceStreamCounts.getDefaultInstance()))
+                        .build());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.IngestionScheduler.CollectionType;
+import org.glowroot.central.util.Session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IngestionSchedulerTest {
+
+    private Session session;
+
+    @Before
+    public void beforeEach() {
+        session = mock(Session.class);
+        when(session.getMaxConcurrentWriteQueries()).thenReturn(1);
+    }
+
+    @Test
+    public void shouldRunQuietAgentBeforeBacklogOfNoisyAgent() throws Exception {
+        // given
+        IngestionScheduler scheduler = new IngestionScheduler(session, 1000, 1000, 60000);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread blocking = run(scheduler, "noisy", CollectionType.TRACE, 100, latch, order);
+        waitForRunningCount(scheduler, 1);
+        Thread noisy1 = run(scheduler, "noisy", CollectionType.TRACE, 100, null, order);
+        Thread noisy2 = run(scheduler, "noisy", CollectionType.TRACE, 100, null, order);
+        waitForQueuedCount(scheduler, 2);
+        Thread quiet = run(scheduler, "quiet", CollectionType.TRACE, 100, null, order);
+        waitForQueuedCount(scheduler, 3);
+        // when
+        latch.countDown();
+        blocking.join();
+        noisy1.join();
+        noisy2.join();
+        quiet.join();
+        // then
+        assertThat(order).containsExactly("noisy", "quiet", "noisy", "noisy");
+        assertThat(scheduler.getCollectedCountPerAgentRollup()).containsEntry("noisy", 3L)
+                .containsEntry("quiet", 1L);
+    }
+
+    @Test
+    public void shouldShedTracesBeforeAggregates() throws Exception {
+        // given
+        IngestionScheduler scheduler = new IngestionScheduler(session, 1000, 100, 60000);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread blocking = run(scheduler, "a", CollectionType.TRACE, 10, latch, order);
+        waitForRunningCount(scheduler, 1);
+        Thread queued = run(scheduler, "b", CollectionType.TRACE, 40, null, order);
+        waitForQueuedCount(scheduler, 1);
+        // when
+        boolean trace = scheduler.run("c", CollectionType.TRACE, 20, new NopRunnable());
+        Thread aggregate = run(scheduler, "d", CollectionType.AGGREGATE, 20, null, order);
+        waitForQueuedCount(scheduler, 2);
+        latch.countDown();
+        blocking.join();
+        queued.join();
+        aggregate.join();
+        // then
+        assertThat(trace).isFalse();
+        assertThat(order).containsExactlyInAnyOrder("a", "b", "d");
+        assertThat(scheduler.getShedCountPerAgentRollup()).containsEntry("c", 1L);
+    }
+
+    @Test
+    public void shouldShedWhenNotScheduledInTime() throws Exception {
+        // given
+        IngestionScheduler scheduler = new IngestionScheduler(session, 1000, 1000, 100);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread blocking = run(scheduler, "a", CollectionType.AGGREGATE, 10, latch, order);
+        waitForRunningCount(scheduler, 1);
+        // when
+        boolean collected = scheduler.run("b", CollectionType.AGGREGATE, 10, new NopRunnable());
+        latch.countDown();
+        blocking.join();
+        // then
+        assertThat(collected).isFalse();
+        assertThat(scheduler.getQueuedCount()).isZero();
+        assertThat(scheduler.getRunningCount()).isZero();
+    }
+
+    @Test
+    public void shouldRunSameAgentOneAtATime() throws Exception {
+        // given
+        when(session.getMaxConcurrentWriteQueries()).thenReturn(10);
+        IngestionScheduler scheduler = new IngestionScheduler(session, 1000, 1000, 60000);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread blocking = run(scheduler, "a", CollectionType.AGGREGATE, 10, latch, order);
+        waitForRunningCount(scheduler, 1);
+        Thread sameAgent = run(scheduler, "a", CollectionType.GAUGE_VALUE, 10, null, order);
+        waitForQueuedCount(scheduler, 1);
+        // when
+        Thread otherAgent = run(scheduler, "b", CollectionType.GAUGE_VALUE, 10, null, order);
+        otherAgent.join();
+        // then
+        assertThat(order).containsExactly("b");
+        assertThat(scheduler.getQueuedCount()).isEqualTo(1);
+        latch.countDown();
+        blocking.join();
+        sameAgent.join();
+        assertThat(order).containsExactly("b", "a", "a");
+    }
+
+    private static Thread run(IngestionScheduler scheduler, String agentId,
+            CollectionType collectionType, long bytes, CountDownLatch latch, List<String> order) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.run(agentId, collectionType, bytes, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (latch != null) {
+                                try {
+                                    latch.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                            order.add(agentId);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForRunningCount(IngestionScheduler scheduler, int count)
+            throws InterruptedException {
+        while (scheduler.getRunningCount() != count) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void waitForQueuedCount(IngestionScheduler scheduler, int count)
+            throws InterruptedException {
+        while (scheduler.getQueuedCount() != count) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static class NopRunnable implements Runnable {
+        @Override
+        public void run() {}
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,19 @@
  */
 package org.glowroot.central;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Test;
 
+import org.glowroot.central.RollupService.PrioritizedTask;
+import org.glowroot.central.RollupService.PrioritizedThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class RollupServiceTest {
@@ -28,4 +39,44 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldRunMostLaggingAgentRollupsAndLowestRollupLevelsFirst() throws Exception {
+        // given
+        PrioritizedThreadPoolExecutor executor =
+                new PrioritizedThreadPoolExecutor(1, Executors.defaultThreadFactory());
+        CountDownLatch latch = new CountDownLatch(1);
+        // occupy the single worker thread so that the remaining tasks are all queued up
+        executor.execute(() -> Uninterruptibles.awaitUninterruptibly(latch));
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        // when
+        executor.execute(new Task("a1", 1000, 1, order));
+        executor.execute(new Task("b0", 5000, 0, order));
+        executor.execute(new Task("a0", 1000, 0, order));
+        executor.execute(() -> order.add("x"));
+        executor.execute(new Task("c0", 1000, 0, order));
+        executor.execute(() -> order.add("y"));
+        latch.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+        // then
+        assertThat(order).containsExactly("x", "y", "b0", "a0", "c0", "a1");
+    }
+
+    private static class Task extends PrioritizedTask {
+
+        private final String name;
+        private final List<String> order;
+
+        private Task(String name, long lagMillis, int rollupLevel, List<String> order) {
+            super(lagMillis, rollupLevel);
+            this.name = name;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+            order.add(name);
+        }
+    }
 }
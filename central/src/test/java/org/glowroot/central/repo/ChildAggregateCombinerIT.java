@@ -0,0 +1,373 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PoolingOptions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.ConfigDefaults;
+import org.glowroot.common.live.ImmutableAggregateQuery;
+import org.glowroot.common.live.ImmutableSummaryQuery;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.MutableServiceCall;
+import org.glowroot.common.model.OverallErrorSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.model.ProfileCollector;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.model.ServiceCallCollector;
+import org.glowroot.common.model.TransactionNameErrorSummaryCollector;
+import org.glowroot.common.model.TransactionNameErrorSummaryCollector.ErrorSummarySortOrder;
+import org.glowroot.common.model.TransactionNameSummaryCollector;
+import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.util.RollupLevelService;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.Proto.OptionalInt32;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// verifies that rolling up a parent agent rollup from the child aggregates held in memory (see
+// ChildAggregateCombiner) writes the same rows as rolling it up by reading the child rows back from
+// cassandra
+public class ChildAggregateCombinerIT {
+
+    private static final AdvancedConfig DEFAULT_ADVANCED_CONFIG = AdvancedConfig.newBuilder()
+            .setMaxQueryAggregates(OptionalInt32.newBuilder()
+                    .setValue(ConfigDefaults.ADVANCED_MAX_QUERY_AGGREGATES))
+            .setMaxServiceCallAggregates(OptionalInt32.newBuilder()
+                    .setValue(ConfigDefaults.ADVANCED_MAX_SERVICE_CALL_AGGREGATES))
+            .build();
+
+    private static final String PARENT = "the parent::";
+    private static final String CHILD_ONE = "the parent::one";
+    private static final String CHILD_TWO = "the parent::two";
+
+    // longer than Constants.AGGREGATE_QUERY_TEXT_TRUNCATE, so that it is stored as truncated text
+    // plus full text sha1
+    private static final String LONG_QUERY_TEXT = "select " + Strings.repeat("x, ", 100) + "y";
+
+    private static ClusterManager clusterManager;
+    private static Cluster cluster;
+    private static Session session;
+    private static ExecutorService asyncExecutor;
+    private static AgentConfigDao agentConfigDao;
+    private static FullQueryTextDao fullQueryTextDao;
+    // child aggregates are stored through this dao, so its ChildAggregateCombiner holds them
+    private static AggregateDaoImpl aggregateDao;
+    // separate instance with an empty ChildAggregateCombiner, so that it always rolls up from
+    // children by reading the child rows from cassandra
+    private static AggregateDaoImpl readPathAggregateDao;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        clusterManager = ClusterManager.create();
+        cluster = Clusters.newCluster();
+        session = new Session(cluster.newSession(), "glowroot_unit_tests", null,
+                PoolingOptions.DEFAULT_MAX_QUEUE_SIZE);
+        asyncExecutor = Executors.newCachedThreadPool();
+        CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
+        AgentDisplayDao agentDisplayDao =
+                new AgentDisplayDao(session, clusterManager, asyncExecutor, 10);
+        agentConfigDao = new AgentConfigDao(session, agentDisplayDao, clusterManager, 10);
+        UserDao userDao = new UserDao(session, clusterManager);
+        RoleDao roleDao = new RoleDao(session, clusterManager);
+        ConfigRepositoryImpl configRepository =
+                new ConfigRepositoryImpl(centralConfigDao, agentConfigDao, userDao, roleDao, "");
+        TransactionTypeDao transactionTypeDao =
+                new TransactionTypeDao(session, configRepository, clusterManager, 10);
+        fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor);
+        RollupLevelService rollupLevelService =
+                new RollupLevelService(configRepository, Clock.systemClock());
+        ActiveAgentDao activeAgentDao = new ActiveAgentDao(session, agentDisplayDao,
+                agentConfigDao, configRepository, rollupLevelService, Clock.systemClock());
+        aggregateDao = new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, clusterManager, asyncExecutor,
+                Clock.systemClock());
+        readPathAggregateDao = new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, clusterManager, asyncExecutor,
+                Clock.systemClock());
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        fullQueryTextDao.close();
+        asyncExecutor.shutdown();
+        session.close();
+        cluster.close();
+        clusterManager.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Before
+    public void before() throws Exception {
+        session.updateSchemaWithRetry("truncate agent_config");
+        agentConfigDao.store(CHILD_ONE, AgentConfig.newBuilder()
+                .setAdvancedConfig(DEFAULT_ADVANCED_CONFIG)
+                .build(), true);
+        agentConfigDao.store(CHILD_TWO, AgentConfig.newBuilder()
+                .setAdvancedConfig(DEFAULT_ADVANCED_CONFIG)
+                .build(), true);
+    }
+
+    @Test
+    public void shouldRollupFromMemorySameAsFromCassandra() throws Exception {
+        // rollup from children held in memory
+        aggregateDao.truncateAll();
+        storeChildren();
+        aggregateDao.rollup(PARENT);
+        List<Object> fromMemoryLevel0 = readParent(0);
+        List<Object> fromMemoryLevel1 = readParent(1);
+
+        // rollup from children read back from cassandra
+        aggregateDao.truncateAll();
+        storeChildren();
+        readPathAggregateDao.rollup(PARENT);
+        List<Object> fromCassandraLevel0 = readParent(0);
+        List<Object> fromCassandraLevel1 = readParent(1);
+
+        // sanity check that there is something to compare
+        OverallSummary overallSummary = (OverallSummary) fromMemoryLevel0.get(0);
+        assertThat(overallSummary.transactionCount()).isEqualTo(12);
+
+        assertThat(fromMemoryLevel0).isEqualTo(fromCassandraLevel0);
+        assertThat(fromMemoryLevel1).isEqualTo(fromCassandraLevel1);
+    }
+
+    @Test
+    public void shouldRollupFromMemoryWithoutReadingChildRows() throws Exception {
+        // given
+        aggregateDao.truncateAll();
+        storeChildren();
+        // remove the child rows, leaving only the "needs rollup from child" records
+        for (String tableName : session.getAllTableNames()) {
+            if (tableName.startsWith("aggregate_t") && tableName.endsWith("_rollup_0")) {
+                session.updateSchemaWithRetry("truncate " + tableName);
+            }
+        }
+
+        // when
+        aggregateDao.rollup(PARENT);
+
+        // then
+        OverallSummary overallSummary = (OverallSummary) readParent(0).get(0);
+        assertThat(overallSummary.transactionCount()).isEqualTo(12);
+    }
+
+    private static void storeChildren() throws Exception {
+        List<Aggregate.SharedQueryText> sharedQueryTexts = ImmutableList.of(
+                Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build(),
+                Aggregate.SharedQueryText.newBuilder().setFullText(LONG_QUERY_TEXT).build());
+        aggregateDao.store(CHILD_ONE, 60000, createData(1), sharedQueryTexts);
+        aggregateDao.store(CHILD_TWO, 60000, createData(2), sharedQueryTexts);
+        aggregateDao.store(CHILD_ONE, 120000, createData(3), sharedQueryTexts);
+        aggregateDao.store(CHILD_TWO, 120000, createData(4), sharedQueryTexts);
+    }
+
+    // returns values that can be compared using equals()
+    private static List<Object> readParent(int rollupLevel) throws Exception {
+        SummaryQuery summaryQuery = ImmutableSummaryQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(300000)
+                .rollupLevel(rollupLevel)
+                .build();
+        AggregateQuery aggregateQuery = ImmutableAggregateQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(300000)
+                .rollupLevel(rollupLevel)
+                .build();
+        AggregateQuery transactionAggregateQuery = ImmutableAggregateQuery.builder()
+                .copyFrom(aggregateQuery)
+                .transactionName("tn2")
+                .build();
+
+        List<Object> values = new ArrayList<>();
+
+        OverallSummaryCollector overallSummaryCollector = new OverallSummaryCollector();
+        aggregateDao.mergeOverallSummaryInto(PARENT, summaryQuery, overallSummaryCollector);
+        values.add(overallSummaryCollector.getOverallSummary());
+
+        TransactionNameSummaryCollector transactionNameSummaryCollector =
+                new TransactionNameSummaryCollector();
+        SummarySortOrder sortOrder = SummarySortOrder.TOTAL_TIME;
+        aggregateDao.mergeTransactionNameSummariesInto(PARENT, summaryQuery, sortOrder, 10,
+                transactionNameSummaryCollector);
+        values.add(transactionNameSummaryCollector.getResult(sortOrder, 10).records());
+
+        OverallErrorSummaryCollector overallErrorSummaryCollector =
+                new OverallErrorSummaryCollector();
+        aggregateDao.mergeOverallErrorSummaryInto(PARENT, summaryQuery,
+                overallErrorSummaryCollector);
+        values.add(overallErrorSummaryCollector.getOverallErrorSummary());
+
+        TransactionNameErrorSummaryCollector errorSummaryCollector =
+                new TransactionNameErrorSummaryCollector();
+        ErrorSummarySortOrder errorSortOrder = ErrorSummarySortOrder.ERROR_COUNT;
+        aggregateDao.mergeTransactionNameErrorSummariesInto(PARENT, summaryQuery, errorSortOrder,
+                10, errorSummaryCollector);
+        values.add(errorSummaryCollector.getResult(errorSortOrder, 10).records());
+
+        for (AggregateQuery query : ImmutableList.of(aggregateQuery, transactionAggregateQuery)) {
+            values.add(aggregateDao.readOverviewAggregates(PARENT, query));
+            values.add(aggregateDao.readPercentileAggregates(PARENT, query));
+            values.add(aggregateDao.readThroughputAggregates(PARENT, query));
+
+            QueryCollector queryCollector = new QueryCollector(1000);
+            aggregateDao.mergeQueriesInto(PARENT, query, queryCollector);
+            List<String> queries = new ArrayList<>();
+            for (MutableQuery q : queryCollector.getSortedAndTruncatedQueries()) {
+                queries.add(q.getType() + " | " + q.getTruncatedText() + " | "
+                        + q.getFullTextSha1() + " | " + q.getTotalDurationNanos() + " | "
+                        + q.getExecutionCount() + " | " + q.hasTotalRows() + " | "
+                        + q.getTotalRows());
+            }
+            values.add(queries);
+
+            ServiceCallCollector serviceCallCollector = new ServiceCallCollector(1000);
+            aggregateDao.mergeServiceCallsInto(PARENT, query, serviceCallCollector);
+            List<String> serviceCalls = new ArrayList<>();
+            for (MutableServiceCall s : serviceCallCollector.getSortedAndTruncatedServiceCalls()) {
+                serviceCalls.add(s.getType() + " | " + s.getText() + " | "
+                        + s.getTotalDurationNanos() + " | " + s.getExecutionCount());
+            }
+            values.add(serviceCalls);
+
+            ProfileCollector mainThreadProfileCollector = new ProfileCollector();
+            aggregateDao.mergeMainThreadProfilesInto(PARENT, query, mainThreadProfileCollector);
+            values.add(mainThreadProfileCollector.getProfile().toProto());
+
+            ProfileCollector auxThreadProfileCollector = new ProfileCollector();
+            aggregateDao.mergeAuxThreadProfilesInto(PARENT, query, auxThreadProfileCollector);
+            values.add(auxThreadProfileCollector.getProfile().toProto());
+        }
+        return values;
+    }
+
+    // values are chosen so that sums are exact and so that sort orders have no ties
+    private static List<OldAggregatesByType> createData(int n) {
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("tt1")
+                .setOverallAggregate(createAggregate(n, 3))
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("tn1")
+                        .setAggregate(createAggregate(10 * n, 1)))
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("tn2")
+                        .setAggregate(createAggregate(100 * n, 2)))
+                .build());
+    }
+
+    private static Aggregate createAggregate(int n, int transactionCount) {
+        Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+        for (int i = 0; i < transactionCount; i++) {
+            histogram.addOrderedRawValue(1000 * n + i);
+        }
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(1000 * n * transactionCount)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(transactionCount - 1)
+                .setDurationNanosHistogram(histogram)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("abc")
+                        .setTotalNanos(100 * n)
+                        .setCount(transactionCount))
+                .setAuxThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("auxiliary thread")
+                        .setTotalNanos(200 * n)
+                        .setCount(transactionCount))
+                .addAsyncTimer(Aggregate.Timer.newBuilder()
+                        .setName("mnm")
+                        .setTotalNanos(300 * n)
+                        .setCount(transactionCount))
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("sqlo")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(7 * n)
+                        .setTotalRows(OptionalInt64.newBuilder().setValue(5 * n))
+                        .setExecutionCount(2))
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("sqlo")
+                        .setSharedQueryTextIndex(1)
+                        .setTotalDurationNanos(11 * n)
+                        .setExecutionCount(3))
+                .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setType("HTTP")
+                        .setText("GET http://example.org/one")
+                        .setTotalDurationNanos(13 * n)
+                        .setExecutionCount(1))
+                .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setType("HTTP")
+                        .setText("GET http://example.org/two")
+                        .setTotalDurationNanos(17 * n)
+                        .setExecutionCount(2))
+                .setMainThreadProfile(createProfile("doWork", n))
+                .setAuxThreadProfile(createProfile("doAuxWork", n))
+                .build();
+    }
+
+    // the same stack trace for every aggregate (only the sample counts differ), so that the merged
+    // profile does not depend on the order the profiles are merged in
+    private static Profile createProfile(String methodName, int sampleCount) {
+        return Profile.newBuilder()
+                .addPackageName("org.example")
+                .addClassName("Worker")
+                .addMethodName("run")
+                .addMethodName(methodName)
+                .addFileName("Worker.java")
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(0)
+                        .setPackageNameIndex(0)
+                        .setClassNameIndex(0)
+                        .setMethodNameIndex(0)
+                        .setFileNameIndex(0)
+                        .setLineNumber(10)
+                        .setSampleCount(sampleCount))
+                .addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(1)
+                        .setPackageNameIndex(0)
+                        .setClassNameIndex(0)
+                        .setMethodNameIndex(1)
+                        .setFileNameIndex(0)
+                        .setLineNumber(20)
+                        .setLeafThreadState(Profile.LeafThreadState.RUNNABLE)
+                        .setSampleCount(sampleCount))
+                .build();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.central.repo.ChildAggregateCombiner.ChildAggregates;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChildAggregateCombinerTest {
+
+    private static final long CAPTURE_TIME = 60000;
+
+    private static final Clock CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return CAPTURE_TIME;
+        }
+    };
+
+    @Test
+    public void shouldCombineChildren() {
+        // given
+        ChildAggregateCombiner combiner = new ChildAggregateCombiner(Long.MAX_VALUE, CLOCK);
+        combiner.add("a::", "a::x", CAPTURE_TIME, ImmutableList.of(aggregatesByType("Web", 1000)),
+                ImmutableList.of(sharedQueryText("select 1")));
+        combiner.add("a::", "a::y", CAPTURE_TIME, ImmutableList.of(aggregatesByType("Web", 2000)),
+                ImmutableList.of(sharedQueryText("select 1")));
+
+        // when
+        Map<String, ChildAggregates> children = combiner.get("a::", CAPTURE_TIME);
+        List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        OldAggregatesByType combined = ChildAggregateCombiner.combine("Web", children.values(),
+                100, 100, sharedQueryTexts);
+
+        // then
+        assertThat(combined).isNotNull();
+        Aggregate overallAggregate = combined.getOverallAggregate();
+        assertThat(overallAggregate.getTotalDurationNanos()).isEqualTo(3000);
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(2);
+        assertThat(overallAggregate.getQueryCount()).isEqualTo(1);
+        assertThat(overallAggregate.getQuery(0).getExecutionCount()).isEqualTo(2);
+        assertThat(sharedQueryTexts).containsExactly(sharedQueryText("select 1"));
+        assertThat(combined.getTransactionAggregateCount()).isEqualTo(1);
+        assertThat(combined.getTransactionAggregate(0).getAggregate().getTransactionCount())
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCombineMissingTransactionType() {
+        // given
+        ChildAggregateCombiner combiner = new ChildAggregateCombiner(Long.MAX_VALUE, CLOCK);
+        combiner.add("a::", "a::x", CAPTURE_TIME, ImmutableList.of(aggregatesByType("Web", 1000)),
+                ImmutableList.of(sharedQueryText("select 1")));
+        combiner.add("a::", "a::y", CAPTURE_TIME,
+                ImmutableList.of(aggregatesByType("Background", 2000)),
+                ImmutableList.of(sharedQueryText("select 1")));
+
+        // when
+        OldAggregatesByType combined = ChildAggregateCombiner.combine("Web",
+                combiner.get("a::", CAPTURE_TIME).values(), 100, 100, new ArrayList<>());
+
+        // then
+        assertThat(combined).isNull();
+    }
+
+    @Test
+    public void shouldNotRetainOverMaxBytes() {
+        // given
+        ChildAggregateCombiner combiner = new ChildAggregateCombiner(10, CLOCK);
+
+        // when
+        combiner.add("a::", "a::x", CAPTURE_TIME, ImmutableList.of(aggregatesByType("Web", 1000)),
+                ImmutableList.of(sharedQueryText("select 1")));
+
+        // then
+        assertThat(combiner.get("a::", CAPTURE_TIME)).isEmpty();
+    }
+
+    @Test
+    public void shouldRemove() {
+        // given
+        ChildAggregateCombiner combiner = new ChildAggregateCombiner(Long.MAX_VALUE, CLOCK);
+        combiner.add("a::", "a::x", CAPTURE_TIME, ImmutableList.of(aggregatesByType("Web", 1000)),
+                ImmutableList.of(sharedQueryText("select 1")));
+        combiner.add("a::", "a::y", CAPTURE_TIME, ImmutableList.of(aggregatesByType("Web", 2000)),
+                ImmutableList.of(sharedQueryText("select 1")));
+
+        // when
+        combiner.remove("a::", CAPTURE_TIME, ImmutableList.of("a::x"));
+
+        // then
+        assertThat(combiner.get("a::", CAPTURE_TIME).keySet()).containsExactly("a::y");
+    }
+
+    private static OldAggregatesByType aggregatesByType(String transactionType,
+            double totalDurationNanos) {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(1)
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(totalDurationNanos / 2)
+                        .setExecutionCount(1))
+                .build();
+        return OldAggregatesByType.newBuilder()
+                .setTransactionType(transactionType)
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("/abc")
+                        .setAggregate(aggregate))
+                .build();
+    }
+
+    private static Aggregate.SharedQueryText sharedQueryText(String fullText) {
+        return Aggregate.SharedQueryText.newBuilder()
+                .setFullText(fullText)
+                .build();
+    }
+}
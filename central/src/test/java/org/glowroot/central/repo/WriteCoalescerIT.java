@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.central.util.Session;
+import org.glowroot.central.util.WriteCoalescer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+// see WriteCoalescerPerformanceMain for comparing throughput and latency against individual writes
+public class WriteCoalescerIT {
+
+    // these are the defaults of glowroot.internal.cassandra.batch.maxStatements and
+    // glowroot.internal.cassandra.batch.maxBytes
+    private static final int MAX_BATCH_STATEMENTS = 50;
+    private static final int MAX_BATCH_BYTES = 4096;
+
+    private static Cluster cluster;
+    private static Session session;
+    private static PreparedStatement insertPS;
+    private static PreparedStatement readPS;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        cluster = Clusters.newCluster();
+        session = new Session(cluster.newSession(), "glowroot_unit_tests", null,
+                PoolingOptions.DEFAULT_MAX_QUEUE_SIZE);
+        session.createTableWithLCS("create table if not exists write_coalescer_test (partition_key"
+                + " varchar, row_key int, value varchar, primary key (partition_key, row_key))");
+        insertPS = session.prepare("insert into write_coalescer_test (partition_key, row_key,"
+                + " value) values (?, ?, ?)");
+        readPS = session.prepare(
+                "select count(*) from write_coalescer_test where partition_key = ?");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        session.updateSchemaWithRetry("drop table if exists write_coalescer_test");
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Before
+    public void before() throws Exception {
+        session.updateSchemaWithRetry("truncate write_coalescer_test");
+    }
+
+    @Test
+    public void shouldBatchRowsByPartition() throws Exception {
+        // given
+        Session spySession = spy(session);
+        WriteCoalescer writeCoalescer = new WriteCoalescer(spySession);
+
+        // when
+        // interleave the partitions, similar to how aggregate rows are written
+        for (int j = 0; j < 10; j++) {
+            for (int i = 0; i < 5; i++) {
+                writeCoalescer.add(bind("p" + i, j, "x"));
+            }
+        }
+        writeCoalescer.add(bind("single", 0, "x"));
+        Futures.allAsList(writeCoalescer.flush()).get();
+
+        // then
+        List<Statement> statements = getWrittenStatements(spySession);
+        assertThat(statements).hasSize(6);
+        List<String> batchedPartitionKeys = new ArrayList<>();
+        for (Statement statement : statements) {
+            if (statement instanceof BatchStatement) {
+                BatchStatement batchStatement = (BatchStatement) statement;
+                assertThat(batchStatement.size()).isEqualTo(10);
+                String partitionKey = null;
+                for (Statement child : batchStatement.getStatements()) {
+                    String childPartitionKey = ((BoundStatement) child).getString(0);
+                    if (partitionKey == null) {
+                        partitionKey = childPartitionKey;
+                    }
+                    // rows for different partitions are never batched together
+                    assertThat(childPartitionKey).isEqualTo(partitionKey);
+                }
+                batchedPartitionKeys.add(partitionKey);
+            } else {
+                // a single row is not wrapped in a batch
+                assertThat(((BoundStatement) statement).getString(0)).isEqualTo("single");
+            }
+        }
+        assertThat(batchedPartitionKeys).containsOnly("p0", "p1", "p2", "p3", "p4");
+        for (int i = 0; i < 5; i++) {
+            assertThat(readRowCount("p" + i)).isEqualTo(10);
+        }
+        assertThat(readRowCount("single")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSplitBatchAtMaxStatements() throws Exception {
+        // given
+        Session spySession = spy(session);
+        WriteCoalescer writeCoalescer = new WriteCoalescer(spySession);
+        int rowCount = 2 * MAX_BATCH_STATEMENTS + 20;
+
+        // when
+        for (int i = 0; i < rowCount; i++) {
+            writeCoalescer.add(bind("many", i, "x"));
+        }
+        Futures.allAsList(writeCoalescer.flush()).get();
+
+        // then
+        List<Statement> statements = getWrittenStatements(spySession);
+        assertThat(statements).hasSize(3);
+        assertThat(((BatchStatement) statements.get(0)).size()).isEqualTo(MAX_BATCH_STATEMENTS);
+        assertThat(((BatchStatement) statements.get(1)).size()).isEqualTo(MAX_BATCH_STATEMENTS);
+        assertThat(((BatchStatement) statements.get(2)).size()).isEqualTo(20);
+        assertThat(readRowCount("many")).isEqualTo(rowCount);
+    }
+
+    @Test
+    public void shouldSplitBatchAtMaxBytes() throws Exception {
+        // given
+        Session spySession = spy(session);
+        WriteCoalescer writeCoalescer = new WriteCoalescer(spySession);
+        // partition key (3 bytes) + row key (4 bytes) + value (1000 bytes), so 4 rows per batch
+        String value = Strings.repeat("x", 1000);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            writeCoalescer.add(bind("big", i, value));
+        }
+        Futures.allAsList(writeCoalescer.flush()).get();
+
+        // then
+        List<Statement> statements = getWrittenStatements(spySession);
+        assertThat(statements).hasSize(3);
+        assertThat(((BatchStatement) statements.get(0)).size()).isEqualTo(4);
+        assertThat(((BatchStatement) statements.get(1)).size()).isEqualTo(4);
+        assertThat(((BatchStatement) statements.get(2)).size()).isEqualTo(2);
+        for (Statement statement : statements) {
+            assertThat(getBytes((BatchStatement) statement)).isLessThanOrEqualTo(MAX_BATCH_BYTES);
+        }
+        assertThat(readRowCount("big")).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldWriteLargeRowsIndividually() throws Exception {
+        // given
+        Session spySession = spy(session);
+        WriteCoalescer writeCoalescer = new WriteCoalescer(spySession);
+        String largeValue = Strings.repeat("x", 2 * MAX_BATCH_BYTES);
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            writeCoalescer.add(bind("large", i, largeValue));
+        }
+        List<ListenableFuture<?>> futures = writeCoalescer.flush();
+        Futures.allAsList(futures).get();
+
+        // then
+        assertThat(futures).hasSize(3);
+        for (Statement statement : getWrittenStatements(spySession)) {
+            assertThat(statement).isInstanceOf(BoundStatement.class);
+        }
+        assertThat(readRowCount("large")).isEqualTo(3);
+    }
+
+    private static List<Statement> getWrittenStatements(Session spySession) throws Exception {
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(spySession, atLeastOnce()).writeAsync(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static BoundStatement bind(String partitionKey, int rowKey, String value) {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, partitionKey);
+        boundStatement.setInt(i++, rowKey);
+        boundStatement.setString(i++, value);
+        return boundStatement;
+    }
+
+    private static long readRowCount(String partitionKey) throws Exception {
+        BoundStatement boundStatement = readPS.bind();
+        boundStatement.setString(0, partitionKey);
+        ResultSet results = session.read(boundStatement);
+        return results.one().getLong(0);
+    }
+
+    private static int getBytes(BatchStatement batchStatement) {
+        int bytes = 0;
+        for (Statement statement : batchStatement.getStatements()) {
+            BoundStatement boundStatement = (BoundStatement) statement;
+            for (int i = 0; i < 3; i++) {
+                bytes += boundStatement.getBytesUnsafe(i).remaining();
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.Session;
+import org.glowroot.central.util.WriteCoalescer;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// compares WriteCoalescer against writing each row individually, using a write shape similar to
+// storing aggregates (a handful of partitions, e.g. one per transaction name, each with many small
+// rows, e.g. queries and service calls)
+public class WriteCoalescerPerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(WriteCoalescerPerformanceMain.class);
+
+    private static final int PARTITIONS = 20;
+    private static final int ROWS_PER_PARTITION = 50;
+    private static final int VALUE_LENGTH = 40;
+
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    private static Session session;
+    private static PreparedStatement insertPS;
+
+    private WriteCoalescerPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        CassandraWrapper.start();
+        Cluster cluster = Clusters.newCluster();
+        session = new Session(cluster.newSession(), "glowroot_unit_tests", null,
+                PoolingOptions.DEFAULT_MAX_QUEUE_SIZE);
+        session.createTableWithLCS("create table if not exists write_coalescer_perf (partition_key"
+                + " varchar, row_key int, value varchar, primary key (partition_key, row_key))");
+        insertPS = session.prepare("insert into write_coalescer_perf (partition_key, row_key,"
+                + " value) values (?, ?, ?)");
+        try {
+            run();
+        } finally {
+            session.updateSchemaWithRetry("drop table if exists write_coalescer_perf");
+            session.close();
+            cluster.close();
+            CassandraWrapper.stop();
+        }
+    }
+
+    private static void run() throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            writeIndividually(i);
+            writeCoalesced(i);
+        }
+        Result individual = new Result();
+        Result coalesced = new Result();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            int iteration = WARMUP_ITERATIONS + i;
+            // alternate the order to even out any warming of the cassandra side
+            if (i % 2 == 0) {
+                measureIndividually(iteration, individual, i);
+                measureCoalesced(iteration, coalesced, i);
+            } else {
+                measureCoalesced(iteration, coalesced, i);
+                measureIndividually(iteration, individual, i);
+            }
+        }
+        logger.info("{} partitions x {} rows, {} iterations", PARTITIONS, ROWS_PER_PARTITION,
+                MEASURED_ITERATIONS);
+        individual.log("individual");
+        coalesced.log("coalesced");
+    }
+
+    private static void measureIndividually(int iteration, Result result, int index)
+            throws Exception {
+        long startTime = System.nanoTime();
+        result.statements += writeIndividually(iteration);
+        result.record(index, System.nanoTime() - startTime);
+    }
+
+    private static void measureCoalesced(int iteration, Result result, int index)
+            throws Exception {
+        long startTime = System.nanoTime();
+        result.statements += writeCoalesced(iteration);
+        result.record(index, System.nanoTime() - startTime);
+    }
+
+    private static int writeIndividually(int iteration) throws Exception {
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            String partitionKey = getPartitionKey(iteration, i);
+            for (int j = 0; j < ROWS_PER_PARTITION; j++) {
+                futures.add(session.writeAsync(bind(partitionKey, j)));
+            }
+        }
+        Futures.allAsList(futures).get();
+        return futures.size();
+    }
+
+    private static int writeCoalesced(int iteration) throws Exception {
+        WriteCoalescer writeCoalescer = new WriteCoalescer(session);
+        // interleave the partitions, similar to how aggregate rows are written
+        for (int j = 0; j < ROWS_PER_PARTITION; j++) {
+            for (int i = 0; i < PARTITIONS; i++) {
+                writeCoalescer.add(bind(getPartitionKey(iteration, i), j));
+            }
+        }
+        List<ListenableFuture<?>> futures = writeCoalescer.flush();
+        Futures.allAsList(futures).get();
+        return futures.size();
+    }
+
+    private static BoundStatement bind(String partitionKey, int rowKey) {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, partitionKey);
+        boundStatement.setInt(i++, rowKey);
+        boundStatement.setString(i++, Strings.padEnd("row" + rowKey, VALUE_LENGTH, '-'));
+        return boundStatement;
+    }
+
+    private static String getPartitionKey(int iteration, int partition) {
+        return "partition-" + iteration + "-" + partition;
+    }
+
+    // latency is measured per iteration, i.e. the time to write (and wait for) all rows of a
+    // single aggregate-shaped write
+    private static class Result {
+
+        private final long[] latencyNanos = new long[MEASURED_ITERATIONS];
+        private long totalNanos;
+        private long statements;
+
+        private void record(int index, long nanos) {
+            latencyNanos[index] = nanos;
+            totalNanos += nanos;
+        }
+
+        private void log(String name) {
+            long[] sorted = latencyNanos.clone();
+            Arrays.sort(sorted);
+            long p99Nanos = sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+            double totalSeconds = totalNanos / (double) SECONDS.toNanos(1);
+            long rows = (long) PARTITIONS * ROWS_PER_PARTITION * MEASURED_ITERATIONS;
+            logger.info("{}: {} statements/sec, {} rows/sec, p99 latency {} ms", name,
+                    Math.round(statements / totalSeconds), Math.round(rows / totalSeconds),
+                    NANOSECONDS.toMillis(p99Nanos));
+        }
+    }
+}
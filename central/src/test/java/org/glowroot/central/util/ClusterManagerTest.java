@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClusterManagerTest {
+
+    private static final List<String> MEMBERS = ImmutableList.of("node-a", "node-b", "node-c");
+
+    @Test
+    public void shouldNotDependOnMemberOrder() {
+        List<String> shuffled = new ArrayList<>(MEMBERS);
+        for (int i = 0; i < 1000; i++) {
+            Collections.shuffle(shuffled);
+            String key = "agent-" + i;
+            assertThat(ClusterManager.getPartitionOwner(shuffled, key))
+                    .isEqualTo(ClusterManager.getPartitionOwner(MEMBERS, key));
+        }
+    }
+
+    @Test
+    public void shouldSpreadKeysAcrossMembers() {
+        // when
+        Map<String, Integer> counts = Maps.newHashMap();
+        for (int i = 0; i < 3000; i++) {
+            String owner = ClusterManager.getPartitionOwner(MEMBERS, "agent-" + i);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        // then
+        assertThat(counts).hasSize(3);
+        for (int count : counts.values()) {
+            assertThat(count).isBetween(800, 1200);
+        }
+    }
+
+    @Test
+    public void shouldOnlyReassignKeysOfRemovedMember() {
+        // given
+        List<String> remainingMembers = ImmutableList.of("node-a", "node-c");
+        // when
+        int reassigned = 0;
+        for (int i = 0; i < 1000; i++) {
+            String key = "agent-" + i;
+            String owner = ClusterManager.getPartitionOwner(MEMBERS, key);
+            String newOwner = ClusterManager.getPartitionOwner(remainingMembers, key);
+            // then
+            if (owner.equals("node-b")) {
+                assertThat(newOwner).isIn(remainingMembers);
+                reassigned++;
+            } else {
+                assertThat(newOwner).isEqualTo(owner);
+            }
+        }
+        assertThat(reassigned).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldOnlyTakeOverKeysForAddedMember() {
+        // given
+        List<String> moreMembers = ImmutableList.of("node-a", "node-b", "node-c", "node-d");
+        // when
+        for (int i = 0; i < 1000; i++) {
+            String key = "agent-" + i;
+            String owner = ClusterManager.getPartitionOwner(MEMBERS, key);
+            String newOwner = ClusterManager.getPartitionOwner(moreMembers, key);
+            // then
+            assertThat(newOwner).isIn(owner, "node-d");
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.QueryConcurrencyLimiter.QueryClass;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryConcurrencyLimiterTest {
+
+    private FakeTicker ticker;
+
+    @Before
+    public void beforeEach() {
+        ticker = new FakeTicker();
+    }
+
+    @Test
+    public void shouldStartWithStaticSplit() {
+        // when
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(40, ticker);
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(40);
+        assertThat(limiter.getBudget(QueryClass.READ)).isEqualTo(10);
+        assertThat(limiter.getBudget(QueryClass.WRITE)).isEqualTo(20);
+        assertThat(limiter.getBudget(QueryClass.ROLLUP)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldDecreaseLimitWhenLatencyIncreases() throws Exception {
+        // given
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(40, ticker);
+        runWindow(limiter, MILLISECONDS.toNanos(1));
+        // when
+        runWindow(limiter, MILLISECONDS.toNanos(4));
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(20);
+        assertThat(limiter.getBudget(QueryClass.WRITE)).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldNotDecreaseLimitWithinLatencyTolerance() throws Exception {
+        // given
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(40, ticker);
+        runWindow(limiter, MILLISECONDS.toNanos(1));
+        // when
+        runWindow(limiter, MILLISECONDS.toNanos(2));
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(40);
+    }
+
+    @Test
+    public void shouldDecreaseLimitOnOverloadAndRecover() throws Exception {
+        // given
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(40, ticker);
+        limiter.acquire(QueryClass.WRITE);
+        ticker.advance(SECONDS.toNanos(1));
+        // when
+        limiter.release(QueryClass.WRITE, -1, true);
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(32);
+        // when
+        for (int i = 0; i < 32; i++) {
+            limiter.acquire(QueryClass.WRITE);
+        }
+        ticker.advance(SECONDS.toNanos(1));
+        for (int i = 0; i < 32; i++) {
+            limiter.release(QueryClass.WRITE, MILLISECONDS.toNanos(1), false);
+        }
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(33);
+    }
+
+    @Test
+    public void shouldNeverGoBelowMinLimit() throws Exception {
+        // given
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(40, ticker);
+        // when
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(QueryClass.READ);
+            ticker.advance(SECONDS.toNanos(1));
+            limiter.release(QueryClass.READ, -1, true);
+        }
+        // then
+        assertThat(limiter.getLimit()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldBorrowIdleCapacity() throws Exception {
+        // given
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(8, ticker);
+        // when
+        for (int i = 0; i < 8; i++) {
+            limiter.acquire(QueryClass.WRITE);
+        }
+        // then
+        assertThat(limiter.getInUse(QueryClass.WRITE)).isEqualTo(8);
+        assertThat(limiter.getBudget(QueryClass.WRITE)).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldGiveGuaranteedShareBeforeBorrowing() throws Exception {
+        // given
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(8, ticker);
+        for (int i = 0; i < 8; i++) {
+            limiter.acquire(QueryClass.WRITE);
+        }
+        Thread read = acquireInThread(limiter, QueryClass.READ);
+        Thread write = acquireInThread(limiter, QueryClass.WRITE);
+        while (limiter.getWaiting(QueryClass.READ) != 1
+                || limiter.getWaiting(QueryClass.WRITE) != 1) {
+            Thread.sleep(1);
+        }
+        // when
+        limiter.release(QueryClass.WRITE, -1, false);
+        read.join();
+        // then
+        assertThat(limiter.getInUse(QueryClass.READ)).isEqualTo(1);
+        assertThat(limiter.getWaiting(QueryClass.WRITE)).isEqualTo(1);
+        // when
+        limiter.release(QueryClass.WRITE, -1, false);
+        write.join();
+        // then
+        assertThat(limiter.getInUse(QueryClass.WRITE)).isEqualTo(7);
+    }
+
+    @Test(timeout = 60000)
+    public void shouldNotLosePermitsUnderContention() throws Exception {
+        // given
+        QueryConcurrencyLimiter limiter = new QueryConcurrencyLimiter(8, ticker);
+        List<Thread> threads = new ArrayList<>();
+        for (QueryClass queryClass : QueryClass.values()) {
+            for (int i = 0; i < 4; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 10000; j++) {
+                                limiter.acquire(queryClass);
+                                limiter.release(queryClass, -1, false);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }));
+            }
+        }
+        // when
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // then
+        for (QueryClass queryClass : QueryClass.values()) {
+            assertThat(limiter.getInUse(queryClass)).isEqualTo(0);
+            assertThat(limiter.getWaiting(queryClass)).isEqualTo(0);
+        }
+        // all permits can be acquired again (this would block if any were lost)
+        for (int i = 0; i < 8; i++) {
+            limiter.acquire(QueryClass.READ);
+        }
+        assertThat(limiter.getInUse(QueryClass.READ)).isEqualTo(8);
+    }
+
+    private void runWindow(QueryConcurrencyLimiter limiter, long latencyNanos) throws Exception {
+        limiter.acquire(QueryClass.WRITE);
+        limiter.release(QueryClass.WRITE, latencyNanos, false);
+        limiter.acquire(QueryClass.WRITE);
+        ticker.advance(SECONDS.toNanos(1));
+        limiter.release(QueryClass.WRITE, latencyNanos, false);
+    }
+
+    private static Thread acquireInThread(QueryConcurrencyLimiter limiter,
+            QueryClass queryClass) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(queryClass);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        private void advance(long deltaNanos) {
+            nanos += deltaNanos;
+        }
+    }
+}
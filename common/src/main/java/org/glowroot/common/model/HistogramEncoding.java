@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+
+import org.HdrHistogram.Histogram;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+
+// reads and writes the HdrHistogram V2 encoding (the same bytes as
+// AbstractHistogram.encodeIntoByteBuffer() and AbstractHistogram.decodeFromByteBuffer()), but
+// decoding directly into an existing histogram instead of into a temporary histogram, and encoding
+// directly into an exactly sized byte array that can be wrapped (instead of copied) into the
+// resulting ByteString
+//
+// the encoding is a 40 byte header, followed by the counts array (up to and including the index
+// of the max value) as ZigZag LEB128 encoded longs, where a negative value is a run of zero counts
+class HistogramEncoding {
+
+    // V2EncodingCookieBase | 0x10 (the low bit of the word size nibble indicates the zero count
+    // run encoding)
+    private static final int V2_ENCODING_COOKIE = 0x1c849303 | 0x10;
+
+    private static final int HEADER_SIZE = 40;
+
+    private HistogramEncoding() {}
+
+    static byte[] encode(Histogram histogram, ScratchBuffer scratchBuffer) {
+        int sigDigits = histogram.getNumberOfSignificantValueDigits();
+        long lowestDiscernibleValue = histogram.getLowestDiscernibleValue();
+        int unitMagnitude = getUnitMagnitude(lowestDiscernibleValue);
+        int subBucketHalfCountMagnitude = getSubBucketHalfCountMagnitude(sigDigits);
+        int lastIndex = countsArrayIndex(histogram.getMaxValue(), unitMagnitude,
+                subBucketHalfCountMagnitude);
+        synchronized (scratchBuffer.lock) {
+            // first pass collects the non-zero counts (which is typically a small fraction of the
+            // counts array) and computes the exact encoded size, second pass only needs to visit
+            // the collected counts
+            long[] entries = scratchBuffer.entries;
+            int entryCount = 0;
+            int payloadSize = 0;
+            int priorIndex = -1;
+            long value = 0;
+            for (int i = 0; i <= lastIndex; i++) {
+                // getCountAtValue() is the only public access to the counts
+                long count = histogram.getCountAtValue(value);
+                value = histogram.nextNonEquivalentValue(value);
+                if (count == 0) {
+                    continue;
+                }
+                if (entryCount + 2 > entries.length) {
+                    entries = scratchBuffer.grow(entryCount + 2);
+                }
+                entries[entryCount++] = i;
+                entries[entryCount++] = count;
+                payloadSize += getZeroRunSize(i - priorIndex - 1) + getZigZagSize(count);
+                priorIndex = i;
+            }
+            payloadSize += getZeroRunSize(lastIndex - priorIndex);
+
+            byte[] bytes = new byte[HEADER_SIZE + payloadSize];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.putInt(V2_ENCODING_COOKIE);
+            buffer.putInt(payloadSize);
+            // normalizing index offset is only non-zero for shifted histograms
+            buffer.putInt(0);
+            buffer.putInt(sigDigits);
+            buffer.putLong(lowestDiscernibleValue);
+            buffer.putLong(histogram.getHighestTrackableValue());
+            // integer to double value conversion ratio
+            buffer.putDouble(1.0);
+            priorIndex = -1;
+            for (int j = 0; j < entryCount; j += 2) {
+                int index = (int) entries[j];
+                putZeroRun(buffer, index - priorIndex - 1);
+                putZigZag(buffer, entries[j + 1]);
+                priorIndex = index;
+            }
+            putZeroRun(buffer, lastIndex - priorIndex);
+            return bytes;
+        }
+    }
+
+    // returns false if the encoding is not supported (e.g. it was encoded by a different version
+    // of HdrHistogram), in which case nothing has been recorded into the histogram
+    static boolean decodeInto(ByteBuffer buffer, Histogram histogram) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        int start = buffer.position();
+        if (buffer.getInt(start) != V2_ENCODING_COOKIE) {
+            return false;
+        }
+        int payloadSize = buffer.getInt(start + 4);
+        if (buffer.getInt(start + 8) != 0 || buffer.remaining() < HEADER_SIZE + payloadSize) {
+            // shifted histograms are not supported
+            return false;
+        }
+        int sigDigits = buffer.getInt(start + 12);
+        long lowestDiscernibleValue = buffer.getLong(start + 16);
+        int unitMagnitude = getUnitMagnitude(lowestDiscernibleValue);
+        int subBucketHalfCountMagnitude = getSubBucketHalfCountMagnitude(sigDigits);
+        int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+        buffer.position(start + HEADER_SIZE);
+        int end = start + HEADER_SIZE + payloadSize;
+        int index = 0;
+        while (buffer.position() < end) {
+            long count = getZigZag(buffer);
+            if (count < 0) {
+                // run of zero counts
+                index += (int) -count;
+            } else {
+                if (count > 0) {
+                    // if the histogram has the same structure (which is always the case for
+                    // histograms encoded by LazyHistogram), then the value maps back to the same
+                    // index, otherwise this is the same as AbstractHistogram.add()
+                    histogram.recordValueWithCount(valueFromIndex(index, unitMagnitude,
+                            subBucketHalfCountMagnitude, subBucketHalfCount), count);
+                }
+                index++;
+            }
+        }
+        return true;
+    }
+
+    // the following match the (package private) bucket calculations in AbstractHistogram
+
+    private static int getUnitMagnitude(long lowestDiscernibleValue) {
+        return (int) (Math.log(lowestDiscernibleValue) / Math.log(2));
+    }
+
+    private static int getSubBucketHalfCountMagnitude(int sigDigits) {
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, sigDigits);
+        int subBucketCountMagnitude =
+                (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        return (subBucketCountMagnitude > 1 ? subBucketCountMagnitude : 1) - 1;
+    }
+
+    private static int countsArrayIndex(long value, int unitMagnitude,
+            int subBucketHalfCountMagnitude) {
+        long subBucketMask = ((1L << (subBucketHalfCountMagnitude + 1)) - 1) << unitMagnitude;
+        int leadingZeroCountBase = 64 - unitMagnitude - subBucketHalfCountMagnitude - 1;
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+        int subBucketIndex = (int) (value >>> (bucketIndex + unitMagnitude));
+        int bucketBaseIndex = (bucketIndex + 1) << subBucketHalfCountMagnitude;
+        return bucketBaseIndex + subBucketIndex - (1 << subBucketHalfCountMagnitude);
+    }
+
+    private static long valueFromIndex(int index, int unitMagnitude,
+            int subBucketHalfCountMagnitude, int subBucketHalfCount) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << (bucketIndex + unitMagnitude);
+    }
+
+    // a single zero count is encoded as a zero count (same as AbstractHistogram)
+    private static int getZeroRunSize(int zeroCount) {
+        if (zeroCount == 0) {
+            return 0;
+        }
+        return getZigZagSize(zeroCount == 1 ? 0 : -zeroCount);
+    }
+
+    private static void putZeroRun(ByteBuffer buffer, int zeroCount) {
+        if (zeroCount != 0) {
+            putZigZag(buffer, zeroCount == 1 ? 0 : -zeroCount);
+        }
+    }
+
+    private static int getZigZagSize(long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while (size < 9 && (zigZag >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    // ZigZag LEB128 with up to 9 bytes, the 9th byte holding the top 8 bits
+    private static void putZigZag(ByteBuffer buffer, long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        for (int i = 0; i < 8; i++) {
+            if ((zigZag >>> 7) == 0) {
+                buffer.put((byte) zigZag);
+                return;
+            }
+            buffer.put((byte) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        buffer.put((byte) zigZag);
+    }
+
+    private static long getZigZag(ByteBuffer buffer) {
+        long zigZag = 0;
+        for (int i = 0; i < 8; i++) {
+            long b = buffer.get();
+            zigZag |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        zigZag |= ((long) buffer.get()) << 56;
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,13 +15,11 @@
  */
 package org.glowroot.common.model;
 
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.HdrHistogram.Histogram;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -45,19 +43,21 @@ public class LazyHistogram {
     public LazyHistogram(Aggregate.Histogram hist) {
         ByteString encodedBytes = hist.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
-            List<Long> orderedRawValues = hist.getOrderedRawValueList();
-            values = new long[orderedRawValues.size()];
-            for (int i = 0; i < values.length; i++) {
-                values[i] = orderedRawValues.get(i);
+            int count = hist.getOrderedRawValueCount();
+            values = new long[count];
+            // using indexed access instead of getOrderedRawValueList() to avoid boxing
+            for (int i = 0; i < count; i++) {
+                values[i] = hist.getOrderedRawValue(i);
             }
-            size = values.length;
+            size = count;
+            sorted = true;
         } else {
-            histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            mergeEncodedBytes(encodedBytes);
         }
     }
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
-        final Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
         if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
@@ -68,22 +68,10 @@ public class LazyHistogram {
                 builder.addOrderedRawValue(values[i]);
             }
         } else {
-            scratchBuffer.execute(histogram.getNeededByteBufferCapacity(), new DoWithByteBuffer() {
-                @Override
-                public void call(ByteBuffer buffer) {
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.clear()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).clear();
-                    histogram.encodeIntoByteBuffer(buffer);
-                    int size = buffer.position();
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).flip();
-                    builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
-                }
-            });
+            // the encoded bytes are written into an exactly sized array which is then owned by the
+            // ByteString, so there is no need to copy it
+            byte[] encodedBytes = HistogramEncoding.encode(histogram, scratchBuffer);
+            builder.setEncodedBytes(UnsafeByteOperations.unsafeWrap(encodedBytes));
         }
         return builder.build();
     }
@@ -91,21 +79,29 @@ public class LazyHistogram {
     public void merge(Aggregate.Histogram toBeMergedHistogram) {
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
-            for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
-                add(rawValue);
+            int count = toBeMergedHistogram.getOrderedRawValueCount();
+            ensureCapacity(size + count);
+            // using indexed access instead of getOrderedRawValueList() to avoid boxing
+            for (int i = 0; i < count; i++) {
+                addWithoutEnsuringCapacity(toBeMergedHistogram.getOrderedRawValue(i));
             }
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
-            }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            mergeEncodedBytes(encodedBytes);
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
         if (toBeMergedHistogram.histogram == null) {
-            for (int i = 0; i < toBeMergedHistogram.size; i++) {
-                add(toBeMergedHistogram.values[i]);
+            int count = toBeMergedHistogram.size;
+            ensureCapacity(size + count);
+            if (histogram == null) {
+                System.arraycopy(toBeMergedHistogram.values, 0, values, size, count);
+                size += count;
+                sorted = false;
+            } else {
+                for (int i = 0; i < count; i++) {
+                    histogram.recordValue(toBeMergedHistogram.values[i]);
+                }
             }
         } else {
             if (histogram == null) {
@@ -136,6 +132,10 @@ public class LazyHistogram {
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
+        addWithoutEnsuringCapacity(value);
+    }
+
+    private void addWithoutEnsuringCapacity(long value) {
         if (histogram != null) {
             histogram.recordValue(value);
         } else {
@@ -160,6 +160,18 @@ public class LazyHistogram {
         }
     }
 
+    private void mergeEncodedBytes(ByteString encodedBytes) {
+        if (histogram == null) {
+            convertValuesToHistogram();
+        }
+        // decoding directly into the histogram instead of decoding into a temporary histogram and
+        // then adding that (this is the common case when rolling up, and when reading aggregates
+        // for percentile charts)
+        if (!HistogramEncoding.decodeInto(encodedBytes.asReadOnlyByteBuffer(), histogram)) {
+            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+        }
+    }
+
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
         // tracking nanoseconds, but only at microsecond precision (to save histogram space)
@@ -178,21 +190,23 @@ public class LazyHistogram {
 
     public static class ScratchBuffer {
 
-        private @MonotonicNonNull ByteBuffer buffer;
+        final Object lock = new Object();
 
-        private final Object lock = new Object();
+        // index/count pairs of the non-zero histogram counts, guarded by lock
+        long[] entries = new long[0];
 
-        void execute(int requiredCapacity, DoWithByteBuffer doWithBuffer) {
+        long[] grow(int requiredLength) {
+            // grow geometrically so that a scratch buffer that is reused across many histograms of
+            // increasing size is not re-allocated for each one
+            entries = Arrays.copyOf(entries, Math.max(requiredLength, entries.length * 2));
+            return entries;
+        }
+
+        @VisibleForTesting
+        int capacity() {
             synchronized (lock) {
-                if (buffer == null || buffer.capacity() < requiredCapacity) {
-                    buffer = ByteBuffer.allocate(requiredCapacity);
-                }
-                doWithBuffer.call(buffer);
+                return entries.length;
             }
         }
     }
-
-    interface DoWithByteBuffer {
-        void call(ByteBuffer buffer);
-    }
 }
@@ -17,6 +17,7 @@ package org.glowroot.common.model;
 
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
@@ -34,6 +35,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
+import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +49,11 @@ public class MutableProfile {
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    // child nodes are found by linear scan until the number of children exceeds this threshold,
+    // after which they are also indexed in an open addressing hash table (deep stack traces with
+    // wide fan-out otherwise make merging O(depth * siblings))
+    private static final int CHILD_INDEX_THRESHOLD = 8;
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -58,7 +65,7 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    private final ProfileNodeList rootNodes = new ProfileNodeList();
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
@@ -78,7 +85,7 @@ public class MutableProfile {
         PeekingIterator<StackTraceElement> i =
                 Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
         ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
+        ProfileNodeList mergeIntoNodes = rootNodes;
 
         boolean lookingForMatch = true;
         while (i.hasNext()) {
@@ -107,19 +114,14 @@ public class MutableProfile {
 
             ProfileNode node = null;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = mergeIntoNodes.find(packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
             }
             if (node == null) {
                 lookingForMatch = false;
                 node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
                         fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                mergeIntoNodes.addAndIndex(node);
             }
             node.sampleCount++;
             lastMatchedNode = node;
@@ -230,6 +232,12 @@ public class MutableProfile {
         jg.writeEndObject();
     }
 
+    // writes the same json as writeJson(), but a limited number of nodes at a time, so that the
+    // json for a large profile can be streamed out without building it all up front
+    public IncrementalJsonWriter getIncrementalJsonWriter(JsonGenerator jg) {
+        return new IncrementalJsonWriter(jg);
+    }
+
     public String toFlameGraphJson() throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
@@ -300,6 +308,18 @@ public class MutableProfile {
                 && packageNameIndex == profileNode.packageNameIndex;
     }
 
+    private static int hash(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
+        int hash = packageNameIndex;
+        hash = 31 * hash + classNameIndex;
+        hash = 31 * hash + methodNameIndex;
+        hash = 31 * hash + fileNameIndex;
+        hash = 31 * hash + lineNumber;
+        hash = 31 * hash + leafThreadState.ordinal();
+        // spread bits since table size is a power of two
+        return hash ^ (hash >>> 16);
+    }
+
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -329,7 +349,7 @@ public class MutableProfile {
 
         private long sampleCount;
 
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+        private ProfileNodeList childNodes = new ProfileNodeList();
 
         // these fields are only used for filtering
         private @Nullable String text;
@@ -371,6 +391,91 @@ public class MutableProfile {
         }
     }
 
+    // nodes that are added via addAndIndex() are indexed once the list grows past
+    // CHILD_INDEX_THRESHOLD, the index is rebuilt if nodes have been removed in the meantime (e.g.
+    // by filter() or truncateBranches())
+    @SuppressWarnings("serial")
+    private static class ProfileNodeList extends ArrayList<ProfileNode> {
+
+        private @Nullable ProfileNode /*@Nullable*/ [] index;
+        private int indexedSize;
+
+        private ProfileNodeList() {
+            super(2);
+        }
+
+        private @Nullable ProfileNode find(int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber,
+                Profile.LeafThreadState leafThreadState) {
+            int size = size();
+            if (size <= CHILD_INDEX_THRESHOLD) {
+                for (int i = 0; i < size; i++) {
+                    ProfileNode node = get(i);
+                    if (isMatch(node, packageNameIndex, classNameIndex, methodNameIndex,
+                            fileNameIndex, lineNumber, leafThreadState)) {
+                        return node;
+                    }
+                }
+                return null;
+            }
+            if (index == null || indexedSize != size) {
+                rebuildIndex();
+            }
+            ProfileNode[] index = this.index;
+            int mask = index.length - 1;
+            int i = hash(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                    lineNumber, leafThreadState) & mask;
+            while (true) {
+                ProfileNode node = index[i];
+                if (node == null) {
+                    return null;
+                }
+                if (isMatch(node, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState)) {
+                    return node;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void addAndIndex(ProfileNode node) {
+            add(node);
+            if (index == null || indexedSize != size() - 1) {
+                // index is built lazily on next find() if it is needed
+                index = null;
+                return;
+            }
+            if (size() * 2 > index.length) {
+                rebuildIndex();
+            } else {
+                insertIntoIndex(index, node);
+                indexedSize++;
+            }
+        }
+
+        @EnsuresNonNull("index")
+        private void rebuildIndex() {
+            // keep load factor at or below 0.5
+            int capacity = Integer.highestOneBit(size() * 4 - 1);
+            ProfileNode[] index = new ProfileNode[capacity];
+            for (ProfileNode node : this) {
+                insertIntoIndex(index, node);
+            }
+            this.index = index;
+            indexedSize = size();
+        }
+
+        private static void insertIntoIndex(ProfileNode[] index, ProfileNode node) {
+            int mask = index.length - 1;
+            int i = hash(node.packageNameIndex, node.classNameIndex, node.methodNameIndex,
+                    node.fileNameIndex, node.lineNumber, node.leafThreadState) & mask;
+            while (index[i] != null) {
+                i = (i + 1) & mask;
+            }
+            index[i] = node;
+        }
+    }
+
     private class Merger {
 
         private final int[] packageNameIndexMapping;
@@ -378,7 +483,7 @@ public class MutableProfile {
         private final int[] methodNameIndexMapping;
         private final int[] fileNameIndexMapping;
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        private final Deque<ProfileNodeList> destinationStack = Queues.newArrayDeque();
 
         private Merger(Profile toBeMergedProfile) {
             packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
@@ -392,7 +497,7 @@ public class MutableProfile {
         }
 
         private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
+                ProfileNodeList destinationRootNodes) {
             destinationStack.push(destinationRootNodes);
             PeekingIterator<Profile.ProfileNode> i =
                     Iterators.peekingIterator(flatNodes.iterator());
@@ -411,7 +516,7 @@ public class MutableProfile {
         }
 
         private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
+                ProfileNodeList destinationNodes) {
             int toBeMergedPackageNameIndex =
                     packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
             int toBeMergedClassNameIndex =
@@ -421,19 +526,18 @@ public class MutableProfile {
             int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
             int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
             Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
+            ProfileNode destinationNode = destinationNodes.find(toBeMergedPackageNameIndex,
+                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
+                    toBeMergedLineNumber, toBeMergedLeafThreadState);
+            if (destinationNode != null) {
+                merge(toBeMergedNode, destinationNode);
+                return destinationNode;
             }
             // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
+            destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
                     toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
                     toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
+            destinationNodes.addAndIndex(destinationNode);
             merge(toBeMergedNode, destinationNode);
             return destinationNode;
         }
@@ -578,6 +682,42 @@ public class MutableProfile {
         }
     }
 
+    public class IncrementalJsonWriter {
+
+        private final JsonGenerator jg;
+        private final Iterator<ProfileNode> remainingRootNodes;
+
+        private @Nullable ProfileWriter currProfileWriter;
+        private boolean started;
+
+        private IncrementalJsonWriter(JsonGenerator jg) {
+            this.jg = jg;
+            remainingRootNodes = rootNodes.iterator();
+        }
+
+        // returns false once the json is complete
+        public boolean writeNext(int maxNodes) throws IOException {
+            if (!started) {
+                jg.writeStartObject();
+                jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
+                jg.writeArrayFieldStart("rootNodes");
+                started = true;
+            }
+            if (currProfileWriter == null) {
+                if (!remainingRootNodes.hasNext()) {
+                    jg.writeEndArray();
+                    jg.writeEndObject();
+                    return false;
+                }
+                currProfileWriter = new ProfileWriter(remainingRootNodes.next(), jg);
+            }
+            if (!currProfileWriter.traverse(maxNodes)) {
+                currProfileWriter = null;
+            }
+            return true;
+        }
+    }
+
     private static class ProfileWriter extends Traverser<ProfileNode, IOException> {
 
         private final JsonGenerator jg;
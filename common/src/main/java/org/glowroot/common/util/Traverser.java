@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -33,33 +33,52 @@ public abstract class Traverser<T extends /*@NonNull*/ Object, E extends Excepti
         stack.push(root);
     }
 
-    @SuppressWarnings("unchecked")
     public void traverse() throws E {
         while (!stack.isEmpty()) {
-            Object popped = stack.pop();
-            if (popped == ALREADY_TRAVERSED_MARKER) {
-                revisitAfterChildren((T) stack.pop());
-                depth--;
-                continue;
-            }
-            T unprocessed = (T) popped;
-            List<T> childNodes = visit(unprocessed, depth);
-            if (childNodes.isEmpty()) {
-                // optimization for no children
-                revisitAfterChildren(unprocessed);
-            } else {
-                stack.push(unprocessed);
-                stack.push(ALREADY_TRAVERSED_MARKER);
-                ListIterator<T> i = childNodes.listIterator(childNodes.size());
-                while (i.hasPrevious()) {
-                    stack.push(i.previous());
-                }
-                depth++;
+            next();
+        }
+    }
+
+    // visits at most maxNodes nodes, so that a large traversal can be done in pieces
+    //
+    // returns false once the traversal is complete
+    public boolean traverse(int maxNodes) throws E {
+        int count = 0;
+        while (!stack.isEmpty() && count < maxNodes) {
+            if (next()) {
+                count++;
             }
         }
+        return !stack.isEmpty();
     }
 
     public abstract List<T> visit(T node, int depth) throws E;
 
     protected void revisitAfterChildren(@SuppressWarnings("unused") T node) throws E {};
+
+    // returns true if a node was visited (as opposed to revisited after its children)
+    @SuppressWarnings("unchecked")
+    private boolean next() throws E {
+        Object popped = stack.pop();
+        if (popped == ALREADY_TRAVERSED_MARKER) {
+            revisitAfterChildren((T) stack.pop());
+            depth--;
+            return false;
+        }
+        T unprocessed = (T) popped;
+        List<T> childNodes = visit(unprocessed, depth);
+        if (childNodes.isEmpty()) {
+            // optimization for no children
+            revisitAfterChildren(unprocessed);
+        } else {
+            stack.push(unprocessed);
+            stack.push(ALREADY_TRAVERSED_MARKER);
+            ListIterator<T> i = childNodes.listIterator(childNodes.size());
+            while (i.hasPrevious()) {
+                stack.push(i.previous());
+            }
+            depth++;
+        }
+        return true;
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,10 @@
  */
 package org.glowroot.common.model;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.HdrHistogram.Histogram;
 import org.junit.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -78,6 +82,131 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldMergeRawValues() {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            lazyHistogram.add(i * 1000);
+        }
+        LazyHistogram other = new LazyHistogram();
+        for (int i = 101; i <= 200; i++) {
+            other.add(i * 1000);
+        }
+        Aggregate.Histogram histogram = other.toProto(new ScratchBuffer());
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertThat(histogram.getEncodedBytes().isEmpty()).isTrue();
+        assertThat(lazyHistogram.getValueAtPercentile(0)).isEqualTo(1000);
+        assertThat(lazyHistogram.getValueAtPercentile(50)).isEqualTo(100000);
+        assertThat(lazyHistogram.getValueAtPercentile(100)).isEqualTo(200000);
+    }
+
+    @Test
+    public void shouldMergeEncodedHistograms() {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        LazyHistogram expected = new LazyHistogram();
+        for (int i = 1; i <= 2000; i++) {
+            lazyHistogram.add(i * 1000);
+            expected.add(i * 1000);
+        }
+        LazyHistogram other = new LazyHistogram();
+        for (int i = 2001; i <= 4000; i++) {
+            other.add(i * 1000);
+            expected.add(i * 1000);
+        }
+        Aggregate.Histogram histogram = other.toProto(new ScratchBuffer());
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertThat(histogram.getEncodedBytes().isEmpty()).isFalse();
+        assertSamePercentiles(lazyHistogram, expected);
+    }
+
+    @Test
+    public void shouldMergeEncodedHistogramIntoEmpty() {
+        // given
+        LazyHistogram other = new LazyHistogram();
+        for (int i = 1; i <= 2000; i++) {
+            other.add(i * 1000);
+        }
+        Aggregate.Histogram histogram = other.toProto(new ScratchBuffer());
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        // when
+        lazyHistogram.merge(histogram);
+        lazyHistogram.merge(histogram);
+        // then
+        LazyHistogram expected = new LazyHistogram();
+        for (int i = 1; i <= 2000; i++) {
+            expected.add(i * 1000);
+            expected.add(i * 1000);
+        }
+        assertSamePercentiles(lazyHistogram, expected);
+        assertSamePercentiles(new LazyHistogram(histogram), other);
+    }
+
+    @Test
+    public void shouldEncodeAndDecodeSameAsHdrHistogram() {
+        for (long max : new long[] {0, 1, 1000, 1000000, 100000000, 1L << 40}) {
+            // given
+            Histogram histogram = new Histogram(1000, 2000, 5);
+            histogram.setAutoResize(true);
+            for (int i = 0; i < 2000; i++) {
+                histogram.recordValue(max * i / 2000);
+            }
+            // large counts need the 9 byte LEB128 encoding
+            histogram.recordValueWithCount(max, 1L << 60);
+            // when
+            byte[] encodedBytes = HistogramEncoding.encode(histogram, new ScratchBuffer());
+            Histogram decodedHistogram = new Histogram(1000, 2000, 5);
+            decodedHistogram.setAutoResize(true);
+            boolean decoded = HistogramEncoding.decodeInto(ByteBuffer.wrap(encodedBytes),
+                    decodedHistogram);
+            // then
+            ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+            histogram.encodeIntoByteBuffer(buffer);
+            assertThat(encodedBytes)
+                    .isEqualTo(Arrays.copyOf(buffer.array(), buffer.position()));
+            assertThat(decoded).isTrue();
+            assertThat(decodedHistogram.getTotalCount()).isEqualTo(histogram.getTotalCount());
+            assertThat(HistogramEncoding.encode(decodedHistogram, new ScratchBuffer()))
+                    .isEqualTo(encodedBytes);
+        }
+    }
+
+    @Test
+    public void shouldGrowScratchBufferGeometrically() {
+        // given
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 1; i <= 2000; i++) {
+            lazyHistogram.add(i * 1000);
+        }
+        // when
+        lazyHistogram.toProto(scratchBuffer);
+        int capacity = scratchBuffer.capacity();
+        lazyHistogram.toProto(scratchBuffer);
+        LazyHistogram smaller = new LazyHistogram();
+        for (int i = 1; i <= 1500; i++) {
+            smaller.add(i * 1000);
+        }
+        smaller.toProto(scratchBuffer);
+        // then
+        // 2000 index/count pairs
+        assertThat(capacity).isGreaterThanOrEqualTo(4000);
+        assertThat(scratchBuffer.capacity()).isEqualTo(capacity);
+        synchronized (scratchBuffer.lock) {
+            scratchBuffer.grow(capacity + 1);
+        }
+        assertThat(scratchBuffer.capacity()).isEqualTo(2 * capacity);
+        synchronized (scratchBuffer.lock) {
+            scratchBuffer.grow(5 * capacity);
+        }
+        assertThat(scratchBuffer.capacity()).isEqualTo(5 * capacity);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -158,4 +287,12 @@ public class LazyHistogramTest {
         long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
         assertThat(lazyHistogram.getValueAtPercentile(percentile)).isBetween(low, high);
     }
+
+    private static void assertSamePercentiles(LazyHistogram lazyHistogram,
+            LazyHistogram expected) {
+        for (double percentile : new double[] {0, 50, 95, 99, 99.9, 99.99, 100}) {
+            assertThat(lazyHistogram.getValueAtPercentile(percentile))
+                    .isEqualTo(expected.getValueAtPercentile(percentile));
+        }
+    }
 }
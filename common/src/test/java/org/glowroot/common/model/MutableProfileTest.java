@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,6 +27,9 @@ import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
 
+import org.glowroot.common.model.MutableProfile.IncrementalJsonWriter;
+import org.glowroot.common.util.ObjectMappers;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class MutableProfileTest {
@@ -164,6 +167,42 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testIncrementalJsonIsSameAsSinglePass() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        // 20 root nodes, each with 1 + 10 + 100 nodes
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 100; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi" + j, "Def.java",
+                        123));
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi" + j % 10,
+                        "Def.java", 456));
+                stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main" + i,
+                        "Main.java", 789));
+                profile.merge(stackTraceElements,
+                        j % 2 == 0 ? Thread.State.RUNNABLE : Thread.State.BLOCKED);
+            }
+        }
+        String json = profile.toJson();
+        // when
+        for (int maxNodes : new int[] {1, 7, 111, 112, 1000, 10000}) {
+            StringBuilder sb = new StringBuilder();
+            JsonGenerator jg = ObjectMappers.create().getFactory()
+                    .createGenerator(CharStreams.asWriter(sb));
+            IncrementalJsonWriter incrementalJsonWriter = profile.getIncrementalJsonWriter(jg);
+            int chunks = 0;
+            while (incrementalJsonWriter.writeNext(maxNodes)) {
+                chunks++;
+            }
+            jg.close();
+            // then
+            assertThat(sb.toString()).isEqualTo(json);
+            assertThat(chunks).isGreaterThanOrEqualTo(2220 / maxNodes);
+        }
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraverserTest {
+
+    @Test
+    public void shouldTraverseInPiecesSameAsAllAtOnce() {
+        // given
+        Node root = createTree("r", 3, 4);
+        RecordingTraverser traverser = new RecordingTraverser(root);
+        traverser.traverse();
+        List<String> expected = traverser.events;
+        // when
+        for (int maxNodes : new int[] {1, 2, 3, 7, 1000}) {
+            RecordingTraverser piecewiseTraverser = new RecordingTraverser(root);
+            int pieces = 0;
+            while (piecewiseTraverser.traverse(maxNodes)) {
+                assertThat(piecewiseTraverser.visitCount).isLessThanOrEqualTo(
+                        (pieces + 1) * maxNodes);
+                pieces++;
+            }
+            // then
+            assertThat(piecewiseTraverser.events).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void shouldTraverseSingleNode() {
+        // given
+        RecordingTraverser traverser = new RecordingTraverser(new Node("r"));
+        // when
+        boolean more = traverser.traverse(1);
+        // then
+        assertThat(more).isFalse();
+        assertThat(traverser.events).containsExactly("visit r 0", "revisit r");
+    }
+
+    // 1 + 3 + 9 + 27 + 81 nodes
+    private static Node createTree(String name, int childCount, int depth) {
+        Node node = new Node(name);
+        if (depth > 0) {
+            for (int i = 0; i < childCount; i++) {
+                node.childNodes.add(createTree(name + "." + i, childCount, depth - 1));
+            }
+        }
+        return node;
+    }
+
+    private static class Node {
+
+        private final String name;
+        private final List<Node> childNodes = Lists.newArrayList();
+
+        private Node(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class RecordingTraverser extends Traverser<Node, RuntimeException> {
+
+        private final List<String> events = Lists.newArrayList();
+
+        private int visitCount;
+
+        private RecordingTraverser(Node root) {
+            super(root);
+        }
+
+        @Override
+        public List<Node> visit(Node node, int depth) {
+            events.add("visit " + node.name + " " + depth);
+            visitCount++;
+            return ImmutableList.copyOf(node.childNodes);
+        }
+
+        @Override
+        public void revisitAfterChildren(Node node) {
+            events.add("revisit " + node.name);
+        }
+    }
+}
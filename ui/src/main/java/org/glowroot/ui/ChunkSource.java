@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -21,11 +21,15 @@ import java.io.Writer;
 import java.util.Iterator;
 import java.util.List;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.io.CharSource;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 public abstract class ChunkSource {
 
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
     public abstract ChunkCopier getCopier(Writer writer) throws IOException;
 
     static ChunkSource create(final CharSource charSource) {
@@ -37,6 +41,19 @@ public abstract class ChunkSource {
         };
     }
 
+    // the json is generated as the chunks are copied, instead of building the whole json string
+    // up front, which matters for large json (e.g. trace entries and profiles)
+    //
+    // since the JsonChunkWriter is stateful, the returned chunk source can only be copied once
+    static ChunkSource create(final JsonChunkWriter jsonChunkWriter) {
+        return new ChunkSource() {
+            @Override
+            public ChunkCopier getCopier(Writer writer) throws IOException {
+                return new JsonChunkCopier(jsonChunkWriter, writer);
+            }
+        };
+    }
+
     static ChunkSource wrap(final String str) {
         return new ChunkSource() {
             @Override
@@ -61,6 +78,15 @@ public abstract class ChunkSource {
         boolean copyNext() throws IOException;
     }
 
+    interface JsonChunkWriter {
+
+        // writes the next chunk of json, returns false after writing the last chunk
+        //
+        // each call must write something, since ChunkedInputs keeps copying until something has
+        // been written
+        boolean writeNext(JsonGenerator jg) throws IOException;
+    }
+
     private static class ReaderChunkCopier implements ChunkCopier {
 
         private static final int CHUNK_SIZE = 8192;
@@ -134,6 +160,37 @@ public abstract class ChunkSource {
         }
     }
 
+    private static class JsonChunkCopier implements ChunkCopier {
+
+        private final JsonChunkWriter jsonChunkWriter;
+        private final JsonGenerator jg;
+
+        private volatile boolean closed;
+
+        private JsonChunkCopier(JsonChunkWriter jsonChunkWriter, Writer writer)
+                throws IOException {
+            this.jsonChunkWriter = jsonChunkWriter;
+            // the writer is shared with the other chunk sources (see concat()), so it must not be
+            // closed when the json is complete
+            jg = jsonFactory.createGenerator(writer)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+
+        @Override
+        public boolean copyNext() throws IOException {
+            if (closed) {
+                return false;
+            }
+            if (jsonChunkWriter.writeNext(jg)) {
+                jg.flush();
+            } else {
+                jg.close();
+                closed = true;
+            }
+            return true;
+        }
+    }
+
     private static class StringChunkCopier implements ChunkCopier {
 
         private final String str;
@@ -17,7 +17,6 @@ package org.glowroot.ui;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeoutException;
@@ -38,10 +37,12 @@ import org.glowroot.common.live.LiveTraceRepository.EntriesAndQueries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.Queries;
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableProfile.IncrementalJsonWriter;
 import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.AgentDisplayRepository;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.common2.repo.TraceRepository.HeaderPlus;
+import org.glowroot.ui.ChunkSource.JsonChunkWriter;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
@@ -53,6 +54,16 @@ class TraceCommonService {
 
     private static final JsonFactory jsonFactory = new JsonFactory();
 
+    // the json for trace entries, queries and profiles is generated this many elements at a time
+    // while streaming the response, see ChunkSource.create(JsonChunkWriter)
+    //
+    // this only avoids building the full json string, the entries, queries and profile are still
+    // read fully into memory for each request, so memory per request is still not bounded
+    @VisibleForTesting
+    static final int ELEMENTS_PER_CHUNK = 100;
+    @VisibleForTesting
+    static final int PROFILE_NODES_PER_CHUNK = 1000;
+
     private final TraceRepository traceRepository;
     private final LiveTraceRepository liveTraceRepository;
     private final AgentDisplayRepository agentDisplayRepository;
@@ -89,7 +100,7 @@ class TraceCommonService {
     }
 
     @Nullable
-    String getEntriesJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getEntriesJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -110,7 +121,7 @@ class TraceCommonService {
     }
 
     @Nullable
-    String getQueriesJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getQueriesJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -131,13 +142,13 @@ class TraceCommonService {
     }
 
     @Nullable
-    String getMainThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getMainThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
         return toJson(getMainThreadProfile(agentId, traceId, checkLiveTraces));
     }
 
     @Nullable
-    String getAuxThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getAuxThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
         return toJson(getAuxThreadProfile(agentId, traceId, checkLiveTraces));
     }
@@ -306,153 +317,102 @@ class TraceCommonService {
         return profile;
     }
 
-    private static @Nullable String toJson(@Nullable Entries entries) throws IOException {
+    @VisibleForTesting
+    static @Nullable ChunkSource toJson(@Nullable Entries entries) {
         if (entries == null) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            jg.writeStartObject();
-            jg.writeFieldName("entries");
-            writeEntries(jg, entries.entries());
-            jg.writeFieldName("sharedQueryTexts");
-            writeSharedQueryTexts(jg, entries.sharedQueryTexts());
-            jg.writeEndObject();
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return toJson("entries", new EntriesWriter(entries.entries()),
+                entries.sharedQueryTexts());
     }
 
-    private static @Nullable String toJson(@Nullable Queries queries) throws IOException {
+    private static @Nullable ChunkSource toJson(@Nullable Queries queries) {
         if (queries == null) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            jg.writeStartObject();
-            jg.writeFieldName("queries");
-            writeQueries(jg, queries.queries());
-            jg.writeFieldName("sharedQueryTexts");
-            writeSharedQueryTexts(jg, queries.sharedQueryTexts());
-            jg.writeEndObject();
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return toJson("queries", new QueriesWriter(queries.queries()),
+                queries.sharedQueryTexts());
+    }
+
+    // {"<fieldName>":[...],"sharedQueryTexts":[...]}
+    private static ChunkSource toJson(final String fieldName, final ArrayWriter<?> arrayWriter,
+            List<Trace.SharedQueryText> sharedQueryTexts) {
+        final SharedQueryTextsWriter sharedQueryTextsWriter =
+                new SharedQueryTextsWriter(sharedQueryTexts);
+        return ChunkSource.create(new JsonChunkWriter() {
+            @Override
+            public boolean writeNext(JsonGenerator jg) throws IOException {
+                if (!arrayWriter.completed) {
+                    if (!arrayWriter.started) {
+                        jg.writeStartObject();
+                        jg.writeFieldName(fieldName);
+                    }
+                    if (!arrayWriter.writeNext(jg)) {
+                        jg.writeFieldName("sharedQueryTexts");
+                    }
+                    return true;
+                }
+                if (sharedQueryTextsWriter.writeNext(jg)) {
+                    return true;
+                }
+                jg.writeEndObject();
+                return false;
+            }
+        });
     }
 
     @VisibleForTesting
-    static @Nullable String entriesToJson(List<Trace.Entry> entries) throws IOException {
+    static @Nullable ChunkSource entriesToJson(List<Trace.Entry> entries) {
         if (entries.isEmpty()) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            writeEntries(jg, entries);
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return toJson(new EntriesWriter(entries));
     }
 
-    @VisibleForTesting
-    static @Nullable String queriesToJson(List<Aggregate.Query> queries) throws IOException {
+    private static @Nullable ChunkSource queriesToJson(List<Aggregate.Query> queries) {
         if (queries.isEmpty()) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            writeQueries(jg, queries);
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return toJson(new QueriesWriter(queries));
     }
 
-    private static @Nullable String sharedQueryTextsToJson(
-            List<Trace.SharedQueryText> sharedQueryTexts) throws IOException {
+    private static @Nullable ChunkSource sharedQueryTextsToJson(
+            List<Trace.SharedQueryText> sharedQueryTexts) {
         if (sharedQueryTexts.isEmpty()) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            writeSharedQueryTexts(jg, sharedQueryTexts);
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return toJson(new SharedQueryTextsWriter(sharedQueryTexts));
     }
 
-    private static void writeEntries(JsonGenerator jg, List<Trace.Entry> entries)
-            throws IOException {
-        jg.writeStartArray();
-        PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.iterator());
-        while (i.hasNext()) {
-            Trace.Entry entry = i.next();
-            int depth = entry.getDepth();
-            jg.writeStartObject();
-            writeJson(entry, jg);
-            int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
-            if (nextDepth > depth) {
-                jg.writeArrayFieldStart("childEntries");
-            } else if (nextDepth < depth) {
-                jg.writeEndObject();
-                for (int j = depth; j > nextDepth; j--) {
-                    jg.writeEndArray();
-                    jg.writeEndObject();
-                }
-            } else {
-                jg.writeEndObject();
+    private static ChunkSource toJson(final ArrayWriter<?> arrayWriter) {
+        return ChunkSource.create(new JsonChunkWriter() {
+            @Override
+            public boolean writeNext(JsonGenerator jg) throws IOException {
+                return arrayWriter.writeNext(jg);
             }
-        }
-        jg.writeEndArray();
+        });
     }
 
-    private static void writeQueries(JsonGenerator jg, List<Aggregate.Query> queries)
-            throws IOException {
-        jg.writeStartArray();
-        Iterator<Aggregate.Query> i = queries.iterator();
-        while (i.hasNext()) {
-            Aggregate.Query query = i.next();
-            jg.writeStartObject();
-            writeJson(query, jg);
-            jg.writeEndObject();
-        }
-        jg.writeEndArray();
-    }
-
-    private static void writeSharedQueryTexts(JsonGenerator jg,
-            List<Trace.SharedQueryText> sharedQueryTexts) throws IOException {
-        jg.writeStartArray();
-        for (Trace.SharedQueryText sharedQueryText : sharedQueryTexts) {
-            jg.writeStartObject();
-            String fullText = sharedQueryText.getFullText();
-            if (fullText.isEmpty()) {
-                // truncatedText, truncatedEndText and fullTextSha1 are all provided in this case
-                jg.writeStringField("truncatedText", sharedQueryText.getTruncatedText());
-                jg.writeStringField("truncatedEndText", sharedQueryText.getTruncatedEndText());
-                jg.writeStringField("fullTextSha1", sharedQueryText.getFullTextSha1());
-            } else {
-                jg.writeStringField("fullText", fullText);
-            }
-            jg.writeEndObject();
-        }
-        jg.writeEndArray();
-    }
-
-    private static @Nullable String toJson(@Nullable Profile profile) throws IOException {
+    // the profile is still read and merged up front, only the json is generated while streaming
+    @VisibleForTesting
+    static @Nullable ChunkSource toJson(@Nullable Profile profile) {
         if (profile == null) {
             return null;
         }
-        MutableProfile mutableProfile = new MutableProfile();
+        final MutableProfile mutableProfile = new MutableProfile();
         mutableProfile.merge(profile);
-        return mutableProfile.toJson();
+        return ChunkSource.create(new JsonChunkWriter() {
+            private @Nullable IncrementalJsonWriter profileWriter;
+            @Override
+            public boolean writeNext(JsonGenerator jg) throws IOException {
+                IncrementalJsonWriter profileWriter = this.profileWriter;
+                if (profileWriter == null) {
+                    profileWriter = mutableProfile.getIncrementalJsonWriter(jg);
+                    this.profileWriter = profileWriter;
+                }
+                return profileWriter.writeNext(PROFILE_NODES_PER_CHUNK);
+            }
+        });
     }
 
     private String toJsonLiveHeader(String agentId, Trace.Header header) throws Exception {
@@ -589,7 +549,8 @@ class TraceCommonService {
         return sb.toString();
     }
 
-    private static void writeJson(Trace.Entry entry, JsonGenerator jg) throws IOException {
+    @VisibleForTesting
+    static void writeJson(Trace.Entry entry, JsonGenerator jg) throws IOException {
         jg.writeNumberField("startOffsetNanos", entry.getStartOffsetNanos());
         jg.writeNumberField("durationNanos", entry.getDurationNanos());
         if (entry.getActive()) {
@@ -765,6 +726,109 @@ class TraceCommonService {
         return "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(header.getStartTime());
     }
 
+    // writes a json array a limited number of elements at a time
+    private abstract static class ArrayWriter<T> {
+
+        private final PeekingIterator<T> i;
+
+        private boolean started;
+        private boolean completed;
+
+        private ArrayWriter(List<T> list) {
+            i = Iterators.peekingIterator(list.iterator());
+        }
+
+        // returns false after writing the end of the array
+        boolean writeNext(JsonGenerator jg) throws IOException {
+            if (!started) {
+                jg.writeStartArray();
+                started = true;
+            }
+            for (int count = 0; count < ELEMENTS_PER_CHUNK && i.hasNext(); count++) {
+                writeElement(i.next(), jg);
+            }
+            if (i.hasNext()) {
+                return true;
+            }
+            jg.writeEndArray();
+            completed = true;
+            return false;
+        }
+
+        boolean hasNextElement() {
+            return i.hasNext();
+        }
+
+        T peekNextElement() {
+            return i.peek();
+        }
+
+        abstract void writeElement(T element, JsonGenerator jg) throws IOException;
+    }
+
+    private static class EntriesWriter extends ArrayWriter<Trace.Entry> {
+
+        private EntriesWriter(List<Trace.Entry> entries) {
+            super(entries);
+        }
+
+        @Override
+        void writeElement(Trace.Entry entry, JsonGenerator jg) throws IOException {
+            int depth = entry.getDepth();
+            jg.writeStartObject();
+            writeJson(entry, jg);
+            int nextDepth = hasNextElement() ? peekNextElement().getDepth() : 0;
+            if (nextDepth > depth) {
+                jg.writeArrayFieldStart("childEntries");
+            } else if (nextDepth < depth) {
+                jg.writeEndObject();
+                for (int j = depth; j > nextDepth; j--) {
+                    jg.writeEndArray();
+                    jg.writeEndObject();
+                }
+            } else {
+                jg.writeEndObject();
+            }
+        }
+    }
+
+    private static class QueriesWriter extends ArrayWriter<Aggregate.Query> {
+
+        private QueriesWriter(List<Aggregate.Query> queries) {
+            super(queries);
+        }
+
+        @Override
+        void writeElement(Aggregate.Query query, JsonGenerator jg) throws IOException {
+            jg.writeStartObject();
+            writeJson(query, jg);
+            jg.writeEndObject();
+        }
+    }
+
+    private static class SharedQueryTextsWriter extends ArrayWriter<Trace.SharedQueryText> {
+
+        private SharedQueryTextsWriter(List<Trace.SharedQueryText> sharedQueryTexts) {
+            super(sharedQueryTexts);
+        }
+
+        @Override
+        void writeElement(Trace.SharedQueryText sharedQueryText, JsonGenerator jg)
+                throws IOException {
+            jg.writeStartObject();
+            String fullText = sharedQueryText.getFullText();
+            if (fullText.isEmpty()) {
+                // truncatedText, truncatedEndText and fullTextSha1 are all provided in this case
+                jg.writeStringField("truncatedText", sharedQueryText.getTruncatedText());
+                jg.writeStringField("truncatedEndText", sharedQueryText.getTruncatedEndText());
+                jg.writeStringField("fullTextSha1", sharedQueryText.getFullTextSha1());
+            } else {
+                jg.writeStringField("fullText", fullText);
+            }
+            jg.writeEndObject();
+        }
+    }
+
     private static class RetryCountdown {
 
         private int remaining;
@@ -780,14 +844,14 @@ class TraceCommonService {
         String fileName();
         String headerJson();
         @Nullable
-        String entriesJson();
+        ChunkSource entriesJson();
         @Nullable
-        String queriesJson();
+        ChunkSource queriesJson();
         @Nullable
-        String sharedQueryTextsJson();
+        ChunkSource sharedQueryTextsJson();
         @Nullable
-        String mainThreadProfileJson();
+        ChunkSource mainThreadProfileJson();
         @Nullable
-        String auxThreadProfileJson();
+        ChunkSource auxThreadProfileJson();
     }
 }
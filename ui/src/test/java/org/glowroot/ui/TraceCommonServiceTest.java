@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,22 @@
  */
 package org.glowroot.ui;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.List;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
 import org.junit.Test;
 
+import org.glowroot.common.live.ImmutableEntries;
+import org.glowroot.common.live.LiveTraceRepository.Entries;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.ui.ChunkSource.ChunkCopier;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -33,10 +44,155 @@ public class TraceCommonServiceTest {
         entries.add(Trace.Entry.newBuilder().setDepth(0).build());
         entries.add(Trace.Entry.newBuilder().setDepth(1).build());
         // when
-        String json = TraceCommonService.entriesToJson(entries);
+        String json = toString(TraceCommonService.entriesToJson(entries));
         // then
         assertThat(json).isEqualTo("[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\","
                 + "\"childEntries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\"}]"
                 + "}]");
     }
+
+    @Test
+    public void shouldWriteSameEntriesJsonAsSinglePass() throws Exception {
+        // given
+        // depths 0, 1, 2, 3, 4, 2, 1, 0, 1, ... so that the depth changes (both up and down)
+        // across the chunk boundaries, and the last entry is nested 4 deep
+        int[] depths = {0, 1, 2, 3, 4, 2, 1};
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 3 * TraceCommonService.ELEMENTS_PER_CHUNK + 47; i++) {
+            Trace.Entry.Builder entry = Trace.Entry.newBuilder()
+                    .setDepth(depths[i % depths.length])
+                    .setStartOffsetNanos(i)
+                    .setDurationNanos(1);
+            if (i % 3 == 0) {
+                entry.setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                        .setSharedQueryTextIndex(i % 150)
+                        .setPrefix("jdbc query: ")
+                        .setSuffix(""));
+            } else {
+                entry.setMessage("entry " + i);
+            }
+            entries.add(entry.build());
+        }
+        List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        for (int i = 0; i < 150; i++) {
+            if (i % 2 == 0) {
+                sharedQueryTexts.add(Trace.SharedQueryText.newBuilder()
+                        .setFullText("select " + i)
+                        .build());
+            } else {
+                sharedQueryTexts.add(Trace.SharedQueryText.newBuilder()
+                        .setTruncatedText("select " + i)
+                        .setTruncatedEndText(" from x")
+                        .setFullTextSha1("sha1-" + i)
+                        .build());
+            }
+        }
+        Entries entriesAndSharedQueryTexts = ImmutableEntries.builder()
+                .addAllEntries(entries)
+                .addAllSharedQueryTexts(sharedQueryTexts)
+                .build();
+        // when
+        String entriesJson = toString(TraceCommonService.entriesToJson(entries));
+        String json = toString(TraceCommonService.toJson(entriesAndSharedQueryTexts));
+        // then
+        assertThat(entriesJson).isEqualTo(singlePassEntriesJson(entries));
+        assertThat(json).isEqualTo(singlePassJson(entries, sharedQueryTexts));
+    }
+
+    @Test
+    public void shouldWriteSameProfileJsonAsSinglePass() throws Exception {
+        // given
+        MutableProfile mutableProfile = new MutableProfile();
+        // 30 root nodes, each with 1 + 10 + 100 nodes
+        for (int i = 0; i < 30; i++) {
+            for (int j = 0; j < 100; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi" + j, "Def.java",
+                        123));
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi" + j % 10,
+                        "Def.java", 456));
+                stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main" + i,
+                        "Main.java", 789));
+                mutableProfile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+        }
+        Profile profile = mutableProfile.toProto();
+        assertThat(profile.getNodeCount())
+                .isGreaterThan(TraceCommonService.PROFILE_NODES_PER_CHUNK);
+        // when
+        String json = toString(TraceCommonService.toJson(profile));
+        // then
+        MutableProfile expected = new MutableProfile();
+        expected.merge(profile);
+        assertThat(json).isEqualTo(expected.toJson());
+    }
+
+    private static String toString(ChunkSource chunkSource) throws Exception {
+        StringWriter out = new StringWriter();
+        ChunkCopier chunkCopier = chunkSource.getCopier(out);
+        while (chunkCopier.copyNext()) {
+        }
+        return out.toString();
+    }
+
+    // this is how the json was written before it was streamed in chunks
+    private static String singlePassJson(List<Trace.Entry> entries,
+            List<Trace.SharedQueryText> sharedQueryTexts) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonGenerator jg = new JsonFactory().createGenerator(out);
+        jg.writeStartObject();
+        jg.writeFieldName("entries");
+        writeEntries(jg, entries);
+        jg.writeFieldName("sharedQueryTexts");
+        jg.writeStartArray();
+        for (Trace.SharedQueryText sharedQueryText : sharedQueryTexts) {
+            jg.writeStartObject();
+            String fullText = sharedQueryText.getFullText();
+            if (fullText.isEmpty()) {
+                jg.writeStringField("truncatedText", sharedQueryText.getTruncatedText());
+                jg.writeStringField("truncatedEndText", sharedQueryText.getTruncatedEndText());
+                jg.writeStringField("fullTextSha1", sharedQueryText.getFullTextSha1());
+            } else {
+                jg.writeStringField("fullText", fullText);
+            }
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+        jg.writeEndObject();
+        jg.close();
+        return out.toString();
+    }
+
+    private static String singlePassEntriesJson(List<Trace.Entry> entries) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonGenerator jg = new JsonFactory().createGenerator(out);
+        writeEntries(jg, entries);
+        jg.close();
+        return out.toString();
+    }
+
+    private static void writeEntries(JsonGenerator jg, List<Trace.Entry> entries)
+            throws IOException {
+        jg.writeStartArray();
+        PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.iterator());
+        while (i.hasNext()) {
+            Trace.Entry entry = i.next();
+            int depth = entry.getDepth();
+            jg.writeStartObject();
+            TraceCommonService.writeJson(entry, jg);
+            int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
+            if (nextDepth > depth) {
+                jg.writeArrayFieldStart("childEntries");
+            } else if (nextDepth < depth) {
+                jg.writeEndObject();
+                for (int j = depth; j > nextDepth; j--) {
+                    jg.writeEndArray();
+                    jg.writeEndObject();
+                }
+            } else {
+                jg.writeEndObject();
+            }
+        }
+        jg.writeEndArray();
+    }
 }